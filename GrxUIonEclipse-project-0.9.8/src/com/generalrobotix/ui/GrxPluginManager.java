@@ -219,6 +219,9 @@ public class GrxPluginManager implements IPropertyChangeListener {
      */
     private void updateActiveViewList() {
         activeViewList_.clear();
+        // バッチ処理などでワークベンチがない時はビューもない
+        if (!PlatformUI.isWorkbenchRunning())
+            return;
         
         Display display = Display.getDefault();
         display.syncExec(new Runnable(){
@@ -253,6 +256,8 @@ public class GrxPluginManager implements IPropertyChangeListener {
 
     private void updateViewList() {
         viewList_.clear();
+        if (!PlatformUI.isWorkbenchRunning())
+            return;
         
         Display display = Display.getDefault();
         display.syncExec(new Runnable(){
@@ -477,6 +482,11 @@ public class GrxPluginManager implements IPropertyChangeListener {
 		}
         
         if (!f.isFile()){
+        	// ワークベンチがない時はファイルを選び直せない
+        	if (!PlatformUI.isWorkbenchRunning()){
+        		GrxDebugUtil.printErr("loadItem: file not found: " + _url); //$NON-NLS-1$
+        		return null;
+        	}
         	FileDialog fdlg = new FileDialog(GrxUIPerspectiveFactory.getCurrentShell(), SWT.OPEN);
         	PluginInfo pi = pinfoMap_.get(cls);
             String[] fe = { pi.filter };
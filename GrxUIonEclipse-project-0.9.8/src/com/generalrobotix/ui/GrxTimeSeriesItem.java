@@ -17,15 +17,22 @@
  */
 package com.generalrobotix.ui;
 
-import java.util.ArrayList;
-import java.util.ListIterator;
-
-
 /**
  * series of timed objects
+ *
+ * Times are kept in a primitive array (time index) separately from the objects.
+ * Times must be non-decreasing so that positions can be found by binary search.
+ * Both arrays are used as a ring buffer whose capacity is the maximum log size,
+ * so that the oldest object is dropped in constant time.
  */
 public abstract class GrxTimeSeriesItem extends GrxBaseItem {
-	private ArrayList<TValue> log_ = new ArrayList<TValue>();
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private Object[] values_ = new Object[INITIAL_CAPACITY];
+	private double[] times_ = new double[INITIAL_CAPACITY]; // NaN: not loaded yet
+	private int head_ = 0;     // index of the oldest object in the arrays
+	private int size_ = 0;
+	private long removed_ = 0; // number of dropped objects
 	private int maxLogSize_ = 1000000;
 	private int currentPos_ = -1;
 	private boolean bRemoved = false;
@@ -65,7 +72,7 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
 	}
 	
 	protected boolean setPosition(int pos){
-		if (0 <= pos && pos < log_.size()){
+		if (0 <= pos && pos < size_){
 			currentPos_ = pos;
 			return true;
 		}else
@@ -84,18 +91,80 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
 	 * If there is no object in this series -1 is returned. 
 	 */
 	public int getPositionAt(Double t){
-		if (getLogSize() == 0) return -1;
-		int pos = 0;
-		Double dt = Math.abs(t - getTime(pos));
-		for (int i=1; i<getLogSize(); i++){
-			Double new_dt = Math.abs(t - getTime(i));
-			if (new_dt < dt){
-				dt = new_dt;
-				pos = i;
-			}
-		}
+		return timeToPosition(t);
+	}
+
+	/**
+	 * get position of timed object which is nearest to the specified time by binary search.
+	 * @param t time
+	 * @return position, or -1 if there is no object in this series
+	 */
+	public int timeToPosition(double t){
+		int size = getLogSize();
+		if (size == 0) return -1;
+		int pos = _lowerBound(t, 0, size);
+		if (pos >= size)
+			return size - 1;
+		if (pos > 0 && t - positionToTime(pos - 1) <= positionToTime(pos) - t)
+			return pos - 1;
 		return pos;
 	}
+
+	/**
+	 * get time of object at specified position without boxing
+	 * @param pos position of the object
+	 * @return time, or NaN if pos is out of range
+	 */
+	public double positionToTime(int pos){
+		if (pos < 0 || pos >= size_)
+			return Double.NaN;
+		double[] times = times_;
+		int i = _index(pos, times.length);
+		double t = times[i];
+		if (Double.isNaN(t)) {
+			t = loadTime(pos);
+			if (!Double.isNaN(t) && times == times_ && Double.isNaN(times[i]))
+				times[i] = t;
+		}
+		return t;
+	}
+
+	/**
+	 * get range of positions whose times are in [startTime, endTime)
+	 * @param startTime start of time window
+	 * @param endTime end of time window (exclusive)
+	 * @return {start, end} positions. start == end if no object is in the window
+	 */
+	public int[] getPositionRange(double startTime, double endTime){
+		int size = getLogSize();
+		int start = _lowerBound(startTime, 0, size);
+		int end = (endTime > startTime) ? _lowerBound(endTime, start, size) : start;
+		return new int[]{start, end};
+	}
+
+	/**
+	 * first position in [from, to) whose time is equal or later than t
+	 */
+	private int _lowerBound(double t, int from, int to){
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (positionToTime(mid) < t)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+	/**
+	 * load time of object at specified position whose time is not known.
+	 * Subclasses which add objects by addValues() override this.
+	 * @param pos position of the object
+	 * @return time, or NaN if it is not available
+	 */
+	protected double loadTime(int pos) {
+		return Double.NaN;
+	}
 	
 	/**
 	 * set time to current object
@@ -103,8 +172,20 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
 	 * @param t time
 	 */
 	public void setTimeAt(int pos, Double t) {
-		if (0 <= pos && pos < log_.size())
-			log_.get(pos).time = t;
+		if (0 <= pos && pos < size_)
+			times_[_index(pos, times_.length)] = (t != null) ? t : Double.NaN;
+	}
+
+	/**
+	 * set times to objects from specified position
+	 * @param pos position of the first object
+	 * @param times times
+	 * @param len number of times
+	 */
+	protected void setTimes(int pos, float[] times, int len) {
+		len = Math.min(len, size_ - pos);
+		for (int i = 0; i < len; i++)
+			times_[_index(pos + i, times_.length)] = times[i];
 	}
 
 	/**
@@ -121,9 +202,10 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
 	 * @return time
 	 */
 	public Double getTime(int pos) {
-		if (0 <= pos && pos < log_.size())
-			return log_.get(pos).time;
-		return null;
+		double t = positionToTime(pos);
+		if (Double.isNaN(t))
+			return null;
+		return t;
 	}
 	
 	/**
@@ -132,14 +214,70 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
 	 * @param val object
 	 */
 	public void addValue(Double t, Object val) {
-		TValue tv = new TValue(t,val);
-		log_.add(tv);
-		if (maxLogSize_ > 0 && log_.size() > maxLogSize_){
-            log_.remove(0);
-            bRemoved = true;
-        }
+		int i = _append();
+		times_[i] = (t != null) ? t : Double.NaN;
+		values_[i] = val;
 	}
-	
+
+	/**
+	 * add timed objects whose time and value are not loaded yet.
+	 * getTime() and getValue() return null for them until subclasses supply them.
+	 * @param count number of objects
+	 */
+	protected void addValues(int count) {
+		for (int n = 0; n < count; n++) {
+			int i = _append();
+			times_[i] = Double.NaN;
+			values_[i] = null;
+		}
+	}
+
+	/**
+	 * reserve a slot at the end of the ring.
+	 * The oldest object is dropped if the series already has maxLogSize_ objects.
+	 * @return index of the slot in the arrays
+	 */
+	private int _append() {
+		while (maxLogSize_ > 0 && size_ >= maxLogSize_)
+			_removeHead();
+		_ensureCapacity(size_ + 1);
+		return _index(size_++, times_.length);
+	}
+
+	private void _removeHead() {
+		values_[head_] = null;
+		head_ = (head_ + 1) % times_.length;
+		size_--;
+		removed_++;
+		bRemoved = true;
+	}
+
+	private int _index(int pos, int capacity) {
+		int i = head_ + pos;
+		return (i < capacity) ? i : i - capacity;
+	}
+
+	/**
+	 * grow the arrays, unwrapping the ring so that the oldest object comes first
+	 */
+	private void _ensureCapacity(int capacity) {
+		if (capacity <= times_.length)
+			return;
+		int len = Math.max(capacity, times_.length * 2);
+		if (maxLogSize_ > 0)
+			len = Math.min(len, Math.max(capacity, maxLogSize_));
+		double[] times = new double[len];
+		Object[] values = new Object[len];
+		int first = Math.min(size_, times_.length - head_);
+		System.arraycopy(times_, head_, times, 0, first);
+		System.arraycopy(times_, 0, times, first, size_ - first);
+		System.arraycopy(values_, head_, values, 0, first);
+		System.arraycopy(values_, 0, values, first, size_ - first);
+		head_ = 0;
+		times_ = times;
+		values_ = values;
+	}
+
 	/**
 	 * get current object
 	 * @return current object
@@ -155,19 +293,18 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
 	 * @return object
 	 */
 	public Object getValue(int pos) {
-		if (0 <= pos && pos < log_.size())
-			return log_.get(pos).value;
+		if (0 <= pos && pos < size_)
+			return values_[_index(pos, values_.length)];
 		return null;
 	}
 
 	/**
-	 * set maximum length of this series
-	 * @param maxLogSize maximum length
+	 * set maximum length of this series.
+	 * The oldest objects exceeding it are dropped when the next object is added.
+	 * @param maxLogSize maximum length, or 0 or less for unlimited
 	 */
 	public final void setMaximumLogSize(int maxLogSize) {
-		if (maxLogSize > 0) {
-			maxLogSize_ = maxLogSize;
-		}
+		maxLogSize_ = Math.max(0, maxLogSize);
 	}
 
 	/**
@@ -175,7 +312,7 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
 	 * @return length
 	 */
 	public final int getLogSize() {
-		return log_.size();
+		return size_;
 	}
 
 	/**
@@ -186,7 +323,11 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
         overPos_ = 0;
         changePos_ = -1;
         bRemoved = false;
-		log_.clear();
+		values_ = new Object[INITIAL_CAPACITY];
+		times_ = new double[INITIAL_CAPACITY];
+		head_ = 0;
+		size_ = 0;
+		removed_ = 0;
 		System.gc();
 	}
 
@@ -196,11 +337,19 @@ public abstract class GrxTimeSeriesItem extends GrxBaseItem {
     protected boolean isRemoved() {
         return  bRemoved;
     }
+
+	/**
+	 * get number of objects dropped from the head of this series since clearLog()
+	 * @return number of dropped objects
+	 */
+	protected long getRemovedCount() {
+		return removed_;
+	}
     
     /**
      * get TValue
      */
     protected TValue getObject(int index) {
-        return  log_.get(index);
+        return  new TValue(getTime(index), getValue(index));
     }
 }
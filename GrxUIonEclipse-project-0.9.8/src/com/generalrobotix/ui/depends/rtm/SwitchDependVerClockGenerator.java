@@ -1,13 +1,72 @@
 package com.generalrobotix.ui.depends.rtm;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import com.generalrobotix.ui.depends.rtm.ClockGeneratorRtm_impl;
 
 public class SwitchDependVerClockGenerator extends ClockGeneratorRtm_impl{
+    // execution contexts grouped by period
+    private List<Bucket> buckets_ = new ArrayList<Bucket>();
+    // execution contexts to be executed in the current step
+    private List<Tick> due_ = new ArrayList<Tick>();
+    private volatile ExecutorService executor_ = null;
+
+    /**
+     * @brief execution contexts which have the same period
+     */
+    private static class Bucket {
+        private final double period_;
+        private final List<Tick> ticks_ = new ArrayList<Tick>();
+        // the earliest next execution time of ticks_
+        private double nextExecutionTime_ = 0;
+
+        Bucket(double period){
+            period_ = period;
+        }
+
+        void update(){
+            double next = Double.MAX_VALUE;
+            for (int i=0; i<ticks_.size(); i++){
+                next = Math.min(next, ticks_.get(i).ec_.getNextExecutionTime());
+            }
+            nextExecutionTime_ = next;
+        }
+    }
+
+    /**
+     * @brief executes an execution context on a worker thread
+     */
+    private static class Tick implements Runnable {
+        private final ExecutionContext ec_;
+        private double time_;
+        private boolean succeeded_;
+        private CountDownLatch done_;
+
+        Tick(ExecutionContext ec){
+            ec_ = ec;
+        }
+
+        public void run(){
+            try{
+                succeeded_ = ec_.execute(time_);
+            }finally{
+                if (done_ != null){
+                    done_.countDown();
+                }
+            }
+        }
+    }
+
     public String getDependencyModuleName()
     {
         return new String("OpenRTM");
     }
-    
+
     /**
      * reset execution contexts(clock receivers)
      */
@@ -22,17 +81,147 @@ public class SwitchDependVerClockGenerator extends ClockGeneratorRtm_impl{
                 ecs_.remove(ec);
             }
         }
+        ecsChanged_ = true;
     }
-    
+
+    /**
+     * @brief switch parallel execution of execution contexts
+     *
+     * In parallel mode, all execution contexts which are due in a step
+     * are ticked at once on worker threads and updateExecutionContext()
+     * returns after all of them have finished. Call this while the
+     * simulation is not running.
+     * @param parallel true to tick execution contexts in parallel
+     */
+    public void setParallel(boolean parallel){
+        if (parallel && executor_ == null){
+            executor_ = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ExecutionContext");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }else if (!parallel && executor_ != null){
+            executor_.shutdown();
+            executor_ = null;
+        }
+    }
+
+    /**
+     * @brief tick execution contexts whose next execution time has come
+     *
+     * Only the groups of execution contexts whose earliest next execution
+     * time has come are examined. An execution context which fails is
+     * removed.
+     * @param simTime current time in the simulation world
+     */
     public void updateExecutionContext(double simTime)
     {
-        for (int i=0; i<ecs_.size();){
-            ExecutionContext ec = ecs_.get(i);
-            if (ec.execute(simTime)){
-                i++;
-            }else{
-                ecs_.remove(ec);
+        if (ecsChanged_){
+            _rebuildBuckets();
+        }
+        due_.clear();
+        for (int i=0; i<buckets_.size(); i++){
+            Bucket bucket = buckets_.get(i);
+            if (simTime < bucket.nextExecutionTime_){
+                continue;
+            }
+            for (int j=0; j<bucket.ticks_.size(); j++){
+                Tick tick = bucket.ticks_.get(j);
+                if (tick.ec_.isDue(simTime)){
+                    tick.time_ = simTime;
+                    due_.add(tick);
+                }
+            }
+        }
+        if (due_.isEmpty()){
+            return;
+        }
+
+        ExecutorService executor = executor_;
+        if (executor == null || due_.size() < 2){
+            for (int i=0; i<due_.size(); i++){
+                Tick tick = due_.get(i);
+                tick.done_ = null;
+                tick.run();
+            }
+        }else{
+            // the last one is executed on this thread
+            int n = due_.size() - 1;
+            CountDownLatch done = new CountDownLatch(n);
+            for (int i=0; i<n; i++){
+                Tick tick = due_.get(i);
+                tick.done_ = done;
+                executor.execute(tick);
+            }
+            Tick last = due_.get(n);
+            last.done_ = null;
+            last.run();
+            try{
+                done.await();
+            }catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (int i=0; i<due_.size(); i++){
+            Tick tick = due_.get(i);
+            if (!tick.succeeded_){
+                ecs_.remove(tick.ec_);
+                ecsChanged_ = true;
             }
         }
+        for (int i=0; i<buckets_.size(); i++){
+            Bucket bucket = buckets_.get(i);
+            if (simTime >= bucket.nextExecutionTime_){
+                bucket.update();
+            }
+        }
+    }
+
+    /**
+     * @brief get latency statistics of execution contexts
+     * @return one line for each execution context: period, number of ticks,
+     *         mean and maximum time taken by tick()
+     */
+    public String[] getStatistics(){
+        Object[] ecs = ecs_.toArray();
+        String[] lines = new String[ecs.length];
+        for (int i=0; i<ecs.length; i++){
+            ExecutionContext ec = (ExecutionContext)ecs[i];
+            lines[i] = i+": period = "+ec.getPeriod()+"[s], ticks = "+ec.getTickCount()
+                +", mean = "+String.format("%.1f", ec.getMeanTickNanos()/1000.0)+"[us]"
+                +", max = "+ec.getMaxTickNanos()/1000+"[us]";
+        }
+        return lines;
+    }
+
+    /**
+     * @brief group execution contexts by period
+     */
+    private void _rebuildBuckets(){
+        ecsChanged_ = false;
+        List<Bucket> buckets = new ArrayList<Bucket>();
+        Object[] ecs = ecs_.toArray();
+        for (int i=0; i<ecs.length; i++){
+            ExecutionContext ec = (ExecutionContext)ecs[i];
+            Bucket bucket = null;
+            for (int j=0; j<buckets.size(); j++){
+                if (buckets.get(j).period_ == ec.getPeriod()){
+                    bucket = buckets.get(j);
+                    break;
+                }
+            }
+            if (bucket == null){
+                bucket = new Bucket(ec.getPeriod());
+                buckets.add(bucket);
+            }
+            bucket.ticks_.add(new Tick(ec));
+        }
+        for (int i=0; i<buckets.size(); i++){
+            buckets.get(i).update();
+        }
+        buckets_ = buckets;
     }
 }
@@ -0,0 +1,219 @@
+package com.generalrobotix.ui.grxui;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+import java.util.Properties;
+
+import javax.media.j3d.Transform3D;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.eclipse.core.runtime.IPlatformRunnable;
+
+import com.generalrobotix.ui.GrxPluginManager;
+import com.generalrobotix.ui.item.GrxModelItem;
+import com.generalrobotix.ui.item.GrxWorldStateItem;
+import com.generalrobotix.ui.item.GrxWorldStateItem.WorldStateEx;
+import com.generalrobotix.ui.util.GrxConfigBundle;
+import com.generalrobotix.ui.view.Grx3DView;
+import com.generalrobotix.ui.view.tdview.ImageToFile;
+import com.generalrobotix.ui.view.tdview.OffscreenRenderer;
+
+/**
+ * @brief renders a log to a movie without the workbench
+ *
+ * A project and a log are loaded in the same way as GrxUI, and every frame
+ * is rendered by OffscreenRenderer and written by ImageToFile. Usage:
+ * <pre>
+ * eclipse -application com.generalrobotix.ui.grxui.batchRender -nosplash
+ *     -project sample.xml -log sample.log -output sample.avi
+ * </pre>
+ * Java3D needs an X server even for offscreen rendering, so run this under
+ * Xvfb on a machine without a screen.
+ */
+public class BatchRenderApplication implements IPlatformRunnable {
+	private static final Integer EXIT_ERROR = Integer.valueOf(1);
+
+	public Object run(Object args) throws Exception {
+		Options options = _createOptions();
+		CommandLine cmd;
+		try {
+			cmd = new GnuParser().parse(options, (String[])args);
+		} catch (ParseException ex) {
+			System.err.println(ex.getMessage());
+			_printUsage(options);
+			return EXIT_ERROR;
+		}
+		if (cmd.hasOption("help") || !cmd.hasOption("project") || !cmd.hasOption("output")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			_printUsage(options);
+			return cmd.hasOption("help") ? IPlatformRunnable.EXIT_OK : EXIT_ERROR; //$NON-NLS-1$
+		}
+
+		int width, height, threads;
+		double frameRate, playbackRate, startTime, endTime;
+		try {
+			String[] size = cmd.getOptionValue("size", "640x480").split("x"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			width = Integer.parseInt(size[0]);
+			height = Integer.parseInt(size[1]);
+			frameRate = Double.parseDouble(cmd.getOptionValue("rate", "10")); //$NON-NLS-1$ //$NON-NLS-2$
+			playbackRate = Double.parseDouble(cmd.getOptionValue("speed", "1.0")); //$NON-NLS-1$ //$NON-NLS-2$
+			threads = Integer.parseInt(cmd.getOptionValue("threads", //$NON-NLS-1$
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			startTime = Double.parseDouble(cmd.getOptionValue("begin", "0")); //$NON-NLS-1$ //$NON-NLS-2$
+			endTime = Double.parseDouble(cmd.getOptionValue("end", "NaN")); //$NON-NLS-1$ //$NON-NLS-2$
+		} catch (RuntimeException ex) {
+			System.err.println("invalid option: " + ex.getMessage()); //$NON-NLS-1$
+			_printUsage(options);
+			return EXIT_ERROR;
+		}
+		if (width <= 0 || height <= 0 || frameRate <= 0 || playbackRate <= 0) {
+			_printUsage(options);
+			return EXIT_ERROR;
+		}
+		String output = new File(cmd.getOptionValue("output")).getAbsolutePath(); //$NON-NLS-1$
+		String fileType = output.toLowerCase().endsWith(".avi") ? ImageToFile.MJPEG_AVI : ImageToFile.PNG_SEQUENCE; //$NON-NLS-1$
+		String format = cmd.getOptionValue("format"); //$NON-NLS-1$
+		if ("avi".equals(format)) //$NON-NLS-1$
+			fileType = ImageToFile.MJPEG_AVI;
+		else if ("png".equals(format)) //$NON-NLS-1$
+			fileType = ImageToFile.PNG_SEQUENCE;
+		boolean overwrite = cmd.hasOption("overwrite"); //$NON-NLS-1$
+		if (!overwrite && ImageToFile.outputExists(output, fileType)) {
+			System.err.println(ImageToFile.getOutputPath(output, fileType) + " already exists. use -overwrite to replace it"); //$NON-NLS-1$
+			return EXIT_ERROR;
+		}
+
+		// the same servers as GrxUI are started by the plugin manager
+		Activator activator = Activator.getDefault();
+		activator.startGrxUI();
+		try {
+			GrxPluginManager manager = activator.manager_;
+			File project = new File(cmd.getOptionValue("project")); //$NON-NLS-1$
+			if (!manager.getProject().load(project)) {
+				System.err.println("failed to load " + project); //$NON-NLS-1$
+				return EXIT_ERROR;
+			}
+			GrxWorldStateItem world = manager.<GrxWorldStateItem>getSelectedItem(GrxWorldStateItem.class, null);
+			if (cmd.hasOption("log")) { //$NON-NLS-1$
+				if (world == null) {
+					world = (GrxWorldStateItem)manager.createItem(GrxWorldStateItem.class, null);
+					manager.itemChange(world, GrxPluginManager.ADD_ITEM);
+					manager.setSelectedItem(world, true);
+				}
+				world.load(new File(cmd.getOptionValue("log"))); //$NON-NLS-1$
+			}
+			if (world == null || world.getLogSize() == 0) {
+				System.err.println("no log to render"); //$NON-NLS-1$
+				return EXIT_ERROR;
+			}
+
+			if (Double.isNaN(endTime))
+				endTime = world.getTime(world.getLogSize() - 1);
+			boolean succeeded = _render(manager, world, width, height, frameRate, playbackRate,
+					startTime, endTime, !cmd.hasOption("target"), output, fileType, threads, overwrite); //$NON-NLS-1$
+			return succeeded ? IPlatformRunnable.EXIT_OK : EXIT_ERROR;
+		} catch (Exception ex) {
+			_printError("[BatchRender] stopped by an error", ex); //$NON-NLS-1$
+			return EXIT_ERROR;
+		} finally {
+			activator.stopGrxUI();
+		}
+	}
+
+	/**
+	 * @brief render frames from startTime to endTime and write them
+	 * @return true if all frames are written
+	 */
+	private boolean _render(GrxPluginManager manager, GrxWorldStateItem world, int width, int height,
+			double frameRate, double playbackRate, double startTime, double endTime,
+			boolean actualState, String output, String fileType, int threads, boolean overwrite) throws InterruptedException {
+		OffscreenRenderer renderer = new OffscreenRenderer(width, height);
+		List<GrxModelItem> models = manager.<GrxModelItem>getSelectedItemList(GrxModelItem.class);
+		for (int i = 0; i < models.size(); i++)
+			renderer.addModel(models.get(i));
+		Properties viewProperties = manager.getViewProperties(Grx3DView.TITLE);
+		if (viewProperties != null) {
+			GrxConfigBundle config = new GrxConfigBundle();
+			config.putAll(viewProperties);
+			double[] eye = config.getDblAry("eyeHomePosition", null); //$NON-NLS-1$
+			if (eye != null && eye.length == 16)
+				renderer.setViewTransform(new Transform3D(eye));
+		}
+
+		ImageToFile encoder = new ImageToFile(width, height, (float)frameRate, output, fileType, threads);
+		encoder.setOverwrite(overwrite);
+		if (!encoder.startProcess()) {
+			_printError("[BatchRender] can't open " + output, encoder.getError()); //$NON-NLS-1$
+			renderer.dispose();
+			return false;
+		}
+		System.out.println("[BatchRender] " + width + "x" + height + " " + frameRate + "fps, " + threads + " threads -> " + output); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		boolean pushed = true;
+		try {
+			// frames are picked from the log in the same way as Grx3DView.rec()
+			double stepTime = playbackRate / frameRate;
+			int position = world.getPositionAt(startTime);
+			int endPosition = world.getPositionAt(endTime);
+			double time = world.positionToTime(position);
+			int frames = 0;
+			while (position >= 0 && position <= endPosition) {
+				time += stepTime;
+				WorldStateEx state = world.getValue(position);
+				if (state != null)
+					renderer.updateModels(state, actualState);
+				BufferedImage image = renderer.render();
+				if (!encoder.pushImage(image)) {
+					pushed = false;
+					break;
+				}
+				if (++frames % 100 == 0)
+					System.out.println("[BatchRender] " + frames + " frames"); //$NON-NLS-1$ //$NON-NLS-2$
+				position = Math.max(position + 1, world.getPositionRange(time, time)[0]);
+			}
+		} finally {
+			boolean succeeded = encoder.endProcess();
+			pushed = pushed && succeeded;
+			renderer.dispose();
+		}
+		if (pushed)
+			System.out.println("[BatchRender] " + encoder.getFrameCount() + " frames written"); //$NON-NLS-1$ //$NON-NLS-2$
+		else
+			_printError("[BatchRender] failed to write " + output, encoder.getError()); //$NON-NLS-1$
+		return pushed;
+	}
+
+	/**
+	 * @brief print an error regardless of the debug mode
+	 */
+	private void _printError(String message, Exception ex) {
+		System.err.println(message);
+		if (ex != null)
+			ex.printStackTrace();
+	}
+
+	private Options _createOptions() {
+		Options options = new Options();
+		options.addOption("p", "project", true, "project file"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("l", "log", true, "log file. the log of the project is used if omitted"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("o", "output", true, "movie file(.avi) or base name of PNG files"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("f", "format", true, "avi or png. decided by the extension of output if omitted"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("s", "size", true, "image size WIDTHxHEIGHT (640x480)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("r", "rate", true, "frame rate[1/s] (10)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("x", "speed", true, "playback rate (1.0)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("b", "begin", true, "start time[s] (0)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("e", "end", true, "end time[s] (end of the log)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("j", "threads", true, "number of encoder threads (number of processors)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("w", "overwrite", false, "overwrite existing files"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("t", "target", false, "show target joint angles instead of actual ones"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		options.addOption("h", "help", false, "print this message"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return options;
+	}
+
+	private void _printUsage(Options options) {
+		new HelpFormatter().printHelp("eclipse -application com.generalrobotix.ui.grxui.batchRender -nosplash [options]", options); //$NON-NLS-1$
+	}
+}
@@ -95,6 +95,12 @@ public class GrxLinkItem extends GrxTransformItem{
     private Switch switchAxis_;
     private Switch switchAABB_;
 
+    // playback: jointValue_ not yet written to "angle" property
+    private boolean angleModified_ = false;
+    private final Transform3D t3dWork_ = new Transform3D();
+    private final Matrix3d m3dWork_ = new Matrix3d();
+    private final Vector3d v3dWork_ = new Vector3d();
+
     public Transform3D absTransform(){
     	Transform3D t3d = new Transform3D();
     	tg_.getTransform(t3d);
@@ -109,16 +115,21 @@ public class GrxLinkItem extends GrxTransformItem{
     	return rotation_;
     }
 
+    /**
+     * @brief set absolute transformation
+     *
+     * This is called for every link in every frame of playback, so it
+     * reuses work objects instead of allocating.
+     * @param p position
+     * @param R rotation matrix(row major)
+     */
     public void absTransform(double[] p, double[] R){
-    	Transform3D t3d = new Transform3D();
-        tg_.getTransform(t3d);        
-        t3d.setTranslation(new Vector3d(p));
-        AxisAngle4d a4d = new AxisAngle4d();
-		a4d.setMatrix(new Matrix3d(R));
-		double[] newrot = new double[4];
-		a4d.get(newrot);
-        t3d.setRotation(new AxisAngle4d(newrot));
-        tg_.setTransform(t3d);
+        v3dWork_.set(p[0], p[1], p[2]);
+        m3dWork_.m00 = R[0]; m3dWork_.m01 = R[1]; m3dWork_.m02 = R[2];
+        m3dWork_.m10 = R[3]; m3dWork_.m11 = R[4]; m3dWork_.m12 = R[5];
+        m3dWork_.m20 = R[6]; m3dWork_.m21 = R[7]; m3dWork_.m22 = R[8];
+        t3dWork_.set(m3dWork_, v3dWork_, 1.0);
+        tg_.setTransform(t3dWork_);
     }
     
     public boolean localTranslation(double[] pos){
@@ -170,8 +181,30 @@ public class GrxLinkItem extends GrxTransformItem{
      */
     public void jointValue(double jv){
     	jointValue_ = jv;
+    	angleModified_ = false;
     	setDbl("angle", jointValue_); //$NON-NLS-1$
     }
+
+    /**
+     * @brief set new joint value without updating the property
+     *
+     * Used by playback. syncJointValue() writes the value to the property.
+     * @param jv joint value
+     */
+    public void jointValueWithoutSync(double jv){
+    	if (jv != jointValue_){
+    		jointValue_ = jv;
+    		angleModified_ = true;
+    	}
+    }
+
+    /**
+     * @brief write the joint value set by jointValueWithoutSync() to the property
+     */
+    public void syncJointValue(){
+    	if (angleModified_)
+    		jointValue(jointValue_);
+    }
     
     /**
      * @brief set joint value from string
@@ -511,6 +544,18 @@ public class GrxLinkItem extends GrxTransformItem{
         Vector3d absCom = new Vector3d(linkCenterOfMass_);
         return transformV3(absCom);
     }
+
+    /**
+     * @brief compute center of mass in the world frame without allocation
+     * @param absCom computed center of mass
+     */
+    public void absCoM(Vector3d absCom){
+        absCom.set(linkCenterOfMass_);
+        tg_.getTransform(t3dWork_);
+        t3dWork_.transform(absCom);
+        t3dWork_.get(v3dWork_);
+        absCom.add(v3dWork_);
+    }
        
     private void _updateScaleOfBall(){
 		Matrix3d I = new Matrix3d(linkInertia_);
@@ -28,6 +28,7 @@ import org.eclipse.jface.action.Action;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.osgi.util.NLS;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.FileDialog;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -76,6 +77,9 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
     public AppearanceInfo[] appearances = null;
     public MaterialInfo[] materials = null;
     public TextureInfo[] textures = null;
+
+    // models fetched by preload() and not loaded yet, url -> model
+    private static final Map<String, Preload> preloads_ = new HashMap<String, Preload>();
     
     // CoM
     private Switch switchCom_;
@@ -87,6 +91,37 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
 
     // bounding box of the whole body
     private Switch switchBb_;
+
+    // pose set by playback is written to properties after it stops for POSE_SYNC_DELAY
+    private static final int POSE_SYNC_DELAY = 300; //[ms]
+    private boolean poseModified_ = false;
+    private long lastPoseTime_ = 0;
+    // root pose to be written by syncPoseProperties. arrays of LinkPosition are
+    // reused by the frame cache of the log, so they are copied here
+    private final double[] rootPos_ = new double[3];
+    private final double[] rootRot_ = new double[9];
+    private boolean rootPoseModified_ = false;
+    private Runnable poseSync_ = new Runnable(){
+        public void run(){
+            if (!poseModified_)
+                return;
+            long wait = POSE_SYNC_DELAY - (System.currentTimeMillis() - lastPoseTime_);
+            Display display = Display.getCurrent();
+            if (wait > 0 && display != null && !display.isDisposed()){
+                display.timerExec((int)wait, this);
+                return;
+            }
+            syncPoseProperties();
+        }
+    };
+
+    // work objects of updateCoM
+    private final Vector3d comWork_ = new Vector3d();
+    private final Vector3d comZ0Work_ = new Vector3d();
+    private final Vector3d rootPosWork_ = new Vector3d();
+    private final Vector3d linkComWork_ = new Vector3d();
+    private final Transform3D comT3d_ = new Transform3D();
+    private final Transform3D rootT3d_ = new Transform3D();
        
     /**
      * @brief notify this model is modified
@@ -581,11 +616,16 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
 		}
         GrxDebugUtil.println("Loading " + url); //$NON-NLS-1$
         try {
-            ModelLoader mloader = ModelLoaderHelper.narrow(
-                GrxCorbaUtil.getReference("ModelLoader")); //$NON-NLS-1$
             setURL(url);
-            bInfo_ = mloader.loadBodyInfo(getURL(true));
-            boolean ret = registerCharacter();
+            Preload preload = _takePreload(url);
+            if (preload != null){
+                bInfo_ = preload.bInfo_;
+            }else{
+                ModelLoader mloader = ModelLoaderHelper.narrow(
+                    GrxCorbaUtil.getReference("ModelLoader")); //$NON-NLS-1$
+                bInfo_ = mloader.loadBodyInfo(getURL(true));
+            }
+            boolean ret = registerCharacter(preload);
             long load_etime = System.currentTimeMillis();
             System.out.println("load time = " + (load_etime-load_stime) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
             return ret;
@@ -604,12 +644,88 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
 		}
     }
     
+    /**
+     * @brief model data fetched from ModelLoader before the item is loaded
+     */
+    public static class Preload {
+        private final String url_;
+        private final BodyInfo bInfo_;
+        private final LinkInfo[] links_;
+        private final ShapeInfo[] shapes_;
+        private final AppearanceInfo[] appearances_;
+        private final MaterialInfo[] materials_;
+        private final TextureInfo[] textures_;
+        // keeps geometries in GeometryCache until the model is loaded
+        private final Object[] geometries_;
+
+        private Preload(String url, BodyInfo bInfo){
+            url_ = url;
+            bInfo_ = bInfo;
+            links_ = bInfo.links();
+            shapes_ = bInfo.shapes();
+            appearances_ = bInfo.appearances();
+            materials_ = bInfo.materials();
+            textures_ = bInfo.textures();
+            geometries_ = GrxShapeItem.prepareGeometries(shapes_, appearances_, textures_);
+        }
+
+        public String getURL(){
+            return url_;
+        }
+    }
+
+    /**
+     * @brief fetch a model from ModelLoader and build its geometries
+     *
+     * Only the data of the model is made, so this can be called from a
+     * worker thread. Give the result to addPreload() just before loading
+     * the item so that load() uses it instead of asking ModelLoader again.
+     * @param mloader ModelLoader
+     * @param url canonical path of the model file
+     * @return fetched model
+     * @throws ModelLoaderException
+     */
+    public static Preload preload(ModelLoader mloader, String url) throws ModelLoaderException {
+        return new Preload(url, mloader.loadBodyInfo(url));
+    }
+
+    /**
+     * @brief let the next load() of the URL use a fetched model
+     * @param preload model fetched by preload()
+     */
+    public static void addPreload(Preload preload){
+        synchronized (preloads_){
+            preloads_.put(preload.url_, preload);
+        }
+    }
+
+    /**
+     * @brief discard fetched models which have not been loaded
+     */
+    public static void clearPreloads(){
+        synchronized (preloads_){
+            preloads_.clear();
+        }
+    }
+
+    private static Preload _takePreload(String url){
+        if (url == null)
+            return null;
+        synchronized (preloads_){
+            return preloads_.remove(url);
+        }
+    }
+
     public boolean registerCharacter(BodyInfo bInfo){
     	bInfo_ = bInfo;
-    	return registerCharacter();
+    	return registerCharacter(null);
     }
     
-    private boolean registerCharacter(){
+    /**
+     * @brief create links and shapes from bInfo_
+     * @param preload data fetched from bInfo_ beforehand, or null
+     */
+    private boolean registerCharacter(Preload preload){
         manager_.focusedItem(null);
         manager_.setSelectedItem(this, false);
         bgRoot_.detach();
@@ -619,7 +735,7 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
         bgRoot_.setCapability(BranchGroup.ALLOW_CHILDREN_WRITE);
         bgRoot_.setCapability(BranchGroup.ALLOW_CHILDREN_EXTEND);
 
-            LinkInfo[] linkInfoList = bInfo_.links();
+            LinkInfo[] linkInfoList = preload != null ? preload.links_ : bInfo_.links();
 
             // delete existing model data
             if (rootLink() != null){
@@ -678,7 +794,7 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
 
             long stime = System.currentTimeMillis();
             try {
-				_loadVrmlScene(linkInfoList);
+				_loadVrmlScene(linkInfoList, preload);
 			} catch (BadLinkStructureException e) {
 				e.printStackTrace();
 				return false;
@@ -741,13 +857,21 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
     /**
      * @brief create shapes of links
      * @param links array of LinkInfo retrieved from ModelLoader
+     * @param preload data fetched from bInfo_ beforehand, or null
      * @throws BadLinkStructureException
      */
-    private void _loadVrmlScene(LinkInfo[] links) throws BadLinkStructureException {
-    	shapes = bInfo_.shapes();
-        appearances = bInfo_.appearances();
-        materials = bInfo_.materials();
-        textures = bInfo_.textures();
+    private void _loadVrmlScene(LinkInfo[] links, Preload preload) throws BadLinkStructureException {
+        if (preload != null){
+            shapes = preload.shapes_;
+            appearances = preload.appearances_;
+            materials = preload.materials_;
+            textures = preload.textures_;
+        }else{
+            shapes = bInfo_.shapes();
+            appearances = bInfo_.appearances();
+            materials = bInfo_.materials();
+            textures = bInfo_.textures();
+        }
         
         int numLinks = links.length;
         for(int linkIndex = 0; linkIndex < numLinks; linkIndex++) {
@@ -913,23 +1037,66 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
         boolean isAllPosProvided = true;
     	if (q != null) {
             for (int i=0; i<jointToLink_.length; i++)
-                links_.get(jointToLink_[i]).jointValue(q[i]);
+                links_.get(jointToLink_[i]).jointValueWithoutSync(q[i]);
     	}
         for (int i=0; i<links_.size(); i++) {
             if (lpos[i].p == null || lpos[i].R == null)
                 isAllPosProvided = false;
             else{
-            	if(i==0){
-            		links_.get(i).localTranslation(lpos[0].p);
-            		links_.get(i).localRotation(lpos[0].R);
-            	}
+            	if(i==0)
+            		_setRootPose(lpos[0].p, lpos[0].R);
             	links_.get(i).absTransform(lpos[i].p, lpos[i].R);
             }
         }    
-        if (isAllPosProvided)
+        poseModified_ = true;
+        if (isAllPosProvided){
             updateCoM();
-        else
+        }else{
+            // forward kinematics needs the root transformation in the properties
+            _syncRootTransform();
             calcForwardKinematics();
+        }
+        _schedulePoseSync();
+    }
+
+    /**
+     * @brief write the pose set by setCharacterPos to the properties
+     */
+    public void syncPoseProperties() {
+        if (!poseModified_)
+            return;
+        poseModified_ = false;
+        _syncRootTransform();
+        for (int i=0; i<jointToLink_.length; i++)
+            links_.get(jointToLink_[i]).syncJointValue();
+    }
+
+    private void _syncRootTransform() {
+        if (rootPoseModified_){
+            // the link keeps the array given
+            rootLink().localTranslation(rootPos_.clone());
+            rootLink().localRotation(rootRot_);
+            rootPoseModified_ = false;
+        }
+    }
+
+    private void _setRootPose(double[] p, double[] R) {
+        System.arraycopy(p, 0, rootPos_, 0, 3);
+        System.arraycopy(R, 0, rootRot_, 0, 9);
+        rootPoseModified_ = true;
+    }
+
+    private void _schedulePoseSync() {
+        Display display = Display.getCurrent();
+        if (display == null || display.isDisposed()){
+            // off the UI thread, e.g. in the batch renderer, the pose is kept
+            // pending and written once by the next syncPoseProperties()
+            return;
+        }
+        // the timer is armed once and re-arms itself while the pose keeps changing
+        if (lastPoseTime_ == 0 || System.currentTimeMillis() - lastPoseTime_ > POSE_SYNC_DELAY)
+            display.timerExec(POSE_SYNC_DELAY, poseSync_);
+        lastPoseTime_ = System.currentTimeMillis();
     }
 
     /**
@@ -941,6 +1108,27 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
         _setTransform(0, pos, rot);
     }
 
+    /**
+     * @brief set transformation of the root joint without updating the properties
+     *
+     * Joint values set by GrxLinkItem.jointValueWithoutSync() are used for
+     * forward kinematics. This is used while a pose is edited interactively
+     * and syncPoseProperties() writes the pose to the properties.
+     * @param p position
+     * @param R rotation matrix(row major)
+     */
+    public void setTransformRootWithoutSync(double[] p, double[] R) {
+        GrxLinkItem root = rootLink();
+        _setRootPose(p, R);
+        root.absTransform(p, R);
+        for (int i=0; i<root.children_.size(); i++){
+            if (root.children_.get(i) instanceof GrxLinkItem)
+                ((GrxLinkItem)root.children_.get(i)).calcForwardKinematics();
+        }
+        poseModified_ = true;
+        updateCoM();
+    }
+
     /**
      * @brief set transformation of the root joint
      * @param pos position
@@ -1035,12 +1223,13 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
     public void updateCoM() {
         if (switchCom_.getWhichChild() == Switch.CHILD_ALL ||
             switchComZ0_.getWhichChild() == Switch.CHILD_ALL) {
-        	Vector3d v3d = new Vector3d();
+        	Vector3d v3d = comWork_;
             getCoM(v3d);
-            Vector3d vz0 = new Vector3d(v3d);
+            Vector3d vz0 = comZ0Work_;
+            vz0.set(v3d);
 
             _globalToRoot(v3d);
-            Transform3D t3d = new Transform3D();
+            Transform3D t3d = comT3d_;
             t3d.set(v3d);
             tgCom_.setTransform(t3d);
 
@@ -1056,9 +1245,9 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
      * @param pos global position It is overwritten by robot local position
      */
     private void _globalToRoot(Vector3d pos) {
-        Transform3D t3d = new Transform3D();
+        Transform3D t3d = rootT3d_;
         getTransformGroupRoot().getTransform(t3d);
-        Vector3d p = new Vector3d();
+        Vector3d p = rootPosWork_;
         t3d.get(p);
         t3d.invert();
         pos.sub(p);
@@ -1078,7 +1267,8 @@ public class GrxModelItem extends GrxBaseItem implements Manipulatable {
         for (int i = 0; i < links_.size(); i++) {
         	GrxLinkItem link = links_.get(i);
             totalMass += link.linkMass_;
-            Vector3d absCom = link.absCoM();
+            Vector3d absCom = linkComWork_;
+            link.absCoM(absCom);
             absCom.scale(link.linkMass_);
             pos.add(absCom);
         }
@@ -22,6 +22,12 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -35,6 +41,7 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.dialogs.InputDialog;
 import org.eclipse.jface.dialogs.MessageDialog;
@@ -70,6 +77,10 @@ import com.generalrobotix.ui.util.MessageBundle;
 import com.generalrobotix.ui.util.OrderedHashMap;
 import com.generalrobotix.ui.util.TwoInputDialog;
 
+import jp.go.aist.hrp.simulator.ModelLoader;
+import jp.go.aist.hrp.simulator.ModelLoaderHelper;
+import jp.go.aist.hrp.simulator.ModelLoaderPackage.ModelLoaderException;
+
 @SuppressWarnings({ "unchecked", "serial" }) //$NON-NLS-1$ //$NON-NLS-2$
 public class GrxProjectItem extends GrxBaseItem {
 	public static final String TITLE = "Project"; //$NON-NLS-1$
@@ -134,7 +145,7 @@ public class GrxProjectItem extends GrxBaseItem {
 		doc_.appendChild(element_);
 		_updateModeInfo();
 		IWorkbenchPage page=null;
- 		IWorkbench workbench = PlatformUI.getWorkbench();
+ 		IWorkbench workbench = PlatformUI.isWorkbenchRunning() ? PlatformUI.getWorkbench() : null;
         if( workbench != null){
         	IWorkbenchWindow[] windows = workbench.getWorkbenchWindows();
         	for(IWorkbenchWindow window : windows){
@@ -567,6 +578,12 @@ public class GrxProjectItem extends GrxBaseItem {
 		String mode = manager_.getCurrentModeName();
 		System.out.println("Restore Project (Mode:" +mode+")"); //$NON-NLS-1$ //$NON-NLS-2$
 
+		// バッチ処理ではダイアログを出さずに復元する
+		if (!PlatformUI.isWorkbenchRunning()) {
+			restoreProject_work(mode, new NullProgressMonitor());
+			return;
+		}
+
 		IRunnableWithProgress runnableProgress = new IRunnableWithProgress() {
 			public void run(IProgressMonitor monitor) throws InterruptedException {
 				String mode = manager_.getCurrentModeName();
@@ -647,11 +664,44 @@ public class GrxProjectItem extends GrxBaseItem {
 				}
 			}
 			
+            // models are fetched from ModelLoader on worker threads while the items are restored in order
+            String[] modelPaths = new String[minfo.itemList.getLength()];
+            int numModels = 0;
+            for (int i = 0; i < modelPaths.length; i++) {
+                modelPaths[i] = _getModelPath((Element) minfo.itemList.item(i));
+                if (modelPaths[i] != null)
+                    numModels++;
+            }
+            ExecutorService pool = null;
+            List<Future<GrxModelItem.Preload>> preloads = null;
+            if (numModels > 0) {
+                pool = _newPreloadPool(numModels);
+                preloads = _startPreload(modelPaths, pool);
+            }
+
             List<GrxBaseItem> il = new ArrayList<GrxBaseItem>();
-			for (int i = 0; i < minfo.itemList.getLength(); i++) {
-				GrxBaseItem p = (GrxBaseItem)_restorePlugin((Element) minfo.itemList.item(i));
-                if (p != null)
-                     il.add(p);
+            try {
+                int modelCount = 0;
+                for (int i = 0; i < minfo.itemList.getLength(); i++) {
+                    Element element = (Element) minfo.itemList.item(i);
+                    if (preloads != null && preloads.get(i) != null) {
+                        modelCount++;
+                        monitor.subTask(NLS.bind(MessageBundle.get("GrxProjectItem.progress.loadModel"), //$NON-NLS-1$
+                                new String[]{element.getAttribute("name"), String.valueOf(modelCount), String.valueOf(numModels)})); //$NON-NLS-1$
+                        GrxModelItem.Preload preload = _waitPreload(preloads.get(i));
+                        if (preload != null)
+                            GrxModelItem.addPreload(preload);
+                    }
+                    GrxBaseItem p = (GrxBaseItem)_restorePlugin(element);
+                    GrxModelItem.clearPreloads();
+                    if (p != null)
+                        il.add(p);
+                }
+            } finally {
+                if (pool != null)
+                    pool.shutdownNow();
+                GrxModelItem.clearPreloads();
+                monitor.subTask(""); //$NON-NLS-1$
             }
             
             // for a item that is exclusive selection reselect 
@@ -664,7 +714,9 @@ public class GrxProjectItem extends GrxBaseItem {
 
 		monitor.worked(1);
 		
-		if (minfo.windowConfig != null) {
+		if (!PlatformUI.isWorkbenchRunning()) {
+			// ウィンドウの配置はワークベンチがある時だけ復元する
+		} else if (minfo.windowConfig != null) {
 			Document doc = builder_.newDocument();
 			Node nodeCopy = doc.importNode(minfo.windowConfig, true);
 			doc.appendChild(nodeCopy);
@@ -771,6 +823,90 @@ public class GrxProjectItem extends GrxBaseItem {
         return plugin;
 	}
 		
+	/**
+	 * @brief get path of the model file of an item
+	 *
+	 * The path is made in the same way as GrxPluginManager.loadItem().
+	 * @param e element of the item
+	 * @return canonical path, or null if the item is not a model or the file does not exist
+	 */
+	private String _getModelPath(Element e) {
+		if (!e.getAttribute("class").equals(PreferenceConstants.MODELITEM)) //$NON-NLS-1$
+			return null;
+		String url = GrxXmlUtil.expandEnvVal(e.getAttribute("url")); //$NON-NLS-1$
+		if (url == null || url.equals("")) //$NON-NLS-1$
+			return null;
+		File f = null;
+		try {
+			f = new File(new URL(url).getFile());
+		} catch (Exception ex) {
+			f = new File(url);
+		}
+		try {
+			f = f.getCanonicalFile();
+		} catch (IOException ex) {
+			return null;
+		}
+		return f.isFile() ? f.getPath() : null;
+	}
+
+	private static ExecutorService _newPreloadPool(int tasks) {
+		int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tasks));
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ModelPreload"); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @brief start fetching models from ModelLoader and building their geometries
+	 * @param paths paths of model files, null for items which are not models
+	 * @param pool worker threads
+	 * @return futures of fetched models, null for items which are not models
+	 */
+	private List<Future<GrxModelItem.Preload>> _startPreload(String[] paths, ExecutorService pool) {
+		List<Future<GrxModelItem.Preload>> futures = new ArrayList<Future<GrxModelItem.Preload>>();
+		ModelLoader mloader = null;
+		try {
+			mloader = ModelLoaderHelper.narrow(GrxCorbaUtil.getReference("ModelLoader")); //$NON-NLS-1$
+		} catch (Exception e) {
+			GrxDebugUtil.printErr("ModelLoader is not found", e); //$NON-NLS-1$
+		}
+		for (int i = 0; i < paths.length; i++) {
+			if (mloader == null || paths[i] == null) {
+				futures.add(null);
+				continue;
+			}
+			final ModelLoader ml = mloader;
+			final String path = paths[i];
+			futures.add(pool.submit(new Callable<GrxModelItem.Preload>() {
+				public GrxModelItem.Preload call() throws ModelLoaderException {
+					return GrxModelItem.preload(ml, path);
+				}
+			}));
+		}
+		return futures;
+	}
+
+	/**
+	 * @brief wait until a model is fetched
+	 * @return fetched model, or null if it failed. In that case the model is
+	 *         loaded again by the item, which reports the error.
+	 */
+	private GrxModelItem.Preload _waitPreload(Future<GrxModelItem.Preload> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			GrxDebugUtil.printErr("failed to preload a model", e); //$NON-NLS-1$
+		}
+		return null;
+	}
+
 	private boolean containSimulationItem(NodeList list){
 		for (int i = 0; i < list.getLength(); i++) {
 			if(((Element) list.item(i)).getAttribute("class").equals(PreferenceConstants.SIMULATIONITEM))
@@ -21,6 +21,7 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferUShort;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.media.j3d.Appearance;
@@ -44,10 +45,7 @@ import javax.media.j3d.TransparencyAttributes;
 import javax.vecmath.Color3f;
 import javax.vecmath.Matrix3d;
 import javax.vecmath.Matrix4d;
-import javax.vecmath.Point2f;
-import javax.vecmath.Point3f;
 import javax.vecmath.Vector3d;
-import javax.vecmath.Vector3f;
 
 import jp.go.aist.hrp.simulator.AppearanceInfo;
 import jp.go.aist.hrp.simulator.MaterialInfo;
@@ -64,6 +62,7 @@ import org.eclipse.osgi.util.NLS;
 
 import com.generalrobotix.ui.GrxPluginManager;
 import com.generalrobotix.ui.util.AxisAngle4d;
+import com.generalrobotix.ui.util.GeometryCache;
 import com.generalrobotix.ui.util.MessageBundle;
 import com.generalrobotix.ui.view.tdview.SceneGraphModifier;
 import com.sun.j3d.utils.geometry.Box;
@@ -421,31 +420,22 @@ public class GrxShapeItem extends GrxShapeTransformItem{
 
 	/**
      * @brief create Shape3D object from shapeInfo, appearanceInfo, MaterialInfo and TextureInfo
+     *
+     * The geometry and the texture image are taken from GeometryCache if
+     * the same data of the same URL has been loaded before.
      * @param shapeInfo shape information
      * @param appearanceInfo appearance information
      * @param materialInfo material information
      * @param textureInfo texture information
      * @return created shape
      */
-    @SuppressWarnings("deprecation") //$NON-NLS-1$
 	private Shape3D createShape3D
     (ShapeInfo shapeInfo, AppearanceInfo appearanceInfo, MaterialInfo materialInfo, TextureInfo textureInfo){
         
-        GeometryInfo geometryInfo = new GeometryInfo(GeometryInfo.TRIANGLE_ARRAY);
-
-        // set vertices
-        int numVertices = shapeInfo.vertices.length / 3;
-        Point3f[] vertices = new Point3f[numVertices];
-        for(int i=0; i < numVertices; ++i){
-            vertices[i] = new Point3f(shapeInfo.vertices[i*3], shapeInfo.vertices[i*3+1], shapeInfo.vertices[i*3+2]);
-        }
-        geometryInfo.setCoordinates(vertices);
-        geometryInfo.setCoordinateIndices(shapeInfo.triangles);
+        GeometryArray geometry = _getGeometry(shapeInfo, appearanceInfo, textureInfo != null);
         
         Appearance appearance = createAppearance();
         if (appearanceInfo != null){
-            setColors(geometryInfo, shapeInfo, appearanceInfo);
-            setNormals(geometryInfo, shapeInfo, appearanceInfo);
             if(appearanceInfo.solid){
             	PolygonAttributes pa = appearance.getPolygonAttributes();
             	pa.setCullFace(PolygonAttributes.CULL_BACK);
@@ -456,30 +446,77 @@ public class GrxShapeItem extends GrxShapeTransformItem{
                 setMaterial( appearance, materialInfo);      
 
             if(textureInfo != null){
-                setTexture( appearance, textureInfo);
-            
-
-                int numTexCoordinate = appearanceInfo.textureCoordinate.length / 2;
-                Point2f[] texCoordinate = new Point2f[numTexCoordinate];
-                for(int i=0, j=0; i<numTexCoordinate;  i++)
-                    texCoordinate[i] = new Point2f( appearanceInfo.textureCoordinate[j++], appearanceInfo.textureCoordinate[j++] );
-
-                geometryInfo.setTextureCoordinates(texCoordinate);
-                geometryInfo.setTextureCoordinateIndices(appearanceInfo.textureCoordIndices);               
+                setTexture( appearance, textureInfo, shapeInfo.url);
             }
         }
 
-        Shape3D shape3D = new Shape3D(geometryInfo.getGeometryArray());
+        Shape3D shape3D = new Shape3D(geometry);
         shape3D.setCapability(Shape3D.ALLOW_APPEARANCE_READ);
         shape3D.setCapability(Shape3D.ALLOW_GEOMETRY_READ);
         shape3D.setCapability(GeometryArray.ALLOW_COORDINATE_READ);
         shape3D.setCapability(GeometryArray.ALLOW_COUNT_READ);
-        PickTool.setCapabilities(shape3D, PickTool.INTERSECT_FULL);
+        if (geometry.isLive() || geometry.isCompiled()){
+            // shared geometry already has the capabilities for picking
+            shape3D.setCapability(Node.ALLOW_LOCAL_TO_VWORLD_READ);
+        }else{
+            PickTool.setCapabilities(shape3D, PickTool.INTERSECT_FULL);
+        }
         appearance_ = appearance;
         shape3D.setAppearance(appearance);
  
         return shape3D;
     }
+    /**
+     * @brief get geometry of a shape from the cache or build it
+     *
+     * The geometry is a by-reference interleaved TriangleArray. It is
+     * shared by all shapes made from the same data and must not be
+     * modified.
+     * @param shapeInfo shape information
+     * @param appearanceInfo appearance information
+     * @param textured true if texture coordinates are needed
+     * @return geometry
+     */
+    private static GeometryArray _getGeometry
+    (ShapeInfo shapeInfo, AppearanceInfo appearanceInfo, boolean textured){
+        GeometryCache cache = GeometryCache.getInstance();
+        // every field used below is hashed
+        GeometryCache.Fingerprint fingerprint = new GeometryCache.Fingerprint();
+        fingerprint.add(shapeInfo.vertices).add(shapeInfo.triangles).add(appearanceInfo != null);
+        if (appearanceInfo != null){
+            fingerprint.add(appearanceInfo.normals).add(appearanceInfo.normalIndices).add(appearanceInfo.normalPerVertex);
+            fingerprint.add(appearanceInfo.colors).add(appearanceInfo.colorIndices).add(appearanceInfo.colorPerVertex);
+            fingerprint.add(appearanceInfo.creaseAngle);
+            if (textured)
+                fingerprint.add(appearanceInfo.textureCoordinate).add(appearanceInfo.textureCoordIndices);
+        }
+        String key = GeometryCache.key(shapeInfo.url, textured ? "texturedShape" : "shape", fingerprint); //$NON-NLS-1$ //$NON-NLS-2$
+        GeometryArray geometry = (GeometryArray)cache.get(key);
+        if (geometry != null)
+            return geometry;
+
+        GeometryInfo geometryInfo = new GeometryInfo(GeometryInfo.TRIANGLE_ARRAY);
+        geometryInfo.setCoordinates(shapeInfo.vertices);
+        geometryInfo.setCoordinateIndices(shapeInfo.triangles);
+        if (appearanceInfo != null){
+            setColors(geometryInfo, shapeInfo, appearanceInfo);
+            setNormals(geometryInfo, shapeInfo, appearanceInfo);
+            if (textured){
+                geometryInfo.setTextureCoordinateParams(1, 2);
+                geometryInfo.setTextureCoordinates(0, appearanceInfo.textureCoordinate);
+                geometryInfo.setTextureCoordinateIndices(0, appearanceInfo.textureCoordIndices);
+            }
+        }
+        geometry = geometryInfo.getGeometryArray(true, true, false);
+        geometry.setCapability(GeometryArray.ALLOW_COORDINATE_READ);
+        geometry.setCapability(GeometryArray.ALLOW_COUNT_READ);
+        geometry.setCapability(GeometryArray.ALLOW_FORMAT_READ);
+        geometry.setCapability(GeometryArray.ALLOW_REF_DATA_READ);
+        // set capabilities for picking while the geometry is not live
+        PickTool.setCapabilities(new Shape3D(geometry), PickTool.INTERSECT_FULL);
+        cache.put(key, geometry);
+        return geometry;
+    }
 /*
     private Primitive createPrimitive
     (ShapeInfo shapeInfo, AppearanceInfo appearanceInfo, MaterialInfo materialInfo, TextureInfo textureInfo){
@@ -549,7 +586,17 @@ public class GrxShapeItem extends GrxShapeTransformItem{
     }
 
     protected void setTexture( Appearance appearance, TextureInfo textureInfo ){
-        TextureInfoLocal texInfo = new TextureInfoLocal(textureInfo);
+        setTexture(appearance, textureInfo, null);
+    }
+
+    /**
+     * @brief set texture to appearance
+     * @param appearance appearance
+     * @param textureInfo texture information
+     * @param url URL of the shape file to share the image through GeometryCache, or null
+     */
+    protected void setTexture( Appearance appearance, TextureInfo textureInfo, String url ){
+        TextureInfoLocal texInfo = _getTextureInfo(textureInfo, url);
         if((texInfo.width != 0) && (texInfo.height != 0)){
             ImageComponent2D icomp2d = texInfo.readImage;
             Texture2D texture2d=null;
@@ -588,6 +635,61 @@ public class GrxShapeItem extends GrxShapeTransformItem{
     }
 
 
+    /**
+     * @brief get texture image from the cache or make it
+     * @param textureInfo texture information
+     * @param url URL of the shape file, or null not to use GeometryCache
+     * @return texture image
+     */
+    private static TextureInfoLocal _getTextureInfo(TextureInfo textureInfo, String url){
+        if (url == null)
+            return new TextureInfoLocal(textureInfo);
+        GeometryCache cache = GeometryCache.getInstance();
+        GeometryCache.Fingerprint fingerprint = new GeometryCache.Fingerprint();
+        fingerprint.add(textureInfo.image).add(textureInfo.numComponents).add(textureInfo.width).add(textureInfo.height);
+        fingerprint.add(textureInfo.repeatS).add(textureInfo.repeatT).add(textureInfo.url);
+        // an image given only by URL is read by the client, so the file itself is checked
+        if (textureInfo.image.length == 0)
+            fingerprint.addFile(textureInfo.url);
+        String key = GeometryCache.key(url, "texture", fingerprint); //$NON-NLS-1$
+        TextureInfoLocal texInfo = (TextureInfoLocal)cache.get(key);
+        if (texInfo == null){
+            texInfo = new TextureInfoLocal(textureInfo);
+            cache.put(key, texInfo);
+        }
+        return texInfo;
+    }
+
+    /**
+     * @brief build geometries and texture images of all shapes of a model into GeometryCache
+     *
+     * This does not touch any live scene graph and may be called from a
+     * worker thread before the model item is created. The returned array
+     * holds the built objects so that the soft references in the cache
+     * are not cleared until the model is attached.
+     * @param shapes shapes retrieved from ModelLoader
+     * @param appearances appearances retrieved from ModelLoader
+     * @param textures textures retrieved from ModelLoader
+     * @return geometries and texture images built
+     */
+    public static Object[] prepareGeometries(ShapeInfo[] shapes, AppearanceInfo[] appearances, TextureInfo[] textures){
+        List<Object> prepared = new ArrayList<Object>();
+        for (int i=0; i<shapes.length; i++){
+            ShapeInfo shapeInfo = shapes[i];
+            AppearanceInfo appearanceInfo = null;
+            TextureInfo textureInfo = null;
+            if (shapeInfo.appearanceIndex >= 0){
+                appearanceInfo = appearances[shapeInfo.appearanceIndex];
+                if (appearanceInfo.textureIndex >= 0)
+                    textureInfo = textures[appearanceInfo.textureIndex];
+            }
+            prepared.add(_getGeometry(shapeInfo, appearanceInfo, textureInfo != null));
+            if (textureInfo != null)
+                prepared.add(_getTextureInfo(textureInfo, shapeInfo.url));
+        }
+        return prepared.toArray();
+    }
+
     protected Material createMaterial(MaterialInfo materialInfo){
 
         Material material = new Material();
@@ -613,17 +715,12 @@ public class GrxShapeItem extends GrxShapeTransformItem{
         return material;
     }
 
-    private void setColors(GeometryInfo geometryInfo, ShapeInfo shapeInfo, AppearanceInfo appearanceInfo) {
+    private static void setColors(GeometryInfo geometryInfo, ShapeInfo shapeInfo, AppearanceInfo appearanceInfo) {
 
         int numColors = appearanceInfo.colors.length / 3;
 
         if(numColors > 0){
-            float[] orgColors = appearanceInfo.colors;
-            Color3f[] colors = new Color3f[numColors];
-            for(int i=0; i < numColors; ++i){
-                colors[i] = new Color3f(orgColors[i*3], orgColors[i*3+1], orgColors[i*3+2]);
-            }
-            geometryInfo.setColors(colors);
+            geometryInfo.setColors3(appearanceInfo.colors);
 
             int[] orgColorIndices = appearanceInfo.colorIndices;
             int numOrgColorIndices = orgColorIndices.length;
@@ -662,7 +759,7 @@ public class GrxShapeItem extends GrxShapeTransformItem{
     }
 
 
-    private void setNormals(GeometryInfo geometryInfo, ShapeInfo shapeInfo, AppearanceInfo appearanceInfo) {
+    private static void setNormals(GeometryInfo geometryInfo, ShapeInfo shapeInfo, AppearanceInfo appearanceInfo) {
 
         int numNormals = appearanceInfo.normals.length / 3;
 
@@ -672,12 +769,7 @@ public class GrxShapeItem extends GrxShapeTransformItem{
 
         } else {
 
-            float[] orgNormals = appearanceInfo.normals;
-            Vector3f[] normals = new Vector3f[numNormals];
-            for(int i=0; i < numNormals; ++i){
-                normals[i] = new Vector3f(orgNormals[i*3], orgNormals[i*3+1], orgNormals[i*3+2]);
-            }
-            geometryInfo.setNormals(normals);
+            geometryInfo.setNormals(appearanceInfo.normals);
 
             int[] orgNormalIndices = appearanceInfo.normalIndices;
             int numOrgNormalIndices = orgNormalIndices.length;
@@ -902,7 +994,13 @@ public class GrxShapeItem extends GrxShapeTransformItem{
     	diffuseColor(newValue);
     }
     
-    public class TextureInfoLocal
+    /**
+     * @brief texture image resized to power of 2
+     *
+     * Instances are shared through GeometryCache, so this class does not
+     * refer to the shape item.
+     */
+    public static class TextureInfoLocal
     {
         public	short		numComponents;
         public	short		width;
@@ -947,6 +1045,14 @@ public class GrxShapeItem extends GrxShapeTransformItem{
             	height_new /=2;
             
      
+            // source column and row of each pixel of the resized image
+            int[] srcX = new int[width_new];
+            for(int j=0; j<width_new; j++)
+            	srcX[j] = (int)(j*width/width_new);
+            int[] srcY = new int[height_new];
+            for(int i=0; i<height_new; i++)
+            	srcY[i] = (int)(i*height/height_new)*width;
+
             BufferedImage bimageRead=null;
             switch(numComponents){
             case 1:    
@@ -954,7 +1060,7 @@ public class GrxShapeItem extends GrxShapeTransformItem{
                 byte[] bytepixels = ( ( DataBufferByte)bimageRead.getRaster().getDataBuffer() ).getData();
                 for(int i=0; i<height_new; i++){
                 	for(int j=0; j<width_new; j++){
-                		int k = (int)(i*height/height_new)*width+(int)(j*width/width_new);
+                		int k = srcY[i]+srcX[j];
                 		bytepixels[i*width_new+j] = texinfo.image[k];
                 	}
                 }
@@ -964,7 +1070,7 @@ public class GrxShapeItem extends GrxShapeTransformItem{
                 short[] shortpixels = ( ( DataBufferUShort)bimageRead.getRaster().getDataBuffer() ).getData();
                 for(int i=0; i<height_new; i++){
                 	for(int j=0; j<width_new; j++){
-                		int k = (int)(i*height/height_new)*width*2+(int)(j*width/width_new)*2;
+                		int k = (srcY[i]+srcX[j])*2;
                 		short l = texinfo.image[k];
                 		short a = texinfo.image[k+1];
                 		shortpixels[i*width_new+j] = (short)((l&0xff) << 8 | (a&0xff)) ;
@@ -976,7 +1082,7 @@ public class GrxShapeItem extends GrxShapeTransformItem{
                 int[] intpixels = ( (DataBufferInt)bimageRead.getRaster().getDataBuffer() ).getData();
                 for(int i=0; i<height_new; i++){
                 	for(int j=0; j<width_new; j++){
-                		int k = (int)(i*height/height_new)*width*3+(int)(j*width/width_new)*3;
+                		int k = (srcY[i]+srcX[j])*3;
                 		short r = texinfo.image[k];
                 		short g = texinfo.image[k+1];
                 		short b = texinfo.image[k+2];
@@ -989,7 +1095,7 @@ public class GrxShapeItem extends GrxShapeTransformItem{
                 intpixels = ( (DataBufferInt)bimageRead.getRaster().getDataBuffer() ).getData();
                 for(int i=0; i<height_new; i++){
                 	for(int j=0; j<width_new; j++){
-                		int k = (int)(i*height/height_new)*width*4+(int)(j*width/width_new)*4;
+                		int k = (srcY[i]+srcX[j])*4;
                 		short r = texinfo.image[k];
                 		short g = texinfo.image[k+1];
                 		short b = texinfo.image[k+2];
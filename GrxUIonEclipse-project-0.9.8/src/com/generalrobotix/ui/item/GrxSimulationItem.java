@@ -17,12 +17,20 @@
  */
 package com.generalrobotix.ui.item;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import jp.go.aist.hrp.simulator.BodyInfo;
 import jp.go.aist.hrp.simulator.ClockGenerator;
@@ -31,6 +39,7 @@ import jp.go.aist.hrp.simulator.ControllerHelper;
 import jp.go.aist.hrp.simulator.DynamicsSimulator;
 import jp.go.aist.hrp.simulator.DynamicsSimulatorFactory;
 import jp.go.aist.hrp.simulator.DynamicsSimulatorFactoryHelper;
+import jp.go.aist.hrp.simulator.SensorState;
 import jp.go.aist.hrp.simulator.SensorStateHolder;
 import jp.go.aist.hrp.simulator.ViewSimulator;
 import jp.go.aist.hrp.simulator.ViewSimulatorHelper;
@@ -61,6 +70,9 @@ import com.generalrobotix.ui.util.GrxCorbaUtil;
 import com.generalrobotix.ui.util.GrxDebugUtil;
 import com.generalrobotix.ui.util.GrxProcessManager;
 import com.generalrobotix.ui.util.MessageBundle;
+import com.generalrobotix.ui.util.RealTimePacer;
+import com.generalrobotix.ui.util.StepProfiler;
+import com.generalrobotix.ui.util.TripleBuffer;
 import com.generalrobotix.ui.util.GrxProcessManager.AProcess;
 import com.generalrobotix.ui.util.GrxProcessManager.ProcessInfo;
 import com.generalrobotix.ui.view.Grx3DView;
@@ -74,7 +86,30 @@ public class GrxSimulationItem extends GrxBaseItem {
 	public static final String TITLE = "Simulation";
     private static final String FORMAT1 = "%8.3f"; //$NON-NLS-1$
 	private static final int WAIT_COUNT_ = 4;
+	private static final int MAX_CONTROLLER_THREADS = 8;
+	private static final int DEFAULT_BATCH_STEPS = 100;
+	private static final int MAX_OVERRUN_MESSAGES = 10;
+	private static final String[] realTimePolicyComboItem_ = new String[] { "catchup", "skip" }; //$NON-NLS-1$ //$NON-NLS-2$
+	private static final int INPUT = 0;
+	private static final int CONTROL = 1;
+	private static final int OUTPUT = 2;
+	// phases of a step measured by the profiler
+	private static final String[] PROFILE_PHASES = { "input", "control", "executionContext", "stepSimulation", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		"getWorldState", "log", "viewSimulation", "output", "step", "loop" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+	private static final int PROFILE_INPUT = 0;
+	private static final int PROFILE_CONTROL = 1;
+	private static final int PROFILE_EXEC_CONTEXT = 2;
+	private static final int PROFILE_STEP_SIMULATION = 3;
+	private static final int PROFILE_WORLD_STATE = 4;
+	private static final int PROFILE_LOG = 5;
+	private static final int PROFILE_VIEW_SIMULATION = 6;
+	private static final int PROFILE_OUTPUT = 7;
+	private static final int PROFILE_TOTAL = 8;
+	// time spent in the simulation loop between batches, which batchSteps reduces
+	private static final int PROFILE_LOOP = 9;
 	private GrxWorldStateItem currentWorld_;
+	// world state item whose log is profiled by profiler_
+	private GrxWorldStateItem profiledWorld_ = null;
 	private DynamicsSimulator currentDynamics_;
 	private List<ControllerAttribute> controllers_ = new ArrayList<ControllerAttribute>();
 	private WorldStateHolder stateH_ = new WorldStateHolder();
@@ -83,15 +118,25 @@ public class GrxSimulationItem extends GrxBaseItem {
 	private static ClockGenerator_impl clockGenerator_ = null;
 	    
 	private boolean isInteractive_ = true;
-	private boolean isExecuting_ = false;
-	private boolean isSuspending_ = false;
+	private volatile boolean isExecuting_ = false;
+	private volatile boolean isSuspending_ = false;
+	// the simulation thread waits on this while suspended
+	private final Object suspendLock_ = new Object();
 	private double simulateTime_ = 0;
 	private boolean isIntegrate_ = true;
 	private boolean isRealTime_ = false;
+	private boolean isParallelController_ = false;
+	private int batchSteps_ = 1;
+	private ExecutorService controllerExecutor_ = null;
+	private List<List<Callable<Object>>> controllerTasks_ = null;
+	private double controllerInputTime_ = 0;
+	private final StepProfiler profiler_ = new StepProfiler(PROFILE_PHASES);
+	private final RealTimePacer pacer_ = new RealTimePacer();
 	private double stepTime_ = 0.001;
 	private double totalTime_ = 20;
 	private double logStepTime_ = 0.05;
 	private boolean isSimulatingView_;
+	private boolean isSyncViewSimulation_;
 	private double viewSimulationStep_=0;
 	//private StartSimulate simulateAction_  = null;
 	
@@ -116,7 +161,13 @@ public class GrxSimulationItem extends GrxBaseItem {
 		setProperty("method","RUNGE_KUTTA"); //$NON-NLS-1$ //$NON-NLS-2$
 		setBool("integrate", true);
 		setBool("viewsimulate", false);
+		setBool("viewsimulateSync", false);
 		setBool("realTime", false);
+		setBool("parallelController", false);
+		setBool("parallelExecutionContext", false);
+		setInt("batchSteps", DEFAULT_BATCH_STEPS); //$NON-NLS-1$
+		setProperty("realTimePolicy", "catchup"); //$NON-NLS-1$ //$NON-NLS-2$
+		setDbl("realTimeTolerance", 0.001); //$NON-NLS-1$
 		return true;
 	}
 	
@@ -136,7 +187,21 @@ public class GrxSimulationItem extends GrxBaseItem {
 		private Object lock_ = new Object();
 		private Object lock3_ = new Object();
 		private boolean viewSimulationUpdate_ = false;
+		private TripleBuffer<WorldStateEx> viewBuffer_ = null;
 		private WorldStateEx wsx_=null;
+		private WorldStateEx recycledWsx_ = null;
+		private SensorState[] sensorStates_ = null;
+		private boolean recycleState_ = false;
+		// allocation measurement of simulation steps (debug mode only)
+		// com.sun.management is not available on every VM, so it is called by reflection
+		private Object allocBean_ = null;
+		private Method allocMethod_ = null;
+		private Object[] allocArgs_ = null;
+		private long allocOverhead_ = 0;
+		private long stepAllocBytes_ = 0;
+		private long allocSteps_ = 0;
+		private long recordAllocBytes_ = 0;
+		private long recordAllocSteps_ = 0;
 		
 		public boolean startSimulation(boolean isInteractive) {
 			
@@ -168,10 +233,18 @@ public class GrxSimulationItem extends GrxBaseItem {
 
 			isIntegrate_ = isTrue("integrate", true);
 			isRealTime_ = isTrue("realTime", false);
+			isParallelController_ = isTrue("parallelController", false);
+			pacer_.setPolicy("skip".equals(getStr("realTimePolicy", "catchup")) ? RealTimePacer.SKIP : RealTimePacer.CATCH_UP); //$NON-NLS-1$ //$NON-NLS-2$
 			totalTime_   = getDbl("totalTime", 20.0);
 			stepTime_    = getDbl("timeStep", 0.001);
 			logStepTime_ = currentWorld_.getDbl("logTimeStep", 0.001);
 			isSimulatingView_ = isTrue("viewsimulate", false);
+			// wait for rendering of every camera frame only if controllers need it
+			isSyncViewSimulation_ = isTrue("viewsimulateSync", false);
+			// headless runs advance several steps per iteration of the simulation thread
+			batchSteps_ = 1;
+			if (!isInteractive_ && !isRealTime_ && !isSimulatingView_)
+				batchSteps_ = Math.max(1, getInt("batchSteps", DEFAULT_BATCH_STEPS)); //$NON-NLS-1$
 			if(stepTime_ > logStepTime_ ){
 				MessageDialog.openInformation(GrxUIPerspectiveFactory.getCurrentShell(), MessageBundle.get("GrxOpenHRPView.dialog.title.start"), MessageBundle.get("GrxOpenHRPView.dialog.message.errorLogStepTime")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 					return false;			
@@ -185,6 +258,7 @@ public class GrxSimulationItem extends GrxBaseItem {
 				if (!initController()) {
 					return false;
 				}
+				_initControllerExecutor();
 			} catch (Exception e) {
 				GrxDebugUtil.printErr("SimulationLoop:", e); //$NON-NLS-1$
 				return false;
@@ -221,12 +295,37 @@ public class GrxSimulationItem extends GrxBaseItem {
 			notifyObservers("StartSimulation", isSimulatingView_);
 
 			clockGenerator_.resetClockReceivers();
+			clockGenerator_.setParallel(isTrue("parallelExecutionContext", false));
 
 			simTime_ = 0.0;
 			simulateTime_ = 0;
+			profiler_.reset();
+			// the log of another world state item was profiled by the reset profiler
+			if (profiledWorld_ != null && profiledWorld_ != currentWorld_ && profiledWorld_.getProfiler() == profiler_)
+				profiledWorld_.setProfiler(null);
+			profiledWorld_ = currentWorld_;
+			currentWorld_.setProfiler(profiler_);
+			pacer_.setTolerance(getDbl("realTimeTolerance", stepTime_)); //$NON-NLS-1$
+			pacer_.setOverrunListener(new RealTimePacer.OverrunListener() {
+				public void overrun(double simTime, long lagNanos) {
+					if (pacer_.getOverrunCount() <= MAX_OVERRUN_MESSAGES)
+						GrxDebugUtil.println("[HRP]@simulation real-time overrun at " + simTime + "[s] by " + (lagNanos / 1000) + "[us]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				}
+			});
+			pacer_.start(simTime_);
 			currentWorld_.init();
+			recycleState_ = currentWorld_.isRecycleState();
+			recycledWsx_ = null;
+			allocBean_ = null;
+			stepAllocBytes_ = 0;
+			allocSteps_ = 0;
+			recordAllocBytes_ = 0;
+			recordAllocSteps_ = 0;
 			simThreadState_ =  EXEC;
 			viewSimulationUpdate_ = false;
+			viewBuffer_ = null;
+			if (isSimulatingView_ && !isSyncViewSimulation_)
+				viewBuffer_ = new TripleBuffer<WorldStateEx>(new WorldStateEx(), new WorldStateEx(), new WorldStateEx());
 			simThread_ = _createSimulationThread();
 			simThread_.start();
 	            
@@ -243,11 +342,12 @@ public class GrxSimulationItem extends GrxBaseItem {
 						}
 					case EXEC:
 						if(isSimulatingView_){
-							if(viewSimulationUpdate_){
-								view3D._showCollision(wsx_.collisions);
-								view3D.updateModels(wsx_);
-								view3D.updateViewSimulator(wsx_.time);
-								currentWorld_.setPosition(currentWorld_.getLogSize()-1,view3D);
+							if(viewBuffer_ != null){
+								WorldStateEx wsx = viewBuffer_.take();
+								if(wsx != null)
+									_updateView(wsx);
+							}else if(viewSimulationUpdate_){
+								_updateView(wsx_);
 								synchronized(lock3_){
 									viewSimulationUpdate_=false;
 									lock3_.notify();
@@ -297,34 +397,50 @@ public class GrxSimulationItem extends GrxBaseItem {
 			Thread thread = new Thread(){
 				public void run() {
 					isExecuting_ = true;
+					_initAllocCounter();
 					long suspendT = 0;
 					long startT = System.currentTimeMillis();
+					pacer_.anchor(simTime_);
+					long batchEnd = -1;
 					try {
 						while (isExecuting_) {
 							if (isSuspending_) {
+								batchEnd = -1;
 								long s = System.currentTimeMillis();
-								Thread.sleep(200);
+								pacer_.suspend();
+								synchronized(suspendLock_){
+									while (isSuspending_ && isExecuting_)
+										suspendLock_.wait();
+								}
+								pacer_.resume();
 								suspendT += System.currentTimeMillis() - s;
 							} else {
-								if (!simulateOneStep()){
+								if (batchEnd >= 0)
+									profiler_.record(PROFILE_LOOP, System.nanoTime() - batchEnd);
+								boolean cont = simulateSteps(batchSteps_);
+								batchEnd = isRealTime_ ? -1 : System.nanoTime();
+								if (!cont){
+									batchEnd = -1;
 									long s = System.currentTimeMillis();
+									pacer_.suspend();
 									synchronized(lock_){
 										simThreadState_ = TIMEOVER;
 										lock_.wait();
 									}
+									pacer_.resume();
 									suspendT += System.currentTimeMillis() - s;
 									if(simThreadState_==STOP)
 										break;
+								}else if(isRealTime_){
+									pacer_.pace(simTime_);
+									// pace() returns early when interrupted
+									if (Thread.interrupted())
+										throw new InterruptedException();
 								}else{
-									if(isRealTime_){
-										long s = System.currentTimeMillis();
-										long sleep = (long)(simTime_*1000.0) - (s - startT);
-										if(sleep > 0)
-											Thread.sleep(sleep);
-									}
+									pacer_.measure(simTime_);
+									Thread.yield();
 								}
 							}
-							Thread.yield();
 						}
 						isExecuting_ = false;
 						simulateTime_ += (System.currentTimeMillis() - startT - suspendT)/1000.0;
@@ -352,14 +468,61 @@ public class GrxSimulationItem extends GrxBaseItem {
 		public void stopSimulation() {
 			if (isExecuting_) 
 				isExecuting_ = false;
+			synchronized(suspendLock_){
+				suspendLock_.notifyAll();
+			}
+		}
+
+		/**
+		 * @brief suspend the simulation thread after the current step
+		 *
+		 * The thread waits without polling until resumeSimulation() or
+		 * stopSimulation() is called. Suspended time is excluded from
+		 * real-time pacing.
+		 */
+		public void suspendSimulation() {
+			synchronized(suspendLock_){
+				isSuspending_ = true;
+			}
+		}
+
+		/**
+		 * @brief resume the simulation suspended by suspendSimulation()
+		 */
+		public void resumeSimulation() {
+			synchronized(suspendLock_){
+				isSuspending_ = false;
+				suspendLock_.notifyAll();
+			}
+		}
+
+		public boolean isSuspending() {
+			return isSuspending_;
 		}
 	        
 		public void endOfSimulation(){  
+			_shutdownControllerExecutor();
+			clockGenerator_.setParallel(false);
 			for (ControllerAttribute i: controllers_) {
 				i.deactive();
 			}
 			updateTimeMsg();
 			System.out.println(new java.util.Date()+timeMsg_.replace(" ", "").replace("\n", " : ")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			if (isRealTime_)
+				GrxDebugUtil.println("[HRP]@endOfSimulation real-time overruns " + pacer_.getOverrunCount() + ", max lag " + (pacer_.getMaxLagNanos() / 1000) + "[us]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			if (GrxDebugUtil.isDebugging()) {
+				String[] ecStats = clockGenerator_.getStatistics();
+				for (int i = 0; i < ecStats.length; i++)
+					GrxDebugUtil.println("[HRP]@endOfSimulation execution context " + ecStats[i]); //$NON-NLS-1$
+			}
+			if (GrxDebugUtil.isDebugging() && profiler_.getCount(PROFILE_TOTAL) > 0)
+				GrxDebugUtil.println("[HRP]@endOfSimulation " + batchSteps_ + " steps per batch, loop overhead " //$NON-NLS-1$ //$NON-NLS-2$
+						+ String.format("%.3f", profiler_.getTotal(PROFILE_LOOP) / 1000.0 / profiler_.getCount(PROFILE_TOTAL)) + "[us] per step, " //$NON-NLS-1$ //$NON-NLS-2$
+						+ String.format("%.1f", profiler_.getMean(PROFILE_STEP_SIMULATION) / 1000.0) + "[us] per stepSimulation call"); //$NON-NLS-1$ //$NON-NLS-2$
+			if (allocSteps_ > 0)
+				GrxDebugUtil.println("[HRP]@endOfSimulation allocated " + (stepAllocBytes_ / allocSteps_) + " bytes per step (" + allocSteps_ + " steps)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			if (recordAllocSteps_ > 0)
+				GrxDebugUtil.println("[HRP]@endOfSimulation allocated " + (recordAllocBytes_ / recordAllocSteps_) + " bytes per logged step to record states (" + recordAllocSteps_ + " steps)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 			if (isInteractive_) {
 				isInteractive_ = false;
 				execSWT( new Runnable(){
@@ -380,6 +543,35 @@ public class GrxSimulationItem extends GrxBaseItem {
 			} );
 		}
 	        
+		/**
+		 * @brief simulate steps without returning to the simulation loop
+		 *
+		 * Stops early when the simulation is stopped or suspended so that
+		 * the loop can handle it.
+		 *
+		 * This saves only the work of the loop between steps: the suspend
+		 * check, the real-time factor measurement and Thread.yield(). Each
+		 * step still makes its own stepSimulation() call to the dynamics
+		 * server, since controllers have to run between steps and the
+		 * DynamicsSimulator IDL has no call for several steps. In the same
+		 * way, getWorldState() and getCharacterSensorState() of every robot
+		 * are still called on each logged step, because the IDL returns
+		 * only the current state. The time saved is shown by the "loop"
+		 * phase of the profiler; the CORBA round trips are not reduced.
+		 * The batchSteps property sets the number of steps.
+		 * @param steps maximum number of steps
+		 * @return true if simulation should be continued, false otherwise
+		 */
+		private boolean simulateSteps(int steps) {
+			for (int i = 0; i < steps; i++) {
+				if (!simulateOneStep())
+					return false;
+				if (!isExecuting_ || isSuspending_)
+					break;
+			}
+			return true;
+		}
+
 		/**
 		 * @brief simulate one step
 		 * @return true if simulation should be continued, false otherwise
@@ -388,22 +580,21 @@ public class GrxSimulationItem extends GrxBaseItem {
 			if (simTime_ > totalTime_ ) {
 				return false;
 			}
+			long alloc = (allocBean_ != null) ? _allocatedBytes() : -1;
+			long start = System.nanoTime();
 			
 			// input
-			for (int i = 0; i<controllers_.size(); i++) {
-				ControllerAttribute attr = 
-					(ControllerAttribute)controllers_.get(i);
-				attr.input(simTime_);
-			}
+			controllerInputTime_ = simTime_;
+			_runControllers(INPUT);
+			long t = _lap(PROFILE_INPUT, start);
 			
 			simTime_ += stepTime_;
 			
 			// control
-			for (int i = 0; i < controllers_.size(); i++) {
-				ControllerAttribute attr = controllers_.get(i);
-				attr.control();
-			}
+			_runControllers(CONTROL);
+			t = _lap(PROFILE_CONTROL, t);
 			clockGenerator_.updateExecutionContext(simTime_);           
+			t = _lap(PROFILE_EXEC_CONTEXT, t);
 	            
 			// simulate
 			if (isIntegrate_) {
@@ -411,54 +602,279 @@ public class GrxSimulationItem extends GrxBaseItem {
 			} else {
 				currentDynamics_.calcWorldForwardKinematics();
 			}
+			t = _lap(PROFILE_STEP_SIMULATION, t);
 	    
 			// log
 			wsx_=null;
 			if ((simTime_ % logStepTime_) < stepTime_) {
-				currentDynamics_.getWorldState(stateH_);
-				wsx_ = new WorldStateEx(stateH_.value);
-				for (int i=0; i<robotEntry_.size(); i++) {
-					String name = robotEntry_.get(i);
-					currentDynamics_.getCharacterSensorState(name, cStateH_);
-					wsx_.setSensorState(name, cStateH_.value);
-				}
-				if (!isIntegrate_)
-					wsx_.time = simTime_;
+				_fetchWorldState();
+				t = _lap(PROFILE_WORLD_STATE, t);
+				// the recording path without CORBA unmarshalling is measured separately
+				long recordAlloc = (allocBean_ != null) ? _allocatedBytes() : -1;
+				wsx_ = _toWorldState();
 				currentWorld_.addValue(simTime_, wsx_);
+				if (recordAlloc >= 0) {
+					long now = _allocatedBytes();
+					if (now >= 0) {
+						recordAllocBytes_ += now - recordAlloc - allocOverhead_;
+						recordAllocSteps_++;
+					}
+				}
+				t = _lap(PROFILE_LOG, t);
 			}
 	            
 			// viewSimlulation update
 			if(isSimulatingView_){
 				if ((simTime_ % viewSimulationStep_) < stepTime_) {
-					if(wsx_==null){
-						currentDynamics_.getWorldState(stateH_);
-						wsx_ = new WorldStateEx(stateH_.value);
-						for (int i=0; i<robotEntry_.size(); i++) {
-							String name = robotEntry_.get(i);
-							currentDynamics_.getCharacterSensorState(name, cStateH_);
-							wsx_.setSensorState(name, cStateH_.value);
-						}
-						if (!isIntegrate_)
-							wsx_.time = simTime_;	
-					}
-					synchronized(lock3_){
-						try {
-							viewSimulationUpdate_ = true;
-							lock3_.wait();
-						} catch (InterruptedException e) {
-							e.printStackTrace();
+					if(viewBuffer_ != null){
+						// hand the state to the renderer and go on
+						_getViewState(viewBuffer_.getBackBuffer());
+						viewBuffer_.publish();
+					}else{
+						if(wsx_==null)
+							wsx_ = _getWorldState();
+						synchronized(lock3_){
+							try {
+								viewSimulationUpdate_ = true;
+								lock3_.wait();
+							} catch (InterruptedException e) {
+								e.printStackTrace();
+							}
 						}
 					}
+					t = _lap(PROFILE_VIEW_SIMULATION, t);
 				}
 			}
 	            
 			// output
-			for (int i = 0; i < controllers_.size(); i++) {
-				ControllerAttribute attr = controllers_.get(i);
-				attr.output();
+			_runControllers(OUTPUT);
+			t = _lap(PROFILE_OUTPUT, t);
+			profiler_.record(PROFILE_TOTAL, t - start);
+			if (alloc >= 0) {
+				long now = _allocatedBytes();
+				if (now >= 0) {
+					stepAllocBytes_ += now - alloc - allocOverhead_;
+					allocSteps_++;
+				}
 			}
 			return true;
 		}
+
+		/**
+		 * @brief prepare the allocation counter of the calling thread
+		 *
+		 * The counter is used only in debug mode and only if the VM has
+		 * com.sun.management.ThreadMXBean with allocation measurement.
+		 */
+		private void _initAllocCounter() {
+			allocBean_ = null;
+			if (!GrxDebugUtil.isDebugging())
+				return;
+			try {
+				Object bean = ManagementFactory.getThreadMXBean();
+				Class<?> c = Class.forName("com.sun.management.ThreadMXBean"); //$NON-NLS-1$
+				if (!c.isInstance(bean) ||
+						!((Boolean)c.getMethod("isThreadAllocatedMemorySupported").invoke(bean)).booleanValue()) //$NON-NLS-1$
+					return;
+				allocMethod_ = c.getMethod("getThreadAllocatedBytes", long.class); //$NON-NLS-1$
+				allocArgs_ = new Object[]{ Long.valueOf(Thread.currentThread().getId()) };
+				allocBean_ = bean;
+				// warm up the reflective call, then measure what the counter allocates itself
+				for (int i = 0; i < 20; i++)
+					_allocatedBytes();
+				long before = _allocatedBytes();
+				long after = _allocatedBytes();
+				allocOverhead_ = (before >= 0 && after >= before) ? after - before : 0;
+			} catch (Exception e) {
+				allocBean_ = null;
+			}
+		}
+
+		/**
+		 * @brief bytes allocated by the simulation thread so far
+		 * @return number of bytes, or -1 if it is not available
+		 */
+		private long _allocatedBytes() {
+			if (allocBean_ == null)
+				return -1;
+			try {
+				return ((Long)allocMethod_.invoke(allocBean_, allocArgs_)).longValue();
+			} catch (Exception e) {
+				allocBean_ = null;
+				return -1;
+			}
+		}
+
+		/**
+		 * @brief record elapsed time of a phase to the profiler
+		 * @param phase phase of the step
+		 * @param start start time of the phase[ns]
+		 * @return end time of the phase[ns]
+		 */
+		private long _lap(int phase, long start) {
+			long now = System.nanoTime();
+			profiler_.record(phase, now - start);
+			return now;
+		}
+
+		/**
+		 * @brief call input/control/output of all controllers
+		 *
+		 * When parallel execution is enabled, the calls are issued to all
+		 * controllers at once and this method returns after all of them
+		 * have finished. Otherwise controllers are called one by one in
+		 * the order of registration.
+		 *
+		 * An exception thrown by a controller in a pool thread is thrown
+		 * again here, so that it stops the simulation in both modes.
+		 * @param phase INPUT, CONTROL or OUTPUT
+		 */
+		private void _runControllers(int phase) {
+			if (controllerExecutor_ == null) {
+				for (int i = 0; i < controllers_.size(); i++)
+					controllers_.get(i).call(phase, controllerInputTime_);
+				return;
+			}
+			try {
+				List<Future<Object>> results = controllerExecutor_.invokeAll(controllerTasks_.get(phase));
+				for (int i = 0; i < results.size(); i++)
+					results.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Error)
+					throw (Error)cause;
+				GrxDebugUtil.printErr("[HRP]@_runControllers exception in a controller", (Exception)cause); //$NON-NLS-1$
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				throw new RuntimeException(cause);
+			}
+		}
+
+		/**
+		 * @brief create thread pool for parallel controller execution
+		 *
+		 * The pool is created only if parallelController is true and
+		 * there are two or more controllers.
+		 */
+		private void _initControllerExecutor() {
+			_shutdownControllerExecutor();
+			if (!isParallelController_ || controllers_.size() < 2)
+				return;
+			controllerTasks_ = new ArrayList<List<Callable<Object>>>();
+			for (int phase = INPUT; phase <= OUTPUT; phase++) {
+				List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+				for (int i = 0; i < controllers_.size(); i++) {
+					final ControllerAttribute attr = controllers_.get(i);
+					final int p = phase;
+					tasks.add(new Callable<Object>() {
+						public Object call() {
+							attr.call(p, controllerInputTime_);
+							return null;
+						}
+					});
+				}
+				controllerTasks_.add(tasks);
+			}
+			int threads = Math.min(controllers_.size(), MAX_CONTROLLER_THREADS);
+			controllerExecutor_ = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Controller"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			GrxDebugUtil.println("[HRP]@startSimulation parallel controller execution with " + threads + " threads"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		private void _shutdownControllerExecutor() {
+			if (controllerExecutor_ != null) {
+				controllerExecutor_.shutdown();
+				controllerExecutor_ = null;
+				controllerTasks_ = null;
+			}
+		}
+	        
+		/**
+		 * @brief get current world state from dynamics simulator
+		 * 
+		 * When the world state item allows recycling, the same WorldStateEx
+		 * is refilled on every call instead of allocating a new one.
+		 * @return world state
+		 */
+		private WorldStateEx _getWorldState() {
+			_fetchWorldState();
+			return _toWorldState();
+		}
+
+		/**
+		 * @brief receive the world state and sensor states from dynamics simulator
+		 */
+		private void _fetchWorldState() {
+			currentDynamics_.getWorldState(stateH_);
+			if (sensorStates_ == null || sensorStates_.length != robotEntry_.size())
+				sensorStates_ = new SensorState[robotEntry_.size()];
+			for (int i=0; i<robotEntry_.size(); i++) {
+				currentDynamics_.getCharacterSensorState(robotEntry_.get(i), cStateH_);
+				sensorStates_[i] = cStateH_.value;
+			}
+		}
+
+		/**
+		 * @brief make a WorldStateEx from states received by _fetchWorldState()
+		 * @return world state
+		 */
+		private WorldStateEx _toWorldState() {
+			WorldStateEx wsx;
+			if (recycleState_) {
+				if (recycledWsx_ == null)
+					recycledWsx_ = new WorldStateEx();
+				wsx = recycledWsx_;
+				wsx.setWorldState(stateH_.value);
+			} else {
+				wsx = new WorldStateEx(stateH_.value);
+			}
+			for (int i=0; i<robotEntry_.size(); i++)
+				wsx.setSensorState(robotEntry_.get(i), sensorStates_[i]);
+			if (!isIntegrate_)
+				wsx.time = simTime_;
+			return wsx;
+		}
+	        
+		/**
+		 * @brief store the current state into a buffer of the view simulation
+		 *
+		 * Link positions are copied into the arrays of the buffer. Sensor
+		 * states are shared with wsx_ if it has been taken in this step;
+		 * they are replaced, not modified, by later steps.
+		 */
+		private void _getViewState(WorldStateEx wsx) {
+			if (wsx_ == null)
+				currentDynamics_.getWorldState(stateH_);
+			wsx.setWorldState(stateH_.value);
+			for (int i=0; i<robotEntry_.size(); i++) {
+				String name = robotEntry_.get(i);
+				if (wsx_ == null) {
+					currentDynamics_.getCharacterSensorState(name, cStateH_);
+					wsx.setSensorState(name, cStateH_.value);
+				} else {
+					wsx.setSensorState(name, wsx_.get(name).sensorState);
+				}
+			}
+			if (!isIntegrate_)
+				wsx.time = simTime_;
+		}
+
+		/**
+		 * @brief show a state in the 3D view and render the camera images
+		 */
+		private void _updateView(WorldStateEx wsx) {
+			view3D._showCollision(wsx.collisions);
+			view3D.updateModels(wsx);
+			view3D.updateViewSimulator(wsx.time);
+			currentWorld_.setPosition(currentWorld_.getLogSize()-1,view3D);
+		}
 	        
 	public void waitStopSimulation() throws InterruptedException {
 		try {
@@ -492,6 +908,20 @@ public class GrxSimulationItem extends GrxBaseItem {
 			doFlag_ = false;
 		}
 	        
+		private void call(int phase, double time){
+			switch (phase) {
+			case INPUT:
+				input(time);
+				break;
+			case CONTROL:
+				control();
+				break;
+			case OUTPUT:
+				output();
+				break;
+			}
+		}
+
 		private void input(double time){
 			try {
 				doFlag_ = false;
@@ -966,6 +1396,28 @@ public class GrxSimulationItem extends GrxBaseItem {
     public boolean isSimulating(){
     	return isExecuting_;
     }
+
+    /**
+     * @brief get timings of the phases of simulation steps
+     * @return profiler which is reset when simulation starts
+     */
+    public StepProfiler getProfiler(){
+    	return profiler_;
+    }
+
+    /**
+     * @brief get real-time factor (simulated time / wall-clock time) of about the last 0.5s
+     */
+    public double getRealTimeFactor(){
+    	return pacer_.getRealTimeFactor();
+    }
+
+    /**
+     * @brief get number of times real-time simulation fell behind by more than realTimeTolerance
+     */
+    public long getOverrunCount(){
+    	return pacer_.getOverrunCount();
+    }
 	 
     public void restoreProperties() {
 		super.restoreProperties();
@@ -990,13 +1442,37 @@ public class GrxSimulationItem extends GrxBaseItem {
 		str = getProperty("viewsimulate");
 		if(str==null)
 			setBool("viewsimulate", false);
+		str = getProperty("viewsimulateSync");
+		if(str==null)
+			setBool("viewsimulateSync", false);
+		str = getProperty("parallelController");
+		if(str==null)
+			setBool("parallelController", false);
+		str = getProperty("parallelExecutionContext");
+		if(str==null)
+			setBool("parallelExecutionContext", false);
+		// steps advanced per iteration of the simulation loop in headless runs
+		str = getProperty("batchSteps");
+		if(str==null)
+			setInt("batchSteps", DEFAULT_BATCH_STEPS); //$NON-NLS-1$
+		str = getProperty("realTimePolicy");
+		if(str==null)
+			setProperty("realTimePolicy", "catchup"); //$NON-NLS-1$ //$NON-NLS-2$
+		// delay[s] reported as a real-time overrun. one step by default
+		str = getProperty("realTimeTolerance");
+		if(str==null)
+			setDbl("realTimeTolerance", getDbl("timeStep", 0.001)); //$NON-NLS-1$ //$NON-NLS-2$
     }
     
     public ValueEditType GetValueEditType(String key) {
         if(key.equals("method")){
             return new ValueEditCombo(methodComboItem_);
-        }else if(key.equals("integrate") || key.equals("viewsimulate") || key.equals("realTime")){
+        }else if(key.equals("integrate") || key.equals("viewsimulate") || key.equals("viewsimulateSync") || key.equals("realTime") || key.equals("parallelController") || key.equals("parallelExecutionContext")){
             return new ValueEditCombo(booleanComboItem_);
+        }else if(key.equals("realTimePolicy")){
+            return new ValueEditCombo(realTimePolicyComboItem_);
+        }else if(key.equals("batchSteps")){
+            return new ValueEditText();
         }
         return super.GetValueEditType(key);
     }
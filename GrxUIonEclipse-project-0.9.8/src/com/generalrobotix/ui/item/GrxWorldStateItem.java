@@ -21,13 +21,14 @@ package com.generalrobotix.ui.item;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.Runtime;
-import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import javax.vecmath.Matrix3d;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.SubProgressMonitor;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.dialogs.ProgressMonitorDialog;
@@ -35,6 +36,7 @@ import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.DirectoryDialog;
+import org.eclipse.ui.PlatformUI;
 
 import jp.go.aist.hrp.simulator.*;
 
@@ -46,6 +48,7 @@ import com.generalrobotix.ui.grxui.GrxUIPerspectiveFactory;
 import com.generalrobotix.ui.util.AxisAngle4d;
 import com.generalrobotix.ui.util.GrxDebugUtil;
 import com.generalrobotix.ui.util.MessageBundle;
+import com.generalrobotix.ui.util.StepProfiler;
 import com.generalrobotix.ui.view.graph.*;
 import com.generalrobotix.ui.util.GrxCopyUtil;
 
@@ -58,8 +61,13 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 	public static final double DEFAULT_TOTAL_TIME = 20.0;
     private static final int MAX_RAM_BUFFER_SIZE = -1; // 無制限
     private static final int LOAD_LOG_MODITOR_DIM = 32; // プログレスモニター用定数
-    private static final long HEAP_MEMORY_TOLERANCE = 4*1024*1024; //残りヒープメモリサイズの許容量
-    private static final String OVER_HEAP_LOG_DIR_NAME = "over"; //ヒープメモリを超えたときにログを退避させるディレクトリ //$NON-NLS-1$
+    private static final int DEFAULT_LOG_MEMORY_BUDGET = 256; // useDiskがfalseの時にログに使うメモリの上限(MB)
+    private static final int RECORD_SEGMENT_SIZE = 4096;      // オンメモリのログを確保する単位のレコード数
+    private static final String PROFILE_CSV_NAME = "simulationProfile.csv"; // CSV保存時に書き出すステップ処理時間のファイル名 //$NON-NLS-1$
+    private static final String OVER_HEAP_LOG_DIR_NAME = "over"; //メモリの上限を超えたときにログを退避させるディレクトリ //$NON-NLS-1$
+    private static final int DEFAULT_LOG_QUEUE_SIZE = 1024; // ログ書き込みスレッドのキューのレコード数
+    private static final int DEFAULT_FRAME_CACHE_SIZE = 64; // ログから読み出したWorldStateExのキャッシュ数
+    private static final int TIME_INDEX_BLOCK_SIZE = 4096;  // 時刻インデックスを読み出す単位のレコード数
 	private static String LOG_DIR;
 	
 	private WorldStateEx newStat_ = null;
@@ -68,10 +76,24 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
     
     public  final LogManager logger_ = new LogManager();
 	private float   recDat_[][];
+	private float   readDat_[] = null;
     private String  lastCharName_ = null;
 	private boolean initLogFlag_ = false;
 	private boolean useDisk_ = true;
 	private boolean storeAllPos_ = true;
+	private boolean asyncLog_ = true;
+	private boolean recycleState_ = true;
+	private int logQueueSize_ = DEFAULT_LOG_QUEUE_SIZE;
+	private volatile AsyncLogWriter logWriter_ = null;
+	private boolean lazyLoad_ = true;
+	private boolean lazyLog_ = false;   // useDiskがfalseでもログをファイルから読み出す(遅延読み込みしたログ)
+	private int frameCacheSize_ = DEFAULT_FRAME_CACHE_SIZE;
+	private final LinkedHashMap<Integer, WorldStateEx> frameCache_ = new LinkedHashMap<Integer, WorldStateEx>(16, 0.75f, true);
+	private float[] timeBuf_ = null;
+	private long logMemoryBudget_ = 0;   // オンメモリのログの上限(バイト)
+	private int bufferSize_ = MAX_RAM_BUFFER_SIZE;
+	private RecordBuffer recordBuffer_ = null; // useDiskがfalseの時のログ
+	private StepProfiler profiler_ = null;   // このログを記録したシミュレーションの処理時間
 	
 	private Action save_ = new Action(){
         public String getText(){ return MessageBundle.get("GrxWorldStateItem.menu.saveLog"); } //$NON-NLS-1$
@@ -109,6 +131,7 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 	
 	private AxisAngle4d a4d = new AxisAngle4d();
 	private Matrix3d m3d = new Matrix3d();
+	private Time logTime_ = new Time();
 	private AxisAngle4d a4dg = new AxisAngle4d();
 	private Matrix3d m3dg = new Matrix3d();
 
@@ -168,12 +191,22 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 		super.restoreProperties();
 		useDisk_ = isTrue("useDisk", true); //$NON-NLS-1$
 		storeAllPos_ = isTrue("storeAllPosition", storeAllPos_); //$NON-NLS-1$
-        int size = getInt("bufferSize", MAX_RAM_BUFFER_SIZE); //$NON-NLS-1$
+		logger_.setMappedRead(isTrue("useMappedRead", false)); //$NON-NLS-1$
+		logger_.setCompress(isTrue("compressLog", false)); //$NON-NLS-1$
+		logger_.setDirectRead(isTrue("directLogRead", true)); //$NON-NLS-1$
+		asyncLog_ = isTrue("asyncLogWrite", true); //$NON-NLS-1$
+		recycleState_ = isTrue("recycleWorldState", true); //$NON-NLS-1$
+		lazyLoad_ = isTrue("lazyLogLoad", true); //$NON-NLS-1$
+		frameCacheSize_ = getInt("logFrameCacheSize", DEFAULT_FRAME_CACHE_SIZE); //$NON-NLS-1$
+		logQueueSize_ = getInt("logQueueSize", DEFAULT_LOG_QUEUE_SIZE); //$NON-NLS-1$
+        bufferSize_ = getInt("bufferSize", MAX_RAM_BUFFER_SIZE); //$NON-NLS-1$
+		int budget = getInt("logMemoryBudget", DEFAULT_LOG_MEMORY_BUDGET); //$NON-NLS-1$
+		logMemoryBudget_ = Math.min((long)budget * 1024 * 1024, Runtime.getRuntime().maxMemory() / 2);
 		if ( useDisk_ ) {
 			super.setMaximumLogSize(MAX_RAM_BUFFER_SIZE);
 		} else {
 			GrxDebugUtil.println("GrxWorldStateItem: useDisk = false"); //$NON-NLS-1$
-			super.setMaximumLogSize(size);
+			super.setMaximumLogSize(bufferSize_);
 		}
 	}
 	
@@ -193,16 +226,22 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 	}
 	
 	public void clearLog() {
+		_closeLogWriter();
+		boolean onDisk = _isLogOnDisk();
 		super.clearLog();
+		lazyLog_ = false;
+		recordBuffer_ = null;
+		_clearFrameCache();
         initLogFlag_ = false;
 		logger_.init();
 		newStat_ = null;
 		preStat_ = null;
 		prePos_ = -1;
 		lastCharName_ = null;
+		profiler_ = null;
         setLogMenus(false);
         remove("url");
-        if(useDisk_)
+        if(onDisk)
         	logger_.closeReads();
 		syncExec(new Runnable(){
         	public void run(){
@@ -305,15 +344,17 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 	}
 
 	public void addValue(Double t, Object obj) {
-		if ( useDisk_ ) {
+		if ( _isLogOnDisk() ) {
             _addValueToLog(t, obj);
         }else {
             if(overPos_ > 0){
                 // メモリ＋ファイル記録のログのファイル記録
                 _addValueToLog(t, obj);
                 ++overPos_;
-            } else {
-                if( Runtime.getRuntime().freeMemory() < HEAP_MEMORY_TOLERANCE){
+            } else if (obj instanceof WorldStateEx) {
+                newStat_ = (WorldStateEx) obj;
+                _initRecordBuffer();
+                if( bufferSize_ <= 0 && recordBuffer_.isFull() ){
                     //メモリからファイルへのログ保存に切替
                     File f = new File(tempDir_);
                     File pf = f.getParentFile();
@@ -325,17 +366,52 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
                     _addValueToLog(t, obj);
                     ++overPos_;
                 } else {
-                    super.addValue(t, obj);
+                    _toRecord(recDat_);
+                    recordBuffer_.add(newStat_.time, recDat_, newStat_.collisions);
+                    super.addValue(newStat_.time, null);
                 }
             }
         }
     }
 
+    /**
+     * useDiskがfalseの時のログの記録先を用意する
+     *     ログはlogMemoryBudgetの範囲でRecordBufferにレコードとして記録する。
+     *     bufferSizeが指定されている場合は古いレコードから上書きし、
+     *     そうでない場合はRecordBufferが一杯になった時点で以降をファイルに記録する。
+     */
+    private void _initRecordBuffer(){
+        if (recordBuffer_ != null)
+            return;
+        WorldStateEx state = (newStat_ != null) ? newStat_ : preStat_;
+        recDat_ = new float[logger_.getLogObjectNum()][];
+        int[] lengths = new int[recDat_.length];
+        for (int i=0; i<recDat_.length; i++) {
+            lengths[i] = logger_.getDataLength(state.charList.get(i).characterName);
+            recDat_[i] = new float[lengths[i]];
+        }
+        recordBuffer_ = new RecordBuffer(lengths, logMemoryBudget_, RECORD_SEGMENT_SIZE);
+        if (bufferSize_ > 0)
+            super.setMaximumLogSize(Math.min(bufferSize_, recordBuffer_.getCapacity()));
+        GrxDebugUtil.println("GrxWorldStateItem: log capacity on memory = " + recordBuffer_.getCapacity()); //$NON-NLS-1$
+        if (preStat_ == null) {
+            try {
+                preStat_ = (WorldStateEx)newStat_.clone();
+            } catch (CloneNotSupportedException e) {
+                preStat_ = newStat_;
+            }
+        }
+    }
+
     private void _addValueToLog(Double t, Object obj){
         if (obj instanceof WorldStateEx) {
             newStat_ = (WorldStateEx) obj;
             _initLog();
-            _toLogFile(logger_);
+            AsyncLogWriter w = logWriter_;
+            if (w != null)
+                _toLogWriter(w);
+            else
+                _toLogFile(logger_);
             super.addValue(newStat_.time, null);
         }
     }
@@ -350,94 +426,103 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
         }
     }
 
+    /**
+     * 書き込みスレッドのキューにnewStat_を入れる
+     *     衝突点の展開とファイルへの書き出しは書き込みスレッドで行う
+     */
+    private void _toLogWriter(AsyncLogWriter w){
+        AsyncLogWriter.Record rec = w.claim();
+        rec.time = newStat_.time;
+        rec.collisions = newStat_.collisions;
+        _toRecord(rec.data);
+        w.publish();
+    }
+
     private void _toLogFile(LogManager temp){
-        temp.setTime(new Time((float)newStat_.time));
+        logTime_.set((float)newStat_.time);
+        temp.setTime(logTime_);
         
         try {
             Collision[] cols = newStat_.collisions;
-            if (cols != null && cols.length > 0) {
-                List<CollisionPoint> cdList = new ArrayList<CollisionPoint>();
-                for (int i=0; i < cols.length; i++) {
-                    if( cols[i].points == null){
-                        continue;
-                    }
-                    for (int j=0; j<cols[i].points.length; j++) 
-                        cdList.add(cols[i].points[j]);
-                }
-                CollisionPoint[] cd = cdList.toArray(new CollisionPoint[0]);
-                temp.putCollisionPointData(cd);
-            }
+            if (cols != null && cols.length > 0)
+                temp.putCollisionPointData(cols);
         } catch (Exception e) {
             GrxDebugUtil.printErr("",e); //$NON-NLS-1$
         }
         
+        _toRecord(recDat_);
+        for (int i=0; i < newStat_.charList.size(); i++) {
+            try {
+                temp.put(newStat_.charList.get(i).characterName, recDat_[i]);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * newStat_をキャラクタ毎のログレコードに変換する
+     */
+    private void _toRecord(float[][] recDat){
         for (int i=0; i < newStat_.charList.size(); i++) {
             int k = 0;
-            recDat_[i][k++] = (float) newStat_.time;
+            recDat[i][k++] = (float) newStat_.time;
             CharacterStateEx cpos = newStat_.charList.get(i);
             int len = storeAllPos_ ? cpos.position.length : 1;
             for (int j=0; j<len; j++) {
                 for (int m=0; m<3; m++)
-                    recDat_[i][k++] = (float)cpos.position[j].p[m];
+                    recDat[i][k++] = (float)cpos.position[j].p[m];
                 m3d.set(cpos.position[j].R);
                 //m3d.transpose();
                 a4d.setMatrix(m3d);
-                recDat_[i][k++] = (float) a4d.x;
-                recDat_[i][k++] = (float) a4d.y;
-                recDat_[i][k++] = (float) a4d.z;
-                recDat_[i][k++] = (float) a4d.angle;
+                recDat[i][k++] = (float) a4d.x;
+                recDat[i][k++] = (float) a4d.y;
+                recDat[i][k++] = (float) a4d.z;
+                recDat[i][k++] = (float) a4d.angle;
             }
             
-            String cname = cpos.characterName;
             SensorState sdata = cpos.sensorState;
             if (sdata != null) {
                 for (int j=0; j<sdata.q.length; j++) {
-                    recDat_[i][k++] = (float) sdata.q[j];
-                    recDat_[i][k++] = (float) sdata.u[j];
+                    recDat[i][k++] = (float) sdata.q[j];
+                    recDat[i][k++] = (float) sdata.u[j];
                 }
                 for (int j=0; j<sdata.force.length; j++) {
                     for (int m=0; m<sdata.force[j].length; m++) 
-                        recDat_[i][k++] = (float)sdata.force[j][m];
+                        recDat[i][k++] = (float)sdata.force[j][m];
                 }
                 for (int j=0; j<sdata.rateGyro.length; j++) {
                     for (int m=0; m<sdata.rateGyro[j].length; m++) 
-                        recDat_[i][k++] = (float)sdata.rateGyro[j][m];
+                        recDat[i][k++] = (float)sdata.rateGyro[j][m];
                 }
                 for (int j=0; j<sdata.accel.length; j++) {
                     for (int m=0; m<sdata.accel[j].length; m++) 
-                        recDat_[i][k++] = (float)sdata.accel[j][m];
+                        recDat[i][k++] = (float)sdata.accel[j][m];
                 }
                 if (sdata.range != null){
                 	for (int j=0; j<sdata.range.length; j++) {
                 		for (int m=0; m<sdata.range[j].length; m++) 
-                			recDat_[i][k++] = (float)sdata.range[j][m];
+                			recDat[i][k++] = (float)sdata.range[j][m];
                 	}
                 }
             }
             if (cpos.targetState != null){
             	for (int j=0; j<cpos.targetState.length; j++){
-            		recDat_[i][k++]	 = (float)cpos.targetState[j];
+            		recDat[i][k++]	 = (float)cpos.targetState[j];
             	}
             }
             if (cpos.servoState != null){
             	for (int j=0; j<cpos.servoState.length; j++){
-            		ByteBuffer buffer = ByteBuffer.allocate(10);
-            		buffer.putInt(cpos.servoState[j]);
-            		float f = buffer.getFloat(0);
-            		recDat_[i][k++] = f;
-            		//recDat_[i][k++] = (float)cpos.servoState[j];
+            		// ビット列をそのままfloatとして記録する
+            		recDat[i][k++] = Float.intBitsToFloat(cpos.servoState[j]);
+            		//recDat[i][k++] = (float)cpos.servoState[j];
             	}
             }
             if (cpos.powerState != null){
             	for (int j=0; j<cpos.powerState.length; j++){
-            		recDat_[i][k++] = (float)cpos.powerState[j];
+            		recDat[i][k++] = (float)cpos.powerState[j];
             	}
             }
-            try {
-                temp.put(cname, recDat_[i]);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
         }
     }
     
@@ -484,27 +569,40 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 		recDat_ = new float[logger_.getLogObjectNum()][];
 		for (int i=0; i<recDat_.length; i++)
 			recDat_[i] = new float[logger_.getDataLength(newStat_.charList.get(i).characterName)];
-		preStat_ = newStat_;
+		if (useDisk_ && asyncLog_) {
+			String[] names = new String[recDat_.length];
+			int[] lengths = new int[recDat_.length];
+			for (int i=0; i<recDat_.length; i++) {
+				names[i] = newStat_.charList.get(i).characterName;
+				lengths[i] = recDat_[i].length;
+			}
+			logWriter_ = new AsyncLogWriter(logger_, names, lengths, logQueueSize_);
+		}
+		// 読み出し用のpreStat_は記録中のnewStat_(使い回される)と共有しない
+		_clearFrameCache();
+		prePos_ = -1;
+		try {
+			preStat_ = (WorldStateEx)newStat_.clone();
+		} catch (CloneNotSupportedException e) {
+			preStat_ = newStat_;
+		}
 	}
 
 	public WorldStateEx getValue() {
         WorldStateEx ret = null;
         
         int pos = getPosition();
-        if(useDisk_){
+        if(_isLogOnDisk()){
             if (pos >= 0){
-                if (pos == getLogSize()-1 && newStat_ != null){
+                // 使い回されるnewStat_はシミュレーションスレッドが書き換えるので渡さない
+                if (pos == getLogSize()-1 && newStat_ != null && !recycleState_){
                     ret = newStat_;
                 }
-                if (pos != prePos_ && preStat_ != null)
+                if ((pos != prePos_ || ret == null) && preStat_ != null)
                     ret = getValue(pos);
             }
-        } else {
-            if( pos > changePos_ && changePos_ >= 0){
-                ret = _getValueFromLog( pos - changePos_ );
-            } else {
-                ret = (WorldStateEx)super.getValue(pos);
-            }
+        } else if (pos >= 0) {
+            ret = getValue(pos);
         }
 		return ret;
 	}
@@ -512,32 +610,111 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 	public WorldStateEx getValue(int pos) {
         WorldStateEx ret = null;
 		if (pos >= 0){
-    		if ( useDisk_ ){
+    		if ( _isLogOnDisk() ){
                 ret = _getValueFromLog( pos );
             } else {
-                if( pos > changePos_ && changePos_ >= 0 ){
+                if( pos >= changePos_ && changePos_ >= 0 ){
                     ret = _getValueFromLog(pos - changePos_);
-                } else {
-                    ret = (WorldStateEx)super.getValue(pos);
+                } else if (recordBuffer_ != null && pos < getLogSize()) {
+                    // メモリ上のレコードはファイルの位置と区別するため負のキーでキャッシュする
+                    // (古いレコードが削除されても変わらないようにレコード番号を使う)
+                    ret = _getValueFromLog(-1 - (int)(pos + getRemovedCount()));
                 }
             }
         }
 		return ret;
 	}
 	
+    /**
+     * @param pos ファイル上のレコードの位置、負の場合はメモリ上のレコード(-1 - レコード番号)
+     */
     private WorldStateEx _getValueFromLog(int pos){
         if(pos == prePos_)
             return preStat_;
+        synchronized (frameCache_) {
+            WorldStateEx frame = frameCache_.get(pos);
+            if (frame == null) {
+                frame = _newFrame();
+                if (pos >= 0)
+                    _waitWritten(pos);
+                if (!_decodeFrame(pos, frame)) {
+                    // 読めなかったフレームはキャッシュせず次回読み直す
+                    preStat_ = frame;
+                    prePos_ = -1;
+                    return frame;
+                }
+                if (frameCacheSize_ > 1)
+                    frameCache_.put(pos, frame);
+            }
+            preStat_ = frame;
+            prePos_ = pos;
+            return frame;
+        }
+    }
 
+    /**
+     * ログを読み出すWorldStateExを用意する
+     *     キャッシュが一杯の場合は最も古くに使われたものを使い回す
+     */
+    private WorldStateEx _newFrame(){
+        if (frameCacheSize_ <= 1)
+            return preStat_;
+        if (frameCache_.size() >= frameCacheSize_) {
+            Iterator<WorldStateEx> it = frameCache_.values().iterator();
+            WorldStateEx eldest = it.next();
+            it.remove();
+            return eldest;
+        }
+        try {
+            return (WorldStateEx)preStat_.clone();
+        } catch (CloneNotSupportedException e) {
+            return preStat_;
+        }
+    }
+
+    private void _clearFrameCache(){
+        synchronized (frameCache_) {
+            frameCache_.clear();
+        }
+    }
+
+    /**
+     * posのレコードをframeに読み出す
+     *     posが負の場合はメモリ上の(-1 - pos)番のレコードを読み出す
+     *     読み出せなかったキャラクタは古い内容が使われないようにframeから外す
+     * @return 全てのキャラクタを読み出せた場合true
+     */
+    private boolean _decodeFrame(int pos, WorldStateEx frame){
+        boolean complete = true;
         try {        
-            preStat_.collisions = new Collision[]{new Collision()};
-            preStat_.collisions[0].points = logger_.getCollisionPointData(pos);
+            long index = -1;
+            if (pos < 0) {
+                index = -1 - pos;
+                frame.collisions = (Collision[])recordBuffer_.getAttachment(index);
+            } else {
+                frame.collisions = new Collision[]{new Collision()};
+                frame.collisions[0].points = logger_.getCollisionPointData(pos);
+            }
             
-            for (int i=0; i<preStat_.charList.size(); i++) {
+            for (int i=0; i<frame.charList.size(); i++) {
                 int k=0;
-                CharacterStateEx cpos = preStat_.charList.get(i);
-                float[] f = logger_.get(cpos.characterName, (long)pos);
-                preStat_.time = (double)f[k++];
+                CharacterStateEx cpos = frame.charList.get(i);
+                int len = logger_.getDataLength(cpos.characterName);
+                if (readDat_ == null || readDat_.length < len)
+                    readDat_ = new float[len];
+                float[] f = readDat_;
+                boolean read;
+                if (pos < 0)
+                    read = recordBuffer_.get(index, i, f);
+                else
+                    read = len > 0 && logger_.get(cpos.characterName, (long)pos, f);
+                if (!read) {
+                    frame.skip(cpos);
+                    complete = false;
+                    continue;
+                }
+                frame.restore(cpos);
+                frame.time = (double)f[k++];
                 for (int j=0; j<cpos.position.length; j++) {
                     LinkPosition lpos = cpos.position[j];
                     if (storeAllPos_ || j == 0) { 
@@ -592,10 +769,7 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
                 }
                 if (cpos.servoState != null){
                 	for (int j=0; j<cpos.servoState.length; j++){
-                		ByteBuffer buffer = ByteBuffer.allocate(10);
-                		buffer.putFloat(f[k++]);
-                		int ss = buffer.getInt(0);
-                		cpos.servoState[j] = ss;
+                		cpos.servoState[j] = Float.floatToRawIntBits(f[k++]);
                 		//cpos.servoState[j] = (int)f[k++];
                 	}
                 }
@@ -607,12 +781,23 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
-        prePos_ = pos;
-        return preStat_;
+        return complete;
     }
     
 	private void _loadLog(final File logFile) {
+        // バッチ処理ではダイアログを出さずに読み込む
+        if (!PlatformUI.isWorkbenchRunning()) {
+            try {
+                _loadLog(logFile, new NullProgressMonitor());
+                notifyObservers("LoadLog"); //$NON-NLS-1$
+                setLogMenus(true);
+            } catch (InterruptedException e) {
+                clearLog();
+            }
+            return;
+        }
         try {
 	        IRunnableWithProgress op = new IRunnableWithProgress() {
 				public void run(IProgressMonitor monitor) throws InvocationTargetException, InterruptedException {
@@ -629,7 +814,7 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
                         return;
                     }
                     
-					monitor.beginTask("Loading log as a file:"+logFile.getName(), size + LOAD_LOG_MODITOR_DIM + 2); //$NON-NLS-1$
+					monitor.beginTask("Loading log as a file:"+logFile.getName(), 2 * size + LOAD_LOG_MODITOR_DIM + 2); //$NON-NLS-1$
 					_loadLog(logFile,monitor);
 					monitor.done();
 					notifyObservers("LoadLog");
@@ -656,7 +841,10 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
             clearLog();
             tempDir_ = tempDirBase_ + getName();
 			logger_.setTempDir(tempDir_);
-			logger_.load(fname, ""); //$NON-NLS-1$
+			ZipFile zipFile = new ZipFile(fname);
+			int entries = zipFile.size();
+			zipFile.close();
+			logger_.load(fname, "", new SubProgressMonitor(monitor, entries)); //$NON-NLS-1$
             
 			monitor.worked(1);
 			final SimulationTime sTime = new SimulationTime();
@@ -748,40 +936,35 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
             
             monitor.worked(1);
 
-            if( !useDisk_ ){
-                recDat_ = new float[logger_.getLogObjectNum()][];
-                for (int i=0; i<recDat_.length; i++)
-                    recDat_[i] = new float[logger_.getDataLength(preStat_.charList.get(i).characterName)];
+            if( useDisk_ || lazyLoad_ ){
+                // レコードは必要になった時に読み出す(時刻もブロック毎に読み出す)
+                lazyLog_ = !useDisk_;
+                super.addValues(datLen);
+                monitor.worked(LOAD_LOG_MODITOR_DIM);
+                datLen = 0;
+            } else {
+                _initRecordBuffer();
             }
             
             for (int i=0; i < datLen; i++){
-                if ( useDisk_ ) {
-                    try{
-                        super.addValue( null , null);
-                    } catch (Exception ex){
-                        ex.printStackTrace();
-                        break;
-                    }
-                } else {
-                    //メモリーに展開する場合
-                    WorldStateEx worldState = _getValueFromLog(i);
-                    
-                    if( Runtime.getRuntime().freeMemory() < HEAP_MEMORY_TOLERANCE){
-                        //ヒープメモリが足りない場合の処理
-                        _createOverLog( worldState.time,
-                                        i  == 0 ? worldState.time : getTime(0),
-                                        i, datLen - i);
-                        break;
-                    }
-                    
-                    try{
-                        super.addValue( worldState.time , worldState.clone());
-                    } catch (Exception ex){
-                        ex.printStackTrace();
-                        break;
-                    }
+                //メモリーに展開する場合
+                for (int j=0; j<recDat_.length; j++)
+                    logger_.get(preStat_.charList.get(j).characterName, (long)i, recDat_[j]);
+                double time = (double)recDat_[0][0];
+                
+                if( bufferSize_ <= 0 && recordBuffer_.isFull() ){
+                    //メモリの上限を超える場合の処理
+                    _createOverLog( time,
+                                    i  == 0 ? time : getTime(0),
+                                    i, datLen - i);
+                    break;
                 }
                 
+                Collision[] cols = new Collision[]{new Collision()};
+                cols[0].points = logger_.getCollisionPointData(i);
+                recordBuffer_.add(time, recDat_, cols);
+                super.addValue(time, null);
+                
                 //プログレスチェックと処理
                 if ( workdim[workdimCounter] < i){
                     workdimCounter ++;
@@ -826,19 +1009,21 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
         fdlg.setFilterPath(getDefaultDir().getAbsolutePath());
         final String fPath = fdlg.open();
         if (fPath != null) {
-	 		Thread t = new Thread() {
-				public void run() {
+	        IRunnableWithProgress op = new IRunnableWithProgress() {
+				public void run(IProgressMonitor monitor) throws InvocationTargetException, InterruptedException {
+					monitor.beginTask("Saving log as a file:"+new File(fPath).getName(), 1); //$NON-NLS-1$
 					try {
-                        if( useDisk_ ){
+                        if( _isLogOnDisk() ){
                             // 従来の処理
+                            _closeLogWriter();
                             logger_.closeAsWrite();
                             logger_.closeCollisionLogAsWrite();
-                            logger_.save(fPath, getName()+".prj"); //$NON-NLS-1$
+                            logger_.save(fPath, getName()+".prj", new SubProgressMonitor(monitor, 1)); //$NON-NLS-1$
                         } else {
                             // オンメモリデータをファイルへ
                             LogManager temp = _restoreLogFileFromSuperLog();
                             if(temp != null){
-                                temp.save(fPath, getName()+".prj"); //$NON-NLS-1$
+                                temp.save(fPath, getName()+".prj", new SubProgressMonitor(monitor, 1)); //$NON-NLS-1$
                                 if(temp != logger_){
                                     temp.closeReads();
                                 }
@@ -846,12 +1031,22 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
                         }
 					} catch (IOException ex){
                         ex.printStackTrace();
+                    } catch (InterruptedException ex) {
+                        new File(fPath).delete();
+                        throw ex;
                     } catch (Exception ex) {
 						ex.printStackTrace();
 					}
+					monitor.done();
 				}
 			};
-			t.start();
+			try {
+				new ProgressMonitorDialog(GrxUIPerspectiveFactory.getCurrentShell()).run(true, true, op);
+			} catch (InvocationTargetException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				return;
+			}
 			setDefaultDirectory(new File(fPath).getParent());
 			setURL(fPath);
         }
@@ -893,6 +1088,8 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        _clearFrameCache();
+        prePos_ = -1;
         
         //overPos部分の時間を登録
         for(int i = 0; i < overPos; ++i){
@@ -910,8 +1107,8 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
         if( changePos_ < 0 ){
             // 全てのログがメモリにある場合
             for(int index = 0; index < getLogSize(); ++index){
-                TValue localTValue = getObject(index);
-                _addValueToLogFromSuperLog(localTValue.getTime(), localTValue.getValue(), logger_);
+                WorldStateEx state = getValue(index);
+                _addValueToLogFromSuperLog(state.time, state, logger_);
             }
             try{
                 logger_.closeAsWrite();
@@ -968,14 +1165,9 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
             }
 
             //メモリ上のログをファイルへ展開
-            for(int index = 0; index < getLogSize(); ++index){
-                TValue localTValue = getObject(index);
-                Object val = localTValue.getValue();
-                if( val != null){
-                    _addValueToLogFromSuperLog(localTValue.getTime(), val, temp);
-                    continue;
-                }
-                break;
+            for(int index = 0; index < changePos_; ++index){
+                WorldStateEx state = getValue(index);
+                _addValueToLogFromSuperLog(state.time, state, temp);
             }
             
             try{
@@ -1007,7 +1199,7 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
             Thread t = new Thread() {
     			public void run() {
                     LogManager temp = null;
-                    if( !useDisk_ ){                            
+                    if( !_isLogOnDisk() ){                            
                         // オンメモリデータをファイルへ
                         temp = _restoreLogFileFromSuperLog();
                     }
@@ -1015,7 +1207,7 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
     					String name = preStat_.charList.get(i).characterName;
                         String fname = dir+File.separator+name+".csv"; //$NON-NLS-1$
     					try {
-                            if( useDisk_ ){                            
+                            if( _isLogOnDisk() ){                            
                                 logger_.saveCSV(fname, name);
                             }else{
                                 // オンメモリデータをファイルへ
@@ -1029,6 +1221,15 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
     				}
                     if(temp != null && temp != logger_){
                         temp.closeReads();
+                    }
+                    // ログを記録したシミュレーションの処理時間も書き出す
+                    StepProfiler profiler = profiler_;
+                    if (profiler != null && !profiler.isEmpty()) {
+                        try {
+                            profiler.saveCSV(new File(dir+File.separator+PROFILE_CSV_NAME));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
                     }
     			}
     		};
@@ -1037,22 +1238,32 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
         }
 	}
 	
-	public Double getTime(int pos) {
-		if (pos < 0)
-			return null;
-		Double t = super.getTime(pos);
-		if (t == null && lastCharName_ != null) {
-            try {
-                float[] f = logger_.get(lastCharName_, pos);
-                t = (double)f[0];
-                setTimeAt(pos, t);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+	/**
+	 * 時刻が登録されていない位置の時刻をログから読み出す
+	 *     読み込んだログはブロック単位でまとめて読み出し、時刻インデックスに登録する
+	 */
+	protected double loadTime(int pos) {
+		if (lastCharName_ == null)
+			return Double.NaN;
+		try {
+			_waitWritten(pos);
+			int origin = pos - pos % TIME_INDEX_BLOCK_SIZE;
+			int len = Math.min(TIME_INDEX_BLOCK_SIZE, getLogSize() - origin);
+			if (timeBuf_ == null)
+				timeBuf_ = new float[TIME_INDEX_BLOCK_SIZE];
+			if (logger_.getSeries(lastCharName_, 0, origin, len, timeBuf_) == len) {
+				setTimes(origin, timeBuf_, len);
+				return (double)timeBuf_[pos - origin];
+			}
+			float[] f = logger_.get(lastCharName_, pos);
+			if (f != null)
+				return (double)f[0];
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-	    return t;
+		return Double.NaN;
 	}
-	
+
 	public void extendTime(double time) {
 		SimulationTime stime = new SimulationTime();
 		stime.setCurrentTime(preStat_.time);
@@ -1064,16 +1275,66 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 		
 	    stime.setTotalTime(time);
 	    
+	    if (logWriter_ != null)
+	        logWriter_.flush();
 		//logger_.initCollisionLog(stime);
 	    logger_.extendTime(stime);
 	}
 		
 	public void stopSimulation(){
+		_closeLogWriter();
 		if (useDisk_)
 			logger_.closeWrites();
 	}
+
+	/**
+	 * 書き込みスレッドがposのレコードを書き出すまで待つ
+	 */
+	private void _waitWritten(int pos){
+		AsyncLogWriter w = logWriter_;
+		if (w != null)
+			w.waitWritten(pos + 1);
+	}
+
+	/**
+	 * 書き込みスレッドのキューを全て書き出してスレッドを終了する
+	 */
+	private void _closeLogWriter(){
+		AsyncLogWriter w = logWriter_;
+		if (w == null)
+			return;
+		logWriter_ = null;
+		w.close();
+		GrxDebugUtil.println("GrxWorldStateItem: " + w); //$NON-NLS-1$
+	}
     
-    public boolean isUseDsik(){ return useDisk_; }
+    /**
+     * ログをファイルから読み出すかどうか
+     *     useDiskがfalseでも遅延読み込みしたログはファイルから読み出す
+     */
+    public boolean isUseDsik(){ return _isLogOnDisk(); }
+
+    private boolean _isLogOnDisk(){ return useDisk_ || lazyLog_; }
+
+    /**
+     * addValue()に渡したWorldStateExを次のステップで使い回してよいか
+     *     値はレコードに変換した後は参照しない(衝突情報の配列のみ保持する)。
+     *     trueの場合、getValue()は記録中の最新の値もログから読み出したコピーを返す。
+     */
+    public boolean isRecycleState(){ return recycleState_; }
+
+    /**
+     * ログを記録するシミュレーションの処理時間を設定する
+     *     ログを消去または読み込むと解除される
+     * @param profiler 処理時間、nullの場合は解除
+     */
+    public void setProfiler(StepProfiler profiler){ profiler_ = profiler; }
+
+    /**
+     * このログを記録したシミュレーションの処理時間
+     * @return 記録したシミュレーションがない場合はnull
+     */
+    public StepProfiler getProfiler(){ return profiler_; }
 
     /**
 	 * set position of pointer
@@ -1123,7 +1384,13 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 		public WorldStateEx() {}
 		
 		public WorldStateEx(WorldState wstate) {
-			setWorldState(wstate);
+			// 新しいWorldStateExは受け取った配列をそのまま持つ
+			time = wstate.time;
+			collisions = wstate.collisions;
+			for (int i=0; i<wstate.characterPositions.length; i++) {
+				_get(wstate.characterPositions[i].characterName).position = 
+					wstate.characterPositions[i].linkPositions;
+			}
 		}
 		
 		public CharacterStateEx get(int idx) {
@@ -1134,9 +1401,32 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 			return charMap.get(charName);
 		}
 		
+		/**
+		 * get(String)で返さないようにする。charListには残す
+		 */
+		private void skip(CharacterStateEx c) {
+			charMap.remove(c.characterName);
+		}
+
+		/**
+		 * skip()したキャラクタを戻す
+		 */
+		private void restore(CharacterStateEx c) {
+			if (charMap.get(c.characterName) != c)
+				charMap.put(c.characterName, c);
+		}
+		
 		private CharacterStateEx _get(String charName) {
 			CharacterStateEx c = get(charName);
 			if (c == null) {
+				// skip()されたキャラクタはcharListに残っている
+				for (int i=0; i<charList.size(); i++) {
+					if (charList.get(i).characterName.equals(charName)) {
+						c = charList.get(i);
+						charMap.put(charName, c);
+						return c;
+					}
+				}
 				c = new CharacterStateEx();
 				c.characterName = charName;
 				charMap.put(charName, c);
@@ -1156,15 +1446,39 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 			return chars;
 		}
 		
+		/**
+		 * wstateの内容をコピーする
+		 *     リンク数が変わらない限りp,Rの配列は使い回す
+		 */
 		public void setWorldState(WorldState wstate) {
 			time = wstate.time;
 			collisions = wstate.collisions;
 			for (int i=0; i<wstate.characterPositions.length; i++) {
-				_get(wstate.characterPositions[i].characterName).position = 
-					wstate.characterPositions[i].linkPositions;
+				CharacterStateEx c = _get(wstate.characterPositions[i].characterName);
+				LinkPosition[] src = wstate.characterPositions[i].linkPositions;
+				if (c.position == null || c.position.length != src.length)
+					c.position = new LinkPosition[src.length];
+				for (int j=0; j<src.length; j++) {
+					LinkPosition dst = c.position[j];
+					if (dst == null) {
+						dst = new LinkPosition();
+						c.position[j] = dst;
+					}
+					dst.p = _copy(src[j].p, dst.p);
+					dst.R = _copy(src[j].R, dst.R);
+				}
 			}
 		}
 		
+		private static double[] _copy(double[] src, double[] dst) {
+			if (src == null)
+				return null;
+			if (dst == null || dst.length != src.length)
+				return src.clone();
+			System.arraycopy(src, 0, dst, 0, src.length);
+			return dst;
+		}
+		
 		public void setSensorState(String charName, SensorState state) {
 			_get(charName).sensorState = state;
 		}
@@ -1178,21 +1492,25 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 		}
 		
 		public void setPowerState(String charName, double voltage, double current){
-			_get(charName).powerState = new double[]{voltage, current};
+			CharacterStateEx c = _get(charName);
+			if (c.powerState == null || c.powerState.length != 2)
+				c.powerState = new double[2];
+			c.powerState[0] = voltage;
+			c.powerState[1] = current;
 		}
         
         protected Object clone() throws CloneNotSupportedException{
             WorldStateEx ret = new WorldStateEx();
             ret.time = time;
-            if(collisions != null){
+            if(collisions != null && collisions.length > 0){
                 ret.collisions = new Collision[]{new Collision()};
                 ret.collisions[0].points = collisions[0].points;
             }
+            // charListとcharMapは同じCharacterStateExを参照する
             for(CharacterStateEx    i:charList){
-                ret.charList.add((CharacterStateEx)i.clone()); 
-            }
-            for (String i:charMap.keySet()){
-                ret.charMap.put(new String(i), (CharacterStateEx)charMap.get(i).clone());
+                CharacterStateEx c = (CharacterStateEx)i.clone();
+                ret.charList.add(c); 
+                ret.charMap.put(c.characterName, c);
             }
             return ret;
         }
@@ -1331,7 +1649,8 @@ public class GrxWorldStateItem extends GrxTimeSeriesItem {
 	}
 
 	public void delete(){
-		if(useDisk_)
+		_closeLogWriter();
+		if(_isLogOnDisk())
 			logger_.closeReads();
 		super.delete();        
 	}
@@ -0,0 +1,670 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/*
+ *  AABBTree.java
+ */
+package com.generalrobotix.ui.util;
+
+/**
+ * @brief bounding volume hierarchy of axis-aligned boxes over a triangle mesh
+ *
+ * The tree is built once in the local frame of the mesh. Queries between
+ * two trees take the transform of each mesh and test boxes of one tree
+ * against boxes of the other transformed into its frame, so moving a mesh
+ * does not require rebuilding. Pairs of leaves which survive the box tests
+ * are checked with exact triangle-triangle distance.
+ *
+ * Transforms are 3x4 matrices in row major order, i.e. the layout of
+ * TransformedShapeIndex.transformMatrix: {R00, R01, R02, px, R10, ...}.
+ */
+public class AABBTree {
+	private static final int LEAF_SIZE = 4;
+	private static final double EPS = 1.0e-12;
+
+	private final double[] vertices_;
+	private final int[] triangles_;   // vertex indices, reordered so that each leaf refers to a range
+	private final double[] bounds_;   // min x, y, z and max x, y, z of each node
+	private final int[] nodes_;       // first triangle and count of a leaf, or first child and -1
+	private int numNodes_ = 0;
+	private int depth_ = 0;
+
+	/**
+	 * @brief receives contacts found by collide()
+	 */
+	public interface ContactListener {
+		/**
+		 * Arrays are reused after this returns.
+		 * @param point contact point in the world frame
+		 * @param normal unit normal of the triangle of the second mesh in the world frame
+		 * @param distance distance between the triangles, 0 if they intersect
+		 * @param depth if the triangles intersect, depth of the deepest vertex of
+		 *        the triangle of the first mesh behind the triangle of the second
+		 *        along normal. 0 otherwise
+		 * @return false to stop searching
+		 */
+		boolean contact(double[] point, double[] normal, double distance, double depth);
+	}
+
+	/**
+	 * @brief build a tree
+	 * @param vertices coordinates of vertices (x, y, z, ...)
+	 * @param triangles indices of vertices (3 for each triangle)
+	 */
+	public AABBTree(double[] vertices, int[] triangles) {
+		vertices_ = vertices.clone();
+		int n = triangles.length / 3;
+		triangles_ = new int[n * 3];
+		System.arraycopy(triangles, 0, triangles_, 0, n * 3);
+		int maxNodes = Math.max(1, 2 * n - 1);
+		bounds_ = new double[maxNodes * 6];
+		nodes_ = new int[maxNodes * 2];
+		if (n == 0)
+			return;
+
+		double[] centroids = new double[n * 3];
+		for (int i = 0; i < n; i++) {
+			for (int k = 0; k < 3; k++) {
+				centroids[i * 3 + k] = (vertices_[triangles_[i * 3] * 3 + k]
+						+ vertices_[triangles_[i * 3 + 1] * 3 + k]
+						+ vertices_[triangles_[i * 3 + 2] * 3 + k]) / 3.0;
+			}
+		}
+		numNodes_ = 1;
+		_build(0, 0, n, centroids, 1);
+	}
+
+	/**
+	 * @brief check whether the tree has no triangle
+	 */
+	public boolean isEmpty() {
+		return numNodes_ == 0;
+	}
+
+	public int getTriangleCount() {
+		return triangles_.length / 3;
+	}
+
+	/**
+	 * @brief get bounding box of the whole mesh in the world frame
+	 * @param T transform of the mesh
+	 * @param box min x, y, z and max x, y, z are stored
+	 */
+	public void getWorldBounds(double[] T, double[] box) {
+		if (isEmpty()) {
+			for (int k = 0; k < 3; k++) {
+				box[k] = Double.POSITIVE_INFINITY;
+				box[k + 3] = Double.NEGATIVE_INFINITY;
+			}
+			return;
+		}
+		for (int r = 0; r < 3; r++) {
+			double c = T[r * 4 + 3];
+			double h = 0;
+			for (int k = 0; k < 3; k++) {
+				double center = (bounds_[k] + bounds_[k + 3]) * 0.5;
+				double half = (bounds_[k + 3] - bounds_[k]) * 0.5;
+				c += T[r * 4 + k] * center;
+				h += Math.abs(T[r * 4 + k]) * half;
+			}
+			box[r] = c - h;
+			box[r + 3] = c + h;
+		}
+	}
+
+	/**
+	 * @brief find triangles of two meshes which are closer than tolerance
+	 * @param a first mesh
+	 * @param Ta transform of a
+	 * @param b second mesh
+	 * @param Tb transform of b
+	 * @param tolerance distance regarded as contact
+	 * @param listener receives contacts, or null to stop at the first contact
+	 * @return true if any contact is found
+	 */
+	public static boolean collide(AABBTree a, double[] Ta, AABBTree b, double[] Tb,
+			double tolerance, ContactListener listener) {
+		if (a.isEmpty() || b.isEmpty())
+			return false;
+		Work w = new Work(a, Ta, b, Tb);
+		boolean found = false;
+		int[] stack = new int[2 * (a.depth_ + b.depth_ + 2)];
+		int sp = 0;
+		stack[sp++] = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int nb = stack[--sp];
+			int na = stack[--sp];
+			if (w.boxDistance(na, nb) > tolerance)
+				continue;
+			boolean leafA = a.nodes_[na * 2 + 1] >= 0;
+			boolean leafB = b.nodes_[nb * 2 + 1] >= 0;
+			if (leafA && leafB) {
+				int ea = a.nodes_[na * 2] + a.nodes_[na * 2 + 1];
+				int eb = b.nodes_[nb * 2] + b.nodes_[nb * 2 + 1];
+				for (int i = a.nodes_[na * 2]; i < ea; i++) {
+					w.loadA(i);
+					for (int j = b.nodes_[nb * 2]; j < eb; j++) {
+						w.loadB(j);
+						double d = w.triangleDistance();
+						if (d > tolerance)
+							continue;
+						found = true;
+						if (listener == null)
+							return true;
+						double depth = (d == 0) ? w.penetrationDepth() : 0;
+						if (!listener.contact(w.contactPoint(), w.contactNormal(), d, depth))
+							return true;
+					}
+				}
+			} else if (leafB || (!leafA && a.size(na) >= b.size(nb))) {
+				int c = a.nodes_[na * 2];
+				stack[sp++] = c;
+				stack[sp++] = nb;
+				stack[sp++] = c + 1;
+				stack[sp++] = nb;
+			} else {
+				int c = b.nodes_[nb * 2];
+				stack[sp++] = na;
+				stack[sp++] = c;
+				stack[sp++] = na;
+				stack[sp++] = c + 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @brief compute the minimum distance between two meshes
+	 * @param a first mesh
+	 * @param Ta transform of a
+	 * @param b second mesh
+	 * @param Tb transform of b
+	 * @param p0 closest point on a in the world frame is stored
+	 * @param p1 closest point on b in the world frame is stored
+	 * @return distance, 0 if the meshes intersect, infinity if either mesh is empty
+	 */
+	public static double distance(AABBTree a, double[] Ta, AABBTree b, double[] Tb,
+			double[] p0, double[] p1) {
+		if (a.isEmpty() || b.isEmpty())
+			return Double.POSITIVE_INFINITY;
+		Work w = new Work(a, Ta, b, Tb);
+		double best = Double.POSITIVE_INFINITY;
+		int[] stack = new int[2 * (a.depth_ + b.depth_ + 2)];
+		int sp = 0;
+		stack[sp++] = 0;
+		stack[sp++] = 0;
+		while (sp > 0 && best > 0) {
+			int nb = stack[--sp];
+			int na = stack[--sp];
+			if (w.boxDistance(na, nb) >= best)
+				continue;
+			boolean leafA = a.nodes_[na * 2 + 1] >= 0;
+			boolean leafB = b.nodes_[nb * 2 + 1] >= 0;
+			if (leafA && leafB) {
+				int ea = a.nodes_[na * 2] + a.nodes_[na * 2 + 1];
+				int eb = b.nodes_[nb * 2] + b.nodes_[nb * 2 + 1];
+				for (int i = a.nodes_[na * 2]; i < ea; i++) {
+					w.loadA(i);
+					for (int j = b.nodes_[nb * 2]; j < eb; j++) {
+						w.loadB(j);
+						double d = w.triangleDistance();
+						if (d < best) {
+							best = d;
+							w.toWorld(w.cp_, p0);
+							w.toWorld(w.cq_, p1);
+						}
+					}
+				}
+				continue;
+			}
+			// push the nearer pair last so that it is searched first and tightens the bound early
+			int a0, b0, a1, b1;
+			if (leafB || (!leafA && a.size(na) >= b.size(nb))) {
+				a0 = a.nodes_[na * 2];
+				a1 = a0 + 1;
+				b0 = b1 = nb;
+			} else {
+				a0 = a1 = na;
+				b0 = b.nodes_[nb * 2];
+				b1 = b0 + 1;
+			}
+			double d0 = w.boxDistance(a0, b0);
+			double d1 = w.boxDistance(a1, b1);
+			if (d0 < d1) {
+				int t = a0; a0 = a1; a1 = t;
+				t = b0; b0 = b1; b1 = t;
+				double s = d0; d0 = d1; d1 = s;
+			}
+			if (d0 < best) {
+				stack[sp++] = a0;
+				stack[sp++] = b0;
+			}
+			if (d1 < best) {
+				stack[sp++] = a1;
+				stack[sp++] = b1;
+			}
+		}
+		return best;
+	}
+
+	private void _build(int node, int start, int end, double[] centroids, int depth) {
+		if (depth > depth_)
+			depth_ = depth;
+		double[] b = bounds_;
+		int o = node * 6;
+		for (int k = 0; k < 3; k++) {
+			b[o + k] = Double.POSITIVE_INFINITY;
+			b[o + k + 3] = Double.NEGATIVE_INFINITY;
+		}
+		double[] cmin = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] cmax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int i = start; i < end; i++) {
+			for (int v = 0; v < 3; v++) {
+				int vi = triangles_[i * 3 + v] * 3;
+				for (int k = 0; k < 3; k++) {
+					double x = vertices_[vi + k];
+					if (x < b[o + k])
+						b[o + k] = x;
+					if (x > b[o + k + 3])
+						b[o + k + 3] = x;
+				}
+			}
+			for (int k = 0; k < 3; k++) {
+				double c = centroids[i * 3 + k];
+				if (c < cmin[k])
+					cmin[k] = c;
+				if (c > cmax[k])
+					cmax[k] = c;
+			}
+		}
+		if (end - start <= LEAF_SIZE) {
+			nodes_[node * 2] = start;
+			nodes_[node * 2 + 1] = end - start;
+			return;
+		}
+		int axis = 0;
+		for (int k = 1; k < 3; k++) {
+			if (cmax[k] - cmin[k] > cmax[axis] - cmin[axis])
+				axis = k;
+		}
+		int mid = (start + end) / 2;
+		_select(start, end, mid, axis, centroids);
+		int child = numNodes_;
+		numNodes_ += 2;
+		nodes_[node * 2] = child;
+		nodes_[node * 2 + 1] = -1;
+		_build(child, start, mid, centroids, depth + 1);
+		_build(child + 1, mid, end, centroids, depth + 1);
+	}
+
+	/**
+	 * reorder triangles in [start, end) so that the k-th triangle has the
+	 * median centroid along axis
+	 */
+	private void _select(int start, int end, int k, int axis, double[] centroids) {
+		int lo = start;
+		int hi = end - 1;
+		while (lo < hi) {
+			double pivot = centroids[((lo + hi) >>> 1) * 3 + axis];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (centroids[i * 3 + axis] < pivot)
+					i++;
+				while (centroids[j * 3 + axis] > pivot)
+					j--;
+				if (i <= j) {
+					_swap(i, j, centroids);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void _swap(int i, int j, double[] centroids) {
+		for (int k = 0; k < 3; k++) {
+			int t = triangles_[i * 3 + k];
+			triangles_[i * 3 + k] = triangles_[j * 3 + k];
+			triangles_[j * 3 + k] = t;
+			double c = centroids[i * 3 + k];
+			centroids[i * 3 + k] = centroids[j * 3 + k];
+			centroids[j * 3 + k] = c;
+		}
+	}
+
+	private double size(int node) {
+		int o = node * 6;
+		double dx = bounds_[o + 3] - bounds_[o];
+		double dy = bounds_[o + 4] - bounds_[o + 1];
+		double dz = bounds_[o + 5] - bounds_[o + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * work area of a query. Everything is computed in the frame of the first mesh.
+	 */
+	private static class Work {
+		final AABBTree a_, b_;
+		final double[] Ta_;
+		final double[] R_ = new double[9];   // rotation from b to a
+		final double[] p_ = new double[3];   // position of b in a
+		final double[] P_ = new double[9];   // triangle of a
+		final double[] Q_ = new double[9];   // triangle of b in the frame of a
+		final double[] cp_ = new double[3];  // closest point on P_
+		final double[] cq_ = new double[3];  // closest point on Q_
+		final double[] point_ = new double[3];
+		final double[] normal_ = new double[3];
+		final double[] s_ = new double[3];
+		final double[] t_ = new double[3];
+		final double[] u_ = new double[3];
+		final double[] v_ = new double[3];
+
+		Work(AABBTree a, double[] Ta, AABBTree b, double[] Tb) {
+			a_ = a;
+			b_ = b;
+			Ta_ = Ta;
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					double r = 0;
+					for (int k = 0; k < 3; k++)
+						r += Ta[k * 4 + i] * Tb[k * 4 + j];
+					R_[i * 3 + j] = r;
+				}
+				double p = 0;
+				for (int k = 0; k < 3; k++)
+					p += Ta[k * 4 + i] * (Tb[k * 4 + 3] - Ta[k * 4 + 3]);
+				p_[i] = p;
+			}
+		}
+
+		/**
+		 * lower bound of the distance between node na of a and node nb of b
+		 */
+		double boxDistance(int na, int nb) {
+			double[] ba = a_.bounds_;
+			double[] bb = b_.bounds_;
+			int oa = na * 6;
+			int ob = nb * 6;
+			double d2 = 0;
+			for (int r = 0; r < 3; r++) {
+				double c = p_[r];
+				double h = 0;
+				for (int k = 0; k < 3; k++) {
+					double center = (bb[ob + k] + bb[ob + k + 3]) * 0.5;
+					double half = (bb[ob + k + 3] - bb[ob + k]) * 0.5;
+					c += R_[r * 3 + k] * center;
+					h += Math.abs(R_[r * 3 + k]) * half;
+				}
+				double gap = Math.max(ba[oa + r] - (c + h), (c - h) - ba[oa + r + 3]);
+				if (gap > 0)
+					d2 += gap * gap;
+			}
+			return Math.sqrt(d2);
+		}
+
+		void loadA(int tri) {
+			for (int v = 0; v < 3; v++) {
+				int vi = a_.triangles_[tri * 3 + v] * 3;
+				P_[v * 3] = a_.vertices_[vi];
+				P_[v * 3 + 1] = a_.vertices_[vi + 1];
+				P_[v * 3 + 2] = a_.vertices_[vi + 2];
+			}
+		}
+
+		void loadB(int tri) {
+			for (int v = 0; v < 3; v++) {
+				int vi = b_.triangles_[tri * 3 + v] * 3;
+				double x = b_.vertices_[vi];
+				double y = b_.vertices_[vi + 1];
+				double z = b_.vertices_[vi + 2];
+				for (int r = 0; r < 3; r++)
+					Q_[v * 3 + r] = R_[r * 3] * x + R_[r * 3 + 1] * y + R_[r * 3 + 2] * z + p_[r];
+			}
+		}
+
+		void toWorld(double[] local, double[] world) {
+			for (int r = 0; r < 3; r++) {
+				world[r] = Ta_[r * 4] * local[0] + Ta_[r * 4 + 1] * local[1]
+						+ Ta_[r * 4 + 2] * local[2] + Ta_[r * 4 + 3];
+			}
+		}
+
+		double[] contactPoint() {
+			for (int k = 0; k < 3; k++)
+				s_[k] = (cp_[k] + cq_[k]) * 0.5;
+			toWorld(s_, point_);
+			return point_;
+		}
+
+		double[] contactNormal() {
+			for (int k = 0; k < 3; k++) {
+				u_[k] = Q_[3 + k] - Q_[k];
+				v_[k] = Q_[6 + k] - Q_[k];
+			}
+			_cross(u_, v_, s_);
+			double len = Math.sqrt(_dot(s_, s_));
+			if (len > EPS) {
+				for (int k = 0; k < 3; k++)
+					s_[k] /= len;
+			}
+			for (int r = 0; r < 3; r++)
+				normal_[r] = Ta_[r * 4] * s_[0] + Ta_[r * 4 + 1] * s_[1] + Ta_[r * 4 + 2] * s_[2];
+			return normal_;
+		}
+
+		/**
+		 * depth of the deepest vertex of P_ behind the plane of Q_ along its normal
+		 */
+		double penetrationDepth() {
+			for (int k = 0; k < 3; k++) {
+				u_[k] = Q_[3 + k] - Q_[k];
+				v_[k] = Q_[6 + k] - Q_[k];
+			}
+			_cross(u_, v_, t_);
+			double len = Math.sqrt(_dot(t_, t_));
+			if (len <= EPS)
+				return 0;
+			double depth = 0;
+			for (int v = 0; v < 3; v++) {
+				double s = 0;
+				for (int k = 0; k < 3; k++)
+					s += t_[k] * (P_[v * 3 + k] - Q_[k]);
+				depth = Math.max(depth, -s / len);
+			}
+			return depth;
+		}
+
+		/**
+		 * distance between P_ and Q_. The closest points are stored in cp_ and cq_.
+		 */
+		double triangleDistance() {
+			// an edge passing through the other triangle
+			for (int e = 0; e < 3; e++) {
+				if (_segmentTriangle(P_, e * 3, ((e + 1) % 3) * 3, Q_, cp_)) {
+					System.arraycopy(cp_, 0, cq_, 0, 3);
+					return 0;
+				}
+				if (_segmentTriangle(Q_, e * 3, ((e + 1) % 3) * 3, P_, cq_)) {
+					System.arraycopy(cq_, 0, cp_, 0, 3);
+					return 0;
+				}
+			}
+			// otherwise the closest points are on two edges or a vertex and a face
+			double best = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					double d = _segmentSegment(P_, i * 3, ((i + 1) % 3) * 3, Q_, j * 3, ((j + 1) % 3) * 3, s_, t_);
+					if (d < best) {
+						best = d;
+						System.arraycopy(s_, 0, cp_, 0, 3);
+						System.arraycopy(t_, 0, cq_, 0, 3);
+					}
+				}
+			}
+			for (int v = 0; v < 3; v++) {
+				double d = _pointTriangle(P_, v * 3, Q_, t_);
+				if (d < best) {
+					best = d;
+					System.arraycopy(P_, v * 3, cp_, 0, 3);
+					System.arraycopy(t_, 0, cq_, 0, 3);
+				}
+				d = _pointTriangle(Q_, v * 3, P_, s_);
+				if (d < best) {
+					best = d;
+					System.arraycopy(s_, 0, cp_, 0, 3);
+					System.arraycopy(Q_, v * 3, cq_, 0, 3);
+				}
+			}
+			return Math.sqrt(best);
+		}
+
+		/**
+		 * intersection of segment (S[i0], S[i1]) and triangle T
+		 */
+		private boolean _segmentTriangle(double[] S, int i0, int i1, double[] T, double[] out) {
+			double dx = S[i1] - S[i0], dy = S[i1 + 1] - S[i0 + 1], dz = S[i1 + 2] - S[i0 + 2];
+			double e1x = T[3] - T[0], e1y = T[4] - T[1], e1z = T[5] - T[2];
+			double e2x = T[6] - T[0], e2y = T[7] - T[1], e2z = T[8] - T[2];
+			double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+			double det = e1x * px + e1y * py + e1z * pz;
+			if (Math.abs(det) < EPS)
+				return false;
+			double inv = 1.0 / det;
+			double tx = S[i0] - T[0], ty = S[i0 + 1] - T[1], tz = S[i0 + 2] - T[2];
+			double u = (tx * px + ty * py + tz * pz) * inv;
+			if (u < 0 || u > 1)
+				return false;
+			double qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+			double v = (dx * qx + dy * qy + dz * qz) * inv;
+			if (v < 0 || u + v > 1)
+				return false;
+			double t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+			if (t < 0 || t > 1)
+				return false;
+			out[0] = S[i0] + t * dx;
+			out[1] = S[i0 + 1] + t * dy;
+			out[2] = S[i0 + 2] + t * dz;
+			return true;
+		}
+	}
+
+	/**
+	 * squared distance between segments (A[a0], A[a1]) and (B[b0], B[b1])
+	 */
+	private static double _segmentSegment(double[] A, int a0, int a1, double[] B, int b0, int b1,
+			double[] ca, double[] cb) {
+		double d1x = A[a1] - A[a0], d1y = A[a1 + 1] - A[a0 + 1], d1z = A[a1 + 2] - A[a0 + 2];
+		double d2x = B[b1] - B[b0], d2y = B[b1 + 1] - B[b0 + 1], d2z = B[b1 + 2] - B[b0 + 2];
+		double rx = A[a0] - B[b0], ry = A[a0 + 1] - B[b0 + 1], rz = A[a0 + 2] - B[b0 + 2];
+		double a = d1x * d1x + d1y * d1y + d1z * d1z;
+		double e = d2x * d2x + d2y * d2y + d2z * d2z;
+		double f = d2x * rx + d2y * ry + d2z * rz;
+		double s, t;
+		if (a <= EPS && e <= EPS) {
+			s = t = 0;
+		} else if (a <= EPS) {
+			s = 0;
+			t = _clamp(f / e);
+		} else {
+			double c = d1x * rx + d1y * ry + d1z * rz;
+			if (e <= EPS) {
+				t = 0;
+				s = _clamp(-c / a);
+			} else {
+				double b = d1x * d2x + d1y * d2y + d1z * d2z;
+				double denom = a * e - b * b;
+				s = denom > EPS ? _clamp((b * f - c * e) / denom) : 0;
+				t = (b * s + f) / e;
+				if (t < 0) {
+					t = 0;
+					s = _clamp(-c / a);
+				} else if (t > 1) {
+					t = 1;
+					s = _clamp((b - c) / a);
+				}
+			}
+		}
+		ca[0] = A[a0] + d1x * s;
+		ca[1] = A[a0 + 1] + d1y * s;
+		ca[2] = A[a0 + 2] + d1z * s;
+		cb[0] = B[b0] + d2x * t;
+		cb[1] = B[b0 + 1] + d2y * t;
+		cb[2] = B[b0 + 2] + d2z * t;
+		double x = ca[0] - cb[0], y = ca[1] - cb[1], z = ca[2] - cb[2];
+		return x * x + y * y + z * z;
+	}
+
+	/**
+	 * squared distance between point P[p] and triangle T. The closest point is stored in out.
+	 */
+	private static double _pointTriangle(double[] P, int p, double[] T, double[] out) {
+		double px = P[p], py = P[p + 1], pz = P[p + 2];
+		double abx = T[3] - T[0], aby = T[4] - T[1], abz = T[5] - T[2];
+		double acx = T[6] - T[0], acy = T[7] - T[1], acz = T[8] - T[2];
+		double apx = px - T[0], apy = py - T[1], apz = pz - T[2];
+		double d1 = abx * apx + aby * apy + abz * apz;
+		double d2 = acx * apx + acy * apy + acz * apz;
+		double u, v;
+		if (d1 <= 0 && d2 <= 0) {
+			u = 0; v = 0;
+		} else {
+			double bpx = px - T[3], bpy = py - T[4], bpz = pz - T[5];
+			double d3 = abx * bpx + aby * bpy + abz * bpz;
+			double d4 = acx * bpx + acy * bpy + acz * bpz;
+			double cpx = px - T[6], cpy = py - T[7], cpz = pz - T[8];
+			double d5 = abx * cpx + aby * cpy + abz * cpz;
+			double d6 = acx * cpx + acy * cpy + acz * cpz;
+			double vc = d1 * d4 - d3 * d2;
+			double vb = d5 * d2 - d1 * d6;
+			double va = d3 * d6 - d5 * d4;
+			if (d3 >= 0 && d4 <= d3) {
+				u = 1; v = 0;
+			} else if (d6 >= 0 && d5 <= d6) {
+				u = 0; v = 1;
+			} else if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+				u = d1 / (d1 - d3); v = 0;
+			} else if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+				u = 0; v = d2 / (d2 - d6);
+			} else if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+				double w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+				u = 1 - w; v = w;
+			} else {
+				double denom = 1.0 / (va + vb + vc);
+				u = vb * denom; v = vc * denom;
+			}
+		}
+		out[0] = T[0] + abx * u + acx * v;
+		out[1] = T[1] + aby * u + acy * v;
+		out[2] = T[2] + abz * u + acz * v;
+		double x = px - out[0], y = py - out[1], z = pz - out[2];
+		return x * x + y * y + z * z;
+	}
+
+	private static double _clamp(double x) {
+		return x < 0 ? 0 : (x > 1 ? 1 : x);
+	}
+
+	private static double _dot(double[] a, double[] b) {
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+
+	private static void _cross(double[] a, double[] b, double[] out) {
+		out[0] = a[1] * b[2] - a[2] * b[1];
+		out[1] = a[2] * b[0] - a[0] * b[2];
+		out[2] = a[0] * b[1] - a[1] * b[0];
+	}
+}
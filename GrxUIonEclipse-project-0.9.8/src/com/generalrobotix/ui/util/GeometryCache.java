@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/*
+ *  GeometryCache.java
+ */
+package com.generalrobotix.ui.util;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @brief cache of geometries and texture images built from ModelLoader data
+ *
+ * Entries are keyed by the URL of the shape file and a fingerprint of all
+ * the source data, so an edited file or another shape of the same file
+ * never hits an entry made from different data. Values are held by soft
+ * references so that they are released when heap runs short.
+ *
+ * Cached Java3D objects are shared between scene graphs and must not be
+ * modified after they are stored.
+ */
+public class GeometryCache {
+	private static GeometryCache this_ = null;
+
+	private final Map<String, Entry> entries_ = new HashMap<String, Entry>();
+	private final ReferenceQueue<Object> cleared_ = new ReferenceQueue<Object>();
+	private long hits_ = 0;
+	private long misses_ = 0;
+
+	private static class Entry extends SoftReference<Object> {
+		final String key_;
+
+		Entry(String key, Object value, ReferenceQueue<Object> queue) {
+			super(value, queue);
+			key_ = key;
+		}
+	}
+
+	/**
+	 * @brief 64bit FNV-1a hash of all elements of the source data
+	 */
+	public static class Fingerprint {
+		private static final long OFFSET = 0xcbf29ce484222325L;
+		private static final long PRIME = 0x100000001b3L;
+		private long hash_ = OFFSET;
+
+		public Fingerprint add(int v) {
+			for (int i = 0; i < 32; i += 8)
+				hash_ = (hash_ ^ ((v >>> i) & 0xff)) * PRIME;
+			return this;
+		}
+
+		public Fingerprint add(long v) {
+			return add((int)v).add((int)(v >>> 32));
+		}
+
+		public Fingerprint add(boolean v) {
+			return add(v ? 1 : 0);
+		}
+
+		public Fingerprint add(float v) {
+			return add(Float.floatToIntBits(v));
+		}
+
+		public Fingerprint add(String s) {
+			if (s == null)
+				return add(-1);
+			add(s.length());
+			for (int i = 0; i < s.length(); i++)
+				add((int)s.charAt(i));
+			return this;
+		}
+
+		public Fingerprint add(float[] data) {
+			if (data == null)
+				return add(-1);
+			add(data.length);
+			for (int i = 0; i < data.length; i++)
+				add(Float.floatToIntBits(data[i]));
+			return this;
+		}
+
+		public Fingerprint add(int[] data) {
+			if (data == null)
+				return add(-1);
+			add(data.length);
+			for (int i = 0; i < data.length; i++)
+				add(data[i]);
+			return this;
+		}
+
+		public Fingerprint add(byte[] data) {
+			if (data == null)
+				return add(-1);
+			add(data.length);
+			for (int i = 0; i < data.length; i++)
+				hash_ = (hash_ ^ (data[i] & 0xff)) * PRIME;
+			return this;
+		}
+
+		/**
+		 * @brief add modification time and size of a local file
+		 *
+		 * This is for data which is read from a file by the client.
+		 * @param path path of the file, or URL starting with "file:"
+		 */
+		public Fingerprint addFile(String path) {
+			if (path == null)
+				return add(-1);
+			if (path.startsWith("file:")) //$NON-NLS-1$
+				path = path.substring(5);
+			File file = new File(path);
+			return add(file.lastModified()).add(file.length());
+		}
+
+		public long get() {
+			return hash_;
+		}
+	}
+
+	public static synchronized GeometryCache getInstance() {
+		if (this_ == null)
+			this_ = new GeometryCache();
+		return this_;
+	}
+
+	/**
+	 * @brief make key of an entry
+	 * @param url URL of the file, or null
+	 * @param kind kind of value
+	 * @param fingerprint fingerprint of all the source data
+	 * @return key
+	 */
+	public static String key(String url, String kind, Fingerprint fingerprint) {
+		return (url == null ? "" : url) + "#" + kind + ":" + Long.toHexString(fingerprint.get()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	/**
+	 * @brief get cached value
+	 * @param key key made by key()
+	 * @return cached value, or null if it is not cached
+	 */
+	public synchronized Object get(String key) {
+		if (key == null)
+			return null;
+		_expunge();
+		Entry e = entries_.get(key);
+		Object value = (e != null) ? e.get() : null;
+		if (value == null)
+			misses_++;
+		else
+			hits_++;
+		return value;
+	}
+
+	/**
+	 * @brief store a value
+	 * @param key key made by key()
+	 * @param value value
+	 */
+	public synchronized void put(String key, Object value) {
+		if (key == null || value == null)
+			return;
+		_expunge();
+		entries_.put(key, new Entry(key, value, cleared_));
+	}
+
+	/**
+	 * @brief remove entries whose values have been released
+	 */
+	private void _expunge() {
+		Entry e;
+		while ((e = (Entry)cleared_.poll()) != null) {
+			if (entries_.get(e.key_) == e)
+				entries_.remove(e.key_);
+		}
+	}
+
+	/**
+	 * @brief remove all entries
+	 */
+	public synchronized void clear() {
+		_expunge();
+		entries_.clear();
+		hits_ = 0;
+		misses_ = 0;
+	}
+
+	public synchronized long getHitCount() {
+		return hits_;
+	}
+
+	public synchronized long getMissCount() {
+		return misses_;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/*
+ *  RealTimePacer.java
+ */
+package com.generalrobotix.ui.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @brief keeps simulation time in step with wall-clock time
+ *
+ * The deadline of each step is computed from the simulation time and the
+ * wall-clock time when pacing started, so sleeping errors do not
+ * accumulate. When the simulation falls behind by more than the
+ * tolerance, an overrun is reported. With the CATCH_UP policy the
+ * following steps run without sleeping until the schedule is met again.
+ * With the SKIP policy the schedule is moved so that the lost time is
+ * not made up.
+ *
+ * The real-time factor (simulated time / wall-clock time) is measured
+ * whether pacing is enabled or not.
+ */
+public class RealTimePacer {
+	public static final int CATCH_UP = 0;
+	public static final int SKIP = 1;
+	private static final long RTF_WINDOW = 500 * 1000 * 1000L; // [ns]
+
+	/**
+	 * @brief receives overruns
+	 *
+	 * Called on the simulation thread.
+	 */
+	public interface OverrunListener {
+		/**
+		 * @param simTime simulation time of the step[s]
+		 * @param lagNanos delay from the deadline[ns]
+		 */
+		void overrun(double simTime, long lagNanos);
+	}
+
+	private int policy_ = CATCH_UP;
+	private long toleranceNanos_ = 0;
+	private OverrunListener listener_ = null;
+
+	private long originNanos_;   // wall-clock time corresponding to originTime_
+	private double originTime_;
+	private long suspendNanos_ = -1;
+	private boolean late_ = false;
+
+	private long windowNanos_;
+	private double windowTime_;
+	private volatile double rtf_ = 0;
+	private long startNanos_;
+	private double startTime_;
+	private long pausedNanos_;
+	private volatile double lastTime_;
+	private volatile long overruns_ = 0;
+	private volatile long maxLagNanos_ = 0;
+
+	/**
+	 * @brief set what to do when the simulation falls behind
+	 * @param policy CATCH_UP or SKIP
+	 */
+	public void setPolicy(int policy) {
+		policy_ = policy;
+	}
+
+	/**
+	 * @brief set delay from the deadline which is reported as an overrun
+	 * @param seconds tolerance[s]
+	 */
+	public void setTolerance(double seconds) {
+		toleranceNanos_ = Math.max(0, (long)(seconds * 1.0e9));
+	}
+
+	public void setOverrunListener(OverrunListener listener) {
+		listener_ = listener;
+	}
+
+	/**
+	 * @brief start pacing and measurement from the current wall-clock time
+	 * @param simTime current simulation time[s]
+	 */
+	public void start(double simTime) {
+		anchor(simTime);
+		startNanos_ = originNanos_;
+		startTime_ = simTime;
+		pausedNanos_ = 0;
+		lastTime_ = simTime;
+		rtf_ = 0;
+		overruns_ = 0;
+		maxLagNanos_ = 0;
+	}
+
+	/**
+	 * @brief restart the schedule from the current wall-clock time
+	 *
+	 * Statistics are kept.
+	 * @param simTime current simulation time[s]
+	 */
+	public void anchor(double simTime) {
+		long now = System.nanoTime();
+		originNanos_ = now;
+		originTime_ = simTime;
+		suspendNanos_ = -1;
+		late_ = false;
+		windowNanos_ = now;
+		windowTime_ = simTime;
+	}
+
+	/**
+	 * @brief stop the clock while the simulation is suspended
+	 */
+	public void suspend() {
+		if (suspendNanos_ < 0)
+			suspendNanos_ = System.nanoTime();
+	}
+
+	/**
+	 * @brief restart the clock stopped by suspend()
+	 */
+	public void resume() {
+		if (suspendNanos_ < 0)
+			return;
+		long paused = System.nanoTime() - suspendNanos_;
+		originNanos_ += paused;
+		windowNanos_ += paused;
+		pausedNanos_ += paused;
+		suspendNanos_ = -1;
+	}
+
+	/**
+	 * @brief wait until the wall-clock time reaches simulation time
+	 *
+	 * Returns early if the thread is interrupted. The interrupt status is
+	 * kept for the caller.
+	 * @param simTime simulation time after the step[s]
+	 */
+	public void pace(double simTime) {
+		long deadline = originNanos_ + (long)((simTime - originTime_) * 1.0e9);
+		long now = System.nanoTime();
+		long wait = deadline - now;
+		if (wait > 0) {
+			late_ = false;
+			while (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				now = System.nanoTime();
+				// parkNanos returns at once while the interrupt status is set
+				if (Thread.currentThread().isInterrupted())
+					break;
+				wait = deadline - now;
+			}
+		} else {
+			long lag = -wait;
+			if (lag > maxLagNanos_)
+				maxLagNanos_ = lag;
+			if (lag > toleranceNanos_) {
+				// report once when the simulation starts to fall behind
+				if (!late_) {
+					overruns_++;
+					if (listener_ != null)
+						listener_.overrun(simTime, lag);
+				}
+				late_ = true;
+				if (policy_ == SKIP) {
+					originNanos_ = now;
+					originTime_ = simTime;
+					late_ = false;
+				}
+			}
+		}
+		measure(simTime, now);
+	}
+
+	/**
+	 * @brief update the real-time factor without pacing
+	 * @param simTime current simulation time[s]
+	 */
+	public void measure(double simTime) {
+		measure(simTime, System.nanoTime());
+	}
+
+	private void measure(double simTime, long now) {
+		lastTime_ = simTime;
+		long elapsed = now - windowNanos_;
+		if (elapsed >= RTF_WINDOW) {
+			rtf_ = (simTime - windowTime_) * 1.0e9 / elapsed;
+			windowNanos_ = now;
+			windowTime_ = simTime;
+		}
+	}
+
+	/**
+	 * @brief get real-time factor of the last measurement window (about 0.5s)
+	 */
+	public double getRealTimeFactor() {
+		return rtf_;
+	}
+
+	/**
+	 * @brief get real-time factor since start() excluding suspended time
+	 */
+	public double getAverageRealTimeFactor() {
+		long elapsed = System.nanoTime() - startNanos_ - pausedNanos_;
+		return elapsed > 0 ? (lastTime_ - startTime_) * 1.0e9 / elapsed : 0;
+	}
+
+	/**
+	 * @brief get number of times the simulation fell behind by more than the tolerance
+	 */
+	public long getOverrunCount() {
+		return overruns_;
+	}
+
+	/**
+	 * @brief get the largest delay from the deadline[ns]
+	 */
+	public long getMaxLagNanos() {
+		return maxLagNanos_;
+	}
+}
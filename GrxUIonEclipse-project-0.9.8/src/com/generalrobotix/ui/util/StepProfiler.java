@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/*
+ *  StepProfiler.java
+ */
+package com.generalrobotix.ui.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * @brief elapsed time histograms of the phases of a simulation step
+ *
+ * Each phase has a preallocated log-linear histogram of nanosecond
+ * durations: values below 64ns are counted exactly and larger values
+ * fall into 32 buckets per power of two, so percentiles are accurate
+ * within about 3%. Recording does not allocate.
+ */
+public class StepProfiler {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	private static final String FORMAT = "%.3f"; //$NON-NLS-1$
+
+	private final String[] phases_;
+	private final long[][] counts_;
+	private final long[] total_;
+	private final long[] sum_;
+	private final long[] min_;
+	private final long[] max_;
+
+	/**
+	 * @brief constructor
+	 * @param phases names of phases
+	 */
+	public StepProfiler(String[] phases) {
+		phases_ = phases.clone();
+		counts_ = new long[phases_.length][BUCKETS];
+		total_ = new long[phases_.length];
+		sum_ = new long[phases_.length];
+		min_ = new long[phases_.length];
+		max_ = new long[phases_.length];
+		reset();
+	}
+
+	/**
+	 * @brief clear all histograms
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < phases_.length; i++) {
+			Arrays.fill(counts_[i], 0);
+			total_[i] = 0;
+			sum_[i] = 0;
+			min_[i] = Long.MAX_VALUE;
+			max_[i] = 0;
+		}
+	}
+
+	/**
+	 * @brief record a duration
+	 * @param phase index of phase
+	 * @param nanos duration[ns]
+	 */
+	public synchronized void record(int phase, long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts_[phase][_bucket(nanos)]++;
+		total_[phase]++;
+		sum_[phase] += nanos;
+		if (nanos < min_[phase])
+			min_[phase] = nanos;
+		if (nanos > max_[phase])
+			max_[phase] = nanos;
+	}
+
+	/**
+	 * @brief get number of phases
+	 */
+	public int getPhaseCount() {
+		return phases_.length;
+	}
+
+	/**
+	 * @brief get name of phase
+	 */
+	public String getPhaseName(int phase) {
+		return phases_[phase];
+	}
+
+	/**
+	 * @brief check whether nothing has been recorded since reset
+	 */
+	public synchronized boolean isEmpty() {
+		for (int i = 0; i < phases_.length; i++) {
+			if (total_[i] > 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @brief get number of recorded durations
+	 */
+	public synchronized long getCount(int phase) {
+		return total_[phase];
+	}
+
+	/**
+	 * @brief get sum of recorded durations[ns]
+	 */
+	public synchronized long getTotal(int phase) {
+		return sum_[phase];
+	}
+
+	/**
+	 * @brief get mean of recorded durations[ns]
+	 */
+	public synchronized double getMean(int phase) {
+		return total_[phase] > 0 ? (double)sum_[phase] / total_[phase] : 0;
+	}
+
+	/**
+	 * @brief get minimum of recorded durations[ns]
+	 */
+	public synchronized long getMin(int phase) {
+		return total_[phase] > 0 ? min_[phase] : 0;
+	}
+
+	/**
+	 * @brief get maximum of recorded durations[ns]
+	 */
+	public synchronized long getMax(int phase) {
+		return max_[phase];
+	}
+
+	/**
+	 * @brief get percentile of recorded durations
+	 * @param phase index of phase
+	 * @param percentile percentile (0-100)
+	 * @return duration[ns]
+	 */
+	public synchronized long getPercentile(int phase, double percentile) {
+		long total = total_[phase];
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * total));
+		long[] counts = counts_[phase];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += counts[i];
+			if (n >= rank)
+				return Math.min(Math.max(_value(i), min_[phase]), max_[phase]);
+		}
+		return max_[phase];
+	}
+
+	/**
+	 * @brief write statistics of all phases as CSV
+	 *
+	 * Durations are written in microseconds.
+	 */
+	public void writeCSV(PrintWriter out) {
+		out.print("phase,count,mean[us],min[us]"); //$NON-NLS-1$
+		for (int j = 0; j < PERCENTILES.length; j++)
+			out.print("," + PERCENTILE_NAMES[j] + "[us]"); //$NON-NLS-1$ //$NON-NLS-2$
+		out.println(",max[us],total[s]"); //$NON-NLS-1$
+		for (int i = 0; i < phases_.length; i++) {
+			out.print(phases_[i]);
+			out.print(',');
+			out.print(getCount(i));
+			out.print(',');
+			out.print(String.format(FORMAT, getMean(i) / 1000.0));
+			out.print(',');
+			out.print(String.format(FORMAT, getMin(i) / 1000.0));
+			for (int j = 0; j < PERCENTILES.length; j++) {
+				out.print(',');
+				out.print(String.format(FORMAT, getPercentile(i, PERCENTILES[j]) / 1000.0));
+			}
+			out.print(',');
+			out.print(String.format(FORMAT, getMax(i) / 1000.0));
+			out.print(',');
+			out.println(String.format("%.6f", getTotal(i) / 1.0e9)); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @brief save statistics of all phases as a CSV file
+	 */
+	public void saveCSV(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			writeCSV(out);
+		} finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("failed to write " + file); //$NON-NLS-1$
+	}
+
+	private static int _bucket(long v) {
+		if (v < 2 * SUB_COUNT)
+			return (int)v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return shift * SUB_COUNT + (int)(v >>> shift);
+	}
+
+	/**
+	 * middle of the range of bucket i
+	 */
+	private static long _value(int i) {
+		if (i < 2 * SUB_COUNT)
+			return i;
+		int shift = i / SUB_COUNT - 1;
+		long top = i % SUB_COUNT + SUB_COUNT;
+		return (top << shift) + ((1L << shift) >> 1);
+	}
+}
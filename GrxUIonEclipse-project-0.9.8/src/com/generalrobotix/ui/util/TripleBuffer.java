@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/*
+ *  TripleBuffer.java
+ */
+package com.generalrobotix.ui.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @brief hands the newest value from one producer thread to one consumer thread
+ *
+ * The producer fills the back buffer and publishes it, the consumer takes
+ * the most recently published buffer. Neither side ever waits for the
+ * other: values published while the consumer is busy are overwritten by
+ * newer ones. A buffer returned by take() is not touched by the producer
+ * until the next take(). Until the first take(), the third buffer given to
+ * the constructor belongs to the consumer.
+ */
+public class TripleBuffer<T> {
+	private static final int INDEX_MASK = 3;
+	private static final int FRESH = 4;
+
+	private final Object[] buffers_;
+	private final AtomicInteger middle_ = new AtomicInteger(1);   // index | FRESH
+	private int back_ = 0;    // used only by the producer
+	private int front_ = 2;   // used only by the consumer
+
+	public TripleBuffer(T first, T second, T third) {
+		buffers_ = new Object[] { first, second, third };
+	}
+
+	/**
+	 * @brief get the buffer the producer writes next
+	 */
+	@SuppressWarnings("unchecked")
+	public T getBackBuffer() {
+		return (T)buffers_[back_];
+	}
+
+	/**
+	 * @brief make the back buffer available to the consumer
+	 */
+	public void publish() {
+		back_ = middle_.getAndSet(back_ | FRESH) & INDEX_MASK;
+	}
+
+	/**
+	 * @brief get the buffer published last
+	 * @return null if nothing has been published since the last call
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() {
+		if ((middle_.get() & FRESH) == 0)
+			return null;
+		front_ = middle_.getAndSet(front_) & INDEX_MASK;
+		return (T)buffers_[front_];
+	}
+}
@@ -99,6 +99,7 @@ public class Grx3DView
     private GrxWorldStateItem  currentWorld_ = null;
     private List<GrxModelItem> currentModels_ = new ArrayList<GrxModelItem>();
     private List<GrxCollisionPairItem> currentCollisionPairs_ = new ArrayList<GrxCollisionPairItem>();
+    private List<Camera_impl> renderingCameras_ = new ArrayList<Camera_impl>();
     private WorldStateEx currentState_ = null; 
     private GrxSimulationItem simItem_ = null;
     private final static int VIEW=0;
@@ -305,7 +306,6 @@ public class Grx3DView
         behaviorManager_.setThreeDViewer(this);
         behaviorManager_.setViewIndicator(viewToolBar_);
         behaviorManager_.setItem(currentModels_, currentCollisionPairs_);
-        behaviorManager_.initDynamicsSimulator();
         behaviorManager_.setOperationMode(BehaviorManager.OPERATION_MODE_NONE);
         behaviorManager_.setViewMode(BehaviorManager.ROOM_VIEW_MODE);
         behaviorManager_.setViewHandlerMode("button_mode_rotation"); //$NON-NLS-1$
@@ -392,7 +392,7 @@ public class Grx3DView
         bgRoot_.setCapability(BranchGroup.ALLOW_CHILDREN_EXTEND);
                 
         //locale_.addBranchGraph(_createView());
-        bgRoot_.addChild(_createLights());
+        bgRoot_.addChild(createLights(backGround_));
         bgRoot_.addChild(_createView());
         bgRoot_.compile();
         locale_.addBranchGraph(bgRoot_);
@@ -439,7 +439,15 @@ public class Grx3DView
         return bg;
     }
     
-    private BranchGroup _createLights() {
+    /**
+     * @brief create lights and a background of the scene
+     *
+     * This is shared with OffscreenRenderer so that movies rendered in
+     * batch look the same as this view.
+     * @param backGround background node to be added
+     * @return branch group of lights
+     */
+    public static BranchGroup createLights(Background backGround) {
         BranchGroup bg = new BranchGroup();
         DirectionalLight[] light = new DirectionalLight[4];
         TransformGroup[] tg = new TransformGroup[4];
@@ -511,10 +519,10 @@ public class Grx3DView
         tg[0].addChild(alight);
 
         // background
-        backGround_.setCapability(Background.ALLOW_COLOR_READ);
-        backGround_.setCapability(Background.ALLOW_COLOR_WRITE);
-        backGround_.setApplicationBounds(bounds);
-        bg.addChild(backGround_);
+        backGround.setCapability(Background.ALLOW_COLOR_READ);
+        backGround.setCapability(Background.ALLOW_COLOR_WRITE);
+        backGround.setApplicationBounds(bounds);
+        bg.addChild(backGround);
         
         return bg;
     }
@@ -1088,14 +1096,24 @@ public class Grx3DView
     }
 	
     public void updateModels(WorldStateEx state){
+        updateModels(currentModels_, state, showActualState_);
+    }
+
+    /**
+     * @brief update models with a WorldState
+     * @param models models to be updated
+     * @param state state of the world
+     * @param actualState true to show joint angles measured, false to show target angles
+     */
+    public static void updateModels(List<GrxModelItem> models, WorldStateEx state, boolean actualState){
         // update models with new WorldState
-        for (int i=0; i<currentModels_.size(); i++) {
-            GrxModelItem model = currentModels_.get(i);
+        for (int i=0; i<models.size(); i++) {
+            GrxModelItem model = models.get(i);
             CharacterStateEx charStat = state.get(model.getName());
             if (charStat != null) {
                 if (charStat.sensorState != null){
                 	double[] angles;
-                	if (showActualState_) {
+                	if (actualState) {
                 		angles = charStat.sensorState.q;
                 	} else {
                 		angles = charStat.targetState;
@@ -1175,9 +1193,18 @@ public class Grx3DView
         	btnRec_.setSelected(false);	
             return;
         }
+        // AVI の拡張子を変えた場合や PNG 連番では別のファイルを上書きするので改めて確認する
+        String outputPath = recordingMgr_.getOutputPath(format__);
+        if (outputPath != null && !new File(outputPath).equals(new File(fileName)) &&
+                recordingMgr_.outputExists(format__)) {
+            if (!fileOverwriteDialog(outputPath)){
+            	btnRec_.setSelected(false);	
+                return;
+            }
+        }
         
         try {
-            if(!recordingMgr_.startRecord(format__)){
+            if(!recordingMgr_.startRecord(format__, true)){
             	btnRec_.setSelected(false);	
                 return;
             }
@@ -1204,20 +1231,21 @@ public class Grx3DView
         Thread recThread_ = new Thread() {
 			public void run() {
 				try { 
-					double playRateLogTime_ = currentWorld_.getTime(startPosition);					
-					for (int position=startPosition; position <= endPosition; position++) {
+					double playRateLogTime_ = currentWorld_.positionToTime(startPosition);					
+					int position = startPosition;
+					while (position >= 0 && position <= endPosition) {
 						if(!btnRec_.isSelected())break;
-						double time = currentWorld_.getTime(position);
-						if (time >= playRateLogTime_) {
-							 playRateLogTime_ += stepTime;
-							final int _position = position;
-							syncExec(new Runnable(){
-								public void run() {
-									currentWorld_.setPosition(_position);
-								}
-							});	
-							_doRecording();
-						}
+						playRateLogTime_ += stepTime;
+						final int _position = position;
+						syncExec(new Runnable(){
+							public void run() {
+								currentWorld_.setPosition(_position);
+							}
+						});	
+						if (!_doRecording())
+							throw new IOException("movie encoder stopped"); //$NON-NLS-1$
+						// 次のフレームの時刻以降の最初の位置を二分探索で求める
+						position = Math.max(position + 1, currentWorld_.getPositionRange(playRateLogTime_, playRateLogTime_)[0]);
 					}
 					stopRecording();
 				} catch (Exception e) {
@@ -1284,10 +1312,17 @@ public class Grx3DView
         return "file://" + path; //$NON-NLS-1$
     }
         
-    private void _doRecording() {
+    /**
+     * @brief render a frame and pass it to the encoder
+     *
+     * The image of the offscreen buffer is copied into a buffer of the
+     * encoder, so it can be rendered again right after this returns.
+     * @return false if the encoder has stopped
+     */
+    private boolean _doRecording() {
     	offscreen_.renderOffScreenBuffer();
 		offscreen_.waitForOffScreenRendering();
-		recordingMgr_.pushImage( offscreen_.getOffScreenBuffer().getImage() );
+		return recordingMgr_.pushImage( offscreen_.getOffScreenBuffer().getImage() );
     }
     
     public void _showCollision(Collision[] collisions) {
@@ -1416,13 +1451,19 @@ public class Grx3DView
     }
 
     public void updateViewSimulator(double time) {
+        // request all due cameras first so that they are rendered in one pass
+        renderingCameras_.clear();
         for (int i=0; i<currentModels_.size(); i++) {
             List<Camera_impl> l = currentModels_.get(i).getCameraSequence();
             for (int j=0; j<l.size(); j++) {
                 Camera_impl c = l.get(j);
-                if (c.isVisible()) c.updateView(time);
+                if (c.isVisible() && c.startUpdateView(time))
+                    renderingCameras_.add(c);
             }
         }
+        for (int i=0; i<renderingCameras_.size(); i++)
+            renderingCameras_.get(i).finishUpdateView();
+        renderingCameras_.clear();
     }
     
     public BranchGroup getRuler() {
@@ -23,6 +23,7 @@ import jp.go.aist.hrp.simulator.DynamicsSimulator;
 import org.eclipse.jface.action.IAction;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
 import com.generalrobotix.ui.GrxBaseItem;
 import com.generalrobotix.ui.GrxBasePlugin;
 import com.generalrobotix.ui.GrxBaseView;
@@ -32,19 +33,35 @@ import com.generalrobotix.ui.GrxPluginManager;
 import com.generalrobotix.ui.item.GrxSimulationItem;
 import com.generalrobotix.ui.item.GrxWorldStateItem;
 import com.generalrobotix.ui.view.simulation.SimulationParameterPanel;
+import com.generalrobotix.ui.view.simulation.SimulationProfilerPanel;
 
 @SuppressWarnings("serial") //$NON-NLS-1$
 public class GrxOpenHRPView extends GrxBaseView {
     public static final String TITLE = "OpenHRP"; //$NON-NLS-1$
+    private static final int PROFILER_INTERVAL = 500; //[ms]
     private GrxWorldStateItem currentWorld_;
     private GrxSimulationItem simItem_=null;
     private SimulationParameterPanel simParamPane_;
+    private SimulationProfilerPanel profilerPane_;
+    private volatile boolean profiling_ = false;
+    private Runnable profilerUpdater_ = new Runnable(){
+        public void run(){
+            if(profilerPane_.isDisposed())
+                return;
+            profilerPane_.refresh();
+            if(simItem_ != null)
+                profilerPane_.setRealTime(simItem_.getRealTimeFactor(), simItem_.getOverrunCount());
+            if(profiling_)
+                Display.getCurrent().timerExec(PROFILER_INTERVAL, this);
+        }
+    };
 
     public GrxOpenHRPView(String name, GrxPluginManager manager, GrxBaseViewPart vp, Composite parent) {
         super(name, manager,vp,parent);
         
         simParamPane_ = new SimulationParameterPanel(composite_, SWT.NONE);
         simParamPane_.setEnabled(true);//false
+        profilerPane_ = new SimulationProfilerPanel(composite_, SWT.NONE);
         
         setScrollMinSize(SWT.DEFAULT,SWT.DEFAULT);
  
@@ -64,6 +81,7 @@ public class GrxOpenHRPView extends GrxBaseView {
         	simItem_.deleteObserver(this);
         simItem_ = manager_.<GrxSimulationItem>getSelectedItem(GrxSimulationItem.class, null);
 		simParamPane_.updateItem(simItem_);
+		profilerPane_.setProfiler(simItem_ != null ? simItem_.getProfiler() : null);
 		if(simItem_!=null){
 			simItem_.addObserver(this);
 		}
@@ -97,6 +115,7 @@ public class GrxOpenHRPView extends GrxBaseView {
     		case GrxPluginManager.SELECTED_ITEM:
     			if(simItem_!=simItem){
     				simParamPane_.updateItem(simItem);
+    				profilerPane_.setProfiler(simItem.getProfiler());
     				simItem_ = simItem;
     				simItem_.addObserver(this);
     			}
@@ -105,6 +124,7 @@ public class GrxOpenHRPView extends GrxBaseView {
 	    	case GrxPluginManager.NOTSELECTED_ITEM:
 	    		if(simItem_==simItem){
 	    			simParamPane_.updateItem(null);
+	    			profilerPane_.setProfiler(null);
 	    			simItem_.deleteObserver(this);
 	    			simItem_ = null;
 	    		}
@@ -117,10 +137,15 @@ public class GrxOpenHRPView extends GrxBaseView {
     
     public void update(GrxBasePlugin plugin, Object... arg) {
         if(simItem_==plugin){
-	    	if((String)arg[0]=="StartSimulation")
+	    	if((String)arg[0]=="StartSimulation"){
                 simParamPane_.setEnabled(false);
-	        else if((String)arg[0]=="StopSimulation")
+                profiling_ = true;
+                Display.getDefault().asyncExec(profilerUpdater_);
+	        }else if((String)arg[0]=="StopSimulation"){
                 simParamPane_.setEnabled(true);
+                profiling_ = false;
+                Display.getDefault().asyncExec(profilerUpdater_);
+	        }
             else if((String)arg[0]=="PropertyChange") //$NON-NLS-1$
                 simParamPane_.updateItem(simItem_); 
         }else if(currentWorld_==plugin){
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * AsyncLogWriter.java
+ *
+ */
+
+package com.generalrobotix.ui.view.graph;
+
+import java.util.concurrent.locks.LockSupport;
+
+import jp.go.aist.hrp.simulator.Collision;
+
+/**
+ * ログ書き込みスレッド
+ *
+ * シミュレーションスレッド(1つ)がclaim()で取得したレコードに値を詰めてpublish()し、
+ * 書き込みスレッド(1つ)がそれをLogManagerへ書き出す。
+ * レコードは固定長のリングバッファに予め確保しておき、使い回す。
+ * リングバッファが一杯の場合、claim()は空きができるまで待つ(ストール)。
+ *
+ * 待つ側はタイムアウトなしでパークする。待つ側が待ち状態を表すフラグを書いてから
+ * head_/tail_を確認し、起こす側はhead_/tail_を書いてからフラグを確認するので、
+ * どちらかが必ず相手の更新を見て、起こし損ねることはない。
+ */
+public class AsyncLogWriter {
+    /**
+     * 1ステップ分のログレコード
+     */
+    public static class Record {
+        public double time;
+        public Collision[] collisions;
+        public final float[][] data;
+
+        Record(int[] dataLength) {
+            data = new float[dataLength.length][];
+            for (int i = 0; i < dataLength.length; i++)
+                data[i] = new float[dataLength[i]];
+        }
+    }
+
+    private final LogManager logger_;
+    private final String[] objectNames_;
+    private final Record[] ring_;
+    private final Time time_ = new Time();
+
+    private volatile long head_ = 0;   // 次にpublishするレコード番号
+    private volatile long tail_ = 0;   // 次に書き出すレコード番号
+    private volatile boolean running_ = true;
+    private volatile boolean exited_ = false;      // 書き込みスレッドが終了した
+    private volatile boolean writerParked_ = false; // 書き込みスレッドがパーク中
+    private volatile Thread producer_ = null;      // claim()でパーク中のスレッド
+    private volatile int waiters_ = 0;             // waitWritten()で待っているスレッド数
+    private final Object waitLock_ = new Object();
+    private final Thread thread_;
+
+    // 統計情報
+    private volatile int maxDepth_ = 0;
+    private volatile long stalls_ = 0;
+    private volatile long stallNanos_ = 0;
+    private volatile long errors_ = 0;
+
+    /**
+     * @param logger      書き込み先
+     * @param objectNames オブジェクト名(Record.dataの並び順)
+     * @param dataLength  オブジェクト毎のレコード長(float数)
+     * @param capacity    リングバッファのレコード数
+     */
+    public AsyncLogWriter(LogManager logger, String[] objectNames, int[] dataLength, int capacity) {
+        logger_ = logger;
+        objectNames_ = objectNames;
+        ring_ = new Record[Math.max(2, capacity)];
+        for (int i = 0; i < ring_.length; i++)
+            ring_[i] = new Record(dataLength);
+        thread_ = new Thread("LogWriter") { //$NON-NLS-1$
+            public void run() {
+                _run();
+            }
+        };
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * 次に書き込むレコードを取得する(シミュレーションスレッドから呼ぶ)
+     * 空きがない場合は書き込みスレッドが追いつくまで待つ
+     */
+    public Record claim() {
+        long head = head_;
+        if (head - tail_ >= ring_.length) {
+            stalls_++;
+            long s = System.nanoTime();
+            producer_ = Thread.currentThread();
+            while (head - tail_ >= ring_.length && !exited_)
+                LockSupport.park(this);
+            producer_ = null;
+            stallNanos_ += System.nanoTime() - s;
+        }
+        return ring_[(int)(head % ring_.length)];
+    }
+
+    /**
+     * claim()で取得したレコードを書き込み待ちにする
+     */
+    public void publish() {
+        long head = head_ + 1;
+        head_ = head;
+        int depth = (int)(head - tail_);
+        if (depth > maxDepth_)
+            maxDepth_ = depth;
+        if (writerParked_)
+            LockSupport.unpark(thread_);
+    }
+
+    /**
+     * publish()済みのレコードが全て書き出されるまで待つ
+     */
+    public void flush() {
+        waitWritten(head_);
+    }
+
+    /**
+     * records個のレコードが書き出されるまで待つ
+     * publish()されていない分は待たない
+     */
+    public void waitWritten(long records) {
+        if (tail_ >= Math.min(records, head_))
+            return;
+        boolean interrupted = false;
+        synchronized (waitLock_) {
+            waiters_++;
+            try {
+                while (tail_ < Math.min(records, head_) && !exited_) {
+                    try {
+                        waitLock_.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                waiters_--;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * 残りを書き出して書き込みスレッドを終了する
+     */
+    public void close() {
+        flush();
+        running_ = false;
+        LockSupport.unpark(thread_);
+        try {
+            thread_.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** 書き込み待ちのレコード数 */
+    public int getQueueDepth() {
+        return (int)(head_ - tail_);
+    }
+
+    /** 書き込み待ちのレコード数の最大値 */
+    public int getMaxQueueDepth() {
+        return maxDepth_;
+    }
+
+    /** リングバッファのレコード数 */
+    public int getCapacity() {
+        return ring_.length;
+    }
+
+    /** 書き出し済みのレコード数 */
+    public long getWrittenRecords() {
+        return tail_;
+    }
+
+    /** claim()が待たされた回数 */
+    public long getStallCount() {
+        return stalls_;
+    }
+
+    /** claim()が待たされた時間の合計(nsec) */
+    public long getStallNanos() {
+        return stallNanos_;
+    }
+
+    /** 書き出しに失敗したレコード数 */
+    public long getErrorCount() {
+        return errors_;
+    }
+
+    public String toString() {
+        return "AsyncLogWriter written=" + tail_ + " maxDepth=" + maxDepth_ + "/" + ring_.length //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + " stalls=" + stalls_ + " stallTime=" + (stallNanos_ / 1000000.0) + "ms" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + " errors=" + errors_; //$NON-NLS-1$
+    }
+
+    private void _run() {
+        try {
+            while (true) {
+                long tail = tail_;
+                if (tail == head_) {
+                    if (!running_)
+                        break;
+                    writerParked_ = true;
+                    if (tail == head_ && running_)
+                        LockSupport.park(this);
+                    writerParked_ = false;
+                    continue;
+                }
+                _write(ring_[(int)(tail % ring_.length)]);
+                tail_ = tail + 1;
+                _wakeWaiters();
+            }
+        } finally {
+            // 異常終了した場合も待っているスレッドを起こす(exited_を見て抜ける)
+            exited_ = true;
+            _wakeWaiters();
+        }
+    }
+
+    private void _wakeWaiters() {
+        Thread p = producer_;
+        if (p != null)
+            LockSupport.unpark(p);
+        if (waiters_ > 0) {
+            synchronized (waitLock_) {
+                waitLock_.notifyAll();
+            }
+        }
+    }
+
+    private void _write(Record rec) {
+        time_.set((float)rec.time);
+        logger_.setTime(time_);
+        try {
+            Collision[] cols = rec.collisions;
+            rec.collisions = null;
+            if (cols != null && cols.length > 0)
+                logger_.putCollisionPointData(cols);
+        } catch (Exception e) {
+            errors_++;
+            e.printStackTrace();
+        }
+        for (int i = 0; i < objectNames_.length; i++) {
+            try {
+                logger_.put(objectNames_[i], rec.data[i]);
+            } catch (Exception e) {
+                errors_++;
+                e.printStackTrace();
+            }
+        }
+    }
+}
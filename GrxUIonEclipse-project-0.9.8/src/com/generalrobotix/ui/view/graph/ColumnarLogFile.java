@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * ColumnarLogFile.java
+ *
+ */
+
+package com.generalrobotix.ui.view.graph;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 列指向(ブロック転置)形式のログファイル読み出しクラス
+ *
+ * ファイルはヘッダの後にblockRecordsレコードずつのブロックが並び、
+ * 各ブロック内ではデータ系列毎にレコード数分のfloatが連続して格納される。
+ * ブロックの先頭位置はファイル末尾のブロックインデックス(long配列,
+ * 最後の要素はデータ部の終端)に記録されている。
+ * 1つのデータ系列の読み出しはブロック毎に1回の読み込みで済む。
+ *
+ * 圧縮形式(version 3.3)では各ブロックの先頭にデータ系列毎のチャンク終端位置
+ * (ブロック先頭からの相対位置, int配列)を置き、その後にデータ系列毎に
+ * 圧縮したチャンクを並べる。チャンクは前のレコードとのビット列のXORを
+ * バイト位置毎に並べ替えた後、Deflateで圧縮したものである。
+ * 1つのデータ系列の読み出しではそのデータ系列のチャンクだけを展開する。
+ *
+ * ログファイルがzipに無圧縮で格納されている場合は、zipファイル上の
+ * エントリの先頭位置(base)を指定して展開せずに読み出すことができる。
+ */
+class ColumnarLogFile {
+    private static final int FLOAT_DATA_SIZE = 4;
+
+    private final RandomAccessFile file_;
+    private final FileChannel channel_;
+    private final int itemsPerRecord_;
+    private final long numRecords_;
+    private final int blockRecords_;
+    private final long[] blockIndex_;
+    private final boolean compressed_;
+    private final long base_;   // ファイル上のログの先頭位置
+
+    // get()用の最後に読んだブロック
+    private int cachedBlock_ = -1;
+    private float[] cachedData_ = null;
+
+    // 圧縮形式用
+    private int[][] chunkTable_ = null;   // ブロック毎のチャンク終端位置(読み出したもののみ)
+    private Inflater inflater_ = null;
+    private byte[] packed_ = new byte[0];
+    private byte[] planes_ = new byte[0];
+    private float[] series_ = null;
+    private int seriesBlock_ = -1;       // series_に展開済みのブロックとデータ系列
+    private int seriesItem_ = -1;
+
+    ColumnarLogFile(String path, int recordSize, long numRecords, int blockRecords, long blockIndexOffset) throws IOException {
+        this(path, recordSize, numRecords, blockRecords, blockIndexOffset, false);
+    }
+
+    ColumnarLogFile(String path, int recordSize, long numRecords, int blockRecords, long blockIndexOffset, boolean compressed) throws IOException {
+        this(path, 0, recordSize, numRecords, blockRecords, blockIndexOffset, compressed);
+    }
+
+    ColumnarLogFile(String path, long base, int recordSize, long numRecords, int blockRecords, long blockIndexOffset, boolean compressed) throws IOException {
+        base_ = base;
+        file_ = new RandomAccessFile(path, "r");
+        channel_ = file_.getChannel();
+        itemsPerRecord_ = recordSize / FLOAT_DATA_SIZE;
+        numRecords_ = numRecords;
+        blockRecords_ = blockRecords;
+        compressed_ = compressed;
+
+        int numBlocks = getNumBlocks(numRecords, blockRecords);
+        blockIndex_ = new long[numBlocks + 1];
+        ByteBuffer buf = ByteBuffer.allocate(blockIndex_.length * 8);
+        _read(buf, blockIndexOffset);
+        for (int i = 0; i < blockIndex_.length; i++)
+            blockIndex_[i] = buf.getLong(i * 8);
+        if (compressed_) {
+            chunkTable_ = new int[numBlocks][];
+            inflater_ = new Inflater(true);
+            series_ = new float[blockRecords_];
+        }
+    }
+
+    static int getNumBlocks(long numRecords, int blockRecords) {
+        return (int)((numRecords + blockRecords - 1) / blockRecords);
+    }
+
+    long getNumRecords() {
+        return numRecords_;
+    }
+
+    /**
+     * item番目のデータ系列のoriginからcount個をdataに読み出す
+     * 範囲外のレコードは読み出さない
+     *
+     * @return 読み出した先頭レコードのdata上の位置と個数 {pos, len}
+     */
+    int[] getSeries(int item, long origin, int count, float[] data) throws IOException {
+        long start = Math.max(origin, 0);
+        long end = Math.min(origin + count, numRecords_);
+        if (start >= end)
+            return new int[]{0, 0};
+        if (compressed_) {
+            _getCompressedSeries(item, start, end, data, (int)(start - origin));
+            return new int[]{(int)(start - origin), (int)(end - start)};
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int)Math.min(end - start, blockRecords_) * FLOAT_DATA_SIZE);
+        FloatBuffer fbuf = buf.asFloatBuffer();
+        int pos = (int)(start - origin);
+        long rec = start;
+        while (rec < end) {
+            int block = (int)(rec / blockRecords_);
+            int rows = _getBlockRows(block);
+            int row = (int)(rec - (long)block * blockRecords_);
+            int len = (int)Math.min(rows - row, end - rec);
+            buf.clear();
+            buf.limit(len * FLOAT_DATA_SIZE);
+            _read(buf, blockIndex_[block] + ((long)item * rows + row) * FLOAT_DATA_SIZE);
+            fbuf.position(0);
+            fbuf.get(data, pos, len);
+            pos += len;
+            rec += len;
+        }
+        return new int[]{(int)(start - origin), (int)(end - start)};
+    }
+
+    /**
+     * レコードrecNoをdataにコピーする
+     */
+    synchronized void get(long recNo, float[] data) throws IOException {
+        int block = (int)(recNo / blockRecords_);
+        int rows = _getBlockRows(block);
+        if (block != cachedBlock_) {
+            if (cachedData_ == null || cachedData_.length < rows * itemsPerRecord_)
+                cachedData_ = new float[blockRecords_ * itemsPerRecord_];
+            cachedBlock_ = -1;
+            if (compressed_) {
+                _readBlock(block, cachedData_, rows);
+            } else {
+                ByteBuffer buf = ByteBuffer.allocate(rows * itemsPerRecord_ * FLOAT_DATA_SIZE);
+                _read(buf, blockIndex_[block]);
+                buf.asFloatBuffer().get(cachedData_, 0, rows * itemsPerRecord_);
+            }
+            cachedBlock_ = block;
+        }
+        int row = (int)(recNo - (long)block * blockRecords_);
+        int len = Math.min(data.length, itemsPerRecord_);
+        for (int i = 0; i < len; i++)
+            data[i] = cachedData_[i * rows + row];
+    }
+
+    void close() throws IOException {
+        file_.close();
+    }
+
+    /**
+     * 圧縮形式のitem番目のデータ系列のstartからendの手前までをdataのpos以降に読み出す
+     */
+    private synchronized void _getCompressedSeries(int item, long start, long end, float[] data, int pos) throws IOException {
+        long rec = start;
+        while (rec < end) {
+            int block = (int)(rec / blockRecords_);
+            int rows = _getBlockRows(block);
+            int row = (int)(rec - (long)block * blockRecords_);
+            int len = (int)Math.min(rows - row, end - rec);
+            if (block == cachedBlock_) {
+                // get()で展開済みのブロック
+                System.arraycopy(cachedData_, item * rows + row, data, pos, len);
+                pos += len;
+                rec += len;
+                continue;
+            }
+            if (block != seriesBlock_ || item != seriesItem_) {
+                // 間引き表示では同じチャンクから1レコードずつ読み出すので、展開したチャンクを使い回す
+                int[] table = _getChunkTable(block);
+                int chunkStart = (item == 0) ? itemsPerRecord_ * 4 : table[item - 1];
+                int chunkLen = table[item] - chunkStart;
+                if (packed_.length < chunkLen)
+                    packed_ = new byte[chunkLen];
+                ByteBuffer buf = ByteBuffer.wrap(packed_, 0, chunkLen);
+                _read(buf, blockIndex_[block] + chunkStart);
+                seriesBlock_ = -1;
+                _decodeChunk(packed_, 0, chunkLen, rows, series_, 0);
+                seriesBlock_ = block;
+                seriesItem_ = item;
+            }
+            System.arraycopy(series_, row, data, pos, len);
+            pos += len;
+            rec += len;
+        }
+    }
+
+    /**
+     * 圧縮形式のブロックを展開してdataにデータ系列毎に格納する
+     */
+    private void _readBlock(int block, float[] data, int rows) throws IOException {
+        int size = (int)(blockIndex_[block + 1] - blockIndex_[block]);
+        if (packed_.length < size)
+            packed_ = new byte[size];
+        _read(ByteBuffer.wrap(packed_, 0, size), blockIndex_[block]);
+        int[] table = new int[itemsPerRecord_];
+        for (int i = 0; i < itemsPerRecord_; i++)
+            table[i] = _getInt(packed_, i * 4);
+        chunkTable_[block] = table;
+        int chunkStart = itemsPerRecord_ * 4;
+        for (int i = 0; i < itemsPerRecord_; i++) {
+            _decodeChunk(packed_, chunkStart, table[i] - chunkStart, rows, data, i * rows);
+            chunkStart = table[i];
+        }
+    }
+
+    private int[] _getChunkTable(int block) throws IOException {
+        int[] table = chunkTable_[block];
+        if (table == null) {
+            ByteBuffer buf = ByteBuffer.allocate(itemsPerRecord_ * 4);
+            _read(buf, blockIndex_[block]);
+            table = new int[itemsPerRecord_];
+            for (int i = 0; i < itemsPerRecord_; i++)
+                table[i] = buf.getInt(i * 4);
+            chunkTable_[block] = table;
+        }
+        return table;
+    }
+
+    /**
+     * チャンクを展開してrows個のfloatをoutのpos以降に格納する
+     */
+    private void _decodeChunk(byte[] packed, int offset, int length, int rows, float[] out, int pos) throws IOException {
+        int size = rows * FLOAT_DATA_SIZE;
+        if (planes_.length < size)
+            planes_ = new byte[size];
+        inflater_.reset();
+        inflater_.setInput(packed, offset, length);
+        try {
+            int n = 0;
+            while (n < size) {
+                int r = inflater_.inflate(planes_, n, size - n);
+                if (r == 0 && (inflater_.finished() || inflater_.needsInput()))
+                    break;
+                n += r;
+            }
+            if (n < size)
+                throw new EOFException();
+        } catch (DataFormatException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        int prev = 0;
+        for (int r = 0; r < rows; r++) {
+            int x = ((planes_[r] & 0xff) << 24) | ((planes_[rows + r] & 0xff) << 16)
+                | ((planes_[2 * rows + r] & 0xff) << 8) | (planes_[3 * rows + r] & 0xff);
+            prev ^= x;
+            out[pos + r] = Float.intBitsToFloat(prev);
+        }
+    }
+
+    private static int _getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+            | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    private static void _putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte)(v >>> 24);
+        b[offset + 1] = (byte)(v >>> 16);
+        b[offset + 2] = (byte)(v >>> 8);
+        b[offset + 3] = (byte)v;
+    }
+
+    private int _getBlockRows(int block) {
+        return (int)Math.min(blockRecords_, numRecords_ - (long)block * blockRecords_);
+    }
+
+    private void _read(ByteBuffer buf, long position) throws IOException {
+        position += base_;
+        while (buf.hasRemaining()) {
+            int n = channel_.read(buf, position);
+            if (n < 0)
+                throw new EOFException();
+            position += n;
+        }
+        buf.flip();
+    }
+
+    /**
+     * 行形式のレコード列を列指向形式に変換して書き出す
+     *
+     * @param in           行形式のレコード列(ヘッダの後ろ)
+     * @param recordSize   1レコード当りのbyte数
+     * @param numRecords   レコード数
+     * @param blockRecords 1ブロック当りのレコード数
+     * @param dataOffset   出力ファイル上のデータ部の開始位置(ヘッダサイズ)
+     * @param out          出力先(ヘッダ出力済みのもの)
+     */
+    static void transpose(DataInputStream in, int recordSize, long numRecords, int blockRecords, long dataOffset, DataOutputStream out) throws IOException {
+        transpose(in, recordSize, numRecords, blockRecords, dataOffset, out, false);
+    }
+
+    /**
+     * 行形式のレコード列を列指向形式に変換して書き出す
+     *
+     * @param compress     trueの場合はブロックをデータ系列毎に圧縮する
+     */
+    static void transpose(DataInputStream in, int recordSize, long numRecords, int blockRecords, long dataOffset, DataOutputStream out, boolean compress) throws IOException {
+        int items = recordSize / FLOAT_DATA_SIZE;
+        int numBlocks = getNumBlocks(numRecords, blockRecords);
+        long[] blockIndex = new long[numBlocks + 1];
+        byte[] row = new byte[recordSize];
+        byte[] block = new byte[blockRecords * recordSize];
+        long offset = dataOffset;
+        Deflater deflater = compress ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        ByteArrayOutputStream packed = compress ? new ByteArrayOutputStream(block.length) : null;
+        for (int b = 0; b < numBlocks; b++) {
+            int rows = (int)Math.min(blockRecords, numRecords - (long)b * blockRecords);
+            for (int r = 0; r < rows; r++) {
+                in.readFully(row);
+                for (int i = 0; i < items; i++)
+                    System.arraycopy(row, i * FLOAT_DATA_SIZE, block, (i * rows + r) * FLOAT_DATA_SIZE, FLOAT_DATA_SIZE);
+            }
+            blockIndex[b] = offset;
+            if (compress) {
+                offset += _writeCompressedBlock(block, rows, items, deflater, packed, out);
+            } else {
+                out.write(block, 0, rows * recordSize);
+                offset += (long)rows * recordSize;
+            }
+        }
+        if (deflater != null)
+            deflater.end();
+        blockIndex[numBlocks] = offset;
+        for (int b = 0; b < blockIndex.length; b++)
+            out.writeLong(blockIndex[b]);
+        out.flush();
+    }
+
+    /**
+     * データ系列毎に並んだブロックを圧縮して書き出す
+     *
+     * @return 書き出したbyte数
+     */
+    private static int _writeCompressedBlock(byte[] block, int rows, int items, Deflater deflater,
+            ByteArrayOutputStream packed, DataOutputStream out) throws IOException {
+        int size = rows * FLOAT_DATA_SIZE;
+        byte[] planes = new byte[size];
+        byte[] buf = new byte[4096];
+        byte[] table = new byte[items * 4];
+        packed.reset();
+        for (int i = 0; i < items; i++) {
+            // 前のレコードとのXORをバイト位置毎に並べる
+            int base = i * size;
+            int prev = 0;
+            for (int r = 0; r < rows; r++) {
+                int bits = _getInt(block, base + r * FLOAT_DATA_SIZE);
+                int x = bits ^ prev;
+                prev = bits;
+                planes[r] = (byte)(x >>> 24);
+                planes[rows + r] = (byte)(x >>> 16);
+                planes[2 * rows + r] = (byte)(x >>> 8);
+                planes[3 * rows + r] = (byte)x;
+            }
+            deflater.reset();
+            deflater.setInput(planes, 0, size);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                packed.write(buf, 0, n);
+            }
+            _putInt(table, i * 4, table.length + packed.size());
+        }
+        out.write(table);
+        packed.writeTo(out);
+        return table.length + packed.size();
+    }
+}
@@ -20,7 +20,15 @@ package com.generalrobotix.ui.view.graph;
 import java.util.*;
 import java.io.*;
 import java.util.zip.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+import jp.go.aist.hrp.simulator.Collision;
 import jp.go.aist.hrp.simulator.CollisionPoint;
 
 /**
@@ -34,6 +42,14 @@ import jp.go.aist.hrp.simulator.CollisionPoint;
  * @history 3.1 ( 2009/05/11 )
  *    プロパティuseDiskがfalseの時はなるべくメモリー上にデータを保持するように変更。
  *    version 3.1 より前のログファイルには対応しない。
+ * @history 3.2
+ *    ＳＡＶＥ時に各オブジェクトのログを列指向(ブロック転置)形式で保存するように変更。
+ *    version 3.1 の行形式のログファイルも読み込める。
+ * @history 3.3
+ *    列指向形式のブロックをデータ系列毎に圧縮して保存できるようにした。
+ *    圧縮したログはzipには無圧縮(STORED)で格納する。
+ *    ＳＡＶＥ/ＬＯＡＤ時の変換・展開を並列に行い、進捗を表示できるようにした。
+ *    無圧縮で格納されたログは展開せずにzipから直接読み出せる。
  */
 public class LogManager {
     //--------------------------------------------------------------------
@@ -43,12 +59,30 @@ public class LogManager {
     private static final String POSTFIX = ".tmp";
     private static final int COLLISION_DATA_SIZE = 6 * 4 + 1 * 8;
     private static final String NONAME_OBJECT = "_noname";
+    private static final int COLUMNAR_BLOCK_RECORDS = 512; // 列指向形式の1ブロック当りのレコード数
+    private static final int COMPRESSED_BLOCK_RECORDS = 2048; // 圧縮形式の1ブロック当りのレコード数
+    private static final String COMPRESSED_POSTFIX = ".cmp";
+    private static final String COLUMNAR_POSTFIX = ".col";
+    private static final int PYRAMID_BASE_RECORDS = 16;    // 最小値・最大値ピラミッドの最小バケットのレコード数
+    private static final int SERIES_READ_BUFFER_SIZE = 1024 * 1024; // データ系列読み出し時のバッファサイズ(byte)
+    private static final int IO_BUFFER_SIZE = 1024 * 1024;  // ＳＡＶＥ/ＬＯＡＤ時のバッファサイズ(byte)
+    private static final int PROGRESS_UNIT = 64 * 1024;     // 進捗表示の1単位のbyte数
+    private static final long PROGRESS_POLL_MSEC = 100;     // 進捗表示の更新間隔
+    private static final int ZIP_LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP_CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int ZIP_CENTRAL_HEADER_SIZE = 46;
+    private static final int ZIP_EOCD_SIG = 0x06054b50;
+    private static final int ZIP_EOCD_SIZE = 22;
 
     //--------------------------------------------------------------------
     // インスタンス変数
     private Hashtable<String, LogHeader> header_;
     private Hashtable<String, DataOutputStream> writeFile_;
     private Hashtable<String, RandomAccessFile> readFile_;
+    private Hashtable<String, MappedLogFile> mappedFile_;
+    private Hashtable<String, ColumnarLogFile> columnarFile_;
+    private Hashtable<String, MinMaxPyramid> pyramid_ = new Hashtable<String, MinMaxPyramid>();
     private Map<String, Map<String, Integer> > indexMapMap_;
     private CollisionLogHeader collisionLog_;
     private Time time_;
@@ -60,6 +94,9 @@ public class LogManager {
     private String collisionLogDatPath_ = new String(COLLISION_LOG_DAT_NAME);
 
 	private String tmpdir;
+    private boolean mappedRead_ = false;
+    private boolean compress_ = false;
+    private boolean directRead_ = false;
 
     //--------------------------------------------------------------------
     // 公開メソッド
@@ -92,6 +129,7 @@ public class LogManager {
      * 初期化
      */
     public void init() {
+        pyramid_.clear();
         header_ = new Hashtable<String, LogHeader>();
         indexMapMap_ = new HashMap<String, Map<String, Integer>>();
         time_ = new Time();
@@ -186,6 +224,7 @@ public class LogManager {
      * ログファイルは複数あるので、ストリームをハッシュテーブル(file_)に 保存
      */
     public void openAsWrite(SimulationTime time, String method) throws IOException {
+        pyramid_.clear();
         writeFile_ = new Hashtable<String, DataOutputStream>();
         for (Enumeration elements = header_.elements(); elements.hasMoreElements();) {
             try {
@@ -196,6 +235,7 @@ public class LogManager {
                 header.endTime_ = 0;
                 header.method_ = str2IntIntegrationMethod(method);
                 header.numRecords_ = 0;
+                header.setRowFormat();
                 // ヘッダの書込み
                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getTempFilePath(header.objectName_))));
 
@@ -233,9 +273,12 @@ public class LogManager {
     }
 
     public void openAsRead() throws IOException, FileOpenFailException {
+        pyramid_.clear();
         readFile_ = new Hashtable<String, RandomAccessFile>();
         for (Enumeration elements = header_.elements(); elements.hasMoreElements();) {
             LogHeader header = (LogHeader) elements.nextElement();
+            if (header.isDirect())
+                continue;
             RandomAccessFile file = null;
             try{
                 file = new RandomAccessFile(getTempFilePath(header.objectName_), "r");
@@ -244,9 +287,100 @@ public class LogManager {
             }
             readFile_.put(header.objectName_, file);
         }
+        columnarFile_ = new Hashtable<String, ColumnarLogFile>();
+        for (Enumeration elements = header_.elements(); elements.hasMoreElements();) {
+            LogHeader header = (LogHeader) elements.nextElement();
+            if (header.isColumnar()) {
+                try {
+                    columnarFile_.put(header.objectName_, _newColumnarLogFile(header, getTempFilePath(header.objectName_)));
+                } catch (IOException ex) {
+                    throw new FileOpenFailException(ex.getMessage());
+                }
+            }
+        }
+        if (mappedRead_) {
+            mappedFile_ = new Hashtable<String, MappedLogFile>();
+            for (Enumeration elements = header_.elements(); elements.hasMoreElements();) {
+                LogHeader header = (LogHeader) elements.nextElement();
+                if (header.isColumnar())
+                    continue;
+                mappedFile_.put(header.objectName_,
+                        new MappedLogFile(getTempFilePath(header.objectName_), header.headerSize_, header.recordSize_));
+            }
+        }
+    }
+
+    /**
+     * メモリマップによる読み出しを行うかどうかを設定する
+     * 
+     * trueの場合、openAsRead()で各オブジェクトのログファイルをマップし、
+     * get(), getData() はロックなしで読み出す。
+     * openAsRead()の前に設定すること。
+     */
+    public void setMappedRead(boolean b) {
+        mappedRead_ = b;
+    }
+
+    public boolean isMappedRead() {
+        return mappedRead_;
+    }
+
+    /**
+     * ＳＡＶＥ時にログを圧縮するかどうかを設定する
+     * 
+     * trueの場合、各オブジェクトのログは列指向形式のブロックをデータ系列毎に
+     * 圧縮して保存し、zipには無圧縮で格納する。
+     * この形式のログは従来のバージョンでは読み込めないので、初期値はfalseとする。
+     * falseの場合も列指向形式への変換は並列に行うが、zipのDeflaterによる圧縮は
+     * 逐次に行われるため、trueの場合ほどＳＡＶＥは速くならない。
+     */
+    public void setCompress(boolean b) {
+        compress_ = b;
+    }
+
+    public boolean isCompress() {
+        return compress_;
+    }
+
+    /**
+     * ＬＯＡＤ時に無圧縮で格納されたログを展開せずにzipから直接読み出すかどうかを設定する
+     * 
+     * 直接読み出しているログは、読み出し元のzipファイルに上書きＳＡＶＥする時に展開する。
+     */
+    public void setDirectRead(boolean b) {
+        directRead_ = b;
+    }
+
+    public boolean isDirectRead() {
+        return directRead_;
+    }
+
+    /**
+     * 列指向形式のログファイルを開く(zipから直接読み出すものはzipファイルを開く)
+     */
+    private ColumnarLogFile _newColumnarLogFile(LogHeader header, String path) throws IOException {
+        if (header.isDirect())
+            return new ColumnarLogFile(header.sourcePath_, header.sourceOffset_, header.recordSize_, header.numRecords_,
+                    header.blockRecords_, header.blockIndexOffset_, header.compressed_);
+        return new ColumnarLogFile(path, header.recordSize_, header.numRecords_, header.blockRecords_,
+                header.blockIndexOffset_, header.compressed_);
     }
 
     public void closeAsRead() throws IOException {
+        if (columnarFile_ != null) {
+            for (Enumeration elements = columnarFile_.elements(); elements.hasMoreElements();) {
+                ColumnarLogFile columnar = (ColumnarLogFile) elements.nextElement();
+                columnar.close();
+            }
+            columnarFile_ = null;
+        }
+        if (mappedFile_ != null) {
+            for (Enumeration elements = mappedFile_.elements(); elements.hasMoreElements();) {
+                MappedLogFile mapped = (MappedLogFile) elements.nextElement();
+                mapped.close();
+            }
+            mappedFile_ = null;
+        }
         if (readFile_ == null)
             return;
         for (Enumeration elements = readFile_.elements(); elements.hasMoreElements();) {
@@ -344,17 +478,41 @@ public class LogManager {
         // System.out.println("putCollisionPointData(): frameNum=" +
         // frameNum+":"+time_.getUtime()+":"+collisionLog_.timeStep_);
 
-        for (int i = 0; i < data.length; i++) {
-            collisionDatOut_.writeFloat((float) data[i].normal[0]);
-            collisionDatOut_.writeFloat((float) data[i].normal[1]);
-            collisionDatOut_.writeFloat((float) data[i].normal[2]);
-            collisionDatOut_.writeFloat((float) data[i].position[0]);
-            collisionDatOut_.writeFloat((float) data[i].position[1]);
-            collisionDatOut_.writeFloat((float) data[i].position[2]);
-            collisionDatOut_.writeDouble(data[i].idepth);
+        for (int i = 0; i < data.length; i++)
+            _putCollisionPoint(data[i]);
+        _endCollisionRecord(data.length);
+    }
+
+    /**
+     * 全衝突の衝突点を1フレーム分として書き込む
+     *     衝突点を1つの配列にまとめずに書き出す
+     */
+    public void putCollisionPointData(Collision[] cols) throws IOException {
+        int n = 0;
+        for (int i = 0; i < cols.length; i++) {
+            CollisionPoint[] points = cols[i].points;
+            if (points == null)
+                continue;
+            for (int j = 0; j < points.length; j++)
+                _putCollisionPoint(points[j]);
+            n += points.length;
         }
+        _endCollisionRecord(n);
+    }
+
+    private void _putCollisionPoint(CollisionPoint p) throws IOException {
+        collisionDatOut_.writeFloat((float) p.normal[0]);
+        collisionDatOut_.writeFloat((float) p.normal[1]);
+        collisionDatOut_.writeFloat((float) p.normal[2]);
+        collisionDatOut_.writeFloat((float) p.position[0]);
+        collisionDatOut_.writeFloat((float) p.position[1]);
+        collisionDatOut_.writeFloat((float) p.position[2]);
+        collisionDatOut_.writeDouble(p.idepth);
+    }
+
+    private void _endCollisionRecord(int numPoints) throws IOException {
         collisionDatOut_.flush();
-        collisionLog_.currentPos_ += data.length * COLLISION_DATA_SIZE;
+        collisionLog_.currentPos_ += numPoints * COLLISION_DATA_SIZE;
         collisionLog_.position_.add(collisionLog_.currentPos_);
         collisionLog_.numRecords_++;
     }
@@ -424,6 +582,34 @@ public class LogManager {
             LogHeader header = (LogHeader) elements.nextElement();
             String srcFilePath = new String( srcDir + File.separator + header.objectName_ + POSTFIX);
             File srcFile = new File(srcFilePath);
+            // zipから直接読み出していたログはzip内のヘッダを読む
+            // (headerはopenAsWrite()で行形式に戻されているが、読み出し元は残っている)
+            LogHeader srcHeader;
+            if (header.sourcePath_ != null) {
+                srcHeader = _readHeader(new File(header.sourcePath_), header.sourceOffset_);
+                srcHeader.sourcePath_ = header.sourcePath_;
+                srcHeader.sourceOffset_ = header.sourceOffset_;
+                srcHeader.sourceLength_ = header.sourceLength_;
+                header.clearSource();
+            } else {
+                srcHeader = _readHeader(srcFile);
+            }
+            if (srcHeader.isColumnar()) {
+                // 列指向形式のログは行形式に戻して書き出す
+                DataOutputStream destOutStream = writeFile_.get(header.objectName_);
+                ColumnarLogFile columnar = _newColumnarLogFile(srcHeader, srcFilePath);
+                float[] record = new float[srcHeader.recordSize_ / LogHeader.FLOAT_DATA_SIZE];
+                try {
+                    for (long rec = changePos; rec < srcHeader.numRecords_; rec++) {
+                        columnar.get(rec, record);
+                        for (int i = 0; i < record.length; i++)
+                            destOutStream.writeFloat(record[i]);
+                    }
+                } finally {
+                    columnar.close();
+                }
+                continue;
+            }
             FileInputStream srcInStream = new FileInputStream(srcFile);
             srcInStream.skip(header.headerSize_ + header.recordSize_ * changePos);
             leftSize = srcFile.length() - header.headerSize_ - header.recordSize_ * changePos;
@@ -475,29 +661,296 @@ public class LogManager {
      */
     public void save(String fileName, String prjFileName) throws IOException {
         try {
-            ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(new File(fileName)));
+            save(fileName, prjFileName, null);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+    }
 
-            // 各ログファイルを追加
-            for (Enumeration elements = header_.elements(); elements.hasMoreElements();) {
-                LogHeader header = (LogHeader) elements.nextElement();
-                _addFileToZipEntry(zip, new File( getTempFilePath(header.objectName_) ) );
+    /**
+     * ＳＡＶＥ処理(進捗表示付き)
+     * 
+     * 各オブジェクトのログの変換(列指向形式への変換、圧縮とCRCの計算)は
+     * ワーカースレッドで並列に行い、変換が終わったものから順に呼び出し側のスレッドで
+     * zipに書き出す。zipへの書き出し自体は逐次。
+     * 圧縮しない場合は列指向形式に変換したログをzipのDeflaterで圧縮するので、
+     * この圧縮は呼び出し側のスレッドで逐次に行われる。
+     * 
+     * @param fileName    ＳＡＶＥファイル名
+     * @param prjFileName プロジェクトファイル名
+     * @param monitor     進捗モニタ(nullも可)。キャンセルされた場合はInterruptedExceptionを投げる
+     */
+    public void save(String fileName, String prjFileName, IProgressMonitor monitor) throws IOException, InterruptedException {
+        if (monitor == null)
+            monitor = new NullProgressMonitor();
+
+        // 保存先のファイルから直接読み出しているログは先に展開しておく
+        _extractDirectEntries(fileName);
+
+        ArrayList<LogHeader> headers = new ArrayList<LogHeader>();
+        for (Enumeration elements = header_.elements(); elements.hasMoreElements();)
+            headers.add((LogHeader) elements.nextElement());
+        File[] others = new File[] {
+            new File(prjFileName), new File(collisionLogPath_), new File(collisionLogDatPath_)
+        };
+
+        // 進捗はbyte数で数える(変換とzipへの書き出しでそれぞれログのサイズ分)
+        long total = 0;
+        for (LogHeader header : headers)
+            total += 2 * _getLogSize(header);
+        for (File file : others)
+            total += file.length();
+        monitor.beginTask("", _toWork(total)); //$NON-NLS-1$
+        AtomicLong progress = new AtomicLong();
+        int[] reported = new int[1];
+
+        ExecutorService pool = _newPool(headers.size());
+        ArrayList<ZipSource> temporaries = new ArrayList<ZipSource>();
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(new File(fileName)), IO_BUFFER_SIZE));
+        try {
+            // 各ログファイルを列指向形式で追加
+            CompletionService<ZipSource> service = new ExecutorCompletionService<ZipSource>(pool);
+            int submitted = 0;
+            for (final LogHeader header : headers) {
+                final AtomicLong p = progress;
+                service.submit(new Callable<ZipSource>() {
+                    public ZipSource call() throws IOException {
+                        return _prepareZipSource(header, p);
+                    }
+                });
+                submitted++;
+            }
+            for (int i = 0; i < submitted; i++) {
+                ZipSource src = _getResult(_take(service, monitor, progress, reported));
+                if (src == null)
+                    continue;
+                if (src.temporary)
+                    temporaries.add(src);
+                _addZipSourceToZipEntry(zip, src, progress);
                 zip.closeEntry();
-                // logFile.delete();
+                if (src.temporary) {
+                    new File(src.path).delete();
+                    temporaries.remove(src);
+                }
+                _reportProgress(monitor, progress, reported);
             }
 
-            // プロジェクトファイルの追加
-            _addFileToZipEntry(zip, new File(prjFileName) );
-
-            // 干渉情報ログを追加
-            _addFileToZipEntry(zip, new File(collisionLogPath_) );
-            _addFileToZipEntry(zip, new File(collisionLogDatPath_) );
+            // プロジェクトファイル、干渉情報ログを追加
+            for (File file : others) {
+                _addFileToZipEntry(zip, file);
+                progress.addAndGet(file.length());
+                _reportProgress(monitor, progress, reported);
+            }
 
             zip.flush();
             zip.closeEntry();
+        } finally {
+            pool.shutdownNow();
             zip.close();
-        } catch (IOException ex) {
-            throw ex;
+            for (ZipSource src : temporaries)
+                new File(src.path).delete();
+            monitor.done();
+        }
+    }
+
+    /**
+     * zipに追加するエントリの読み出し元
+     */
+    private static class ZipSource {
+        String  zipPath;    // zip内のパス
+        String  path;       // 読み出すファイル
+        long    offset;     // ファイル内の開始位置
+        long    length;     // byte数
+        boolean stored;     // 無圧縮(STORED)で格納するかどうか
+        long    crc;        // STOREDの場合のCRC
+        long    work;       // zipへの書き出しの進捗(byte)
+        boolean temporary;  // 書き出し後に削除する一時ファイルかどうか
+    }
+
+    /**
+     * ログファイルをzipに追加できる形にする(ワーカースレッドで実行される)
+     *     行形式のログは列指向形式(圧縮する場合は圧縮形式)の一時ファイルに変換する
+     *     STOREDで格納するものはCRCも計算しておく
+     * 
+     * @return ファイルがない場合はnull
+     */
+    private ZipSource _prepareZipSource(LogHeader header, AtomicLong progress) throws IOException {
+        File file = new File( getTempFilePath(header.objectName_) );
+        long size = _getLogSize(header);
+        ZipSource src = new ZipSource();
+        src.zipPath = _getRelativePath(file.getPath());
+        src.work = size;
+        if (header.isDirect()) {
+            // zipから直接読み出しているログはそのままコピーする
+            src.path = header.sourcePath_;
+            src.offset = header.sourceOffset_;
+            src.length = header.sourceLength_;
+            src.stored = true;
+            src.crc = header.sourceCrc_;
+            progress.addAndGet(size);
+            return src;
+        }
+        if (!file.exists()) {
+            progress.addAndGet(2 * size);
+            return null;
+        }
+        src.path = file.getPath();
+        if (header.compressed_) {
+            src.length = file.length();
+            src.stored = true;
+            src.crc = _getCrc(file, progress);
+        } else if (header.isColumnar()) {
+            src.length = file.length();
+            progress.addAndGet(size);
+        } else if (!compress_) {
+            // zipへの書き出し時にDeflaterで圧縮する
+            File colFile = new File(file.getPath() + COLUMNAR_POSTFIX);
+            src.path = colFile.getPath();
+            src.temporary = true;
+            try {
+                _writeColumnarFile(file, colFile, progress);
+                src.length = colFile.length();
+            } catch (IOException ex) {
+                colFile.delete();
+                throw ex;
+            }
+        } else {
+            File cmpFile = new File(file.getPath() + COMPRESSED_POSTFIX);
+            src.path = cmpFile.getPath();
+            src.temporary = true;
+            try {
+                _writeCompressedFile(file, cmpFile, progress);
+                src.length = cmpFile.length();
+                src.stored = true;
+                src.crc = _getCrc(cmpFile, null);
+            } catch (IOException ex) {
+                cmpFile.delete();
+                throw ex;
+            }
+        }
+        return src;
+    }
+
+    /**
+     * ログファイルを読み込むストリームを開く
+     *     progressがnullでなければ読み込んだbyte数を進捗とする
+     */
+    private static DataInputStream _openLogInput(File file, final AtomicLong progress)
+        throws IOException{
+        InputStream fileIn = new FileInputStream(file);
+        if (progress != null) {
+            fileIn = new FilterInputStream(fileIn) {
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0)
+                        progress.incrementAndGet();
+                    return b;
+                }
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0)
+                        progress.addAndGet(n);
+                    return n;
+                }
+            };
+        }
+        return new DataInputStream(new BufferedInputStream(fileIn, IO_BUFFER_SIZE));
+    }
+
+    /**
+     * 行形式のログファイルを圧縮した列指向形式のファイルに変換する
+     */
+    private void _writeCompressedFile(File file, File cmpFile, AtomicLong progress)
+        throws IOException{
+        DataInputStream in = _openLogInput(file, progress);
+        try {
+            LogHeader header = new LogHeader();
+            try {
+                header.input(in);
+            } catch (LogFileFormatException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            long numRecords = 0;
+            if (header.recordSize_ > 0)
+                numRecords = (file.length() - header.headerSize_) / header.recordSize_;
+            header.numRecords_ = (int)numRecords;
+            header.blockRecords_ = COMPRESSED_BLOCK_RECORDS;
+            header.compressed_ = true;
+
+            // ブロックインデックスの位置は圧縮後でないと決まらないので後から書き込む
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cmpFile), IO_BUFFER_SIZE));
+            try {
+                header.output(out);
+                ColumnarLogFile.transpose(in, header.recordSize_, numRecords, header.blockRecords_, header.headerSize_, out, true);
+            } finally {
+                out.close();
+            }
+            int numBlocks = ColumnarLogFile.getNumBlocks(numRecords, header.blockRecords_);
+            header.blockIndexOffset_ = cmpFile.length() - (numBlocks + 1) * 8L;
+            RandomAccessFile raf = new RandomAccessFile(cmpFile, "rw");
+            try {
+                header.outBlockInfo(raf);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * ファイルのCRCを計算する
+     */
+    private static long _getCrc(File file, AtomicLong progress) throws IOException {
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        FileInputStream fileInStream = new FileInputStream(file);
+        try {
+            int readSize;
+            while ((readSize = fileInStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, readSize);
+                if (progress != null)
+                    progress.addAndGet(readSize);
+            }
+        } finally {
+            fileInStream.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * ZipSourceの範囲をzipに追加する
+     */
+    private void _addZipSourceToZipEntry(ZipOutputStream zip, ZipSource src, AtomicLong progress)
+        throws IOException{
+        ZipEntry zipEntry = new ZipEntry(src.zipPath);
+        if (src.stored) {
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(src.length);
+            zipEntry.setCompressedSize(src.length);
+            zipEntry.setCrc(src.crc);
+        }
+        zip.putNextEntry(zipEntry);
+        RandomAccessFile file = new RandomAccessFile(src.path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(IO_BUFFER_SIZE, Math.max(1, src.length)));
+            long pos = src.offset;
+            long end = src.offset + src.length;
+            while (pos < end) {
+                buffer.clear();
+                if (end - pos < buffer.capacity())
+                    buffer.limit((int)(end - pos));
+                int readSize = channel.read(buffer, pos);
+                if (readSize < 0)
+                    throw new EOFException(src.path);
+                zip.write(buffer.array(), 0, readSize);
+                pos += readSize;
+            }
+        } finally {
+            file.close();
         }
+        progress.addAndGet(src.work);
     }
 
     private void _addFileToZipEntry(ZipOutputStream zip, File file)
@@ -505,7 +958,7 @@ public class LogManager {
         if (file.exists()) {
             FileInputStream fileInStream = new FileInputStream(file);
 
-            byte[] buffer = new byte[1024 * 1024];
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
 
             String zipPath = _getRelativePath(file.getPath());
             ZipEntry zipEntry = new ZipEntry(zipPath);
@@ -521,6 +974,125 @@ public class LogManager {
         }
     }
 
+    /**
+     * 行形式のログファイルを列指向形式のファイルに変換する
+     */
+    private void _writeColumnarFile(File file, File colFile, AtomicLong progress)
+        throws IOException{
+        DataInputStream in = _openLogInput(file, progress);
+        try {
+            LogHeader header = new LogHeader();
+            try {
+                header.input(in);
+            } catch (LogFileFormatException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            long numRecords = 0;
+            if (header.recordSize_ > 0)
+                numRecords = (file.length() - header.headerSize_) / header.recordSize_;
+            header.numRecords_ = (int)numRecords;
+            header.blockRecords_ = COLUMNAR_BLOCK_RECORDS;
+            header.blockIndexOffset_ = header.headerSize_ + numRecords * header.recordSize_;
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(colFile), IO_BUFFER_SIZE));
+            try {
+                header.output(out);
+                ColumnarLogFile.transpose(in, header.recordSize_, numRecords, header.blockRecords_, header.headerSize_, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * ログのbyte数
+     */
+    private long _getLogSize(LogHeader header) {
+        if (header.isDirect())
+            return header.sourceLength_;
+        return new File(getTempFilePath(header.objectName_)).length();
+    }
+
+    /**
+     * zipから直接読み出しているログを一時ディレクトリに展開する
+     * 
+     * @param target このファイルから読み出しているものがある場合のみ展開する。nullの場合は常に展開する
+     */
+    private void _extractDirectEntries(String target) throws IOException {
+        boolean found = false;
+        String targetPath = (target != null) ? new File(target).getCanonicalPath() : null;
+        for (Enumeration elements = header_.elements(); elements.hasMoreElements();) {
+            LogHeader header = (LogHeader) elements.nextElement();
+            if (header.isDirect() &&
+                (targetPath == null || new File(header.sourcePath_).getCanonicalPath().equals(targetPath))) {
+                found = true;
+                break;
+            }
+        }
+        if (!found)
+            return;
+
+        boolean reading = (readFile_ != null);
+        if (reading)
+            closeAsRead();
+        for (Enumeration elements = header_.elements(); elements.hasMoreElements();) {
+            LogHeader header = (LogHeader) elements.nextElement();
+            if (!header.isDirect())
+                continue;
+            FileInputStream in = new FileInputStream(header.sourcePath_);
+            try {
+                FileOutputStream out = new FileOutputStream(getTempFilePath(header.objectName_));
+                try {
+                    FileChannel src = in.getChannel();
+                    FileChannel dst = out.getChannel();
+                    long pos = 0;
+                    while (pos < header.sourceLength_) {
+                        long n = src.transferTo(header.sourceOffset_ + pos, header.sourceLength_ - pos, dst);
+                        if (n <= 0)
+                            throw new EOFException(header.sourcePath_);
+                        pos += n;
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            header.clearSource();
+        }
+        if (reading) {
+            try {
+                openAsRead();
+            } catch (FileOpenFailException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+    }
+
+    private LogHeader _readHeader(File file) throws IOException {
+        return _readHeader(file, 0);
+    }
+
+    /**
+     * ファイルのoffsetの位置からヘッダを読み込む
+     */
+    private LogHeader _readHeader(File file, long offset) throws IOException {
+        FileInputStream fileIn = new FileInputStream(file);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn));
+        try {
+            fileIn.getChannel().position(offset);
+            LogHeader header = new LogHeader();
+            header.input(in);
+            return header;
+        } catch (LogFileFormatException ex) {
+            throw new IOException(ex.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
     private String _getRelativePath(String path)
     {
         if (tmpdir != null) {
@@ -538,36 +1110,76 @@ public class LogManager {
     }
     
     public void load(String fileName, String prjFile) throws FileOpenFailException, LogFileFormatException {
+        try {
+            load(fileName, prjFile, null);
+        } catch (InterruptedException ex) {
+            throw new FileOpenFailException();
+        }
+    }
+
+    /**
+     * ログファイルの読み込み(進捗表示付き)
+     * 
+     * zipの各エントリの展開はワーカースレッドで並列に行い、ヘッダの解釈は
+     * 呼び出し側のスレッドで展開が終わった順に行う。
+     * setDirectRead(true)の場合、無圧縮で格納された列指向形式のログは展開せず
+     * zipファイルから直接読み出す。
+     * 
+     * @param monitor 進捗モニタ(nullも可)。キャンセルされた場合はInterruptedExceptionを投げる
+     */
+    public void load(String fileName, final String prjFile, IProgressMonitor monitor)
+        throws FileOpenFailException, LogFileFormatException, InterruptedException {
         init();
+        if (monitor == null)
+            monitor = new NullProgressMonitor();
 
-        // zipファイルのエントリ数を取得、プロジェクトファイルがあるかどうか
-        // チェックする。
+        ZipFile zipFile = null;
+        ExecutorService pool = null;
         try {
-            ZipFile zipFile = new ZipFile(fileName);
-            int entrySize = zipFile.size();
+            zipFile = new ZipFile(fileName);
             // TODO temporary comment for GRXUI
             /*
              * if (zipFile.getEntry(prjFile) == null) { throw new
              * LogFileFormatException(); } zipFile.close();
              */
+            final String sourcePath = new File(fileName).getAbsolutePath();
+            final Map<String, Long> dataOffsets = directRead_ ?
+                _getStoredEntryOffsets(fileName) : new HashMap<String, Long>();
+
+            ArrayList<ZipEntry> entries = new ArrayList<ZipEntry>();
+            long total = 0;
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements();) {
+                ZipEntry zipEntry = e.nextElement();
+                entries.add(zipEntry);
+                total += Math.max(0, zipEntry.getSize());
+            }
+            monitor.beginTask("", _toWork(total)); //$NON-NLS-1$
+            final AtomicLong progress = new AtomicLong();
+            int[] reported = new int[1];
+
             // zipを展開する
-            ZipInputStream zip = new ZipInputStream(new FileInputStream(fileName));
-            byte[] buffer = new byte[1024];
-            for (int i = 0; i < entrySize; i++) {
-                String entry = zip.getNextEntry().getName();
-                if(!(new File(entry)).isAbsolute()){
-                    entry = tmpdir + File.separator + entry;
-                }
+            pool = _newPool(entries.size());
+            CompletionService<LoadedEntry> service = new ExecutorCompletionService<LoadedEntry>(pool);
+            final ZipFile zf = zipFile;
+            for (final ZipEntry zipEntry : entries) {
+                service.submit(new Callable<LoadedEntry>() {
+                    public LoadedEntry call() throws IOException, LogFileFormatException {
+                        return _loadEntry(zf, zipEntry, prjFile, sourcePath, dataOffsets, progress);
+                    }
+                });
+            }
 
-                FileOutputStream out = new FileOutputStream(entry);
-                while (zip.available() == 1) {
-                    int readSize = zip.read(buffer, 0, 1024);
-                    if (readSize < 0)
-                        break;
-                    out.write(buffer, 0, readSize);
+            for (int i = 0; i < entries.size(); i++) {
+                Future<LoadedEntry> future = _take(service, monitor, progress, reported);
+                LoadedEntry loaded;
+                try {
+                    loaded = future.get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof LogFileFormatException)
+                        throw (LogFileFormatException) ex.getCause();
+                    throw _toIOException(ex);
                 }
-                out.close();
-
+                String entry = loaded.path;
                 if (entry.equals(prjFile) ||
                     entry.contains(new File(collisionLogDatPath_).getName()) ) {
                     continue;
@@ -576,39 +1188,242 @@ public class LogManager {
                 DataInputStream in;
 
                 if (entry.contains(new File(collisionLogPath_).getName())) {
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
                     try {
-                        in = new DataInputStream(new FileInputStream(entry));
                         collisionLog_ = new CollisionLogHeader();
                         collisionLog_.input(in);
+                    } finally {
                         in.close();
-                    } catch (LogFileFormatException ex) {
-                        zip.close();
-                        throw ex;
                     }
                 } else {
-                    try {
+                    LogHeader header = loaded.header;
+                    if (header == null) {
                         in = new DataInputStream(new FileInputStream(entry));
-                        LogHeader header = new LogHeader();
-                        header.input(in);
-                        header_.put(header.objectName_, header);
-                        in.close();
-                        if (header.getVersion() <= 100) {
-                            File file = new File(entry);
-                            header.setFileSize(file.length());
+                        try {
+                            header = new LogHeader();
+                            header.input(in);
+                        } finally {
+                            in.close();
                         }
-                        header.calcUnitSize();
-                        _makeIndexMapMap(header);
-                    } catch (LogFileFormatException ex) {
-                        zip.close();
-                        throw ex;
                     }
+                    header_.put(header.objectName_, header);
+                    if (header.getVersion() <= 100) {
+                        File file = new File(entry);
+                        header.setFileSize(file.length());
+                    }
+                    header.calcUnitSize();
+                    _makeIndexMapMap(header);
                 }
             }
-            zip.close();
         } catch (IOException ex) {
             ex.printStackTrace();
             throw new FileOpenFailException();
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            monitor.done();
+        }
+    }
+
+    /**
+     * 読み込んだzipのエントリ
+     */
+    private static class LoadedEntry {
+        String    path;    // 展開先のパス
+        LogHeader header;  // 展開せずに読み出す場合のヘッダ
+    }
+
+    /**
+     * zipのエントリを一時ディレクトリに展開する(ワーカースレッドで実行される)
+     *     無圧縮で格納された列指向形式のログで、dataOffsetsに位置があるものは展開しない
+     */
+    private LoadedEntry _loadEntry(ZipFile zipFile, ZipEntry zipEntry, String prjFile, String sourcePath,
+            Map<String, Long> dataOffsets, AtomicLong progress) throws IOException, LogFileFormatException {
+        LoadedEntry loaded = new LoadedEntry();
+        String entry = zipEntry.getName();
+        if(!(new File(entry)).isAbsolute()){
+            entry = tmpdir + File.separator + entry;
+        }
+        loaded.path = entry;
+
+        Long offset = dataOffsets.get(zipEntry.getName());
+        if (offset != null && zipEntry.getMethod() == ZipEntry.STORED &&
+            !entry.equals(prjFile) &&
+            !entry.contains(new File(collisionLogDatPath_).getName()) &&
+            !entry.contains(new File(collisionLogPath_).getName())) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(zipFile.getInputStream(zipEntry)));
+            LogHeader header = new LogHeader();
+            try {
+                header.input(in);
+            } finally {
+                in.close();
+            }
+            if (header.isColumnar()) {
+                header.sourcePath_ = sourcePath;
+                header.sourceOffset_ = offset.longValue();
+                header.sourceLength_ = zipEntry.getSize();
+                header.sourceCrc_ = zipEntry.getCrc();
+                loaded.header = header;
+                progress.addAndGet(Math.max(0, zipEntry.getSize()));
+                return loaded;
+            }
+        }
+
+        InputStream in = zipFile.getInputStream(zipEntry);
+        try {
+            FileOutputStream out = new FileOutputStream(entry);
+            try {
+                byte[] buffer = new byte[IO_BUFFER_SIZE];
+                int readSize;
+                while ((readSize = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, readSize);
+                    progress.addAndGet(readSize);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
         }
+        return loaded;
+    }
+
+    /**
+     * zipファイルの無圧縮(STORED)のエントリについて、データ部の位置を取得する
+     *     ZIP64形式のエントリは対象外
+     * 
+     * @return エントリ名からファイル先頭からの位置へのマップ
+     */
+    private static Map<String, Long> _getStoredEntryOffsets(String fileName) throws IOException {
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            // 終端レコード(end of central directory record)を後ろから探す
+            long length = file.length();
+            int tailSize = (int)Math.min(length, ZIP_EOCD_SIZE + 0xffff);
+            byte[] tail = new byte[tailSize];
+            file.seek(length - tailSize);
+            file.readFully(tail);
+            int eocd = -1;
+            for (int i = tailSize - ZIP_EOCD_SIZE; i >= 0; i--) {
+                if (_getLEInt(tail, i) == ZIP_EOCD_SIG) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0)
+                return offsets;
+            int numEntries = _getLEShort(tail, eocd + 10);
+            long dirSize = _getLEInt(tail, eocd + 12) & 0xffffffffL;
+            long dirOffset = _getLEInt(tail, eocd + 16) & 0xffffffffL;
+            if (dirOffset == 0xffffffffL || dirOffset + dirSize > length)
+                return offsets;
+
+            // セントラルディレクトリ
+            byte[] dir = new byte[(int)dirSize];
+            file.seek(dirOffset);
+            file.readFully(dir);
+            byte[] local = new byte[ZIP_LOCAL_HEADER_SIZE];
+            int p = 0;
+            for (int i = 0; i < numEntries && p + ZIP_CENTRAL_HEADER_SIZE <= dir.length; i++) {
+                if (_getLEInt(dir, p) != ZIP_CENTRAL_HEADER_SIG)
+                    break;
+                int method = _getLEShort(dir, p + 10);
+                long size = _getLEInt(dir, p + 24) & 0xffffffffL;
+                int nameLength = _getLEShort(dir, p + 28);
+                int extraLength = _getLEShort(dir, p + 30);
+                int commentLength = _getLEShort(dir, p + 32);
+                long localOffset = _getLEInt(dir, p + 42) & 0xffffffffL;
+                String name = new String(dir, p + ZIP_CENTRAL_HEADER_SIZE, nameLength, "UTF-8"); //$NON-NLS-1$
+                p += ZIP_CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+                if (method != ZipEntry.STORED || size == 0xffffffffL || localOffset == 0xffffffffL)
+                    continue;
+
+                // データ部はローカルヘッダの後ろ
+                file.seek(localOffset);
+                file.readFully(local);
+                if (_getLEInt(local, 0) != ZIP_LOCAL_HEADER_SIG)
+                    continue;
+                offsets.put(name, new Long(localOffset + ZIP_LOCAL_HEADER_SIZE +
+                        _getLEShort(local, 26) + _getLEShort(local, 28)));
+            }
+        } finally {
+            file.close();
+        }
+        return offsets;
+    }
+
+    private static int _getLEShort(byte[] b, int pos) {
+        return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8);
+    }
+
+    private static int _getLEInt(byte[] b, int pos) {
+        return _getLEShort(b, pos) | (_getLEShort(b, pos + 2) << 16);
+    }
+
+    /**
+     * ワーカースレッドのプールを作る
+     */
+    private static ExecutorService _newPool(int tasks) {
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tasks));
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LogIO"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 次に終わったタスクを待つ。待っている間、進捗を更新しキャンセルを確認する
+     */
+    private static <T> Future<T> _take(CompletionService<T> service, IProgressMonitor monitor,
+            AtomicLong progress, int[] reported) throws InterruptedException {
+        while (true) {
+            Future<T> future = service.poll(PROGRESS_POLL_MSEC, TimeUnit.MILLISECONDS);
+            _reportProgress(monitor, progress, reported);
+            if (monitor.isCanceled())
+                throw new InterruptedException();
+            if (future != null)
+                return future;
+        }
+    }
+
+    private static <T> T _getResult(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw _toIOException(ex);
+        }
+    }
+
+    private static IOException _toIOException(ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        IOException ioe = new IOException(String.valueOf(cause));
+        ioe.initCause(cause);
+        return ioe;
+    }
+
+    private static void _reportProgress(IProgressMonitor monitor, AtomicLong progress, int[] reported) {
+        int work = _toWork(progress.get());
+        if (work > reported[0]) {
+            monitor.worked(work - reported[0]);
+            reported[0] = work;
+        }
+    }
+
+    private static int _toWork(long bytes) {
+        return (int)Math.min(Integer.MAX_VALUE, bytes / PROGRESS_UNIT);
     }
 
     public void saveCSV(String fileName, String ObjectName) throws FileOpenFailException {
@@ -617,8 +1432,9 @@ public class LogManager {
             if (header == null) {
                 throw new FileOpenFailException();
             }
-            final long nLine = (new File(getTempFilePath(header.objectName_)).length() - header.headerSize_) / header.recordSize_;
-            DataInputStream in = new DataInputStream(new FileInputStream(getTempFilePath(header.objectName_)));
+            final long nLine = header.isColumnar() ? header.numRecords_ :
+                (new File(getTempFilePath(header.objectName_)).length() - header.headerSize_) / header.recordSize_;
+            DataInputStream in = header.isColumnar() ? null : new DataInputStream(new FileInputStream(getTempFilePath(header.objectName_)));
             PrintWriter out = new PrintWriter(new FileWriter(fileName));
 
             out.println("Software Version, " + String.valueOf(header.version_[0]) + "." + String.valueOf(header.version_[1]) + "." + String.valueOf(header.version_[2]) + "." + String.valueOf(header.version_[3]));
@@ -656,16 +1472,28 @@ public class LogManager {
                 }
             }
             out.println();
-            in.skip(header.headerSize_);
-            for (long i = 0; i < nLine; i++) {
-                for (long j = 0; j < header.recordSize_ / LogHeader.FLOAT_DATA_SIZE - 1; j++) {
-                    out.print(in.readFloat() + ",");
+            if (header.isColumnar()) {
+                float[] record = new float[header.recordSize_ / LogHeader.FLOAT_DATA_SIZE];
+                for (long i = 0; i < nLine; i++) {
+                    get(ObjectName, i, record);
+                    for (int j = 0; j < record.length - 1; j++) {
+                        out.print(record[j] + ",");
+                    }
+                    out.println(record[record.length - 1]);
+                }
+            } else {
+                in.skip(header.headerSize_);
+                for (long i = 0; i < nLine; i++) {
+                    for (long j = 0; j < header.recordSize_ / LogHeader.FLOAT_DATA_SIZE - 1; j++) {
+                        out.print(in.readFloat() + ",");
+                    }
+                    // 最後の一個
+                    out.println(in.readFloat());
                 }
-                // 最後の一個
-                out.println(in.readFloat());
             }
             out.close();
-            in.close();
+            if (in != null)
+                in.close();
 
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -786,6 +1614,49 @@ public class LogManager {
             for (int j = 0; j < itemCount; j++) {
                 posArray[j] = ((Integer) posList.get(j)).intValue();
             }
+            // 列指向形式のファイル
+            ColumnarLogFile columnar = (columnarFile_ != null) ? columnarFile_.get(obj) : null;
+            if (columnar != null) {
+                try {
+                    float[] buf = new float[count];
+                    for (int item = 0; item < itemCount; item++) {
+                        DataSeries ds = (DataSeries) dsList.get(item);
+                        _getSeries(columnar, ((Integer) indList.get(item)).intValue(), recNo, count,
+                                ds.getData(), posArray[item], ((Integer) sizeList.get(item)).intValue(), buf);
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                continue;
+            }
+            // マップ済みファイル
+            MappedLogFile mapped = (mappedFile_ != null) ? mappedFile_.get(obj) : null;
+            if (mapped != null) {
+                try {
+                    long numRecords = mapped.readable(header.numRecords_);
+                    for (int rec = 0; rec < count; rec++) {
+                        boolean outOfRange = (recNo < 0 || recNo >= numRecords);
+                        for (int item = 0; item < itemCount; item++) {
+                            DataSeries ds = (DataSeries) dsList.get(item);
+                            data = ds.getData();
+                            if (outOfRange) {
+                                data[posArray[item]] = Double.NaN;
+                            } else {
+                                data[posArray[item]] = mapped.getFloat(recNo, ((Integer) indList.get(item)).intValue());
+                            }
+                            if (posArray[item] < (((Integer) sizeList.get(item)).intValue() - 1)) {
+                                posArray[item]++;
+                            } else {
+                                posArray[item] = 0;
+                            }
+                        }
+                        recNo++;
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                continue;
+            }
             // ファイル
             RandomAccessFile file = (RandomAccessFile) readFile_.get(obj);
             // System.out.println("obj=" + obj);
@@ -840,14 +1711,19 @@ public class LogManager {
     
     private HashMap<String, ArrayList<DataSeries>> dsListMap_ = new HashMap<String, ArrayList<DataSeries>>(); // データ系列リストのマップ
     private HashMap<String, ArrayList<Integer>> indexListMap_ = new HashMap<String, ArrayList<Integer>>();
-    private int[] dataPos_ = null;
-	private double[][] data_ = null;
-	private int[] dsSize_ = null;
+    private HashMap<String, Integer[]> itemIndexMap_ = new HashMap<String, Integer[]>();
+    private HashMap<String, double[][]> dataMap_ = new HashMap<String, double[][]>();
+    private HashMap<String, int[]> dsSizeMap_ = new HashMap<String, int[]>();
+    private HashMap<String, ArrayList<Boolean>> sampledListMap_ = new HashMap<String, ArrayList<Boolean>>(); // 間引き時に最小値・最大値でなく代表値を使うか
     public  void initGetData(DataModel[] dataModelArray){
     	if(indexMapMap_ == null || indexMapMap_.isEmpty())
     		return;
     	dsListMap_.clear();
     	indexListMap_.clear();
+    	itemIndexMap_.clear();
+    	dataMap_.clear();
+    	dsSizeMap_.clear();
+    	sampledListMap_.clear();
     	for (int i = 0; i < dataModelArray.length; i++) { // アイテム数分ループ
 	        DataItem di = dataModelArray[i].dataItem; // データアイテム
 	        DataSeries ds = dataModelArray[i].dataSeries; // データ系列
@@ -862,30 +1738,37 @@ public class LogManager {
 
 	        ArrayList<DataSeries> dsList = dsListMap_.get(obj);
 	        ArrayList<Integer> indexList = indexListMap_.get(obj);
+	        ArrayList<Boolean> sampledList = sampledListMap_.get(obj);
 	        if(dsList==null){
 	        	dsList = new ArrayList<DataSeries>(); // データ系列リスト生成
 	        	dsListMap_.put(obj, dsList); // データ系列リストマップに追加
 	        	indexList = new ArrayList<Integer>();
 	        	indexListMap_.put(obj, indexList);
+	        	sampledList = new ArrayList<Boolean>();
+	        	sampledListMap_.put(obj, sampledList);
 	        }
 	        dsList.add(ds);
 	        indexList.add(ind);
+	        // 姿勢は後でロール、ピッチ、ヨーに変換するので最小値・最大値にしない
+	        sampledList.add(di.attribute.equals("attitude"));
     	}
     	
+    	// オブジェクト毎にデータ配列を用意する
     	Iterator<String> it = dsListMap_.keySet().iterator();
     	while (it.hasNext()) {
         	String obj = it.next();
         	ArrayList<DataSeries> dsList = dsListMap_.get(obj);
         	int dsNum = dsList.size();
-        	dataPos_ = new int[dsNum];
-        	data_ = new double[dsNum][];
-        	dsSize_ = new int[dsNum];
+        	double[][] data = new double[dsNum][];
+        	int[] dsSize = new int[dsNum];
         	for(int i=0; i<dsNum; i++){
         		DataSeries ds = dsList.get(i);
-        		int size = ds.getSize(); // データ系列サイズ取得
-        		data_[i] = ds.getData();
-        		dsSize_[i] = size;
+        		data[i] = ds.getData();
+        		dsSize[i] = ds.getSize(); // データ系列サイズ取得
         	}
+        	dataMap_.put(obj, data);
+        	dsSizeMap_.put(obj, dsSize);
+        	itemIndexMap_.put(obj, indexListMap_.get(obj).toArray(new Integer[0]));
     	}
     }
     
@@ -894,20 +1777,56 @@ public class LogManager {
         while (it.hasNext()) {
         	String obj = it.next();
         	ArrayList<DataSeries> dsList = dsListMap_.get(obj);
+        	int[] dsSize = dsSizeMap_.get(obj);
         	int dsNum = dsList.size();
+        	int[] dataPos = new int[dsNum];
         	for(int i=0; i<dsNum; i++){
         		DataSeries ds = dsList.get(i);
-        		int pos = (ds.getHeadPos() + offset) % dsSize_[i]; // 初期書込位置決定
-        		dataPos_[i] = pos;
+        		dataPos[i] = (ds.getHeadPos() + offset) % dsSize[i]; // 初期書込位置決定
         	}
-        	_getData(obj, origin+offset, count, indexListMap_.get(obj).toArray(new Integer[0]), data_, dataPos_, dsSize_);
+        	_getData(obj, origin+offset, count, itemIndexMap_.get(obj), dataMap_.get(obj), dataPos, dsSize);
         }
     }
     
     private void _getData(String obj, long recNo, int count, Integer[] itemIndex, double[][] data, int[] dataPos, int[] dsSize){
     	LogHeader header = (LogHeader) header_.get(obj); // ヘッダ
-        int itemsPerRec = header.recordSize_ / LogHeader.FLOAT_DATA_SIZE; // レコードあたりのアイテム数
-        double[] record = new double[itemsPerRec]; // レコードバッファ
+    	ColumnarLogFile columnar = (columnarFile_ != null) ? columnarFile_.get(obj) : null;
+    	if (columnar != null) {
+    		// 列指向形式のファイルからデータ系列毎に読み出す
+    		try {
+    			float[] buf = new float[count];
+    			for (int item = 0; item < itemIndex.length; item++)
+    				_getSeries(columnar, itemIndex[item], recNo, count, data[item], dataPos[item], dsSize[item], buf);
+    		} catch (IOException ex) {
+    			ex.printStackTrace();
+    		}
+    		return;
+    	}
+    	MappedLogFile mapped = (mappedFile_ != null) ? mappedFile_.get(obj) : null;
+    	if (mapped != null) {
+    		// マップ済みファイルからロックなしで読み出す
+    		try {
+    			long numRecords = mapped.readable(header.numRecords_);
+    			for (int rec = 0; rec < count; rec++) {
+    				boolean outOfRange = (recNo < 0 || recNo >= numRecords);
+    				for (int item = 0; item < itemIndex.length; item++) {
+    					if (outOfRange)
+    						data[item][dataPos[item]] = Double.NaN;
+    					else
+    						data[item][dataPos[item]] = mapped.getFloat(recNo, itemIndex[item]);
+    					if (dataPos[item] < dsSize[item]-1) {
+    						dataPos[item]++;
+    					} else {
+    						dataPos[item] = 0;
+    					}
+    				}
+    				recNo++;
+    			}
+    		} catch (IOException ex) {
+    			ex.printStackTrace();
+    		}
+    		return;
+    	}
         RandomAccessFile file = (RandomAccessFile) readFile_.get(obj);
 	    synchronized (file) {
 	        try {
@@ -935,6 +1854,199 @@ public class LogManager {
 	    }
     }
     
+    /**
+     * 表示点数に対する間引き数を返す
+     * 
+     * @param records 表示範囲のレコード数
+     * @param points  表示点数(グラフの幅)
+     * @return 1バケット当りのレコード数。間引かない場合は1
+     */
+    public int getDecimation(long records, int points) {
+        if (points <= 0 || records <= 2L * points)
+            return 1;
+        int decimation = PYRAMID_BASE_RECORDS;
+        while (records / decimation > points && decimation < (1 << 30))
+            decimation <<= 1;
+        return decimation;
+    }
+
+    /**
+     * 間引きデータ読み出し
+     * 
+     * initGetData()で指定したデータ系列に、decimationレコード毎の最小値と最大値を
+     * 交互に書き込む(1バケット当り2点)。最小値・最大値ピラミッドは
+     * 初めて読み出すデータ系列について作成し、以降は追加されたレコード分だけ更新する。
+     * 
+     * @param origin     データ系列先頭のバケット番号
+     * @param offset     データ系列の書き込み開始位置(点, 1バケット当り2点)
+     * @param count      読み出しバケット数
+     * @param decimation 1バケット当りのレコード数(getDecimation()の戻り値)
+     */
+    public void getData(long origin, int offset, int count, int decimation) {
+        if (decimation <= 1) {
+            getData(origin, offset, count);
+            return;
+        }
+        if (readFile_ == null)
+            return;
+        float[] mn = new float[count];
+        float[] mx = new float[count];
+        long firstBucket = origin + offset / 2;
+        Iterator<String> it = dsListMap_.keySet().iterator();
+        while (it.hasNext()) {
+            String obj = it.next();
+            LogHeader header = (LogHeader) header_.get(obj);
+            ArrayList<DataSeries> dsList = dsListMap_.get(obj);
+            ArrayList<Boolean> sampledList = sampledListMap_.get(obj);
+            Integer[] itemIndex = itemIndexMap_.get(obj);
+            double[][] data = dataMap_.get(obj);
+            int[] dsSize = dsSizeMap_.get(obj);
+            try {
+                for (int item = 0; item < itemIndex.length; item++) {
+                    int len;
+                    long start = Math.max(firstBucket, 0);
+                    if (sampledList.get(item)) {
+                        // バケット先頭のレコードの値(圧縮形式ではブロック内のバケットが展開済みのチャンクを共有する)
+                        len = 0;
+                        float[] one = new float[1];
+                        for (long b = start; b < firstBucket + count; b++) {
+                            if (_readSeries(obj, header, itemIndex[item], b * decimation, 1, one) < 1)
+                                break;
+                            mn[len] = mx[len] = one[0];
+                            len++;
+                        }
+                    } else {
+                        MinMaxPyramid pyramid = _updatePyramid(obj, header, itemIndex[item]);
+                        len = pyramid.get(pyramid.getLevel(decimation), start, (int)(firstBucket + count - start), mn, mx);
+                    }
+                    int first = (int)(start - firstBucket);
+                    int pos = (dsList.get(item).getHeadPos() + offset) % dsSize[item];
+                    double[] d = data[item];
+                    for (int b = 0; b < count; b++) {
+                        boolean valid = (b >= first && b < first + len);
+                        d[pos] = valid ? mn[b - first] : Double.NaN;
+                        pos = (pos + 1) % dsSize[item];
+                        d[pos] = valid ? mx[b - first] : Double.NaN;
+                        pos = (pos + 1) % dsSize[item];
+                    }
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * データ系列の最小値・最大値ピラミッドを取得し、書き込まれたレコードまで更新する
+     */
+    private MinMaxPyramid _updatePyramid(String obj, LogHeader header, int item) throws IOException {
+        String key = obj + "." + item;
+        MinMaxPyramid pyramid = pyramid_.get(key);
+        if (pyramid == null) {
+            pyramid = new MinMaxPyramid(PYRAMID_BASE_RECORDS);
+            pyramid_.put(key, pyramid);
+        }
+        synchronized (pyramid) {
+            long numRecords = header.numRecords_;
+            if (pyramid.getRecords() < numRecords) {
+                float[] buf = new float[Math.max(1, SERIES_READ_BUFFER_SIZE / LogHeader.FLOAT_DATA_SIZE)];
+                long rec = pyramid.getRecords();
+                while (rec < numRecords) {
+                    int len = _readSeries(obj, header, item, rec, (int)Math.min(buf.length, numRecords - rec), buf);
+                    if (len <= 0)
+                        break;
+                    pyramid.append(buf, len);
+                    rec += len;
+                }
+            }
+        }
+        return pyramid;
+    }
+
+    /**
+     * オブジェクトのログの1つのデータ系列のoriginからcount個をbufに読み出す
+     * 
+     * @param objectName オブジェクト名
+     * @param item       レコード内の添字(0は時刻)
+     * @return 読み出せた個数
+     */
+    public int getSeries(String objectName, int item, long origin, int count, float[] buf) throws IOException {
+        if (readFile_ == null)
+            return 0;
+        LogHeader header = (LogHeader) header_.get(objectName);
+        if (header == null)
+            return 0;
+        return _readSeries(objectName, header, item, origin, count, buf);
+    }
+
+    /**
+     * 1つのデータ系列のoriginからcount個をbufに読み出す
+     * 
+     * @return 読み出せた個数
+     */
+    private int _readSeries(String obj, LogHeader header, int item, long origin, int count, float[] buf) throws IOException {
+        if (origin < 0)
+            return 0;
+        ColumnarLogFile columnar = (columnarFile_ != null) ? columnarFile_.get(obj) : null;
+        if (columnar != null)
+            return columnar.getSeries(item, origin, count, buf)[1];
+
+        MappedLogFile mapped = (mappedFile_ != null) ? mappedFile_.get(obj) : null;
+        if (mapped != null) {
+            int len = (int)Math.max(0, Math.min(count, mapped.readable(header.numRecords_) - origin));
+            for (int i = 0; i < len; i++)
+                buf[i] = mapped.getFloat(origin + i, item);
+            return len;
+        }
+
+        // 行形式のファイルはレコード単位でまとめて読み出して抽出する
+        int len = (int)Math.max(0, Math.min(count, header.numRecords_ - origin));
+        int recordsPerRead = Math.max(1, SERIES_READ_BUFFER_SIZE / header.recordSize_);
+        byte[] bytes = new byte[Math.min(len, recordsPerRead) * header.recordSize_];
+        java.nio.ByteBuffer bbuf = java.nio.ByteBuffer.wrap(bytes);
+        RandomAccessFile file = (RandomAccessFile) readFile_.get(obj);
+        synchronized (file) {
+            int done = 0;
+            while (done < len) {
+                int n = Math.min(len - done, recordsPerRead);
+                file.seek((long) header.headerSize_ + (long) header.recordSize_ * (origin + done));
+                file.readFully(bytes, 0, n * header.recordSize_);
+                for (int i = 0; i < n; i++)
+                    buf[done + i] = bbuf.getFloat(i * header.recordSize_ + item * LogHeader.FLOAT_DATA_SIZE);
+                done += n;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * 列指向形式のファイルから1つのデータ系列を読み出し、リングバッファに書き込む
+     * 
+     * @param columnar 列指向形式のファイル
+     * @param item     レコード内の添字
+     * @param recNo    読み出し開始レコード
+     * @param count    読み出しレコード数
+     * @param data     書き込み先の配列
+     * @param pos      書き込み開始位置
+     * @param size     書き込み先の配列長
+     * @param buf      作業用バッファ(count以上の長さ)
+     */
+    private void _getSeries(ColumnarLogFile columnar, int item, long recNo, int count,
+            double[] data, int pos, int size, float[] buf) throws IOException {
+        int[] range = columnar.getSeries(item, recNo, count, buf);
+        for (int rec = 0; rec < count; rec++) {
+            if (rec < range[0] || rec >= range[0] + range[1])
+                data[pos] = Double.NaN;
+            else
+                data[pos] = buf[rec];
+            if (pos < size - 1) {
+                pos++;
+            } else {
+                pos = 0;
+            }
+        }
+    }
+
     private void _makeIndexMapMap(LogHeader header) {
         String[] format = header.dataFormat_;
         Map<String, Integer> indexMap = new HashMap<String, Integer>();
@@ -963,6 +2075,9 @@ public class LogManager {
      * 
      * version 1.1.0 からtotalTime_, startTime_, endTime_, timeStep_
      * はfloatからlongに変更された。 version 1.1.1 から干渉深さが保存されるように変更
+     * version 3.2.0 からリザーブド領域に列指向形式のブロック情報を保存する
+     * (blockRecords_が0の場合は行形式)
+     * version 3.3.0 は列指向形式のブロックを圧縮したもの
      */
     class LogHeader {
         // 固定長ヘッダ部
@@ -977,6 +2092,15 @@ public class LogManager {
         public int      numRecords_;   // 総レコード数
         public byte[]   reserved_;    // リザーブド
         public byte[]   reserved_v1_0_;    // リザーブド(version 1.0)
+        public int      blockRecords_;     // 1ブロック当りのレコード数(列指向形式, version 3.2)
+        public long     blockIndexOffset_; // ブロックインデックスの位置(列指向形式, version 3.2)
+        public boolean  compressed_;       // ブロックを圧縮しているかどうか(version 3.3)
+
+        // 展開せずにzipから直接読み出す場合の読み出し元(ファイルには保存しない)
+        public String   sourcePath_;       // zipファイルのパス
+        public long     sourceOffset_;     // zip内のエントリのデータ部の位置
+        public long     sourceLength_;     // エントリのbyte数
+        public long     sourceCrc_;        // エントリのCRC
 
         // 可変長ヘッダ部
         public String   objectName_;  // オブジェクト名
@@ -1011,6 +2135,9 @@ public class LogManager {
         private static final int NUM_RECORDS_SEEK_POINT =
             (VERSION_DATA_SIZE + INT_DATA_SIZE * 3 + LONG_DATA_SIZE * 4);
 
+        private static final int RESERVED_SEEK_POINT =
+            (VERSION_DATA_SIZE + INT_DATA_SIZE * 4 + LONG_DATA_SIZE * 4);
+
         LogHeader() {
             reserved_ = new byte[RESERVED_DATA_SIZE];
         }
@@ -1069,6 +2196,30 @@ public class LogManager {
             );
         }
 
+        public boolean isColumnar() {
+            return blockRecords_ > 0;
+        }
+
+        /**
+         * zipから直接読み出しているかどうか
+         */
+        public boolean isDirect() {
+            return sourcePath_ != null && isColumnar();
+        }
+
+        public void clearSource() {
+            sourcePath_ = null;
+            sourceOffset_ = 0;
+            sourceLength_ = 0;
+            sourceCrc_ = 0;
+        }
+
+        public void setRowFormat() {
+            blockRecords_ = 0;
+            blockIndexOffset_ = 0;
+            compressed_ = false;
+        }
+
         public void output(DataOutputStream out)
             throws IOException
         {
@@ -1084,7 +2235,12 @@ public class LogManager {
             System.out.println("numRecords: " + numRecords_);
             */
 
-            version_ = new byte[] {0, 3, 1, 0};  // version 3.1.0
+            if (isColumnar() && compressed_)
+                version_ = new byte[] {0, 3, 3, 0};  // version 3.3.0
+            else if (isColumnar())
+                version_ = new byte[] {0, 3, 2, 0};  // version 3.2.0
+            else
+                version_ = new byte[] {0, 3, 1, 0};  // version 3.1.0
             out.write(version_, 0, VERSION_DATA_SIZE);
             out.writeInt(headerSize_);
             out.writeLong(totalTime_);
@@ -1094,7 +2250,12 @@ public class LogManager {
             out.writeInt(method_);
             out.writeInt(recordSize_);
             out.writeInt(numRecords_);
-            out.write(reserved_, 0, RESERVED_DATA_SIZE);
+            if (isColumnar()) {
+                out.writeInt(blockRecords_);
+                out.writeLong(blockIndexOffset_);
+            } else {
+                out.write(reserved_, 0, RESERVED_DATA_SIZE);
+            }
             out.writeBytes(objectName_);
             out.writeByte(0);
             for (int i = 0; i < dataFormat_.length; i ++) {
@@ -1136,6 +2297,13 @@ public class LogManager {
                  numRecords_ = in.readInt();
                  in.readFully(reserved_);
             }
+            setRowFormat();
+            if (getVersion() >= 320) {
+                DataInputStream reserved = new DataInputStream(new ByteArrayInputStream(reserved_));
+                blockRecords_ = reserved.readInt();
+                blockIndexOffset_ = reserved.readLong();
+                compressed_ = (getVersion() >= 330 && isColumnar());
+            }
          
             // for Debug
             /*
@@ -1217,6 +2385,15 @@ public class LogManager {
             //System.out.println("outEndTime(): numRecords="+numRecords_);
         }
 
+        /**
+         * 列指向形式のブロック情報を書き込む
+         */
+        public void outBlockInfo(RandomAccessFile file) throws IOException {
+            file.seek(RESERVED_SEEK_POINT);
+            file.writeInt(blockRecords_);
+            file.writeLong(blockIndexOffset_);
+        }
+
         /**
          * version 1.0はファイルの長さからnumRecords_を算出
          */
@@ -1423,23 +2600,57 @@ public class LogManager {
         LogHeader header = (LogHeader)header_.get(objectName);
         if (header == null) return null;
 
-        RandomAccessFile file = (RandomAccessFile)readFile_.get(objectName);
-
         float[] data = new float[header.recordSize_ / LogHeader.FLOAT_DATA_SIZE];
+        get(objectName, record, data);
+        return data;
+    }
+
+    /**
+     * レコードを読み出してdataに格納する
+     * 
+     * @param objectName オブジェクト名
+     * @param record     レコード番号
+     * @param data       格納先(getDataLength()以上の長さ)
+     * @return 読み出せた場合true
+     */
+    public boolean get(String objectName, long record, float[] data) throws IOException {
+        if (readFile_ == null) return false;
+
+        LogHeader header = (LogHeader)header_.get(objectName);
+        if (header == null) return false;
+
+        ColumnarLogFile columnar = (columnarFile_ != null) ? columnarFile_.get(objectName) : null;
+        if (columnar != null) {
+            if (record < 0 || record >= columnar.getNumRecords())
+                return false;
+            columnar.get(record, data);
+            return true;
+        }
+
+        MappedLogFile mapped = (mappedFile_ != null) ? mappedFile_.get(objectName) : null;
+        if (mapped != null) {
+            if (record < 0 || record >= mapped.readable(record + 1))
+                return false;
+            return mapped.get(record, data);
+        }
+
+        RandomAccessFile file = (RandomAccessFile)readFile_.get(objectName);
+        int len = header.recordSize_ / LogHeader.FLOAT_DATA_SIZE;
 
         try {
             synchronized (file) {
                 file.seek((long)header.headerSize_ + header.recordSize_ * record);
-                for (int i = 0; i < data.length; i ++)
+                for (int i = 0; i < len; i ++)
                     data[i] = file.readFloat();
             }
         } catch (EOFException ex) {
             ex.printStackTrace();
+            return false;
         } catch (IOException ex) {
             closeAsRead();
             throw ex;
         }
-        return data;
+        return true;
     }
 
     public CollisionPoint[] getCollisionPointData(int frameNum) throws IOException {
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * MappedLogFile.java
+ *
+ */
+
+package com.generalrobotix.ui.view.graph;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ログファイル(.tmp)をメモリマップして読み出すクラス
+ *
+ * レコード部をFloatBufferのビューとしてマップし、ロックなしで
+ * 複数のスレッドから同時に読み出せるようにする。
+ * 書き込み中のファイルは readable() が呼ばれた時点で必要な分だけマップし直す。
+ * 1つのマップは2GBまでなので、レコード境界で複数のセグメントに分割する。
+ * close()では読み出し中のスレッドがなくなるのを待ってマップを解放する。
+ * 解放しないとWindowsではGCされるまでファイルがロックされたままになる。
+ */
+class MappedLogFile {
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+    private static final int FLOAT_DATA_SIZE = 4;
+
+    private final String path_;
+    private final long headerSize_;
+    private final int recordSize_;        // 1レコード当りのbyte数
+    private final int itemsPerRecord_;    // 1レコード当りのfloat数
+    private final int recordsPerSegment_; // 1セグメント当りのレコード数
+
+    private volatile FloatBuffer[] segments_ = new FloatBuffer[0];
+    private volatile long mappedRecords_ = 0;
+    // これまでにマップしたバッファ(_remapで置き換えたものも含む)
+    private final List<MappedByteBuffer> buffers_ = new ArrayList<MappedByteBuffer>();
+    // 読み出し中のスレッド数
+    private final AtomicInteger readers_ = new AtomicInteger();
+    private boolean closed_ = false;
+
+    MappedLogFile(String path, int headerSize, int recordSize) {
+        path_ = path;
+        headerSize_ = headerSize;
+        recordSize_ = recordSize;
+        itemsPerRecord_ = recordSize / FLOAT_DATA_SIZE;
+        recordsPerSegment_ = (int)Math.max(1, MAX_SEGMENT_SIZE / Math.max(1, recordSize));
+    }
+
+    /**
+     * numRecordsまでのレコードが読み出せる状態にする
+     *
+     * @param numRecords 必要なレコード数
+     * @return 読み出し可能なレコード数
+     */
+    long readable(long numRecords) throws IOException {
+        if (numRecords <= mappedRecords_)
+            return mappedRecords_;
+        return _remap(numRecords);
+    }
+
+    private synchronized long _remap(long numRecords) throws IOException {
+        if (closed_ || numRecords <= mappedRecords_)
+            return mappedRecords_;
+        RandomAccessFile file = new RandomAccessFile(path_, "r");
+        try {
+            FileChannel ch = file.getChannel();
+            long available = recordSize_ > 0 ? (ch.size() - headerSize_) / recordSize_ : 0;
+            if (numRecords > available)
+                numRecords = available;
+            if (numRecords <= mappedRecords_)
+                return mappedRecords_;
+
+            int numSegments = (int)((numRecords + recordsPerSegment_ - 1) / recordsPerSegment_);
+            FloatBuffer[] oldSegments = segments_;
+            FloatBuffer[] segments = new FloatBuffer[numSegments];
+            for (int i = 0; i < numSegments; i++) {
+                long first = (long)i * recordsPerSegment_;
+                long count = Math.min(recordsPerSegment_, numRecords - first);
+                // 埋まっているセグメントはそのまま使い回す
+                if (i < oldSegments.length && oldSegments[i].capacity() == count * itemsPerRecord_) {
+                    segments[i] = oldSegments[i];
+                    continue;
+                }
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY,
+                        headerSize_ + first * recordSize_, count * recordSize_);
+                buffers_.add(buf);
+                segments[i] = buf.asFloatBuffer();
+            }
+            segments_ = segments;
+            mappedRecords_ = numRecords;
+        } finally {
+            file.close();
+        }
+        return mappedRecords_;
+    }
+
+    /**
+     * レコードrecNoのitem番目の値を返す
+     * readable()で読み出し可能になったレコードのみ指定すること
+     */
+    float getFloat(long recNo, int item) {
+        readers_.incrementAndGet();
+        try {
+            FloatBuffer[] segments = segments_;
+            int s = (int)(recNo / recordsPerSegment_);
+            if (s >= segments.length)  // closed
+                return 0f;
+            return segments[s].get((int)(recNo % recordsPerSegment_) * itemsPerRecord_ + item);
+        } finally {
+            readers_.decrementAndGet();
+        }
+    }
+
+    /**
+     * レコードrecNoをdataにコピーする
+     */
+    boolean get(long recNo, float[] data) {
+        readers_.incrementAndGet();
+        try {
+            FloatBuffer[] segments = segments_;
+            int s = (int)(recNo / recordsPerSegment_);
+            if (s >= segments.length)  // closed
+                return false;
+            FloatBuffer seg = segments[s];
+            int base = (int)(recNo % recordsPerSegment_) * itemsPerRecord_;
+            int len = Math.min(data.length, itemsPerRecord_);
+            for (int i = 0; i < len; i++)
+                data[i] = seg.get(base + i);
+            return true;
+        } finally {
+            readers_.decrementAndGet();
+        }
+    }
+
+    synchronized void close() {
+        closed_ = true;
+        segments_ = new FloatBuffer[0];
+        mappedRecords_ = 0;
+        // segments_を空にした後に読み出しを始めたスレッドは空の配列を見る
+        while (readers_.get() > 0)
+            Thread.yield();
+        for (int i = 0; i < buffers_.size(); i++)
+            _unmap(buffers_.get(i));
+        buffers_.clear();
+    }
+
+    /**
+     * マップを直ちに解放する
+     *     標準のAPIがないのでJREの実装に依存する。使えない場合はGCに任せる
+     */
+    private static void _unmap(MappedByteBuffer buf) {
+        try {
+            Method getCleaner = buf.getClass().getMethod("cleaner"); //$NON-NLS-1$
+            getCleaner.setAccessible(true);
+            Object cleaner = getCleaner.invoke(buf);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner); //$NON-NLS-1$
+        } catch (Exception ex) {
+            // GCされた時に解放される
+        }
+    }
+}
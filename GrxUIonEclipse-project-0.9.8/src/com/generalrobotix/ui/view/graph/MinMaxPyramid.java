@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * MinMaxPyramid.java
+ *
+ */
+
+package com.generalrobotix.ui.view.graph;
+
+/**
+ * 1つのデータ系列の最小値・最大値ピラミッド
+ *
+ * レベル0はbaseRecordsレコード毎の最小値・最大値、レベルnはその2^n倍の
+ * レコード毎の最小値・最大値を保持する。append()でレコードを追加すると
+ * 埋まったバケットが上位レベルへ順に集約される。
+ * 末尾の埋まっていないバケットは取得できない。
+ */
+class MinMaxPyramid {
+    private static final int MAX_LEVEL = 32;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int baseRecords_;
+    private final float[][] min_ = new float[MAX_LEVEL][];
+    private final float[][] max_ = new float[MAX_LEVEL][];
+    private final int[] size_ = new int[MAX_LEVEL];   // レベル毎の埋まったバケット数
+
+    private long records_ = 0;     // 追加済みレコード数
+    private float curMin_;
+    private float curMax_;
+    private int curCount_ = 0;
+
+    MinMaxPyramid(int baseRecords) {
+        baseRecords_ = baseRecords;
+    }
+
+    /**
+     * 追加済みのレコード数
+     */
+    synchronized long getRecords() {
+        return records_;
+    }
+
+    /**
+     * レコードを追加する
+     */
+    synchronized void append(float[] data, int len) {
+        for (int i = 0; i < len; i++) {
+            float v = data[i];
+            if (curCount_ == 0) {
+                curMin_ = v;
+                curMax_ = v;
+            } else {
+                if (v < curMin_) curMin_ = v;
+                if (v > curMax_) curMax_ = v;
+            }
+            if (++curCount_ == baseRecords_) {
+                _push(0, curMin_, curMax_);
+                curCount_ = 0;
+            }
+        }
+        records_ += len;
+    }
+
+    private void _push(int level, float mn, float mx) {
+        if (level >= MAX_LEVEL)
+            return;
+        int size = size_[level];
+        if (min_[level] == null) {
+            min_[level] = new float[INITIAL_CAPACITY];
+            max_[level] = new float[INITIAL_CAPACITY];
+        } else if (size == min_[level].length) {
+            float[] newMin = new float[size * 2];
+            float[] newMax = new float[size * 2];
+            System.arraycopy(min_[level], 0, newMin, 0, size);
+            System.arraycopy(max_[level], 0, newMax, 0, size);
+            min_[level] = newMin;
+            max_[level] = newMax;
+        }
+        min_[level][size] = mn;
+        max_[level][size] = mx;
+        size_[level] = ++size;
+        if (size % 2 == 0) {
+            _push(level + 1,
+                  Math.min(min_[level][size - 2], mn),
+                  Math.max(max_[level][size - 2], mx));
+        }
+    }
+
+    /**
+     * 間引き数(1バケット当りのレコード数)に対応するレベルを返す
+     */
+    int getLevel(int decimation) {
+        int level = 0;
+        while (level < MAX_LEVEL - 1 && ((long)baseRecords_ << level) < decimation)
+            level++;
+        return level;
+    }
+
+    /**
+     * levelのfirst番目からcount個のバケットの最小値・最大値を取得する
+     *
+     * @return 取得できたバケット数(first以降の連続した個数)
+     */
+    synchronized int get(int level, long first, int count, float[] mn, float[] mx) {
+        if (first < 0 || first >= size_[level])
+            return 0;
+        int len = (int)Math.min(count, size_[level] - first);
+        System.arraycopy(min_[level], (int)first, mn, 0, len);
+        System.arraycopy(max_[level], (int)first, mx, 0, len);
+        return len;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * RecordBuffer.java
+ *
+ */
+
+package com.generalrobotix.ui.view.graph;
+
+import java.util.Arrays;
+
+/**
+ * オンメモリのログレコードバッファ
+ *
+ * オブジェクト毎の固定長レコード(float数)をsegmentRecordsレコード単位のfloat配列
+ * (セグメント)に詰めて保持する。セグメントは必要になった時に確保し、
+ * 合計がbyteBudgetを超えない数までしか確保しない。
+ * レコードには追加順に0からの番号を付ける。容量を超えて追加した場合は
+ * 最も古いセグメントから上書きする(isFull()で上書きの前に検出できる)。
+ */
+public class RecordBuffer {
+    private final int[] recordLength_;
+    private final int segmentRecords_;
+    private final float[][][] segments_;   // [セグメント][オブジェクト][レコード]
+    private final double[] time_;
+    private final Object[] attachment_;
+    private final int capacity_;
+    private long size_ = 0;   // 追加したレコード数
+
+    /**
+     * @param recordLength   オブジェクト毎のレコード長(float数)
+     * @param byteBudget     使用するメモリの上限(バイト)
+     * @param segmentRecords 1セグメントのレコード数
+     */
+    public RecordBuffer(int[] recordLength, long byteBudget, int segmentRecords) {
+        recordLength_ = recordLength.clone();
+        segmentRecords_ = Math.max(1, segmentRecords);
+        long recordBytes = 8 + 8; // 時刻と付属オブジェクトの参照
+        for (int i = 0; i < recordLength_.length; i++)
+            recordBytes += 4L * recordLength_[i];
+        long segments = byteBudget / (recordBytes * segmentRecords_);
+        segments = Math.max(1, Math.min(segments, Integer.MAX_VALUE / segmentRecords_));
+        segments_ = new float[(int)segments][][];
+        capacity_ = segments_.length * segmentRecords_;
+        time_ = new double[capacity_];
+        attachment_ = new Object[capacity_];
+    }
+
+    /**
+     * 保持できるレコード数(セグメント単位に切り捨てる)
+     */
+    public int getCapacity() {
+        return capacity_;
+    }
+
+    /**
+     * 次のaddで最も古いレコードを上書きするかどうか
+     */
+    public boolean isFull() {
+        return size_ >= capacity_;
+    }
+
+    /**
+     * レコードを追加する
+     *
+     * @param time       時刻
+     * @param data       オブジェクト毎のレコード(コピーして保持する)
+     * @param attachment レコードに付属させるオブジェクト(衝突情報など)
+     * @return 追加したレコードの番号
+     */
+    public long add(double time, float[][] data, Object attachment) {
+        long index = size_;
+        int slot = (int)(index % capacity_);
+        float[][] seg = _segment(slot / segmentRecords_);
+        int offset = slot % segmentRecords_;
+        for (int i = 0; i < recordLength_.length; i++)
+            System.arraycopy(data[i], 0, seg[i], offset * recordLength_[i], recordLength_[i]);
+        time_[slot] = time;
+        attachment_[slot] = attachment;
+        size_ = index + 1;
+        return index;
+    }
+
+    /**
+     * index番目のレコードのうちオブジェクトobjの分をoutへ読み出す
+     *
+     * @return 読み出せなかった(上書き済みか未追加)場合はfalse
+     */
+    public boolean get(long index, int obj, float[] out) {
+        if (!_contains(index))
+            return false;
+        int slot = (int)(index % capacity_);
+        int len = recordLength_[obj];
+        System.arraycopy(segments_[slot / segmentRecords_][obj], (slot % segmentRecords_) * len, out, 0, len);
+        return true;
+    }
+
+    /**
+     * index番目のレコードの時刻
+     */
+    public double getTime(long index) {
+        if (!_contains(index))
+            return Double.NaN;
+        return time_[(int)(index % capacity_)];
+    }
+
+    /**
+     * index番目のレコードの付属オブジェクト
+     */
+    public Object getAttachment(long index) {
+        if (!_contains(index))
+            return null;
+        return attachment_[(int)(index % capacity_)];
+    }
+
+    /**
+     * 追加したレコード数(上書きされたものを含む)
+     */
+    public long size() {
+        return size_;
+    }
+
+    /**
+     * 確保済みのセグメントのバイト数
+     */
+    public long getByteSize() {
+        long bytes = 16L * capacity_;
+        for (int s = 0; s < segments_.length; s++) {
+            if (segments_[s] == null)
+                continue;
+            for (int i = 0; i < recordLength_.length; i++)
+                bytes += 4L * segments_[s][i].length;
+        }
+        return bytes;
+    }
+
+    /**
+     * 全てのレコードを破棄する(確保済みのセグメントは使い回す)
+     */
+    public void clear() {
+        Arrays.fill(attachment_, null);
+        size_ = 0;
+    }
+
+    private boolean _contains(long index) {
+        return index >= 0 && index < size_ && index >= size_ - capacity_;
+    }
+
+    private float[][] _segment(int s) {
+        float[][] seg = segments_[s];
+        if (seg == null) {
+            seg = new float[recordLength_.length][];
+            for (int i = 0; i < recordLength_.length; i++)
+                seg[i] = new float[segmentRecords_ * recordLength_[i]];
+            segments_[s] = seg;
+        }
+        return seg;
+    }
+}
@@ -35,10 +35,14 @@ public class TrendGraphModel
     public  static final double TIME_SCALE = 1000000;   // タイムカウントの倍率(1μsec)
     private static final double MAX_DIV = 10;   // 時間軸の最大分割数
     private static final double LOG10 = Math.log(10);
+    private static final int DEFAULT_GRAPH_WIDTH = 1024;   // グラフ幅の初期値(ピクセル)
 
     private long stepTimeCount_;    // 時間刻み幅(カウント)
 
     private double stepTime_;       // 時間刻み幅(秒)
+    private double sampleStep_;     // グラフサンプル刻み幅(秒)
+    private int decimation_ = 1;    // 間引き数(1バケット当りのレコード数, 1なら間引きなし)
+    private int graphWidth_ = DEFAULT_GRAPH_WIDTH; // グラフ幅(ピクセル)
     private double totalTime_;      // 総時間(秒)
     private double currentTime_;    // 現在時刻(秒)
 
@@ -144,16 +148,28 @@ public class TrendGraphModel
         stepTimeCount_ = stepTime;
         stepTime_ = stepTimeCount_ / TIME_SCALE;
 
-        sampleCount_ = (int)Math.floor(timeRange_ / stepTime_) + 2;  // サンプル数(前後2サンプルを追加)
-        baseCount_ = Math.round(baseTime_ / stepTime_); //- 1; // データ開始位置
+        // 表示範囲のレコード数がグラフ幅に対して多すぎる場合は
+        // 最小値・最大値で間引く(1バケット当り2サンプル)
+        long rangeCount = (long)Math.floor(timeRange_ / stepTime_);
+        decimation_ = 1;
+        if (world_ != null && world_.isUseDsik())
+            decimation_ = world_.logger_.getDecimation(rangeCount, graphWidth_);
+        if (decimation_ > 1) {
+            sampleStep_ = stepTime_ * decimation_ / 2;
+            sampleCount_ = 2 * ((int)(rangeCount / decimation_) + 2);
+        } else {
+            sampleStep_ = stepTime_;
+            sampleCount_ = (int)Math.floor(timeRange_ / stepTime_) + 2;  // サンプル数(前後2サンプルを追加)
+        }
+        baseCount_ = _toSampleCount(baseTime_); //- 1; // データ開始位置
         
         // 全データ系列の更新
         Iterator<DataModel> itr = dataModelMap_.values().iterator();
         while (itr.hasNext()) {
             DataModel dm = (DataModel)itr.next();
             dm.dataSeries.setSize(sampleCount_);
-            dm.dataSeries.setXStep(stepTime_);
-            dm.dataSeries.setXOffset(baseCount_);
+            dm.dataSeries.setXStep(sampleStep_);
+            dm.dataSeries.setXOffset(baseCount_ * sampleStep_);
         }
         Iterator<AttitudeDataModel> itr0 = attitudeDataModelMap_.values().iterator();
         while (itr0.hasNext()) {
@@ -161,13 +177,26 @@ public class TrendGraphModel
         	for(int i=0; i<3; i++){
         		if(ad.rpySeries[i]!=null){
 	        		ad.rpySeries[i].setSize(sampleCount_);
-	        		ad.rpySeries[i].setXStep(stepTime_);
-	        		ad.rpySeries[i].setXOffset(baseCount_);
+	        		ad.rpySeries[i].setXStep(sampleStep_);
+	        		ad.rpySeries[i].setXOffset(baseCount_ * sampleStep_);
         		}
         	}
         }
     }
 
+    /**
+     * 時刻をサンプル位置に変換
+     *     間引き時はバケット先頭のサンプル位置(偶数)に揃える
+     *
+     * @param   time    double  時刻(秒)
+     * @return  long    サンプル位置
+     */
+    private long _toSampleCount(double time) {
+        if (decimation_ > 1)
+            return 2 * Math.round(time / (stepTime_ * decimation_));
+        return Math.round(time / stepTime_);
+    }
+
     /**
      * 総時間設定
      *
@@ -241,12 +270,12 @@ public class TrendGraphModel
         currentTime_ = currentTime / TIME_SCALE;
 
         long oldBaseCount = baseCount_;
-        long totalCount = Math.round(totalTime_ / stepTime_);
+        long totalCount = _toSampleCount(totalTime_);
         markerFixed_ = (timeRange_ * fixedMarkerPos_ < totalTime_);
         if (markerFixed_) { 
             markerPos_ = fixedMarkerPos_;
             baseTime_ = currentTime_ - timeRange_ * markerPos_; // グラフ左端位置
-            baseCount_ = Math.round(baseTime_ / stepTime_); // - 1; // データ開始位置
+            baseCount_ = _toSampleCount(baseTime_); // - 1; // データ開始位置
         } else {
             markerPos_ = currentTime_ / timeRange_;
             baseTime_ = 0;
@@ -327,12 +356,12 @@ public class TrendGraphModel
             		attitudeDataModel = new AttitudeDataModel();
                     attitudeDataModelMap_.put(dataItem.getAttributePath(),attitudeDataModel);
             	}
-            	ds = new DataSeries(sampleCount_, baseCount_ * stepTime_, stepTime_ );
+            	ds = new DataSeries(sampleCount_, baseCount_ * sampleStep_, sampleStep_ );
             	attitudeDataModel.setRPYSeries(dataItem.index, ds);
             	for(int i=0; i<4; i++){
             		DataItem di = new DataItem(dataItem.object, dataItem.node, dataItem.attribute, i, "");
             		if(dataModelMap_.get(di.toString())==null){
-            			DataSeries dataSeries = new DataSeries(sampleCount_, baseCount_ * stepTime_, stepTime_ );
+            			DataSeries dataSeries = new DataSeries(sampleCount_, baseCount_ * sampleStep_, sampleStep_ );
 	            		dm = new DataModel(di, dataSeries);
 	            		dataModelMap_.put(di.toString(), dm);
 	            		attitudeDataModel.setAxisAngleSeries(i,dataSeries);
@@ -343,8 +372,8 @@ public class TrendGraphModel
 	            dataItemCount_.put(key, new Integer(1));
 	            ds = new DataSeries(
 	                sampleCount_,
-	                baseCount_ * stepTime_, // baseTime_, ★これではダメ
-	                stepTime_
+	                baseCount_ * sampleStep_, // baseTime_, ★これではダメ
+	                sampleStep_
 	            );
 	            dm = new DataModel(dataItem, ds);
 	            dataModelMap_.put(key, dm);
@@ -491,7 +520,10 @@ public class TrendGraphModel
         if(world_ == null){
             return;
         } else if (world_.isUseDsik()){
-            world_.logger_.getData(origin, offset, count);
+            if (decimation_ > 1)
+                world_.logger_.getData(origin / 2, offset, (count + 1) / 2, decimation_);
+            else
+                world_.logger_.getData(origin, offset, count);
         }else{
 	        int changePos = world_.getChangePosition();
 	        int counter = changePos - ((int)origin + offset);
@@ -655,6 +687,13 @@ public class TrendGraphModel
     }
     
     public void updateGraph(){
+    	// グラフ幅が変わった場合は間引き数を計算し直して全データを読み直す
+    	int width = gPanel_.getSize().x;
+    	if(width > 0 && width != graphWidth_){
+    		graphWidth_ = width;
+    		setStepTime(stepTimeCount_);
+    		prevLogSize_ = -1;
+    	}
     	if(world_!=null){
 	    	Double time = world_.getTime();
 	        if(time!=null)
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * SimulationProfilerPanel.java
+ *
+ */
+package com.generalrobotix.ui.view.simulation;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.events.SelectionListener;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+
+import com.generalrobotix.ui.util.GrxDebugUtil;
+import com.generalrobotix.ui.util.MessageBundle;
+import com.generalrobotix.ui.util.StepProfiler;
+
+/**
+ * シミュレーションの1ステップ内の処理毎の時間を表示するパネル
+ */
+@SuppressWarnings("serial") //$NON-NLS-1$
+public class SimulationProfilerPanel extends Composite {
+  private static final String FORMAT = "%.1f"; //$NON-NLS-1$
+  private static final int COLUMN_WIDTH = 60;
+  private static final int PHASE_COLUMN_WIDTH = 110;
+
+  private StepProfiler profiler_;
+  private Table table_;
+  private Label lblRealTime_;
+  private Button btnSave_;
+
+  public SimulationProfilerPanel(Composite parent, int style) {
+    super(parent, style);
+    setLayout(new GridLayout(1, false));
+
+    Label label = new Label(this, SWT.SHADOW_NONE);
+    label.setText(MessageBundle.get("panel.simulation.profiler.title")); //$NON-NLS-1$
+
+    lblRealTime_ = new Label(this, SWT.SHADOW_NONE);
+    lblRealTime_.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+
+    table_ = new Table(this, SWT.BORDER | SWT.FULL_SELECTION);
+    table_.setHeaderVisible(true);
+    table_.setLinesVisible(true);
+    table_.setLayoutData(new GridData(GridData.FILL_BOTH));
+    String[] header = {
+        MessageBundle.get("panel.simulation.profiler.phase"), //$NON-NLS-1$
+        MessageBundle.get("panel.simulation.profiler.count"), //$NON-NLS-1$
+        MessageBundle.get("panel.simulation.profiler.mean"), //$NON-NLS-1$
+        "p50", "p99", //$NON-NLS-1$ //$NON-NLS-2$
+        MessageBundle.get("panel.simulation.profiler.max") }; //$NON-NLS-1$
+    for (int i = 0; i < header.length; i++) {
+      TableColumn column = new TableColumn(table_, i == 0 ? SWT.LEFT : SWT.RIGHT);
+      column.setText(header[i]);
+      column.setWidth(i == 0 ? PHASE_COLUMN_WIDTH : COLUMN_WIDTH);
+    }
+
+    btnSave_ = new Button(this, SWT.PUSH);
+    btnSave_.setText(MessageBundle.get("panel.simulation.profiler.save")); //$NON-NLS-1$
+    btnSave_.addSelectionListener(new SelectionListener() {
+      public void widgetDefaultSelected(SelectionEvent e) {
+      }
+
+      public void widgetSelected(SelectionEvent e) {
+        _saveCSV();
+      }
+    });
+    setProfiler(null);
+    setRealTime(0, 0);
+  }
+
+  /**
+   * 実時間比(シミュレーション時間/実時間)と実時間からの遅延回数を表示する
+   */
+  public void setRealTime(double factor, long overruns) {
+    if (isDisposed())
+      return;
+    lblRealTime_.setText(MessageBundle.get("panel.simulation.profiler.realTimeFactor") + ": " //$NON-NLS-1$ //$NON-NLS-2$
+        + String.format("%.2f", factor) + "   " //$NON-NLS-1$ //$NON-NLS-2$
+        + MessageBundle.get("panel.simulation.profiler.overrun") + ": " + overruns); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * 表示するプロファイラを設定する
+   */
+  public void setProfiler(StepProfiler profiler) {
+    profiler_ = profiler;
+    btnSave_.setEnabled(profiler != null);
+    refresh();
+  }
+
+  /**
+   * 表示を更新する
+   */
+  public void refresh() {
+    if (isDisposed())
+      return;
+    if (profiler_ == null) {
+      table_.removeAll();
+      return;
+    }
+    int n = profiler_.getPhaseCount();
+    if (table_.getItemCount() != n) {
+      table_.removeAll();
+      for (int i = 0; i < n; i++)
+        new TableItem(table_, SWT.NONE);
+    }
+    for (int i = 0; i < n; i++) {
+      TableItem item = table_.getItem(i);
+      item.setText(0, profiler_.getPhaseName(i));
+      item.setText(1, String.valueOf(profiler_.getCount(i)));
+      item.setText(2, _usec(profiler_.getMean(i)));
+      item.setText(3, _usec(profiler_.getPercentile(i, 50)));
+      item.setText(4, _usec(profiler_.getPercentile(i, 99)));
+      item.setText(5, _usec(profiler_.getMax(i)));
+    }
+  }
+
+  private static String _usec(double nanos) {
+    return String.format(FORMAT, nanos / 1000.0);
+  }
+
+  private void _saveCSV() {
+    if (profiler_ == null)
+      return;
+    FileDialog fdlg = new FileDialog(getShell(), SWT.SAVE);
+    fdlg.setFileName("profile.csv"); //$NON-NLS-1$
+    fdlg.setFilterExtensions(new String[]{"*.csv"}); //$NON-NLS-1$
+    String fPath = fdlg.open();
+    if (fPath == null)
+      return;
+    try {
+      profiler_.saveCSV(new File(fPath));
+    } catch (IOException e) {
+      GrxDebugUtil.printErr("SimulationProfilerPanel:", e); //$NON-NLS-1$
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.generalrobotix.ui.view.tdview;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -88,6 +89,9 @@ public class BehaviorManager implements WorldReplaceListener {
     private InvKinemaResolver resolver_;
     private boolean itemChangeFlag_ = false;
     private boolean messageSkip_ = false;
+    // 編集モードの干渉チェックはGUIプロセス内で行う
+    private CollisionChecker collisionChecker_ = new CollisionChecker();
+    private boolean checkerChangeFlag_ = true;
     
     private List<GrxModelItem> currentModels_ = null;
     private List<GrxCollisionPairItem> currentCollisionPairs_ = null;
@@ -110,6 +114,7 @@ public class BehaviorManager implements WorldReplaceListener {
         pickCanvas.setMode(PickTool.GEOMETRY_INTERSECT_INFO);
 
         handler_ = new IseBehaviorHandler(this);
+        handler_.setInvKinemaResolver(resolver_);
 
         behavior_ = new IseBehavior(handler_);
  
@@ -241,27 +246,13 @@ public class BehaviorManager implements WorldReplaceListener {
 	 * 
 	 * dynamics server object is created and existing model items are registered.
 	 * And then, collision check pairs between items are registered.
+	 * Collision checks and inverse kinematics of the edit mode run in this
+	 * process, so this is not called by the 3D view. Call it only when a
+	 * dynamics server is really needed.
 	 * @return true initialized successfully, false otherwise
 	 */
 	public boolean initDynamicsSimulator() {	
-		boolean ModelModified = false;
-		Iterator<GrxModelItem> itr = currentModels_.iterator();
-		while(itr.hasNext()){
-			GrxModelItem model = itr.next();
-			if(model.isModified()){
-				ModelModified = true;
-				if(!messageSkip_){
-					final String name = model.getName();
-					Display display = Display.getDefault();
-					display.syncExec(new Runnable(){
-						public void run(){
-							MessageDialog.openInformation(null, "", MessageBundle.get("BehaviorManager.dialog.message.reloadModel")+name+") "); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-						}
-					});
-				}
-			}
-			if(ModelModified) return false;
-		}
+		if(!_checkModelModified()) return false;
 		if(!itemChangeFlag_) return true;
 		if(getDynamicsSimulator(true) == null) return false;
 
@@ -295,45 +286,20 @@ public class BehaviorManager implements WorldReplaceListener {
 			}
 			
             // set collision check pairs 
-			Map<String, GrxModelItem> modelmap = (Map<String, GrxModelItem>)manager_.getItemMap(GrxModelItem.class);
-			for (int i=0; i<currentCollisionPairs_.size(); i++) {
-				GrxCollisionPairItem item = (GrxCollisionPairItem) currentCollisionPairs_.get(i);
-				GrxModelItem m1 = modelmap.get(item.getStr("objectName1", "")); //$NON-NLS-1$ //$NON-NLS-2$
-				GrxModelItem m2 = modelmap.get(item.getStr("objectName2", "")); //$NON-NLS-1$ //$NON-NLS-2$
-				if (m1 == null || m2 == null) continue;
-				Vector<GrxLinkItem> links1, links2;
-				String lname1 = item.getStr("jointName1",""); //$NON-NLS-1$ //$NON-NLS-2$
-				if (lname1.equals("")){ //$NON-NLS-1$
-					links1 = m1.links_;
-				}else{
-					links1 = new Vector<GrxLinkItem>();
-					GrxLinkItem l = m1.getLink(lname1);
-					if (l != null) links1.add(l);
-				}
-				String lname2 = item.getStr("jointName2",""); //$NON-NLS-1$ //$NON-NLS-2$
-				if (lname2.equals("")){ //$NON-NLS-1$
-					links2 = m2.links_;
-				}else{
-					links2 = new Vector<GrxLinkItem>();
-					GrxLinkItem l = m2.getLink(lname2);
-					if (l != null) links2.add(l);
-				}
-				for (int j=0; j<links1.size(); j++){
-					for (int k=0; k<links2.size(); k++){
-						currentDynamics_.registerIntersectionCheckPair(
-								m1.getName(), links1.get(j).getName(),
-								m2.getName(), links2.get(k).getName(),
-								links1.get(j).getDbl("tolerance",0.0)+links2.get(k).getDbl("tolerance",0.0)); //$NON-NLS-1$ //$NON-NLS-2$
-					}
-				}
+			List<GrxLinkItem[]> pairs = _getCheckPairs();
+			for (int i=0; i<pairs.size(); i++) {
+				GrxLinkItem l1 = pairs.get(i)[0];
+				GrxLinkItem l2 = pairs.get(i)[1];
+				currentDynamics_.registerIntersectionCheckPair(
+						l1.model().getName(), l1.getName(),
+						l2.model().getName(), l2.getName(),
+						l1.getDbl("tolerance",0.0)+l2.getDbl("tolerance",0.0)); //$NON-NLS-1$ //$NON-NLS-2$
 			}
             //state_.value = null;
 		} catch (Exception e) {
 			GrxDebugUtil.printErr("initDynamicsSimulator:", e); //$NON-NLS-1$
 			return false;
 		}
-		resolver_.setDynamicsSimulator(currentDynamics_);
-		handler_.setInvKinemaResolver(resolver_);
 		itemChangeFlag_ = false;
 		return true;
 	}
@@ -345,18 +311,89 @@ public class BehaviorManager implements WorldReplaceListener {
 		behavior_.removeClickListener( listener );
 	}
 	
-	private boolean setCharacterData(){
+	/**
+	 * @brief check that all models can be used for collision check
+	 *
+	 * A message is shown if a model has been modified and not reloaded.
+	 * @return false if a model has been modified
+	 */
+	private boolean _checkModelModified(){
+		Iterator<GrxModelItem> itr = currentModels_.iterator();
+		while(itr.hasNext()){
+			GrxModelItem model = itr.next();
+			if(model.isModified()){
+				if(!messageSkip_){
+					final String name = model.getName();
+					Display display = Display.getDefault();
+					display.syncExec(new Runnable(){
+						public void run(){
+							MessageDialog.openInformation(null, "", MessageBundle.get("BehaviorManager.dialog.message.reloadModel")+name+") "); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						}
+					});
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @brief get pairs of links given by collision pair items
+	 * @return pairs of links
+	 */
+	@SuppressWarnings("unchecked") //$NON-NLS-1$
+	private List<GrxLinkItem[]> _getCheckPairs(){
+		List<GrxLinkItem[]> pairs = new ArrayList<GrxLinkItem[]>();
+		Map<String, GrxModelItem> modelmap = (Map<String, GrxModelItem>)manager_.getItemMap(GrxModelItem.class);
+		for (int i=0; i<currentCollisionPairs_.size(); i++) {
+			GrxCollisionPairItem item = (GrxCollisionPairItem) currentCollisionPairs_.get(i);
+			GrxModelItem m1 = modelmap.get(item.getStr("objectName1", "")); //$NON-NLS-1$ //$NON-NLS-2$
+			GrxModelItem m2 = modelmap.get(item.getStr("objectName2", "")); //$NON-NLS-1$ //$NON-NLS-2$
+			if (m1 == null || m2 == null) continue;
+			Vector<GrxLinkItem> links1, links2;
+			String lname1 = item.getStr("jointName1",""); //$NON-NLS-1$ //$NON-NLS-2$
+			if (lname1.equals("")){ //$NON-NLS-1$
+				links1 = m1.links_;
+			}else{
+				links1 = new Vector<GrxLinkItem>();
+				GrxLinkItem l = m1.getLink(lname1);
+				if (l != null) links1.add(l);
+			}
+			String lname2 = item.getStr("jointName2",""); //$NON-NLS-1$ //$NON-NLS-2$
+			if (lname2.equals("")){ //$NON-NLS-1$
+				links2 = m2.links_;
+			}else{
+				links2 = new Vector<GrxLinkItem>();
+				GrxLinkItem l = m2.getLink(lname2);
+				if (l != null) links2.add(l);
+			}
+			for (int j=0; j<links1.size(); j++){
+				for (int k=0; k<links2.size(); k++){
+					pairs.add(new GrxLinkItem[]{ links1.get(j), links2.get(k) });
+				}
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * @brief prepare the collision checker in the GUI process
+	 *
+	 * Trees of links are rebuilt only when items have been changed.
+	 * Positions of links are read by the checker itself.
+	 * @return true if collision check can be done
+	 */
+	private boolean _updateCollisionChecker(){
 		if(currentCollisionPairs_.isEmpty() || currentModels_.isEmpty()) return false;
-		if(!initDynamicsSimulator())	return false;
-		if (currentDynamics_ == null) return false;
-		for (int i=0; i<currentModels_.size(); i++)  {
-			GrxModelItem model = currentModels_.get(i);
-			String name = model.getName();
-			GrxLinkItem base = model.rootLink();
-			double[] data = model.getTransformArray(base);
-			currentDynamics_.setCharacterLinkData(name, base.getName(), LinkDataType.ABS_TRANSFORM, data);
-			data = model.getJointValues();
-			currentDynamics_.setCharacterAllLinkData(name, LinkDataType.JOINT_VALUE, data);
+		if(!_checkModelModified()) return false;
+		if(checkerChangeFlag_){
+			try{
+				if(!collisionChecker_.setPairs(_getCheckPairs())) return false;
+			}catch(Exception e){
+				GrxDebugUtil.printErr("updateCollisionChecker:", e); //$NON-NLS-1$
+				return false;
+			}
+			checkerChangeFlag_ = false;
 		}
 		return true;
 	}
@@ -364,55 +401,49 @@ public class BehaviorManager implements WorldReplaceListener {
 	/**
 	 * @brief get collision information
 	 * 
-	 * Before calling this method, dynamics server object must be initialized by calling initDynamicsSimulator()
-	 * @param modelList list of model items. Positions of these items are updated
+	 * Collisions are checked in the GUI process with the current positions of links.
 	 * @return collision information
 	 */
 	public Collision[] getCollision() {
-		if(!setCharacterData())
-			return null;
-		if (currentDynamics_.checkCollision(true)){
-			WorldStateHolder wsH = new WorldStateHolder();
-			currentDynamics_.getWorldState(wsH);
-			return wsH.value.collisions;
-		}else{
+		if(!_updateCollisionChecker())
 			return null;
-		}
+		return collisionChecker_.checkCollision();
 	}
 
 	/**
 	 * @brief get distance information
 	 * 
-	 * Before calling this method, dynamics server object must be initialized by calling initDynamicsSimulator()
-	 * @param modelList list of model items. Positions of these items are updated
+	 * Distances are computed in the GUI process with the current positions of links.
 	 * @return distance information
 	 */
 	public Distance[] getDistance() {
-		if(!setCharacterData())
+		if(!_updateCollisionChecker())
 			return null;
-		return currentDynamics_.checkDistance();
+		return collisionChecker_.checkDistance();
 	}
 	
 	/**
 	 * @brief get intersection information
 	 * 
-	 * Before calling this method, dynamics server object must be initialized by calling initDynamicsSimulator()
-	 * @param modelList list of model items. Positions of these items are updated
+	 * Intersections are checked in the GUI process with the current positions of links.
 	 * @return intersecting pairs
 	 */
 	public LinkPair[] getIntersection() {
-		if(!setCharacterData())
+		if(!_updateCollisionChecker())
 			return null;
-		return currentDynamics_.checkIntersection(true);
+		return collisionChecker_.checkIntersection();
 	}
 
 	public void setItem(List<GrxModelItem> models, List<GrxCollisionPairItem> cols){
 		currentModels_ = models;
 		currentCollisionPairs_ = cols;
 		itemChangeFlag_ = true;
+		checkerChangeFlag_ = true;
 	}
 	
 	public void destroyDynamicsSimulator(){
+		if (currentDynamics_ == null)
+			return;
 		try {
 			currentDynamics_.destroy();
 		} catch (Exception e) {
@@ -427,5 +458,6 @@ public class BehaviorManager implements WorldReplaceListener {
 	
 	public void setItemChange(){
 		itemChangeFlag_ = true;
+		checkerChangeFlag_ = true;
 	}
 }
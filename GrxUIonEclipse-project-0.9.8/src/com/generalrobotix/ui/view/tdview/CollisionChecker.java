@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * CollisionChecker.java
+ */
+package com.generalrobotix.ui.view.tdview;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.j3d.Transform3D;
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Vector3d;
+
+import jp.go.aist.hrp.simulator.BodyInfo;
+import jp.go.aist.hrp.simulator.Collision;
+import jp.go.aist.hrp.simulator.CollisionPoint;
+import jp.go.aist.hrp.simulator.Distance;
+import jp.go.aist.hrp.simulator.LinkInfo;
+import jp.go.aist.hrp.simulator.LinkPair;
+import jp.go.aist.hrp.simulator.ShapeInfo;
+import jp.go.aist.hrp.simulator.TransformedShapeIndex;
+
+import com.generalrobotix.ui.item.GrxLinkItem;
+import com.generalrobotix.ui.item.GrxModelItem;
+import com.generalrobotix.ui.util.AABBTree;
+
+/**
+ * @brief checks collisions between links in the GUI process
+ *
+ * Each link has an AABBTree of the shapes given by ModelLoader in the link
+ * frame, which is the same geometry as DynamicsSimulator uses. Checks read
+ * the current transforms of links from the scene graph, so nothing has to
+ * be sent to a server when a link is moved. Pairs whose bounding boxes in
+ * the world frame are apart are skipped before the trees are searched.
+ */
+public class CollisionChecker {
+	// contacts reported for one pair of links
+	private static final int MAX_CONTACTS_PER_PAIR = 64;
+
+	private List<GrxLinkItem[]> pairs_ = new ArrayList<GrxLinkItem[]>();
+	private Map<GrxLinkItem, Mesh> meshes_ = new HashMap<GrxLinkItem, Mesh>();
+
+	private final Transform3D t3d_ = new Transform3D();
+	private final Matrix3d m3d_ = new Matrix3d();
+	private final Vector3d v3d_ = new Vector3d();
+	private final double[] box1_ = new double[6];
+	private final double[] box2_ = new double[6];
+
+	/**
+	 * @brief tree of a link and its current transform
+	 */
+	private static class Mesh {
+		final BodyInfo source_;
+		final AABBTree tree_;
+		final double[] T_ = new double[12];
+
+		Mesh(BodyInfo source, AABBTree tree) {
+			source_ = source;
+			tree_ = tree;
+		}
+	}
+
+	/**
+	 * @brief set pairs of links to be checked
+	 *
+	 * Trees are built for links which are new or whose model has been
+	 * reloaded. Trees of the other links are kept.
+	 * @param pairs pairs of links
+	 * @return false if a model has been modified and has no BodyInfo
+	 */
+	public boolean setPairs(List<GrxLinkItem[]> pairs) {
+		Map<GrxLinkItem, Mesh> meshes = new HashMap<GrxLinkItem, Mesh>();
+		Map<GrxModelItem, Object[]> infos = new HashMap<GrxModelItem, Object[]>();
+		for (int i = 0; i < pairs.size(); i++) {
+			for (int j = 0; j < 2; j++) {
+				GrxLinkItem link = pairs.get(i)[j];
+				if (meshes.containsKey(link))
+					continue;
+				GrxModelItem model = link.model();
+				BodyInfo bInfo = model.getBodyInfo();
+				if (bInfo == null)
+					return false;
+				Mesh mesh = meshes_.get(link);
+				if (mesh == null || mesh.source_ != bInfo) {
+					Object[] info = infos.get(model);
+					if (info == null) {
+						info = new Object[] { bInfo.links(), bInfo.shapes() };
+						infos.put(model, info);
+					}
+					mesh = new Mesh(bInfo, _createTree(model, link, (LinkInfo[]) info[0], (ShapeInfo[]) info[1]));
+				}
+				meshes.put(link, mesh);
+			}
+		}
+		meshes_ = meshes;
+		pairs_ = new ArrayList<GrxLinkItem[]>(pairs);
+		return true;
+	}
+
+	/**
+	 * @brief find contacts of all pairs
+	 * @return colliding pairs with their contact points, or null if no pair collides
+	 */
+	public Collision[] checkCollision() {
+		_updateTransforms();
+		List<Collision> collisions = new ArrayList<Collision>();
+		for (int i = 0; i < pairs_.size(); i++) {
+			GrxLinkItem[] pair = pairs_.get(i);
+			Mesh m1 = meshes_.get(pair[0]);
+			Mesh m2 = meshes_.get(pair[1]);
+			double tolerance = _tolerance(pair);
+			if (!_boxesOverlap(m1, m2, tolerance))
+				continue;
+			final List<CollisionPoint> points = new ArrayList<CollisionPoint>();
+			final double tol = tolerance;
+			AABBTree.collide(m1.tree_, m1.T_, m2.tree_, m2.T_, tolerance, new AABBTree.ContactListener() {
+				public boolean contact(double[] point, double[] normal, double distance, double depth) {
+					// closer than the tolerance, or penetrating by depth
+					double idepth = (distance > 0) ? tol - distance : tol + depth;
+					points.add(new CollisionPoint(point.clone(), normal.clone(), idepth));
+					return points.size() < MAX_CONTACTS_PER_PAIR;
+				}
+			});
+			if (!points.isEmpty()) {
+				collisions.add(new Collision(_linkPair(pair, tolerance),
+						points.toArray(new CollisionPoint[points.size()])));
+			}
+		}
+		return collisions.isEmpty() ? null : collisions.toArray(new Collision[collisions.size()]);
+	}
+
+	/**
+	 * @brief compute the minimum distance of all pairs
+	 * @return distances and closest points of all pairs
+	 */
+	public Distance[] checkDistance() {
+		_updateTransforms();
+		Distance[] distances = new Distance[pairs_.size()];
+		for (int i = 0; i < pairs_.size(); i++) {
+			GrxLinkItem[] pair = pairs_.get(i);
+			Mesh m1 = meshes_.get(pair[0]);
+			Mesh m2 = meshes_.get(pair[1]);
+			double[] p0 = new double[3];
+			double[] p1 = new double[3];
+			double d = AABBTree.distance(m1.tree_, m1.T_, m2.tree_, m2.T_, p0, p1);
+			if (Double.isInfinite(d)) {
+				// a link without shape
+				d = 0;
+				p0[0] = m1.T_[3]; p0[1] = m1.T_[7]; p0[2] = m1.T_[11];
+				p1[0] = m2.T_[3]; p1[1] = m2.T_[7]; p1[2] = m2.T_[11];
+			}
+			distances[i] = new Distance(_linkPair(pair, _tolerance(pair)), d, p0, p1);
+		}
+		return distances;
+	}
+
+	/**
+	 * @brief find pairs which are closer than their tolerance
+	 * @return intersecting pairs
+	 */
+	public LinkPair[] checkIntersection() {
+		_updateTransforms();
+		List<LinkPair> pairs = new ArrayList<LinkPair>();
+		for (int i = 0; i < pairs_.size(); i++) {
+			GrxLinkItem[] pair = pairs_.get(i);
+			Mesh m1 = meshes_.get(pair[0]);
+			Mesh m2 = meshes_.get(pair[1]);
+			double tolerance = _tolerance(pair);
+			if (_boxesOverlap(m1, m2, tolerance) &&
+					AABBTree.collide(m1.tree_, m1.T_, m2.tree_, m2.T_, tolerance, null)) {
+				pairs.add(_linkPair(pair, tolerance));
+			}
+		}
+		return pairs.toArray(new LinkPair[pairs.size()]);
+	}
+
+	/**
+	 * @brief make a tree of the shapes of a link in the link frame
+	 */
+	private AABBTree _createTree(GrxModelItem model, GrxLinkItem link, LinkInfo[] links, ShapeInfo[] shapes) {
+		int index = model.links_.indexOf(link);
+		if (index < 0 || index >= links.length)
+			return new AABBTree(new double[0], new int[0]);
+		TransformedShapeIndex[] tsi = links[index].shapeIndices;
+		int numVertices = 0;
+		int numTriangles = 0;
+		for (int i = 0; i < tsi.length; i++) {
+			numVertices += shapes[tsi[i].shapeIndex].vertices.length;
+			numTriangles += shapes[tsi[i].shapeIndex].triangles.length;
+		}
+		double[] vertices = new double[numVertices];
+		int[] triangles = new int[numTriangles];
+		int nv = 0;
+		int nt = 0;
+		for (int i = 0; i < tsi.length; i++) {
+			ShapeInfo shape = shapes[tsi[i].shapeIndex];
+			double[] T = tsi[i].transformMatrix;
+			float[] v = shape.vertices;
+			for (int j = 0; j < v.length; j += 3) {
+				for (int r = 0; r < 3; r++) {
+					vertices[nv + j + r] = T[r * 4] * v[j] + T[r * 4 + 1] * v[j + 1] + T[r * 4 + 2] * v[j + 2] + T[r * 4 + 3];
+				}
+			}
+			int offset = nv / 3;
+			for (int j = 0; j < shape.triangles.length; j++)
+				triangles[nt + j] = shape.triangles[j] + offset;
+			nv += v.length;
+			nt += shape.triangles.length;
+		}
+		return new AABBTree(vertices, triangles);
+	}
+
+	/**
+	 * @brief read transforms of links from the scene graph
+	 */
+	private void _updateTransforms() {
+		for (Map.Entry<GrxLinkItem, Mesh> e : meshes_.entrySet()) {
+			double[] T = e.getValue().T_;
+			e.getKey().tg_.getTransform(t3d_);
+			t3d_.get(m3d_, v3d_);
+			T[0] = m3d_.m00; T[1] = m3d_.m01; T[2]  = m3d_.m02; T[3]  = v3d_.x;
+			T[4] = m3d_.m10; T[5] = m3d_.m11; T[6]  = m3d_.m12; T[7]  = v3d_.y;
+			T[8] = m3d_.m20; T[9] = m3d_.m21; T[10] = m3d_.m22; T[11] = v3d_.z;
+		}
+	}
+
+	/**
+	 * @brief check bounding boxes of two links in the world frame
+	 */
+	private boolean _boxesOverlap(Mesh m1, Mesh m2, double tolerance) {
+		m1.tree_.getWorldBounds(m1.T_, box1_);
+		m2.tree_.getWorldBounds(m2.T_, box2_);
+		for (int k = 0; k < 3; k++) {
+			if (box1_[k] > box2_[k + 3] + tolerance || box2_[k] > box1_[k + 3] + tolerance)
+				return false;
+		}
+		return true;
+	}
+
+	private double _tolerance(GrxLinkItem[] pair) {
+		return pair[0].getDbl("tolerance", 0.0) + pair[1].getDbl("tolerance", 0.0); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private LinkPair _linkPair(GrxLinkItem[] pair, double tolerance) {
+		return new LinkPair(pair[0].model().getName(), pair[0].getName(),
+				pair[1].model().getName(), pair[1].getName(), tolerance);
+	}
+}
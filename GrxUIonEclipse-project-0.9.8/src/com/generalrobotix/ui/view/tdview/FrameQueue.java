@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * FrameQueue.java
+ */
+package com.generalrobotix.ui.view.tdview;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @brief bounded queue of frames between the renderer and an encoder
+ *
+ * A fixed number of pixel buffers(0xRRGGBB, top to bottom) are allocated
+ * when the queue is made and are passed around between the two threads,
+ * so memory use does not depend on the length of the movie. put() blocks
+ * while all buffers are waiting to be encoded.
+ */
+public class FrameQueue {
+	private static final long POLL_TIMEOUT = 100; // [ms]
+
+	private final int width_;
+	private final int height_;
+	private final BlockingQueue<int[]> free_;
+	private final BlockingQueue<int[]> filled_;
+	// no more frames will be put
+	private volatile boolean closed_ = false;
+	// the encoder has stopped
+	private volatile boolean aborted_ = false;
+
+	/**
+	 * @brief constructor
+	 * @param width width of frames
+	 * @param height height of frames
+	 * @param capacity number of frame buffers
+	 */
+	public FrameQueue(int width, int height, int capacity) {
+		width_ = width;
+		height_ = height;
+		free_ = new ArrayBlockingQueue<int[]>(capacity);
+		filled_ = new ArrayBlockingQueue<int[]>(capacity);
+		for (int i = 0; i < capacity; i++)
+			free_.add(new int[width * height]);
+	}
+
+	public int getWidth() {
+		return width_;
+	}
+
+	public int getHeight() {
+		return height_;
+	}
+
+	/**
+	 * @brief copy an image into a free buffer and queue it
+	 *
+	 * This blocks until a buffer is released by the encoder.
+	 * @param image image whose size is the same as frames
+	 * @return false if the encoder has stopped
+	 */
+	public boolean put(BufferedImage image) throws InterruptedException {
+		int[] frame = null;
+		while (frame == null) {
+			if (aborted_)
+				return false;
+			frame = free_.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		DataBuffer db = image.getRaster().getDataBuffer();
+		if (db instanceof DataBufferInt && db.getNumBanks() == 1 &&
+				(image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_RGB) &&
+				image.getWidth() == width_ && image.getHeight() == height_) {
+			System.arraycopy(((DataBufferInt) db).getData(), 0, frame, 0, frame.length);
+		} else {
+			image.getRGB(0, 0, width_, height_, frame, 0, width_);
+		}
+		filled_.put(frame);
+		return true;
+	}
+
+	/**
+	 * @brief take the oldest frame
+	 *
+	 * The frame must be given back by release() after it is encoded.
+	 * @return frame, or null if the queue has been closed and is empty
+	 */
+	public int[] take() throws InterruptedException {
+		while (true) {
+			int[] frame = filled_.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (frame != null)
+				return frame;
+			if ((closed_ && filled_.isEmpty()) || aborted_)
+				return null;
+		}
+	}
+
+	/**
+	 * @brief give back a frame taken by take()
+	 */
+	public void release(int[] frame) {
+		free_.offer(frame);
+	}
+
+	/**
+	 * @brief tell that no more frames will be put
+	 */
+	public void close() {
+		closed_ = true;
+	}
+
+	/**
+	 * @brief tell that the encoder has stopped
+	 *
+	 * Frames which are put after this are discarded.
+	 */
+	public void abort() {
+		aborted_ = true;
+		filled_.clear();
+	}
+
+	public boolean isAborted() {
+		return aborted_;
+	}
+
+	/**
+	 * @brief get the number of frames waiting to be encoded
+	 */
+	public int size() {
+		return filled_.size();
+	}
+}
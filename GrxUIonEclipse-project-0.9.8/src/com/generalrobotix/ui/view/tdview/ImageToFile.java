@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * ImageToFile.java
+ */
+package com.generalrobotix.ui.view.tdview;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.generalrobotix.ui.util.GrxDebugUtil;
+
+/**
+ * @brief writes frames to a Motion JPEG AVI file or to PNG files without JMF
+ *
+ * This is used when no JMF codec is available. Frames are encoded on
+ * threads of this class, so rendering and encoding run in parallel. Each
+ * thread compresses whole frames, and chunks of AVI are written in the
+ * order of frames. The usage is the same as ImageToMovie: startProcess(),
+ * pushImage() for each frame and endProcess().
+ */
+public class ImageToFile {
+	public static final String MJPEG_AVI = "MJPEG_AVI"; //$NON-NLS-1$
+	public static final String PNG_SEQUENCE = "PNG_SEQUENCE"; //$NON-NLS-1$
+
+	private static final int QUEUE_SIZE = 4;
+	private static final float JPEG_QUALITY = 0.9f;
+	// AVIF_HASINDEX
+	private static final int AVI_HAS_INDEX = 0x10;
+	// AVIIF_KEYFRAME
+	private static final int AVI_KEY_FRAME = 0x10;
+	// sizes and offsets of AVI 1.0 are 32bit, and many players read them as signed
+	private static final long AVI_MAX_SIZE = Integer.MAX_VALUE;
+
+	private final String fileType_;
+	private final String path_;
+	private final float frameRate_;
+	private boolean overwrite_ = false;
+	private final FrameQueue queue_;
+	private final Encoder[] encoders_;
+	private Thread[] threads_;
+	private volatile boolean succeeded_ = true;
+	// the AVI file has reached AVI_MAX_SIZE. frames before it are kept
+	private volatile boolean truncated_ = false;
+	// the first error which has stopped writing
+	private volatile Exception error_ = null;
+	// frames taken from the queue. guarded by queue_
+	private int taken_ = 0;
+	// frames written. guarded by this
+	private int frameCount_ = 0;
+
+	// Motion JPEG
+	private RandomAccessFile avi_;
+	private OutputStream aviOut_;
+	private File indexFile_;
+	private DataOutputStream index_;
+	private final byte[] int_ = new byte[4];
+	private long moviPos_;
+	private int maxChunkSize_ = 0;
+
+	/**
+	 * @brief work buffers of an encoder thread
+	 */
+	private static class Encoder {
+		final BufferedImage image_;
+		final int[] pixels_;
+		final ByteArrayOutputStream jpeg_ = new ByteArrayOutputStream();
+		ImageWriter jpegWriter_;
+		ImageWriteParam jpegParam_;
+
+		Encoder(int width, int height) {
+			image_ = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			pixels_ = ((DataBufferInt) image_.getRaster().getDataBuffer()).getData();
+		}
+
+		void openJpeg() throws IOException {
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg"); //$NON-NLS-1$
+			if (!writers.hasNext())
+				throw new IOException("no JPEG writer"); //$NON-NLS-1$
+			jpegWriter_ = writers.next();
+			jpegParam_ = jpegWriter_.getDefaultWriteParam();
+			jpegParam_.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			jpegParam_.setCompressionQuality(JPEG_QUALITY);
+		}
+
+		void compress() throws IOException {
+			jpeg_.reset();
+			MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(jpeg_);
+			jpegWriter_.setOutput(ios);
+			jpegWriter_.write(null, new IIOImage(image_, null, null), jpegParam_);
+			ios.close();
+		}
+
+		void dispose() {
+			if (jpegWriter_ != null)
+				jpegWriter_.dispose();
+			jpegWriter_ = null;
+		}
+	}
+
+	/**
+	 * @brief constructor with one encoder thread
+	 *
+	 * This is for recording from the GUI, where rendering is the bottleneck
+	 * and more threads would only take processors from the GUI.
+	 * @param width width of frames
+	 * @param height height of frames
+	 * @param frameRate frame rate[1/s]
+	 * @param path file name. For PNG_SEQUENCE, the frame number and ".png"
+	 *        are appended to this without its extension
+	 * @param fileType MJPEG_AVI or PNG_SEQUENCE
+	 */
+	public ImageToFile(int width, int height, float frameRate, String path, String fileType) {
+		this(width, height, frameRate, path, fileType, 1);
+	}
+
+	/**
+	 * @brief constructor
+	 * @param width width of frames
+	 * @param height height of frames
+	 * @param frameRate frame rate[1/s]
+	 * @param path file name
+	 * @param fileType MJPEG_AVI or PNG_SEQUENCE
+	 * @param threads number of encoder threads
+	 */
+	public ImageToFile(int width, int height, float frameRate, String path, String fileType, int threads) {
+		fileType_ = fileType;
+		path_ = path;
+		frameRate_ = frameRate;
+		encoders_ = new Encoder[Math.max(1, threads)];
+		queue_ = new FrameQueue(width, height, Math.max(QUEUE_SIZE, encoders_.length));
+		for (int i = 0; i < encoders_.length; i++)
+			encoders_[i] = new Encoder(width, height);
+	}
+
+	/**
+	 * @brief name of the file written for a path given by the user
+	 *
+	 * The extension of an AVI file is replaced with ".avi". For PNG_SEQUENCE
+	 * this is a pattern of the frame files, which is only to be shown.
+	 * @param path file name given by the user
+	 * @param fileType MJPEG_AVI or PNG_SEQUENCE
+	 * @return file name
+	 */
+	public static String getOutputPath(String path, String fileType) {
+		if (fileType.equals(MJPEG_AVI))
+			return _removeExtension(path) + ".avi"; //$NON-NLS-1$
+		return _removeExtension(path) + "_*.png"; //$NON-NLS-1$
+	}
+
+	/**
+	 * @brief check whether the output would overwrite existing files
+	 * @param path file name given to the constructor
+	 * @param fileType MJPEG_AVI or PNG_SEQUENCE
+	 * @return true if the AVI file or a PNG file of the sequence exists
+	 */
+	public static boolean outputExists(String path, String fileType) {
+		if (fileType.equals(MJPEG_AVI))
+			return new File(path).exists();
+		File base = new File(_removeExtension(path));
+		File dir = base.getAbsoluteFile().getParentFile();
+		String prefix = base.getName() + "_"; //$NON-NLS-1$
+		String[] names = (dir != null) ? dir.list() : null;
+		if (names == null)
+			return false;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].startsWith(prefix) && names[i].substring(prefix.length()).matches("[0-9]{6}\\.png")) //$NON-NLS-1$
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @brief allow existing files to be overwritten
+	 *
+	 * The caller has to ask the user before this is set. Otherwise
+	 * startProcess() fails if outputExists() is true.
+	 */
+	public void setOverwrite(boolean b) {
+		overwrite_ = b;
+	}
+
+	/**
+	 * @brief open the file and start the encoder threads
+	 * @return false if the file can't be opened
+	 */
+	public boolean startProcess() {
+		try {
+			if (!overwrite_ && outputExists(path_, fileType_))
+				throw new IOException(getOutputPath(path_, fileType_) + " already exists"); //$NON-NLS-1$
+			if (fileType_.equals(MJPEG_AVI)) {
+				for (int i = 0; i < encoders_.length; i++)
+					encoders_[i].openJpeg();
+				_openAvi();
+			}
+		} catch (IOException ex) {
+			_setError("ImageToFile.startProcess:", ex); //$NON-NLS-1$
+			_closeAvi();
+			for (int i = 0; i < encoders_.length; i++)
+				encoders_[i].dispose();
+			return false;
+		}
+		threads_ = new Thread[encoders_.length];
+		for (int i = 0; i < encoders_.length; i++) {
+			final Encoder encoder = encoders_[i];
+			threads_[i] = new Thread("ImageToFile-" + i) { //$NON-NLS-1$
+				public void run() {
+					_encode(encoder);
+				}
+			};
+			threads_[i].start();
+		}
+		return true;
+	}
+
+	/**
+	 * @brief add a frame
+	 *
+	 * This blocks while the encoder is behind.
+	 * @return false if the encoder has stopped by an error
+	 */
+	public boolean pushImage(BufferedImage image) throws InterruptedException {
+		return queue_.put(image);
+	}
+
+	/**
+	 * @brief get the number of frames waiting to be encoded
+	 */
+	public int getImageStackSize() {
+		return queue_.size();
+	}
+
+	/**
+	 * @brief wait until all frames are written and close the file
+	 * @return true if all frames are written
+	 */
+	public boolean endProcess() {
+		queue_.close();
+		if (threads_ != null) {
+			try {
+				for (int i = 0; i < threads_.length; i++)
+					threads_[i].join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				succeeded_ = false;
+				queue_.abort();
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+		try {
+			if ((succeeded_ || truncated_) && avi_ != null)
+				_finishAvi();
+		} catch (IOException ex) {
+			_setError("ImageToFile:", ex); //$NON-NLS-1$
+		} finally {
+			_closeAvi();
+		}
+		return succeeded_;
+	}
+
+	/**
+	 * @brief get the error which has stopped writing
+	 * @return the first error, or null if there has been no error
+	 */
+	public Exception getError() {
+		return error_;
+	}
+
+	private void _setError(String message, Exception ex) {
+		GrxDebugUtil.printErr(message, ex);
+		synchronized (this) {
+			if (error_ == null)
+				error_ = ex;
+		}
+		succeeded_ = false;
+	}
+
+	/**
+	 * @brief get the number of frames written
+	 */
+	public synchronized int getFrameCount() {
+		return frameCount_;
+	}
+
+	private void _encode(Encoder encoder) {
+		try {
+			while (true) {
+				int[] frame;
+				int number;
+				// frames are numbered in the order they are taken
+				synchronized (queue_) {
+					frame = queue_.take();
+					if (frame == null)
+						break;
+					number = taken_++;
+				}
+				System.arraycopy(frame, 0, encoder.pixels_, 0, encoder.pixels_.length);
+				queue_.release(frame);
+				if (fileType_.equals(MJPEG_AVI)) {
+					encoder.compress();
+					if (!_writeAviFrame(number, encoder.jpeg_))
+						break;
+				} else {
+					_writePng(number, encoder.image_);
+				}
+			}
+		} catch (Exception ex) {
+			_setError("ImageToFile:", ex); //$NON-NLS-1$
+			queue_.abort();
+			synchronized (this) {
+				notifyAll();
+			}
+		} finally {
+			encoder.dispose();
+		}
+	}
+
+	private static String _removeExtension(String path) {
+		int dot = path.lastIndexOf('.');
+		if (dot > path.lastIndexOf(File.separatorChar) && dot > path.lastIndexOf('/'))
+			return path.substring(0, dot);
+		return path;
+	}
+
+	private void _writePng(int number, BufferedImage image) throws IOException {
+		File file = new File(_removeExtension(path_) + String.format("_%06d.png", number)); //$NON-NLS-1$
+		if (!ImageIO.write(image, "png", file)) //$NON-NLS-1$
+			throw new IOException("no PNG writer"); //$NON-NLS-1$
+		synchronized (this) {
+			frameCount_++;
+		}
+	}
+
+	// AVI(RIFF) is little endian. Sizes are written at the end
+	private void _openAvi() throws IOException {
+		// startProcess() has checked that overwriting is allowed
+		avi_ = new RandomAccessFile(path_, "rw"); //$NON-NLS-1$
+		avi_.setLength(0);
+		aviOut_ = new RandomAccessFileOutputStream(avi_);
+		// idx1 is written to a temporary file and appended at the end
+		indexFile_ = File.createTempFile("grxavi", ".idx"); //$NON-NLS-1$ //$NON-NLS-2$
+		index_ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile_)));
+
+		int width = queue_.getWidth();
+		int height = queue_.getHeight();
+		_fourcc("RIFF"); _int(0); _fourcc("AVI "); //$NON-NLS-1$ //$NON-NLS-2$
+		_fourcc("LIST"); _int(4 + 64 + 12 + 64 + 48); _fourcc("hdrl"); //$NON-NLS-1$ //$NON-NLS-2$
+		// main header
+		_fourcc("avih"); _int(56); //$NON-NLS-1$
+		_int(Math.round(1000000 / frameRate_));
+		_int(0); _int(0); _int(AVI_HAS_INDEX);
+		_int(0); // total frames
+		_int(0); _int(1); _int(0);
+		_int(width); _int(height);
+		_int(0); _int(0); _int(0); _int(0);
+		// stream header
+		_fourcc("LIST"); _int(4 + 64 + 48); _fourcc("strl"); //$NON-NLS-1$ //$NON-NLS-2$
+		_fourcc("strh"); _int(56); //$NON-NLS-1$
+		_fourcc("vids"); _fourcc("MJPG"); //$NON-NLS-1$ //$NON-NLS-2$
+		_int(0); _int(0); _int(0);
+		_int(1000); _int(Math.round(frameRate_ * 1000)); // scale, rate
+		_int(0);
+		_int(0); // length
+		_int(0); _int(-1); _int(0);
+		_short(0); _short(0); _short(width); _short(height);
+		// BITMAPINFOHEADER
+		_fourcc("strf"); _int(40); //$NON-NLS-1$
+		_int(40); _int(width); _int(height);
+		_short(1); _short(24);
+		_fourcc("MJPG"); //$NON-NLS-1$
+		_int(width * height * 3);
+		_int(0); _int(0); _int(0); _int(0);
+
+		_fourcc("LIST"); _int(0); //$NON-NLS-1$
+		moviPos_ = avi_.getFilePointer();
+		_fourcc("movi"); //$NON-NLS-1$
+	}
+
+	/**
+	 * @brief write a compressed frame after the frames before it
+	 * @return false if another thread has stopped by an error
+	 */
+	private synchronized boolean _writeAviFrame(int number, ByteArrayOutputStream jpeg) throws IOException, InterruptedException {
+		while (frameCount_ != number && !queue_.isAborted())
+			wait();
+		if (queue_.isAborted())
+			return false;
+		int size = jpeg.size();
+		long offset = avi_.getFilePointer() - moviPos_;
+		// chunk, idx1 header and index entries must end within the limit
+		long end = avi_.getFilePointer() + 8 + size + (size % 2) + 8 + index_.size() + 16;
+		if (end > AVI_MAX_SIZE) {
+			_setError("ImageToFile:", new IOException(path_ + " has reached the size limit of AVI(2GB) at frame " + number //$NON-NLS-1$ //$NON-NLS-2$
+					+ ". the frames after it are not written")); //$NON-NLS-1$
+			truncated_ = true;
+			queue_.abort();
+			notifyAll();
+			return false;
+		}
+		_fourcc("00dc"); _int(size); //$NON-NLS-1$
+		jpeg.writeTo(aviOut_);
+		if (size % 2 != 0)
+			avi_.write(0);
+		maxChunkSize_ = Math.max(maxChunkSize_, size);
+
+		index_.writeBytes("00dc"); //$NON-NLS-1$
+		_int(index_, AVI_KEY_FRAME);
+		_int(index_, (int) offset);
+		_int(index_, size);
+		frameCount_++;
+		notifyAll();
+		return true;
+	}
+
+	private void _finishAvi() throws IOException {
+		long moviEnd = avi_.getFilePointer();
+		index_.close();
+		index_ = null;
+		_fourcc("idx1"); _int((int) indexFile_.length()); //$NON-NLS-1$
+		InputStream in = new FileInputStream(indexFile_);
+		try {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				avi_.write(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		long end = avi_.getFilePointer();
+
+		avi_.seek(4);
+		_int((int) (end - 8));
+		avi_.seek(12 + 12 + 8 + 16); // avih.dwTotalFrames
+		_int(frameCount_);
+		avi_.seek(12 + 12 + 8 + 28); // avih.dwSuggestedBufferSize
+		_int(maxChunkSize_ + 8);
+		avi_.seek(12 + 12 + 64 + 12 + 8 + 32); // strh.dwLength
+		_int(frameCount_);
+		_int(maxChunkSize_ + 8);
+		avi_.seek(moviPos_ - 4);
+		_int((int) (moviEnd - moviPos_));
+	}
+
+	private synchronized void _closeAvi() {
+		try {
+			if (index_ != null)
+				index_.close();
+			if (avi_ != null)
+				avi_.close();
+		} catch (IOException ex) {
+			_setError("ImageToFile:", ex); //$NON-NLS-1$
+		}
+		index_ = null;
+		avi_ = null;
+		if (indexFile_ != null)
+			indexFile_.delete();
+		indexFile_ = null;
+	}
+
+	private void _fourcc(String s) throws IOException {
+		avi_.writeBytes(s);
+	}
+
+	private void _int(int v) throws IOException {
+		_int(avi_, v);
+	}
+
+	private void _int(DataOutput out, int v) throws IOException {
+		int_[0] = (byte) v;
+		int_[1] = (byte) (v >> 8);
+		int_[2] = (byte) (v >> 16);
+		int_[3] = (byte) (v >> 24);
+		out.write(int_, 0, 4);
+	}
+
+	private void _short(int v) throws IOException {
+		avi_.write(v & 0xff);
+		avi_.write((v >> 8) & 0xff);
+	}
+
+	/**
+	 * @brief output stream which writes to the current position of a file
+	 */
+	private static class RandomAccessFileOutputStream extends OutputStream {
+		private final RandomAccessFile file_;
+
+		RandomAccessFileOutputStream(RandomAccessFile file) {
+			file_ = file;
+		}
+
+		public void write(int b) throws IOException {
+			file_.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			file_.write(b, off, len);
+		}
+	}
+}
@@ -10,15 +10,14 @@
 package com.generalrobotix.ui.view.tdview;
 
 import java.io.*;
-import java.util.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 
 import javax.media.*;
 import javax.media.control.*;
 import javax.media.protocol.*;
 import javax.media.datasink.*;
 import javax.media.format.*;
-import javax.media.util.ImageToBuffer;
 
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.widgets.Display;
@@ -55,12 +54,16 @@ import com.generalrobotix.ui.util.MessageBundle;
 //    public void startProcess()
 //      処理を開始する。
 //
-//    public void pushImage(Image image){
+//    public boolean pushImage(BufferedImage image){
 //      ムービーの一コマのイメージを追加する
+//      （エンコードが追いつかない間はブロックする。エンコードが止まっていればfalse）
 //
 //    public int getImageStackSize(){
 //      現在バッファにスタックされているイメージ数を返す
 //
+//    public void dispose(){
+//      startProcess せずに使い終わったときにプロセッサを閉じる
+//
 //    public void endProcess(){
 //      ムービー作成のが終了する。
 //      （バッファにたまっている画像を出力して終わる。ファイルが閉じられれるまでwaitする事に注意）
@@ -72,6 +75,9 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
     //ファイル形式用定数
     public static String QUICKTIME=FileTypeDescriptor.QUICKTIME;
     public static String MSVIDEO=FileTypeDescriptor.MSVIDEO;
+
+    //レンダリングとエンコードの間で使い回すフレームバッファの数
+    private static final int QUEUE_SIZE = 4;
     
     private ImageDataSource ids_;//カスタムデータソース
     private Processor p_;//プロセッサ
@@ -157,6 +163,8 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
     
     //使用可能な形式を返す
     public Format[] getSupportedFormats(){
+        if (p_ == null)
+            return new Format[0];
         TrackControl tcs[] = p_.getTrackControls();
         return tcs[0].getSupportedFormats();
     }
@@ -169,6 +177,8 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
     
     //ムービー処理開始
     public boolean startProcess() {
+        if (p_ == null)
+            return false;
         p_.realize();
         if (!_waitForState(p_, Controller.Realized)) {
             System.err.println("Failed to realize the processor.");
@@ -200,8 +210,8 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
     
     
     //イメージセットメソッド
-    public void pushImage(Image image){
-         ids_.pushImage(image);
+    public boolean pushImage(BufferedImage image) throws InterruptedException {
+         return ids_.pushImage(image);
     }
 
     //現在バッファにスタックされているイメージ数を返す
@@ -209,6 +219,14 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
          return ids_.getImageStackSize();
     }
 
+    //startProcess せずに使い終わったときにプロセッサを閉じる
+    public void dispose(){
+        if (p_ != null) {
+            p_.removeControllerListener(this);
+            p_.close();
+        }
+    }
+
     //終了させる
     public void endProcess(){
         ids_.endImage();
@@ -322,6 +340,8 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
             waitFileSync_.notifyAll();
             }
         } else if (evt instanceof DataSinkErrorEvent) {
+            // 書き込みが止まったのでイメージを受け付けない
+            ids_.abort();
             synchronized (waitFileSync_) {
             fileDone_ = true;
             fileSuccess_ = false;
@@ -343,8 +363,12 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
             streams_[0] = new ImageSourceStream(width, height, frameRate);
         }
         //イメージセットメソッド
-        public void pushImage(Image image){
-             streams_[0].pushImage(image);
+        public boolean pushImage(BufferedImage image) throws InterruptedException {
+             return streams_[0].pushImage(image);
+        }
+
+        public void abort(){
+            streams_[0].abort();
         }
 
         //現在バッファにスタックされているイメージ数を返す
@@ -407,8 +431,9 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
         float frameRate_;
         VideoFormat format_;
         //Format format_;
-        Vector<Buffer> imageStack_; //イメージを貯えておくスタック
-        boolean ending_ = false;//終了の要請あり
+        FrameQueue queue_; //イメージを貯えておくキュー。大きさは固定
+        long sequence_ = 0;
+        volatile boolean ending_ = false;//終了の要請あり
         boolean ended_ = false;//終了した
 
         public ImageSourceStream(int width, int height, float frameRate) {
@@ -416,7 +441,7 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
             this.height_ = height;
             frameRate_=frameRate;
             
-            imageStack_= new Vector<Buffer>();
+            queue_ = new FrameQueue(width, height, QUEUE_SIZE);
 
             format_ =
                 new RGBFormat(
@@ -432,25 +457,31 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
         }
 
         //イメージセットメソッド
-        public void pushImage(Image image){
-            imageStack_.add(ImageToBuffer.createBuffer(image, frameRate_));
+        //空きバッファがなければエンコードが進むまで待つ
+        public boolean pushImage(BufferedImage image) throws InterruptedException {
+            return queue_.put(image);
         }
 
         //終了させる
         public void endImage(){
             ending_=true;
+            queue_.close();
+        }
+
+        public void abort(){
+            queue_.abort();
         }
 
         //現在バッファにスタックされているイメージ数を返す
         public int getImageStackSize(){
-             return imageStack_.size();
+             return queue_.size();
         }
 
         //イメージがセットされていればブロック解除
         //作者注：特に動作していないようです
         public boolean willReadBlock() {
             //System.out.println("willReadBlock");
-            return (ending_==false && imageStack_.isEmpty());
+            return (ending_==false && queue_.size() == 0);
             //return false;
         }
 
@@ -458,8 +489,15 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
         // of video data.
         public void read(Buffer buf) throws IOException {
 
-            // 終了の知らせあり
-            if (ending_ && imageStack_.isEmpty()) {
+            //イメージが来るまで待つ。終了の知らせがあってキューが空なら null
+            int[] frame = null;
+            try {
+                frame = queue_.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (frame == null) {
                 // We are done.  Set EndOfMedia.
                 System.err.println("Done reading all images.");
                 buf.setEOM(true);
@@ -468,24 +506,27 @@ public class ImageToMovie implements ControllerListener, DataSinkListener {
                 ended_=true;
 
             //通常の処理
-            } else if (!(imageStack_.isEmpty())){ //スタックにデータあり
-                //スタックからイメージデータを取り出しbufに入れる
-                buf.copy((Buffer)imageStack_.remove(0));
-                buf.setFlags(buf.getFlags() | Buffer.FLAG_KEY_FRAME);
-                buf.setFormat(format_);
-                if (debugFlag_) {
-                    /*
-                    System.out.println(
-                        "flag = " + buf.getFlags() +
-                        " format = " + buf.getFormat() +
-                        " data = " + buf.getData()
-                    );
-                    */
-                    //System.out.println("writing image to file.");
+            } else {
+                //キューからイメージデータを取り出しbufに入れる
+                //bufのデータ配列は使い回されるので、大きさが合えばそのまま使う
+                Object data = buf.getData();
+                int[] pixels;
+                if (data instanceof int[] && ((int[])data).length >= frame.length) {
+                    pixels = (int[])data;
+                } else {
+                    pixels = new int[frame.length];
                 }
-            } else { //スタックにはデータなし
-                //System.err.println("una aho na!.");
-                buf.setFlags(Buffer.FLAG_DISCARD );//ダミーを示すフラグをセット
+                System.arraycopy(frame, 0, pixels, 0, frame.length);
+                queue_.release(frame);
+
+                buf.setData(pixels);
+                buf.setOffset(0);
+                buf.setLength(frame.length);
+                buf.setFormat(format_);
+                buf.setFlags(Buffer.FLAG_KEY_FRAME);
+                buf.setSequenceNumber(sequence_);
+                buf.setTimeStamp((long)(sequence_ * 1000000000.0 / frameRate_));
+                sequence_++;
             }
 
         }
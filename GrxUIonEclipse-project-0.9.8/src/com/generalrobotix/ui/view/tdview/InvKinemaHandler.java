@@ -192,6 +192,8 @@ class InvKinemaHandler extends OperationHandler {
 
     public void processReleased(MouseEvent evt, BehaviorInfo info) {
         if (isPicked_) {
+            // ドラッグ中に変更した姿勢をプロパティに書き込む
+            resolver_.commit();
             evt.consume();
         }
     }
@@ -216,6 +218,8 @@ class InvKinemaHandler extends OperationHandler {
     //--------------------------------------------------------------------
     // OperationHandlerの実装
     public void disableHandler() {
+        if (resolver_ != null)
+            resolver_.commit();
         _disableBoundingBox();
     }
 
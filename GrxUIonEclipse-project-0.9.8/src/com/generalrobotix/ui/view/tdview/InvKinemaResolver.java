@@ -20,9 +20,6 @@ import javax.media.j3d.Transform3D;
 import javax.media.j3d.TransformGroup;
 import javax.vecmath.*;
 
-import jp.go.aist.hrp.simulator.*;
-import jp.go.aist.hrp.simulator.DynamicsSimulatorPackage.*;
-
 import com.generalrobotix.ui.GrxPluginManager;
 import com.generalrobotix.ui.item.GrxLinkItem;
 import com.generalrobotix.ui.item.GrxModelItem;
@@ -30,33 +27,36 @@ import com.generalrobotix.ui.item.GrxModelItem;
 /**
  * InvKinemaResolver
  *
+ * 逆運動学は JointPath を使ってGUIプロセス内で解く。
+ * ドラッグ中はプロパティを更新せず、commit() で書き込む。
  */
 public class InvKinemaResolver {
-    private DynamicsSimulator integrator_;
     private GrxPluginManager manager_;
     private GrxModelItem robot_;
     private GrxLinkItem from_;
     private GrxLinkItem to_;
     private Transform3D trFrom_;
-    private LinkPosition tr;
+    // from_ から to_ までの関節列。from_, to_ が変わるまで使い回す
+    private JointPath path_;
+    private double[] q_;
+    // プロパティに書き込んでいない姿勢があるか
+    private boolean modified_ = false;
+
+    private final Transform3D t3d_ = new Transform3D();
+    private final Matrix3d m3d_ = new Matrix3d();
+    private final Vector3d v3d_ = new Vector3d();
+    private final double[] p_ = new double[3];
+    private final double[] R_ = new double[9];
 
     /**
      * コンストラクタ
      *
      * 設定に必要な情報をこのクラスに格納する
-     * @param   integrator
-     * @param   world
+     * @param   manager
      */
     public InvKinemaResolver(GrxPluginManager manager) {
         manager_ = manager;
         trFrom_ = new Transform3D();
-        tr = new LinkPosition();
-        tr.p = new double[3];
-        tr.R = new double[9];
-    }
-
-    public void setDynamicsSimulator(DynamicsSimulator integrator) {
-        integrator_ = integrator;
     }
 
     /**
@@ -67,6 +67,7 @@ public class InvKinemaResolver {
      * @param   link
      */
     public boolean setFromJoint(GrxModelItem model, GrxLinkItem link) {
+        commit();
         if (robot_ == null) {
             robot_ = model;
         } else if(robot_ != model) {
@@ -75,6 +76,7 @@ public class InvKinemaResolver {
         }
         
         from_ = link;
+        path_ = null;
         
         // fromジョイントのグローバル座標での位置姿勢を保持
         TransformGroup tg = from_.tg_;
@@ -101,117 +103,95 @@ public class InvKinemaResolver {
             return false;
         }
         
+        commit();
         to_ = link;
+        path_ = null;
         
         return true;
     }
 
-    /**
-     * setLinkStatus
-     *
-     * Debugようにこのメソッドを叩くと現在のRobotの状態をIntegratorに通知する
-     * @param   objectName
-     */
-    private void _setLinkStatus(String objectName) {
-        if(robot_ == null) 
-            robot_ = (GrxModelItem)manager_.getItem(GrxModelItem.class, objectName);
-        
-        TransformGroup tg = robot_.getTransformGroupRoot();
-        Transform3D t3d = new Transform3D();
-        tg.getTransform(t3d);
-        Vector3d pos = new Vector3d();
-        Matrix3d mat = new Matrix3d();
-        t3d.get(mat, pos);
-        
-        double[] value = new double[12];
-        pos.get(value);
-        value[3] = mat.m00;
-        value[4] = mat.m01;
-        value[5] = mat.m02;
-        value[6] = mat.m10;
-        value[7] = mat.m11;
-        value[8] = mat.m12;
-        value[9] = mat.m20;
-        value[10]= mat.m21;
-        value[11]= mat.m22;
-
-        integrator_.setCharacterLinkData(
-            objectName, robot_.rootLink().getName(), LinkDataType.ABS_TRANSFORM, value
-        );
-        integrator_.setCharacterAllLinkData(
-            objectName, LinkDataType.JOINT_VALUE, robot_.getJointValues()
-        );
-        integrator_.calcCharacterForwardKinematics(objectName);
-    }
-
     /**
      * resolve
      *
-     *    マウスの動きから生成された T3D を逆運動学サーバを使って
-     *    各ジョイントの動きに直し設定する
+     *    マウスの動きから生成された T3D を逆運動学で
+     *    各ジョイントの動きに直し設定する。
+     *    前回の解を初期値にするので、ドラッグ中は数回の反復で収束する。
      *  @param   transform
      *  @return
      */
     public boolean resolve(Transform3D transform) {
-        _setLinkStatus(robot_.getName());
-        
-        Matrix3d m3d = new Matrix3d();
-        Vector3d v3d = new Vector3d();
-        transform.get(m3d, v3d);
-        
-        v3d.get(tr.p);
+        if (robot_ == null || from_ == null || to_ == null)
+            return false;
+
+        if (path_ == null) {
+            path_ = new JointPath(from_, to_);
+            q_ = new double[path_.numJoints()];
+        }
+
+        // 目標位置姿勢を from ジョイントの座標系で表す
+        t3d_.set(trFrom_);
+        t3d_.invert();
+        t3d_.mul(transform);
+        t3d_.get(m3d_, v3d_);
+        v3d_.get(p_);
         for (int i=0; i<3; i++) {
-        	for (int j=0; j<3; j++) {
-        		tr.R[3*i+j] = m3d.getElement(i,j);
-        	}
+            for (int j=0; j<3; j++) {
+                R_[3*i+j] = m3d_.getElement(i,j);
+            }
         }
-        try {
-			if (robot_ == null || from_ == null || to_ == null)
-				return false;
-
-        	if (!integrator_.calcCharacterInverseKinematics(robot_.getName(), from_.getName(), to_.getName(), tr)) {
-        		System.out.println("ik failed.");
-        		robot_.calcForwardKinematics();
-            	return false;
-        	};
-        } catch (Exception e) {
-        	e.printStackTrace();
+
+        boolean solved = path_.calcInverseKinematics(p_, R_, q_);
+        if (!solved) {
+            System.out.println("ik failed.");
+            // 元の姿勢に戻す
+            for (int i=0; i<q_.length; i++)
+                q_[i] = path_.joint(i).jointValue_;
         }
-        
-        DblSequenceHolder v = new DblSequenceHolder();
-        integrator_.getCharacterAllLinkData(robot_.getName(), LinkDataType.JOINT_VALUE, v);
-        robot_.setJointValues(v.value);
-        robot_.setJointValuesWithinLimit();
+        _setPose(q_);
+
+        return solved;
+    }
+
+    /**
+     * commit
+     *
+     *    resolve で変更した姿勢をプロパティに書き込む。
+     *    マウスを離したときに呼ぶ
+     */
+    public void commit() {
+        if (!modified_ || robot_ == null)
+            return;
+        modified_ = false;
+        robot_.syncPoseProperties();
         robot_.updateInitialJointValues();
-        _setRootJoint(robot_);
-        robot_.calcForwardKinematics();
-        
-        return true;
+        robot_.updateInitialTransformRoot();
     }
-    
-    private void _setRootJoint(GrxModelItem robot) {
-        Transform3D t3d = new Transform3D();
-        from_.tg_.getTransform(t3d);
-        
-        Transform3D t3dFromNew = new Transform3D();
-        from_.tg_.getLocalToVworld(t3dFromNew);
-        t3dFromNew.mul(t3d);
-        t3dFromNew.invert();
-        
-        Transform3D t3dRoot = new Transform3D();
-        robot.getTransformGroupRoot().getTransform(t3dRoot);
-        t3d.mul(trFrom_, t3dFromNew);
-        t3d.mul(t3dRoot);
-        
-        Matrix3d rot = new Matrix3d();
-        Vector3d pos = new Vector3d();
-        t3d.get(rot, pos);
-        robot.setTransformRoot(pos, rot);
-        robot.updateInitialTransformRoot();
-       /* 
-        AxisAngle4d  a4d = new AxisAngle4d();
-        a4d.set(rot);
-        robot.setProperty(robot_.lInfo_[0].name+".rotation", +a4d.angle+" "+a4d.x+" "+a4d.y+" "+a4d.z);
-        robot.setProperty(robot_.lInfo_[0].name+".translation", pos.x+" "+pos.y+" "+pos.z);*/
+
+    /**
+     * 関節角を設定し、from ジョイントが動かないようにルートの位置姿勢を決める
+     */
+    private void _setPose(double[] q) {
+        path_.calcBaseTransform(q, p_, R_);
+        m3d_.m00 = R_[0]; m3d_.m01 = R_[1]; m3d_.m02 = R_[2];
+        m3d_.m10 = R_[3]; m3d_.m11 = R_[4]; m3d_.m12 = R_[5];
+        m3d_.m20 = R_[6]; m3d_.m21 = R_[7]; m3d_.m22 = R_[8];
+        v3d_.set(p_);
+        t3d_.set(m3d_, v3d_, 1.0);
+        t3d_.invert();
+        t3d_.mul(trFrom_, t3d_);
+        t3d_.get(m3d_, v3d_);
+
+        double[] p = new double[3];
+        double[] R = new double[9];
+        v3d_.get(p);
+        for (int i=0; i<3; i++) {
+            for (int j=0; j<3; j++) {
+                R[3*i+j] = m3d_.getElement(i,j);
+            }
+        }
+        for (int i=0; i<q.length; i++)
+            path_.joint(i).jointValueWithoutSync(q[i]);
+        robot_.setTransformRootWithoutSync(p, R);
+        modified_ = true;
     }
 }
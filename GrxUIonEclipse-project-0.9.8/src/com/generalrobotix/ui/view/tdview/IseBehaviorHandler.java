@@ -291,9 +291,6 @@ class IseBehaviorHandler implements BehaviorHandler {
         case TIMER_MODE_OFF:
             break;
         case TIMER_MODE_OPERATION:
-        	if(operationHandler_ instanceof InvKinemaHandler)
-            if(!bManager_.initDynamicsSimulator())	
-            	return false;
         	syncExec(new Runnable(){
             	public void run(){
             		operationHandler_.processTimerOperation(info);
@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * JointPath.java
+ */
+package com.generalrobotix.ui.view.tdview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.generalrobotix.ui.item.GrxLinkItem;
+import com.generalrobotix.ui.item.GrxTransformItem;
+
+/**
+ * @brief path of joints between two links and its inverse kinematics
+ *
+ * The path goes up from the base link to the common ancestor and then down
+ * to the end link. Joints on the way up are used in reverse direction, so
+ * the base link is fixed and the end link moves. Inverse kinematics is
+ * solved in the frame of the base link by damped least squares, starting
+ * from the current joint values. Joint values are kept within their limits.
+ *
+ * Transforms are stored in arrays. Rotation matrices are row major.
+ */
+public class JointPath {
+	private static final int MAX_ITERATION = 50;
+	// converged if errors are smaller than these
+	private static final double POSITION_TOLERANCE = 1.0e-5; // [m]
+	private static final double ROTATION_TOLERANCE = 1.0e-4; // [rad]
+	// errors used in one iteration are clipped to these
+	private static final double MAX_POSITION_STEP = 0.05; // [m]
+	private static final double MAX_ROTATION_STEP = 0.2; // [rad]
+	// added to the squared error to make the damping factor
+	private static final double DAMPING = 1.0e-4;
+
+	private final GrxLinkItem base_;
+	private final GrxLinkItem end_;
+	// links on the path except the common ancestor
+	private final GrxLinkItem[] links_;
+	// true for links between the base link and the common ancestor
+	private final boolean[] reversed_;
+	// links which have rotate or slide joints
+	private final GrxLinkItem[] joints_;
+	private final boolean[] jointReversed_;
+
+	private final double[] q_;
+	private final double[] qOld_;
+	private final double[] axes_;
+	private final double[] points_;
+	private final double[] J_;
+	private final double[] A_ = new double[36];
+	private final double[] e_ = new double[6];
+	private final double[] y_ = new double[6];
+	private final double[] R_ = new double[9];
+	private final double[] p_ = new double[3];
+	private final double[] Rl_ = new double[9];
+	private final double[] pl_ = new double[3];
+	private final double[] Rq_ = new double[9];
+	private final double[] Rw_ = new double[9];
+	private final double[] pw_ = new double[3];
+	private double errorPosition_ = 0;
+	private double errorRotation_ = 0;
+
+	/**
+	 * @brief constructor
+	 * @param base base link
+	 * @param end end link
+	 */
+	public JointPath(GrxLinkItem base, GrxLinkItem end) {
+		base_ = base;
+		end_ = end;
+
+		List<GrxLinkItem> up = _ancestors(base);
+		List<GrxLinkItem> down = _ancestors(end);
+		// remove the common ancestors
+		while (!up.isEmpty() && !down.isEmpty() &&
+				up.get(up.size() - 1) == down.get(down.size() - 1)) {
+			up.remove(up.size() - 1);
+			down.remove(down.size() - 1);
+		}
+		int n = up.size() + down.size();
+		links_ = new GrxLinkItem[n];
+		reversed_ = new boolean[n];
+		List<GrxLinkItem> joints = new ArrayList<GrxLinkItem>();
+		List<Boolean> jointReversed = new ArrayList<Boolean>();
+		for (int i = 0; i < n; i++) {
+			boolean reversed = i < up.size();
+			GrxLinkItem link = reversed ? up.get(i) : down.get(n - 1 - i);
+			links_[i] = link;
+			reversed_[i] = reversed;
+			if (_isRotate(link) || _isSlide(link)) {
+				joints.add(link);
+				jointReversed.add(reversed);
+			}
+		}
+		joints_ = joints.toArray(new GrxLinkItem[joints.size()]);
+		jointReversed_ = new boolean[joints_.length];
+		for (int i = 0; i < joints_.length; i++)
+			jointReversed_[i] = jointReversed.get(i);
+
+		q_ = new double[joints_.length];
+		qOld_ = new double[joints_.length];
+		axes_ = new double[3 * joints_.length];
+		points_ = new double[3 * joints_.length];
+		J_ = new double[6 * joints_.length];
+	}
+
+	public GrxLinkItem getBaseLink() {
+		return base_;
+	}
+
+	public GrxLinkItem getEndLink() {
+		return end_;
+	}
+
+	/**
+	 * @brief get the number of joints which can be moved
+	 */
+	public int numJoints() {
+		return joints_.length;
+	}
+
+	/**
+	 * @brief get a joint which can be moved
+	 * @param i index from the base link
+	 */
+	public GrxLinkItem joint(int i) {
+		return joints_[i];
+	}
+
+	/**
+	 * @brief get the position error after calcInverseKinematics()
+	 */
+	public double getPositionError() {
+		return errorPosition_;
+	}
+
+	/**
+	 * @brief get the rotation error after calcInverseKinematics()
+	 */
+	public double getRotationError() {
+		return errorRotation_;
+	}
+
+	/**
+	 * @brief solve inverse kinematics
+	 *
+	 * Joint values of links are read as the initial values and are not
+	 * changed. Solutions are stored in q whether converged or not.
+	 * @param p position of the end link in the base link frame
+	 * @param R rotation of the end link in the base link frame
+	 * @param q joint values from the base link, length = numJoints()
+	 * @return true if converged
+	 */
+	public boolean calcInverseKinematics(double[] p, double[] R, double[] q) {
+		for (int i = 0; i < joints_.length; i++)
+			q_[i] = qOld_[i] = joints_[i].jointValue_;
+
+		boolean converged = false;
+		for (int iter = 0; iter < MAX_ITERATION; iter++) {
+			_calcForwardKinematics();
+			_calcError(p, R);
+			if (errorPosition_ < POSITION_TOLERANCE && errorRotation_ < ROTATION_TOLERANCE) {
+				converged = true;
+				break;
+			}
+			_clipError();
+			_calcJacobian();
+			_solve();
+			_limit();
+		}
+		if (!converged) {
+			_calcForwardKinematics();
+			_calcError(p, R);
+			converged = errorPosition_ < POSITION_TOLERANCE && errorRotation_ < ROTATION_TOLERANCE;
+		}
+		System.arraycopy(q_, 0, q, 0, q_.length);
+		return converged;
+	}
+
+	/**
+	 * @brief compute transform of the base link in the frame of the root link
+	 *
+	 * Joint values of the path are given by q and the others are read from
+	 * links.
+	 * @param q joint values from the base link, length = numJoints()
+	 * @param p position of the base link
+	 * @param R rotation of the base link
+	 */
+	public void calcBaseTransform(double[] q, double[] p, double[] R) {
+		_setIdentity(Rw_, pw_);
+		List<GrxLinkItem> links = _ancestors(base_);
+		for (int i = links.size() - 2; i >= 0; i--) {
+			GrxLinkItem link = links.get(i);
+			_localTransform(link, _jointValue(link, q), Rl_, pl_);
+			_mul(Rw_, pw_, Rl_, pl_);
+		}
+		System.arraycopy(Rw_, 0, R, 0, 9);
+		System.arraycopy(pw_, 0, p, 0, 3);
+	}
+
+	/**
+	 * @brief compute transform of the end link in the base link frame
+	 *
+	 * Axes and centers of joints are also computed.
+	 */
+	private void _calcForwardKinematics() {
+		_setIdentity(R_, p_);
+		int j = 0;
+		for (int i = 0; i < links_.length; i++) {
+			GrxLinkItem link = links_[i];
+			boolean isJoint = _isRotate(link) || _isSlide(link);
+			double q = isJoint ? q_[j] : link.jointValue_;
+			if (reversed_[i]) {
+				// the joint is at the origin of this link
+				if (isJoint)
+					_setAxis(link, j++);
+				_localTransform(link, q, Rl_, pl_);
+				_invert(Rl_, pl_);
+				_mul(R_, p_, Rl_, pl_);
+			} else {
+				_localTransform(link, q, Rl_, pl_);
+				_mul(R_, p_, Rl_, pl_);
+				if (isJoint)
+					_setAxis(link, j++);
+			}
+		}
+	}
+
+	private void _setAxis(GrxLinkItem link, int j) {
+		double[] a = link.jointAxis_;
+		double s = jointReversed_[j] ? -1 : 1;
+		for (int k = 0; k < 3; k++) {
+			axes_[3 * j + k] = s * (R_[3 * k] * a[0] + R_[3 * k + 1] * a[1] + R_[3 * k + 2] * a[2]);
+			points_[3 * j + k] = p_[k];
+		}
+	}
+
+	/**
+	 * @brief compute position and rotation errors in the base link frame
+	 */
+	private void _calcError(double[] p, double[] R) {
+		for (int k = 0; k < 3; k++)
+			e_[k] = p[k] - p_[k];
+		// Rerr = R * R_^T
+		double[] Re = Rl_;
+		for (int r = 0; r < 3; r++) {
+			for (int c = 0; c < 3; c++) {
+				Re[3 * r + c] = R[3 * r] * R_[3 * c] + R[3 * r + 1] * R_[3 * c + 1] + R[3 * r + 2] * R_[3 * c + 2];
+			}
+		}
+		_log(Re, e_, 3);
+		errorPosition_ = Math.sqrt(e_[0] * e_[0] + e_[1] * e_[1] + e_[2] * e_[2]);
+		errorRotation_ = Math.sqrt(e_[3] * e_[3] + e_[4] * e_[4] + e_[5] * e_[5]);
+	}
+
+	private void _clipError() {
+		if (errorPosition_ > MAX_POSITION_STEP) {
+			double s = MAX_POSITION_STEP / errorPosition_;
+			for (int k = 0; k < 3; k++)
+				e_[k] *= s;
+		}
+		if (errorRotation_ > MAX_ROTATION_STEP) {
+			double s = MAX_ROTATION_STEP / errorRotation_;
+			for (int k = 3; k < 6; k++)
+				e_[k] *= s;
+		}
+	}
+
+	/**
+	 * @brief compute the Jacobian(6 x numJoints(), row major)
+	 */
+	private void _calcJacobian() {
+		int n = joints_.length;
+		for (int j = 0; j < n; j++) {
+			double ax = axes_[3 * j], ay = axes_[3 * j + 1], az = axes_[3 * j + 2];
+			if (_isRotate(joints_[j])) {
+				double dx = p_[0] - points_[3 * j];
+				double dy = p_[1] - points_[3 * j + 1];
+				double dz = p_[2] - points_[3 * j + 2];
+				J_[j] = ay * dz - az * dy;
+				J_[n + j] = az * dx - ax * dz;
+				J_[2 * n + j] = ax * dy - ay * dx;
+				J_[3 * n + j] = ax;
+				J_[4 * n + j] = ay;
+				J_[5 * n + j] = az;
+			} else {
+				J_[j] = ax;
+				J_[n + j] = ay;
+				J_[2 * n + j] = az;
+				J_[3 * n + j] = 0;
+				J_[4 * n + j] = 0;
+				J_[5 * n + j] = 0;
+			}
+		}
+	}
+
+	/**
+	 * @brief update joint values by dq = J^T (J J^T + lambda I)^-1 e
+	 *
+	 * lambda grows with the error so that steps near singular
+	 * configurations stay small.
+	 */
+	private void _solve() {
+		int n = joints_.length;
+		double lambda = DAMPING;
+		for (int k = 0; k < 6; k++)
+			lambda += e_[k] * e_[k];
+		for (int r = 0; r < 6; r++) {
+			for (int c = 0; c <= r; c++) {
+				double s = 0;
+				for (int j = 0; j < n; j++)
+					s += J_[r * n + j] * J_[c * n + j];
+				A_[6 * r + c] = A_[6 * c + r] = s;
+			}
+			A_[7 * r] += lambda;
+		}
+		// Cholesky decomposition A = L L^T, L is stored in the lower triangle
+		for (int r = 0; r < 6; r++) {
+			for (int c = 0; c <= r; c++) {
+				double s = A_[6 * r + c];
+				for (int k = 0; k < c; k++)
+					s -= A_[6 * r + k] * A_[6 * c + k];
+				if (r == c)
+					A_[7 * r] = Math.sqrt(s);
+				else
+					A_[6 * r + c] = s / A_[7 * c];
+			}
+		}
+		for (int r = 0; r < 6; r++) {
+			double s = e_[r];
+			for (int k = 0; k < r; k++)
+				s -= A_[6 * r + k] * y_[k];
+			y_[r] = s / A_[7 * r];
+		}
+		for (int r = 5; r >= 0; r--) {
+			double s = y_[r];
+			for (int k = r + 1; k < 6; k++)
+				s -= A_[6 * k + r] * y_[k];
+			y_[r] = s / A_[7 * r];
+		}
+		for (int j = 0; j < n; j++) {
+			double s = 0;
+			for (int k = 0; k < 6; k++)
+				s += J_[k * n + j] * y_[k];
+			q_[j] += s;
+		}
+	}
+
+	/**
+	 * @brief keep joint values within limits
+	 *
+	 * A joint which is already out of its limits is not moved further away.
+	 */
+	private void _limit() {
+		for (int j = 0; j < joints_.length; j++) {
+			GrxLinkItem link = joints_[j];
+			if (link.llimit_ == null || link.ulimit_ == null || !(link.llimit_[0] < link.ulimit_[0]))
+				continue;
+			double lower = Math.min(link.llimit_[0], qOld_[j]);
+			double upper = Math.max(link.ulimit_[0], qOld_[j]);
+			if (q_[j] < lower)
+				q_[j] = lower;
+			else if (q_[j] > upper)
+				q_[j] = upper;
+		}
+	}
+
+	private double _jointValue(GrxLinkItem link, double[] q) {
+		for (int j = 0; j < joints_.length; j++) {
+			if (joints_[j] == link)
+				return q[j];
+		}
+		return link.jointValue_;
+	}
+
+	/**
+	 * @brief get the link and its ancestors
+	 * @return list from the link to the root link
+	 */
+	private static List<GrxLinkItem> _ancestors(GrxLinkItem link) {
+		List<GrxLinkItem> list = new ArrayList<GrxLinkItem>();
+		GrxTransformItem item = link;
+		while (item instanceof GrxLinkItem) {
+			list.add((GrxLinkItem) item);
+			item = item.parent_;
+		}
+		return list;
+	}
+
+	private static boolean _isRotate(GrxLinkItem link) {
+		return link.parent_ != null && link.jointType_.equals("rotate"); //$NON-NLS-1$
+	}
+
+	private static boolean _isSlide(GrxLinkItem link) {
+		return link.parent_ != null && link.jointType_.equals("slide"); //$NON-NLS-1$
+	}
+
+	/**
+	 * @brief compute transform of a link in the frame of its parent
+	 *
+	 * This is the same as GrxLinkItem.calcForwardKinematics().
+	 */
+	private void _localTransform(GrxLinkItem link, double q, double[] R, double[] p) {
+		double[] t = link.localTranslation();
+		double[] r = link.localRotation();
+		_axisAngle(r[0], r[1], r[2], r[3], R);
+		p[0] = t[0];
+		p[1] = t[1];
+		p[2] = t[2];
+		if (_isRotate(link)) {
+			double[] a = link.jointAxis_;
+			_axisAngle(a[0], a[1], a[2], q, Rq_);
+			_mul(R, null, Rq_, null);
+		} else if (_isSlide(link)) {
+			double[] a = link.jointAxis_;
+			for (int k = 0; k < 3; k++)
+				p[k] += (R[3 * k] * a[0] + R[3 * k + 1] * a[1] + R[3 * k + 2] * a[2]) * q;
+		}
+	}
+
+	private static void _axisAngle(double x, double y, double z, double angle, double[] R) {
+		double l = Math.sqrt(x * x + y * y + z * z);
+		if (l == 0) {
+			_setIdentity(R, null);
+			return;
+		}
+		x /= l;
+		y /= l;
+		z /= l;
+		double c = Math.cos(angle), s = Math.sin(angle), v = 1 - c;
+		R[0] = x * x * v + c;     R[1] = x * y * v - z * s; R[2] = x * z * v + y * s;
+		R[3] = x * y * v + z * s; R[4] = y * y * v + c;     R[5] = y * z * v - x * s;
+		R[6] = x * z * v - y * s; R[7] = y * z * v + x * s; R[8] = z * z * v + c;
+	}
+
+	/**
+	 * @brief compute the rotation vector of a rotation matrix
+	 */
+	private static void _log(double[] R, double[] w, int offset) {
+		double c = (R[0] + R[4] + R[8] - 1) / 2;
+		double x = R[7] - R[5], y = R[2] - R[6], z = R[3] - R[1];
+		double s = Math.sqrt(x * x + y * y + z * z) / 2;
+		double angle = Math.atan2(s, c);
+		if (s > 1.0e-6) {
+			double k = angle / (2 * s);
+			w[offset] = x * k;
+			w[offset + 1] = y * k;
+			w[offset + 2] = z * k;
+		} else if (c > 0) {
+			w[offset] = x / 2;
+			w[offset + 1] = y / 2;
+			w[offset + 2] = z / 2;
+		} else {
+			// rotation by pi
+			double ax = Math.sqrt(Math.max(0, (R[0] + 1) / 2));
+			double ay = Math.sqrt(Math.max(0, (R[4] + 1) / 2));
+			double az = Math.sqrt(Math.max(0, (R[8] + 1) / 2));
+			if (ax >= ay && ax >= az) {
+				ay = R[1] >= 0 ? ay : -ay;
+				az = R[2] >= 0 ? az : -az;
+			} else if (ay >= az) {
+				ax = R[1] >= 0 ? ax : -ax;
+				az = R[5] >= 0 ? az : -az;
+			} else {
+				ax = R[2] >= 0 ? ax : -ax;
+				ay = R[5] >= 0 ? ay : -ay;
+			}
+			w[offset] = ax * Math.PI;
+			w[offset + 1] = ay * Math.PI;
+			w[offset + 2] = az * Math.PI;
+		}
+	}
+
+	private static void _setIdentity(double[] R, double[] p) {
+		for (int k = 0; k < 9; k++)
+			R[k] = (k % 4 == 0) ? 1 : 0;
+		if (p != null)
+			p[0] = p[1] = p[2] = 0;
+	}
+
+	/**
+	 * @brief (R1, p1) = (R1, p1) * (R2, p2)
+	 *
+	 * Positions are ignored if p1 is null.
+	 */
+	private static void _mul(double[] R1, double[] p1, double[] R2, double[] p2) {
+		if (p1 != null) {
+			double x = R1[0] * p2[0] + R1[1] * p2[1] + R1[2] * p2[2] + p1[0];
+			double y = R1[3] * p2[0] + R1[4] * p2[1] + R1[5] * p2[2] + p1[1];
+			double z = R1[6] * p2[0] + R1[7] * p2[1] + R1[8] * p2[2] + p1[2];
+			p1[0] = x;
+			p1[1] = y;
+			p1[2] = z;
+		}
+		for (int r = 0; r < 3; r++) {
+			double a = R1[3 * r], b = R1[3 * r + 1], c = R1[3 * r + 2];
+			R1[3 * r] = a * R2[0] + b * R2[3] + c * R2[6];
+			R1[3 * r + 1] = a * R2[1] + b * R2[4] + c * R2[7];
+			R1[3 * r + 2] = a * R2[2] + b * R2[5] + c * R2[8];
+		}
+	}
+
+	/**
+	 * @brief (R, p) = (R, p)^-1
+	 */
+	private static void _invert(double[] R, double[] p) {
+		double t;
+		t = R[1]; R[1] = R[3]; R[3] = t;
+		t = R[2]; R[2] = R[6]; R[6] = t;
+		t = R[5]; R[5] = R[7]; R[7] = t;
+		double x = -(R[0] * p[0] + R[1] * p[1] + R[2] * p[2]);
+		double y = -(R[3] * p[0] + R[4] * p[1] + R[5] * p[2]);
+		double z = -(R[6] * p[0] + R[7] * p[1] + R[8] * p[2]);
+		p[0] = x;
+		p[1] = y;
+		p[2] = z;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2008, AIST, the University of Tokyo and General Robotix Inc.
+ * All rights reserved. This program is made available under the terms of the
+ * Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * Contributors:
+ * General Robotix Inc.
+ * National Institute of Advanced Industrial Science and Technology (AIST)
+ */
+/**
+ * OffscreenRenderer.java
+ */
+package com.generalrobotix.ui.view.tdview;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.j3d.Background;
+import javax.media.j3d.BranchGroup;
+import javax.media.j3d.Canvas3D;
+import javax.media.j3d.ImageComponent;
+import javax.media.j3d.ImageComponent2D;
+import javax.media.j3d.Locale;
+import javax.media.j3d.PhysicalBody;
+import javax.media.j3d.PhysicalEnvironment;
+import javax.media.j3d.Screen3D;
+import javax.media.j3d.Transform3D;
+import javax.media.j3d.TransformGroup;
+import javax.media.j3d.View;
+import javax.media.j3d.ViewPlatform;
+import javax.media.j3d.VirtualUniverse;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import com.generalrobotix.ui.item.GrxModelItem;
+import com.generalrobotix.ui.item.GrxWorldStateItem.WorldStateEx;
+import com.generalrobotix.ui.view.Grx3DView;
+
+/**
+ * @brief renders models to images without a window
+ *
+ * The scene has the same lights and view parameters as Grx3DView. Frames
+ * are rendered on the calling thread, so no UI thread is needed. Java3D
+ * still needs an OpenGL context, which a virtual X server such as Xvfb
+ * gives on a machine without a screen.
+ */
+public class OffscreenRenderer {
+	// size of a pixel of the offscreen screen, which is 90dpi as the default of Java3D
+	private static final double PIXEL_SIZE = 0.0254 / 90.0; // [m]
+
+	private final VirtualUniverse universe_;
+	private final BranchGroup bgRoot_;
+	private final TransformGroup tgView_;
+	private final View view_;
+	private final Canvas3D canvas_;
+	private final Background backGround_ = new Background(0.0f, 0.0f, 0.0f);
+	private final List<GrxModelItem> models_ = new ArrayList<GrxModelItem>();
+
+	/**
+	 * @brief constructor
+	 * @param width width of images
+	 * @param height height of images
+	 */
+	public OffscreenRenderer(int width, int height) {
+		universe_ = new VirtualUniverse();
+		Locale locale = new Locale(universe_);
+		bgRoot_ = new BranchGroup();
+		bgRoot_.setCapability(BranchGroup.ALLOW_CHILDREN_READ);
+		bgRoot_.setCapability(BranchGroup.ALLOW_CHILDREN_WRITE);
+		bgRoot_.setCapability(BranchGroup.ALLOW_CHILDREN_EXTEND);
+		bgRoot_.addChild(Grx3DView.createLights(backGround_));
+
+		ViewInfo info = new ViewInfo(ViewInfo.VIEW_MODE_ROOM | ViewInfo.FRONT_VIEW, 3.0);
+		view_ = new View();
+		view_.setScreenScalePolicy(View.SCALE_EXPLICIT);
+		view_.setScreenScale(0.1);
+		view_.setPhysicalBody(new PhysicalBody());
+		view_.setPhysicalEnvironment(new PhysicalEnvironment());
+		view_.setFrontClipPolicy(View.VIRTUAL_EYE);
+		view_.setBackClipPolicy(View.VIRTUAL_EYE);
+		view_.setFrontClipDistance(info.frontClipDistance);
+		view_.setBackClipDistance(info.backClipDistance);
+		view_.setProjectionPolicy(View.PERSPECTIVE_PROJECTION);
+		view_.setFieldOfView(Math.PI/4);
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		ImageComponent2D buffer = new ImageComponent2D(ImageComponent.FORMAT_RGBA, image, true, false);
+		buffer.setCapability(ImageComponent2D.ALLOW_IMAGE_READ);
+		canvas_ = new Canvas3D(Grx3DView.graphicsConfiguration, true);
+		canvas_.setOffScreenBuffer(buffer);
+		// an offscreen canvas has no screen, so its size has to be given
+		Screen3D screen = canvas_.getScreen3D();
+		screen.setSize(width, height);
+		screen.setPhysicalScreenWidth(width * PIXEL_SIZE);
+		screen.setPhysicalScreenHeight(height * PIXEL_SIZE);
+		view_.addCanvas3D(canvas_);
+
+		BranchGroup bgView = new BranchGroup();
+		ViewPlatform platform = new ViewPlatform();
+		tgView_ = new TransformGroup();
+		tgView_.setCapability(TransformGroup.ALLOW_TRANSFORM_READ);
+		tgView_.setCapability(TransformGroup.ALLOW_TRANSFORM_WRITE);
+		view_.attachViewPlatform(platform);
+		tgView_.addChild(platform);
+		bgView.addChild(tgView_);
+		bgRoot_.addChild(bgView);
+
+		// same as the home position of Grx3DView
+		Transform3D t3d = new Transform3D();
+		t3d.lookAt(new Point3d(2.0, 2.0, 0.8), new Point3d(0.0, 0.0, 0.8), new Vector3d(0.0, 0.0, 1.0));
+		t3d.invert();
+		tgView_.setTransform(t3d);
+
+		locale.addBranchGraph(bgRoot_);
+	}
+
+	/**
+	 * @brief add a model to the scene
+	 * @param model model which is not shown in another view
+	 */
+	public void addModel(GrxModelItem model) {
+		if (models_.contains(model))
+			return;
+		if (model.bgRoot_.isLive())
+			model.bgRoot_.detach();
+		bgRoot_.addChild(model.bgRoot_);
+		models_.add(model);
+	}
+
+	public List<GrxModelItem> getModels() {
+		return models_;
+	}
+
+	/**
+	 * @brief set the transform of the eye
+	 * @param t3d transform from the eye frame to the world frame
+	 */
+	public void setViewTransform(Transform3D t3d) {
+		tgView_.setTransform(t3d);
+	}
+
+	/**
+	 * @brief update models with a WorldState in the same way as Grx3DView
+	 * @param state state of the world
+	 * @param actualState true to show joint angles measured, false to show target angles
+	 */
+	public void updateModels(WorldStateEx state, boolean actualState) {
+		Grx3DView.updateModels(models_, state, actualState);
+	}
+
+	/**
+	 * @brief render the current scene
+	 * @return rendered image, which is overwritten by the next rendering
+	 */
+	public BufferedImage render() {
+		canvas_.renderOffScreenBuffer();
+		canvas_.waitForOffScreenRendering();
+		return canvas_.getOffScreenBuffer().getImage();
+	}
+
+	/**
+	 * @brief release the canvas and take models out of the scene
+	 *
+	 * Poses set by updateModels() are written to the properties of the
+	 * models here, not on every frame.
+	 */
+	public void dispose() {
+		view_.removeCanvas3D(canvas_);
+		for (int i = 0; i < models_.size(); i++) {
+			models_.get(i).syncPoseProperties();
+			if (models_.get(i).bgRoot_.isLive())
+				models_.get(i).bgRoot_.detach();
+		}
+		models_.clear();
+		universe_.removeAllLocales();
+	}
+}
@@ -21,16 +21,15 @@ import java.util.*;
 import java.awt.image.BufferedImage;
 import javax.media.Format;
 
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.widgets.Display;
 
-public class RecordingManager{
-    //--------------------------------------------------------------------
-    // 定数
-    //最適化パラメータ
-    private static int SLEEP_TIME=50;  //スリープする時間(ms)
+import com.generalrobotix.ui.grxui.GrxUIPerspectiveFactory;
+import com.generalrobotix.ui.util.GrxDebugUtil;
+import com.generalrobotix.ui.util.MessageBundle;
 
-    //スリープに入るまでの最大許容イメージスタック数
-    private static int MAX_STACK_SIZE=0;
-    
+
+public class RecordingManager{
     //--------------------------------------------------------------------
     // クラス変数
     private static RecordingManager this_;
@@ -39,9 +38,12 @@ public class RecordingManager{
     // メンバ変数
     private int width_,height_;
     private float frameRate_;
-    private Hashtable<String, Format> htFormat_;   //String--Format
+    private Hashtable<String, Object> htFormat_;   //String--Format または ImageToFile のファイル形式
+    private String fileName_;
     
     private ImageToMovie movie_;
+    // JMF を使わずに書き出す場合
+    private ImageToFile file_;
     
     //--------------------------------------------------------------------
     // コンストラクタ
@@ -83,7 +85,7 @@ public class RecordingManager{
     }
 
     public Object[] getSuportedFormat(){
-        htFormat_=new Hashtable<String, Format>();
+        htFormat_=new Hashtable<String, Object>();
         Vector<String> ret = new Vector<String>();
         //テンポラリを作ってフォーマットを得る
         String fileName =
@@ -108,7 +110,9 @@ public class RecordingManager{
             ret.add(keyStr);
             htFormat_.put(keyStr,formats[i]);
         }
-        tempMovie.setFormat(formats[0]);
+        if (formats.length > 0)
+            tempMovie.setFormat(formats[0]);
+        tempMovie.dispose();
         //テンポラリを消す
         File file=new File(fileName);
         file.delete();
@@ -121,35 +125,104 @@ public class RecordingManager{
         String str="`~$" + cal.getTime().hashCode() +".TMP";
         return str;
     }
+
+    /**
+     * 録画の準備をし、選択できるフォーマットを返す
+     *
+     * JMF のフォーマットに加えて、JMF なしで書き出せる Motion JPEG(AVI) と
+     * PNG 連番画像を返す。
+     * @param fileName 出力ファイルのURL
+     * @param fileType JMF のファイル形式
+     * @return フォーマット名の配列
+     */
     public Object[] preRecord(String fileName, String fileType)
 	{
         Vector<String> ret = new Vector<String>();
-        movie_=
-            new ImageToMovie(
-                width_,
-                height_,
-                frameRate_,
-                fileName,
-                fileType
-            );
-        htFormat_=new Hashtable<String, Format>();
+        htFormat_=new Hashtable<String, Object>();
+        fileName_ = fileName;
+        movie_ = null;
+        file_ = null;
         
-        Format[] formats = movie_.getSupportedFormats();
-        for(int i=0;i<formats.length;i++){
-            String keyStr = formats[i].toString();
-            if(htFormat_.get(keyStr) != null){
-            	continue;
+        try {
+            movie_=
+                new ImageToMovie(
+                    width_,
+                    height_,
+                    frameRate_,
+                    fileName,
+                    fileType
+                );
+            Format[] formats = movie_.getSupportedFormats();
+            for(int i=0;i<formats.length;i++){
+                String keyStr = formats[i].toString();
+                if(htFormat_.get(keyStr) != null){
+                	continue;
+                }
+                ret.add(keyStr);
+                htFormat_.put(keyStr,formats[i]);
             }
-            ret.add(keyStr);
-            htFormat_.put(keyStr,formats[i]);
+        } catch (LinkageError ex) {
+            // JMF が使えない
+            GrxDebugUtil.println("RecordingManager: JMF is not available. " + ex); //$NON-NLS-1$
+            movie_ = null;
         }
+
+        String mjpeg = MessageBundle.get("RecordingManager.format.mjpeg"); //$NON-NLS-1$
+        ret.add(mjpeg);
+        htFormat_.put(mjpeg, ImageToFile.MJPEG_AVI);
+        String png = MessageBundle.get("RecordingManager.format.png"); //$NON-NLS-1$
+        ret.add(png);
+        htFormat_.put(png, ImageToFile.PNG_SEQUENCE);
         return ret.toArray();
     }
 
-    public boolean startRecord(String formatStr){
-        Format format=(Format)htFormat_.get(formatStr);
-        movie_.setFormat(format);
+    /**
+     * JMF を使わずに書き出す場合に実際に書き出すファイル名を返す
+     *
+     * AVI は拡張子を .avi に変えたファイルに書き出すので、
+     * preRecord() に渡したファイルとは別のファイルになることがある。
+     * @param formatStr フォーマット名
+     * @return ファイル名。JMF で書き出す場合は null
+     */
+    public String getOutputPath(String formatStr){
+        Object format=htFormat_.get(formatStr);
+        if (!(format instanceof String))
+            return null;
+        return ImageToFile.getOutputPath(_urlToPath(fileName_), (String)format);
+    }
+
+    /**
+     * JMF を使わずに書き出す場合に既存のファイルを上書きするか調べる
+     * @param formatStr フォーマット名
+     * @return 上書きする場合 true
+     */
+    public boolean outputExists(String formatStr){
+        Object format=htFormat_.get(formatStr);
+        if (!(format instanceof String))
+            return false;
+        return ImageToFile.outputExists(_getFilePath((String)format), (String)format);
+    }
 
+    /**
+     * 録画を開始する
+     * @param formatStr フォーマット名
+     * @param overwrite 既存のファイルを上書きしてよければ true。
+     *        ユーザに確認した場合だけ true にする
+     * @return 開始できなければ false
+     */
+    public boolean startRecord(String formatStr, boolean overwrite){
+        Object format=htFormat_.get(formatStr);
+        if (format instanceof String) {
+            if (movie_ != null) {
+                movie_.dispose();
+                movie_ = null;
+            }
+            file_ = new ImageToFile(width_, height_, frameRate_, _getFilePath((String)format), (String)format);
+            file_.setOverwrite(overwrite);
+            return file_.startProcess();
+        }
+
+        movie_.setFormat((Format)format);
         if(movie_.startProcess())
         	return true;
         else 
@@ -157,18 +230,65 @@ public class RecordingManager{
     }
 
     public void endRecord() {
-        movie_.endProcess();
+        if (file_ != null) {
+            if (!file_.endProcess()) {
+                Exception error = file_.getError();
+                GrxDebugUtil.printErr("RecordingManager: failed to write " + fileName_, error); //$NON-NLS-1$
+                final String message = MessageBundle.get("Grx3DView.dialog.message.recWriteError") + "\n" //$NON-NLS-1$ //$NON-NLS-2$
+                    + _urlToPath(fileName_) + (error != null ? "\n" + error.getMessage() : ""); //$NON-NLS-1$ //$NON-NLS-2$
+                Display display = Display.getDefault();
+                if (display != null && !display.isDisposed()) {
+                    display.syncExec(new Runnable(){
+                        public void run(){
+                            MessageDialog.openError( GrxUIPerspectiveFactory.getCurrentShell(), MessageBundle.get("Grx3DView.dialog.title.error"), message); //$NON-NLS-1$
+                        }
+                    });
+                }
+            }
+            file_ = null;
+        } else {
+            movie_.endProcess();
+        }
     }
 
-    public void pushImage(BufferedImage image)
+    /**
+     * 一コマ分のイメージを渡す
+     *
+     * イメージはすぐにコピーされるので、戻ったあとは書き換えてよい。
+     * エンコードが追いつかない間はブロックするので、
+     * 録画時間が長くてもメモリ使用量は一定になる。
+     * @param image イメージ
+     * @return エンコードが止まっていれば false
+     */
+    public boolean pushImage(BufferedImage image)
 	{
-            movie_.pushImage(image);
-            do {
-                try {
-                    Thread.sleep(SLEEP_TIME);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
-            } while (movie_.getImageStackSize() > MAX_STACK_SIZE);
+        try {
+            if (file_ != null)
+                return file_.pushImage(image);
+            else
+                return movie_.pushImage(image);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private String _urlToPath(String url) {
+        if (!url.startsWith("file:")) //$NON-NLS-1$
+            return url;
+        String path = url.substring(5);
+        while (path.startsWith("//")) //$NON-NLS-1$
+            path = path.substring(1);
+        // file:///C:/...
+        if (path.length() > 2 && path.charAt(0) == '/' && path.charAt(2) == ':')
+            path = path.substring(1);
+        return path;
+    }
+
+    private String _getFilePath(String format) {
+        String path = _urlToPath(fileName_);
+        if (format.equals(ImageToFile.MJPEG_AVI))
+            path = ImageToFile.getOutputPath(path, format);
+        return path;
     }
 }
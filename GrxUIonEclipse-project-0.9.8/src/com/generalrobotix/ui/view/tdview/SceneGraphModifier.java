@@ -212,7 +212,10 @@ public class SceneGraphModifier {
             if (mode_ == CREATE_BOUNDS) {
                 shape.setCapability(Node.ENABLE_PICK_REPORTING);
                 shape.setCapability(Shape3D.ALLOW_GEOMETRY_READ);
-                PickTool.setCapabilities(shape, PickTool.INTERSECT_FULL);
+                // 共有されたジオメトリ(GeometryCache)は設定済みで、liveなら変更できない
+                Geometry g = shape.getGeometry();
+                if (g == null || !(g.isLive() || g.isCompiled()))
+                    PickTool.setCapabilities(shape, PickTool.INTERSECT_FULL);
 
                 // for shading change
                 shape.setCapability(Shape3D.ALLOW_APPEARANCE_READ);
@@ -247,12 +250,29 @@ public class SceneGraphModifier {
             // 三角形の頂点を求める
             Geometry geometry = shape.getGeometry();
 
-            if (mode_ == CREATE_BOUNDS) {
+            if (mode_ == CREATE_BOUNDS && !(geometry.isLive() || geometry.isCompiled())) {
                 geometry.setCapability(GeometryArray.ALLOW_COORDINATE_READ);
                 geometry.setCapability(GeometryArray.ALLOW_COUNT_READ);
             }
 
-            if (geometry instanceof GeometryArray) {        // GeometryArray
+            if (geometry instanceof GeometryArray && _isInterleaved((GeometryArray)geometry)) {
+                // by-reference interleaved: 座標は各頂点データの最後の3要素
+                GeometryArray ga = (GeometryArray)geometry;
+                float[] data = ga.getInterleavedVertices();
+                int n = ga.getVertexCount();
+                int stride = n > 0 ? data.length / n : 0;
+                float[] point = new float[3];
+                Point3f point3f = new Point3f();
+                for (int i = 0; i < n; i++) {
+                    int k = i * stride + stride - 3;
+                    point3f.set(data[k], data[k + 1], data[k + 2]);
+                    t3dParent.transform(point3f);
+                    point[0] = point3f.x;
+                    point[1] = point3f.y;
+                    point[2] = point3f.z;
+                    _updateUpperLower(point);
+                }
+            } else if (geometry instanceof GeometryArray) {        // GeometryArray
                 GeometryArray ga = (GeometryArray)geometry;
                 for (int i = 0; i < ga.getVertexCount(); i++) {
                     float[] point = new float[3];                  // 頂点
@@ -268,6 +288,13 @@ public class SceneGraphModifier {
         }
     }
 
+    private static boolean _isInterleaved(GeometryArray ga) {
+        if ((ga.isLive() || ga.isCompiled()) && !ga.getCapability(GeometryArray.ALLOW_FORMAT_READ))
+            return false;
+        int format = ga.getVertexFormat();
+        return (format & GeometryArray.BY_REFERENCE) != 0 && (format & GeometryArray.INTERLEAVED) != 0;
+    }
+
     private void _updateUpperLower(float[] point) {
         if (init_) {
             for (int i = 0; i < 3; i++) {
@@ -21,6 +21,7 @@ import javax.swing.*;
 import javax.media.j3d.*;
 import javax.vecmath.*;
 
+import com.generalrobotix.ui.util.GrxDebugUtil;
 import com.generalrobotix.ui.view.Grx3DView;
 
 import jp.go.aist.hrp.simulator.CameraPOA;
@@ -100,7 +101,8 @@ public class Camera_impl extends CameraPOA {
 		if (cameraType == CameraType.COLOR || cameraType == CameraType.COLOR_DEPTH ||
 				cameraType == CameraType.MONO || cameraType == CameraType.MONO_DEPTH) {
 			bimageRead = new BufferedImage(width_, height_, BufferedImage.TYPE_INT_RGB);
-			readImage = new ImageComponent2D(ImageComponent.FORMAT_RGB, bimageRead);
+			// by reference, the raster is read into bimageRead without copy
+			readImage = new ImageComponent2D(ImageComponent.FORMAT_RGB, bimageRead, true, false);
 		}
 
 		// create depth information for reading depth buffer
@@ -214,10 +216,13 @@ public class Camera_impl extends CameraPOA {
             if (bImage_ == null){
                 bImage_ = new BufferedImage(width_, height_, BufferedImage.TYPE_INT_ARGB);
             }
-            if (getColorBuffer().length > 1){
-                bImage_.setRGB(0,0,width_,height_,getColorBuffer(),
-                              0,width_); 
-                g.drawImage(bImage_, 0, 0, null);
+            synchronized (Camera_impl.this) {
+                canvas_.takeFrame();
+                if (getColorBuffer().length > 1){
+                    bImage_.setRGB(0,0,width_,height_,getColorBuffer(),
+                                  0,width_); 
+                    g.drawImage(bImage_, 0, 0, null);
+                }
             }
         }
         public void update(Graphics g){
@@ -232,6 +237,11 @@ public class Camera_impl extends CameraPOA {
 	 */
 	public void destroy() {
 		System.out.println("Camera_impl::destroy()");
+		if(canvas_!=null && canvas_.getFrameCount() > 0)
+			GrxDebugUtil.println("[HRP]@Camera_impl " + param_.sensorName + "(" + _typeName(param_.type) + "): " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					+ canvas_.getFrameCount() + " frames, " //$NON-NLS-1$
+					+ String.format("%.1f", canvas_.getFrameRate()) + " fps, read " //$NON-NLS-1$ //$NON-NLS-2$
+					+ String.format("%.1f", canvas_.getReadTime() / 1000.0) + " us/frame"); //$NON-NLS-1$ //$NON-NLS-2$
 	    //これらのif(...!=null)は
 	    //二重destroy時のエラーを防ぐため
 		if(canvas_!=null)
@@ -288,15 +298,34 @@ public class Camera_impl extends CameraPOA {
 	}
 	
 	public void updateView(double time) {
+		if (startUpdateView(time))
+			finishUpdateView();
+	}
+
+	/**
+	 * Request rendering if a new frame is due at time
+	 * @param	time	simulation time
+	 * @return	true if rendering has been requested. finishUpdateView() must be called then.
+	 */
+	public boolean startUpdateView(double time) {
 		if (!canvas_.isOffScreen()) setVisible(true);
 		
 		int frame = (int)(time*param_.frameRate);
 		if (time == 0 || frame != lastRenderedFrame_){
-			canvas_.renderOnce();
-			if (canvas_.isOffScreen()) {
-				canvas2.repaint();
-			}
+			canvas_.startRendering();
 			lastRenderedFrame_ = frame;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wait for the frame requested by startUpdateView
+	 */
+	public void finishUpdateView() {
+		canvas_.finishRendering();
+		if (canvas_.isOffScreen()) {
+			canvas2.repaint();
 		}
 	}
 	
@@ -319,23 +348,36 @@ public class Camera_impl extends CameraPOA {
 	public ImageData getImageData() {
         if (!canvas_.isOffScreen()) setVisible(true);
 
-        if (param_.type == CameraType.COLOR ||
-            param_.type == CameraType.COLOR_DEPTH){
-            image_.longData = canvas_.getColorBuffer();
-        }
-        
-        if (param_.type == CameraType.MONO ||
-            param_.type == CameraType.MONO_DEPTH){
-            image_.octetData = canvas_.getMonoBuffer();
-        }
-	  
-        if (param_.type == CameraType.DEPTH ||
-            param_.type == CameraType.COLOR_DEPTH){
-            image_.floatData = canvas_.getDepthBuffer();
+        // color and depth have to come from the same frame
+        synchronized (this) {
+            canvas_.takeFrame();
+            if (param_.type == CameraType.COLOR ||
+                param_.type == CameraType.COLOR_DEPTH){
+                image_.longData = canvas_.getColorBuffer();
+            }
+            
+            if (param_.type == CameraType.MONO ||
+                param_.type == CameraType.MONO_DEPTH){
+                image_.octetData = canvas_.getMonoBuffer();
+            }
+    	  
+            if (param_.type == CameraType.DEPTH ||
+                param_.type == CameraType.COLOR_DEPTH){
+                image_.floatData = canvas_.getDepthBuffer();
+            }
         }
         return image_;
 	}
 
+	private static String _typeName(CameraType type) {
+		if (type == CameraType.COLOR) return "COLOR"; //$NON-NLS-1$
+		if (type == CameraType.MONO) return "MONO"; //$NON-NLS-1$
+		if (type == CameraType.DEPTH) return "DEPTH"; //$NON-NLS-1$
+		if (type == CameraType.COLOR_DEPTH) return "COLOR_DEPTH"; //$NON-NLS-1$
+		if (type == CameraType.MONO_DEPTH) return "MONO_DEPTH"; //$NON-NLS-1$
+		return "NONE"; //$NON-NLS-1$
+	}
+
 	/**
 	 * Get the branch-group of Camera
 	 * @return	root BranchGroup of this camera
@@ -12,11 +12,15 @@ package com.generalrobotix.ui.view.vsensor;
 
 import java.awt.GraphicsConfiguration;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
 
 import javax.media.j3d.DepthComponentFloat;
 import javax.media.j3d.GraphicsContext3D;
 import javax.media.j3d.Raster;
 
+import com.generalrobotix.ui.util.TripleBuffer;
+
 /**
  * This class defines Canvas which is used in OpenHRP.
  * @author	Ichitaro Kohara, MSTC
@@ -31,10 +35,22 @@ public class Canvas3DI extends javax.media.j3d.Canvas3D {
 	protected int rasterType_;
 	protected GraphicsContext3D	gc_;
 
-	// color buffer, depth buffer
-	int[]	colorBuffer_;
-	float[]	depthBuffer_;
-	boolean finished_ = false;
+	// completed frames are handed from the renderer to readers through a
+	// triple buffer. readers are serialized by frontLock_, since frames
+	// are taken by threads of remote controllers and by the frame window
+	private TripleBuffer<Frame> frames_;
+	private Frame front_;
+	private final Object frontLock_ = new Object();
+	volatile boolean finished_ = false;
+	// copy color pixels in postSwap, or in finishRendering on the caller thread
+	protected boolean copyOnSwap_ = true;
+	private boolean colorPending_ = false;
+
+	// capture statistics
+	private long frameCount_ = 0;
+	private long readNanos_ = 0;
+	private long firstFrameNanos_ = 0;
+	private long lastFrameNanos_ = 0;
 
 	// working space
 	protected BufferedImage			color_;
@@ -62,36 +78,104 @@ public class Canvas3DI extends javax.media.j3d.Canvas3D {
 		height_ = height;
 		rasterType_ = rasterType;
 
-		if (rasterType_ == Raster.RASTER_DEPTH
-			|| rasterType_ == Raster.RASTER_COLOR_DEPTH) {
-			depthBuffer_ = new float[width_ * height_];
-		}
-		if (rasterType_ == Raster.RASTER_COLOR
-			|| rasterType_ == Raster.RASTER_COLOR_DEPTH) {
-		    colorBuffer_ = new int[width_ * height_]; 
-        }
+		boolean color = (rasterType_ == Raster.RASTER_COLOR
+			|| rasterType_ == Raster.RASTER_COLOR_DEPTH);
+		boolean depth = (rasterType_ == Raster.RASTER_DEPTH
+			|| rasterType_ == Raster.RASTER_COLOR_DEPTH);
+		Frame third = new Frame(color, depth);
+		frames_ = new TripleBuffer<Frame>(new Frame(color, depth), new Frame(color, depth), third);
+		front_ = third;
 		setSize(width, height);
 	}
 
+	/**
+	 * Buffers of one frame
+	 */
+	private class Frame {
+		final int[] color;
+		final float[] depth;
+		byte[] mono = null;
+		boolean monoValid = false;
+
+		Frame(boolean hasColor, boolean hasDepth) {
+			color = hasColor ? new int[width_ * height_] : null;
+			depth = hasDepth ? new float[width_ * height_] : null;
+		}
+	}
+
+	/**
+	 * Takes the frame completed last
+	 *
+	 * The getters return buffers of the frame taken last, so color and
+	 * depth of one frame are returned until this is called again. The
+	 * renderer does not write them until the next frame is taken.
+	 */
+	public void takeFrame() {
+		synchronized (frontLock_) {
+			if (frames_ == null)
+				return;
+			Frame f = frames_.take();
+			if (f != null)
+				front_ = f;
+		}
+	}
+
 	/**
 	 * Returns color buffer
 	 * @return	color buffer
 	 */
 	public int[] getColorBuffer() {
-		return colorBuffer_;
+		synchronized (frontLock_) {
+			return front_ != null ? front_.color : null;
+		}
 	}
 
+	/**
+	 * Returns gray scale image converted from color buffer
+	 *
+	 * The conversion is done once per frame into a buffer of the frame.
+	 * @return	mono buffer
+	 */
 	public byte[] getMonoBuffer() {
-		byte[] monoBuffer = new byte[width_*height_];
-	  	for (int i=0; i<width_; i++) {
-	  		for (int j=0; j<height_; j++) {
-	  			monoBuffer[i+j*width_] = 
-	  				(byte)(0.587*(0xff&(colorBuffer_[i+j*width_]>>8))
-	  				+0.114*(0xff&(colorBuffer_[i+j*width_]))
-	  				+0.299*(0xff&(colorBuffer_[i+j*width_]>>16)));
-	  		}
-	  	}
-	  	return monoBuffer;
+		synchronized (frontLock_) {
+			Frame f = front_;
+			if (f == null || f.color == null)
+				return null;
+			if (f.mono == null)
+				f.mono = new byte[width_*height_];
+			if (!f.monoValid) {
+				// Y = 0.299R + 0.587G + 0.114B in 8 bit fixed point
+				int n = width_*height_;
+				for (int i=0; i<n; i++) {
+					int c = f.color[i];
+					f.mono[i] = (byte)((77*((c>>16)&0xff) + 150*((c>>8)&0xff) + 29*(c&0xff)) >> 8);
+				}
+				f.monoValid = true;
+			}
+			return f.mono;
+		}
+	}
+
+	/**
+	 * Returns number of frames read from the raster
+	 */
+	public long getFrameCount() {
+		return frameCount_;
+	}
+
+	/**
+	 * Returns frames per second between the first and the last frame
+	 */
+	public double getFrameRate() {
+		long elapsed = lastFrameNanos_ - firstFrameNanos_;
+		return frameCount_ > 1 && elapsed > 0 ? (frameCount_ - 1) * 1.0e9 / elapsed : 0;
+	}
+
+	/**
+	 * Returns average time to read a frame from the raster[ns]
+	 */
+	public double getReadTime() {
+		return frameCount_ > 0 ? (double)readNanos_ / frameCount_ : 0;
 	}
 
 	/**
@@ -99,7 +183,9 @@ public class Canvas3DI extends javax.media.j3d.Canvas3D {
 	 * @return	depth buffer
 	 */
 	public float[] getDepthBuffer() {
-		return depthBuffer_;
+		synchronized (frontLock_) {
+			return front_ != null ? front_.depth : null;
+		}
 	}
 	/**
 	 * This method is called when buffer has swapped
@@ -116,31 +202,89 @@ public class Canvas3DI extends javax.media.j3d.Canvas3D {
 		if (finished_)
 			return;
 
+		long start = System.nanoTime();
 		gc_.readRaster(raster_);
-		
-		// read color buffer
-		if (rasterType_ == Raster.RASTER_COLOR ||
-				rasterType_ == Raster.RASTER_COLOR_DEPTH){
-			color_ = raster_.getImage().getImage();
-			color_.getRGB(0, 0, width_, height_, colorBuffer_, 0, width_);
-            if (colorBuffer_.length != width_*height_){
-                System.out.println("invalid length of color buffer = "+colorBuffer_.length);
-            }
-		}
+		Frame back = frames_.getBackBuffer();
 
 		// read depth buffer
-		if (rasterType_ == Raster.RASTER_DEPTH ||
-				rasterType_ == Raster.RASTER_COLOR_DEPTH){
+		if (back.depth != null){
 			depth_ = (DepthComponentFloat)raster_.getDepthComponent();
-			depth_.getDepthData(depthBuffer_);
-            if (depthBuffer_.length != width_*height_){
-                System.out.println("invalid length of depth buffer = "+depthBuffer_.length);
-            }
+			depth_.getDepthData(back.depth);
 		}
+
+		// read color buffer, then publish the frame
+		if (back.color != null && !copyOnSwap_)
+			colorPending_ = true;
+		else
+			_copyColor();
 		finished_ = true;
+
+		long end = System.nanoTime();
+		if (frameCount_ == 0)
+			firstFrameNanos_ = end;
+		lastFrameNanos_ = end;
+		readNanos_ += end - start;
+		frameCount_++;
+	}
+
+	/**
+	 * Copy color pixels into the back buffer and publish it
+	 */
+	private void _copyColor() {
+		Frame back = frames_.getBackBuffer();
+		if (back.color != null) {
+			color_ = raster_.getImage().getImage();
+			_readColor(color_, back.color);
+		}
+		back.monoValid = false;
+		colorPending_ = false;
+		frames_.publish();
+	}
+
+	/**
+	 * Copy pixels of the raster image into color buffer
+	 *
+	 * When the image holds the pixels in an int array (TYPE_INT_RGB),
+	 * they are copied directly. Otherwise BufferedImage.getRGB is used.
+	 */
+	private void _readColor(BufferedImage image, int[] colorBuffer) {
+		DataBuffer buf = image.getRaster().getDataBuffer();
+		if (image.getType() == BufferedImage.TYPE_INT_RGB
+				&& buf instanceof DataBufferInt
+				&& buf.getSize() == colorBuffer.length
+				&& image.getWidth() == width_) {
+			int[] data = ((DataBufferInt)buf).getData();
+			// TYPE_INT_RGB has no alpha, set it opaque as getRGB does
+			for (int i=0; i<data.length; i++)
+				colorBuffer[i] = data[i] | 0xff000000;
+		} else {
+			image.getRGB(0, 0, width_, height_, colorBuffer, 0, width_);
+		}
 	}
 
+	/**
+	 * Render one frame and wait until it is read
+	 */
 	public void renderOnce(){
-        finished_ = false;
-    }
+		startRendering();
+		finishRendering();
+	}
+
+	/**
+	 * Request rendering of one frame without waiting
+	 *
+	 * Requests of several canvases are rendered in one pass of the
+	 * Java3D renderer.
+	 */
+	public void startRendering(){
+		finished_ = false;
+	}
+
+	/**
+	 * Wait for the frame requested by startRendering
+	 */
+	public void finishRendering(){
+		if (colorPending_)
+			_copyColor();
+	}
 } 
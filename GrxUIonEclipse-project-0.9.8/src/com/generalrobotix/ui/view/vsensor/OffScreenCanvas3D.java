@@ -41,6 +41,8 @@ public final class OffScreenCanvas3D extends Canvas3DI
 		int						rasterType)
 	{
 		super(graphicsConfiguration, true, raster, width, height, rasterType);
+		// the caller thread copies pixels while the renderer draws the next canvas
+		copyOnSwap_ = false;
 		//System.out.println("OffScreenCanvas3D::OffScreenCanvas3D()");
 
 		if (rasterType_ == Raster.RASTER_COLOR
@@ -57,9 +59,13 @@ public final class OffScreenCanvas3D extends Canvas3DI
 		s3d.setPhysicalScreenHeight(height);
 	}
 
-    public void renderOnce(){
-        super.renderOnce();
+    public void startRendering(){
+        super.startRendering();
         renderOffScreenBuffer();
+    }
+
+    public void finishRendering(){
         waitForOffScreenRendering();
+        super.finishRendering();
     }
 }
@@ -42,10 +42,13 @@ public final class OnScreenCanvas3D extends Canvas3DI {
 		//System.out.println("OnScreenCanvas3D::OnScreenCanvas3D()");
 	}
 
-    public void renderOnce(){
-        super.renderOnce();
-        int cnt = 0;
+    public void startRendering(){
+        super.startRendering();
         startRenderer();
+    }
+
+    public void finishRendering(){
+        int cnt = 0;
         try {
             while (finished_ == false) {
                 Thread.sleep(5);
@@ -54,5 +57,6 @@ public final class OnScreenCanvas3D extends Canvas3DI {
             }
         } catch (InterruptedException ex) { }
         stopRenderer();
+        super.finishRendering();
     }
 }